@@ -158,7 +158,7 @@ public class Backuper extends FileManager implements PathHolder
      * @param reset true to reinit
      * @return success
      */
-    public boolean initialize(boolean reset)
+    public synchronized boolean initialize(boolean reset)
     {
         if (!initialized || reset) {
             initialized = true;
@@ -269,7 +269,7 @@ public class Backuper extends FileManager implements PathHolder
     }
 
     @Override
-    public int backupFile(FileEntry entry) throws IOException
+    public synchronized int backupFile(FileEntry entry) throws IOException
     {
         initialize(false);
         Path path = getBackupTargetPath(entry);
@@ -291,7 +291,7 @@ public class Backuper extends FileManager implements PathHolder
     }
 
     @Override
-    protected int backupDirIfEmptyOrMove(FileEntry entry) throws IOException
+    protected synchronized int backupDirIfEmptyOrMove(FileEntry entry) throws IOException
     {
         initialize(false);
         Path path = getBackupTargetPath(entry);
@@ -328,6 +328,7 @@ public class Backuper extends FileManager implements PathHolder
             super(segment);
             this.path = path;
             this.properties = new FileProperties(segment.getDevice(), path, true);
+            this.properties.setHashAlgorithm(segment.getOptionsSnapshot().getHashAlgorithm());
         }
 
         @Override
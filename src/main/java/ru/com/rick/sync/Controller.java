@@ -18,6 +18,7 @@ import java.util.Map;
 import java.util.Set;
 import ru.com.rick.sync.fs.Device;
 import ru.com.rick.sync.fs.FileSystemDevice;
+import ru.com.rick.sync.fs.IoScheduler;
 import ru.com.rick.sync.fs.LogOutputStream;
 import ru.com.rick.sync.fs.PathOptions;
 import ru.com.rick.sync.fs.Root;
@@ -58,6 +59,11 @@ public class Controller
      */
     private final FileListContainer fileList;
 
+    /**
+     * I/O schedulers of device groups
+     */
+    private final IoScheduler.Groups schedulers = new IoScheduler.Groups();
+
     /**
      *
      * @param json
@@ -88,14 +94,16 @@ public class Controller
             return new Root(device, device.path(root), options);
         }
         if (!options.configDirAsRoot()) {
-            Device device = new FileSystemDevice();
+            Device device = new FileSystemDevice(new JsonObject(), schedulers);
             return new Root(device, device.path("."), options);
         } else {
             Path path = Paths.get(rootPath).normalize().toAbsolutePath();
             if (Files.exists(path) && !Files.isDirectory(path)) {
                 path = path.getParent(); // handle json config submited as root
             }
-            return new Root(new FileSystemDevice(path.toString()), path, options);
+            JsonObject device = new JsonObject();
+            device.put("defaultPath", path.toString());
+            return new Root(new FileSystemDevice(device, schedulers), path, options);
         }
     }
 
@@ -153,7 +161,7 @@ public class Controller
     protected Device createDeviceByType(String type, Map deviceJson)
     {
         if (type.equalsIgnoreCase("fs")) {
-            return new FileSystemDevice(deviceJson);
+            return new FileSystemDevice(deviceJson, schedulers);
         }
         throw new IllegalArgumentException("Illegal device type: '" + type + "'");
     }
@@ -6,20 +6,20 @@
  */
 package ru.com.rick.sync;
 
-import com.cedarsoftware.util.io.JsonWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.file.Path;
-import java.util.List;
 import java.util.Map;
-import org.json.simple.JSONAware;
+import java.util.zip.Deflater;
 import org.json.simple.parser.ParseException;
 import ru.com.rick.sync.fs.FileProperties;
 import ru.com.rick.sync.fs.FileVersion;
+import ru.com.rick.sync.fs.HashCache;
 import ru.com.rick.sync.fs.PathHolder;
+import ru.com.rick.sync.fs.PathTrie;
 import ru.com.rick.sync.fs.Root;
 import ru.com.rick.sync.fs.Segment;
 import ru.com.rick.sync.json.JsonObject;
@@ -27,9 +27,12 @@ import ru.com.rick.sync.json.JsonParser;
 import ru.com.rick.sync.json.JsonUtils;
 import ru.com.rick.sync.list.FileHistory;
 import ru.com.rick.sync.list.FileList;
+import ru.com.rick.sync.list.FileListCompression;
+import ru.com.rick.sync.list.FileListFormat;
+import ru.com.rick.sync.list.FileListJournal;
 import ru.com.rick.sync.list.FileListTarget;
-import ru.com.rick.sync.list.GlobalFileList;
-import ru.com.rick.sync.list.LocalFileList;
+import ru.com.rick.sync.list.IndexedFileList;
+import ru.com.rick.sync.list.JsonFileListFormat;
 
 /**
  * Class for managing file lists.
@@ -78,6 +81,11 @@ public class FileListContainer implements PathHolder
      */
     private FileList list = null;
 
+    /**
+     * List file is mapped by the read list and must be replaced, not overwritten
+     */
+    private boolean mapped = false;
+
     /**
      * Last error
      */
@@ -113,6 +121,36 @@ public class FileListContainer implements PathHolder
      */
     private boolean prettyPrint = true;
 
+    /**
+     * Format of list file
+     */
+    private FileListFormat format = new JsonFileListFormat(prettyPrint);
+
+    /**
+     * Compression of list file
+     */
+    private FileListCompression compression = FileListCompression.NONE;
+
+    /**
+     * Compression level (0-9 or -1 for default)
+     */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Journal for saving changes only (null if not journaled)
+     */
+    private FileListJournal journal = null;
+
+    /**
+     * Hash cache file absolute path
+     */
+    private Path hashCachePath = null;
+
+    /**
+     * Hash cache
+     */
+    private HashCache hashCache = null;
+
     /**
      *
      * @param root root
@@ -161,6 +199,29 @@ public class FileListContainer implements PathHolder
         this.ignoreErrors = JsonUtils.getBoolean(json, "ignoreErrors", ignoreErrors);
         this.createDirs = JsonUtils.getBoolean(json, "createDirs", createDirs);
         this.prettyPrint = JsonUtils.getBoolean(json, "prettyPrint", prettyPrint);
+        this.format = FileListFormat.fromName(JsonUtils.getString(json, "format", JsonFileListFormat.NAME), prettyPrint);
+        String compressionName = JsonUtils.getString(json, "compression", null);
+        if (compressionName != null) {
+            this.compression = FileListCompression.fromName(compressionName);
+        } else if (absolutePath != null) {
+            this.compression = FileListCompression.fromPath(absolutePath);
+        }
+        this.compressionLevel = JsonUtils.getInteger(json, "compressionLevel", compressionLevel);
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid value for JSON configuration option 'compressionLevel'");
+        }
+        double journalRatio = JsonUtils.getDouble(json, "journalRatio", FileListJournal.DEFAULT_RATIO);
+        if (journalRatio <= 0) {
+            throw new IllegalArgumentException("Invalid value for JSON configuration option 'journalRatio'");
+        }
+        if (absolutePath != null && JsonUtils.getBoolean(json, "journal", false) && !compact) {
+            this.journal = new FileListJournal(getDevice(), absolutePath, format, compression, compressionLevel, global, journalRatio);
+        }
+        String cachePath = JsonUtils.getString(json, "hashCache", null);
+        if (cachePath != null) {
+            Path p = root.getDevice().path(cachePath);
+            this.hashCachePath = root.getDevice().isAbsolutePath(p) ? p.normalize() : root.getAbsolutePath(p.normalize());
+        }
         //TODO: globalCopy - copy list to global list
     }
 
@@ -199,7 +260,6 @@ public class FileListContainer implements PathHolder
     private boolean writeFileList(Path file)
     {
         error = null;
-        JSONAware data = generateJson();
         if (createDirs) {
             Path parent = file.getParent();
             if (parent != null) {
@@ -211,20 +271,37 @@ public class FileListContainer implements PathHolder
                 }
             }
         }
-        try (OutputStream out = getDevice().getOutputStream(file)) {
-            try (OutputStreamWriter sw = new OutputStreamWriter(out)) {
-                String jsonString;
-                if (prettyPrint) {
-                    JsonObject params = new JsonObject();
-                    params.put(JsonWriter.PRETTY_PRINT, true);
-                    params.put(JsonWriter.TYPE, false);
-                    jsonString = JsonWriter.objectToJson(data, params);
+        if (journal != null && list != null) {
+            try {
+                journal.write(list, maxVersions, requireHash);
+                return true;
+            } catch (IOException ex) {
+                error = ex;
+                return false;
+            }
+        }
+        Path temp = mapped ? file.resolveSibling(file.getFileName() + ".tmp") : file;
+        try {
+            try (OutputStream out = compression.compress(getDevice().getOutputStream(temp), compressionLevel)) {
+                if (list == null) {
+                    format.write(new JsonObject(), out);
+                } else if (compact) {
+                    format.write(list.toCompactJson(), out);
                 } else {
-                    jsonString = data.toJSONString();
+                    format.writeList(list, maxVersions, requireHash, out);
                 }
-                sw.write(jsonString);
             }
+            if (temp != file) {
+                getDevice().moveFile(temp, file, true);
+            }
+            getDevice().deleteFile(FileListJournal.getJournalPath(file)); // journal of a previous snapshot
         } catch (IOException ex) {
+            if (temp != file) {
+                try {
+                    getDevice().deleteFile(temp);
+                } catch (IOException e) {
+                }
+            }
             error = ex;
             return false;
         }
@@ -243,65 +320,68 @@ public class FileListContainer implements PathHolder
     {
         list = null;
         error = null;
-        Object json;
         if (!getDevice().exists(file)) {
             return false;
         }
-        try (InputStream is = getDevice().getInputStream(file)) {
-            try (InputStreamReader reader = new InputStreamReader(is)) {
-                JsonParser parser = new JsonParser();
-                json = parser.parse(reader);
-            }
-        } catch (IOException | ParseException ex) {
-            error = ex;
-            return false;
+        long time = getDevice().getModifiedTime(file);
+        FileListJournal reader = journal;
+        if (reader == null && getDevice().exists(FileListJournal.getJournalPath(file))) {
+            reader = new FileListJournal(getDevice(), file, format, compression, compressionLevel, global, FileListJournal.DEFAULT_RATIO);
         }
         try {
-            return processJson(json, file);
+            if (reader != null) {
+                list = reader.read(time);
+            } else {
+                list = FileListFormat.openList(getDevice(), file, global, time);
+                mapped = list instanceof IndexedFileList;
+            }
         } catch (Exception ex) {
+            list = null;
             error = ex;
             return false;
         }
+        if (list != null) {
+            list.setMaxVersions(maxVersions);
+        }
+        return list != null;
     }
 
     /**
      *
-     * @return JSON array or object
+     * @return success
      */
-    private JSONAware generateJson()
+    private boolean writeHashCache()
     {
-        if (list == null) {
-            return new JsonObject();
-        }
-        if (compact) {
-            return list.toCompactJson();
-        } else {
-            return list.toJson(maxVersions, requireHash);
+        try (OutputStream out = getDevice().getOutputStream(hashCachePath)) {
+            try (OutputStreamWriter sw = new OutputStreamWriter(out)) {
+                sw.write(getHashCache().toJson().toJSONString());
+            }
+        } catch (IOException ex) {
+            error = ex;
+            return false;
         }
+        return true;
     }
 
     /**
+     * Read hash cache file. Invalid cache file is ignored.
      *
-     * @param json
-     * @param file
-     * @return success
+     * @return cache
      */
-    private boolean processJson(Object json, Path file)
+    private HashCache readHashCache()
     {
-        if (json == null) {
-            return false;
-        }
-        long time = getDevice().getModifiedTime(file);
-        if (global) {
-            list = new GlobalFileList((Map)json, time);
-            return true;
-        } else if (json instanceof List) {
-            list = new LocalFileList((List)json, time);
-            return true;
-        } else {
-            list = new LocalFileList((Map)json, time);
-            return true;
+        if (hashCachePath != null && getDevice().exists(hashCachePath)) {
+            try (InputStream is = getDevice().getInputStream(hashCachePath)) {
+                try (InputStreamReader reader = new InputStreamReader(is)) {
+                    Object json = new JsonParser().parse(reader);
+                    if (json instanceof Map) {
+                        return new HashCache((Map)json);
+                    }
+                }
+            } catch (IOException | ParseException ex) {
+            }
         }
+        return new HashCache(hashCachePath != null);
     }
 
     /**
@@ -334,13 +414,44 @@ public class FileListContainer implements PathHolder
     public boolean update(FileList list)
     {
         this.list = list;
+        if (list != null) {
+            list.setMaxVersions(maxVersions);
+        }
         error = null;
         ready = true;
         success = absolutePath != null && writeFileList(absolutePath);
+        if (success && hashCachePath != null) {
+            success = writeHashCache();
+        }
         updated = true;
         return success;
     }
 
+    /**
+     *
+     * @param root
+     * @return hash cache file path relative to another root or null
+     */
+    public Path getHashCacheRelativePath(Segment root)
+    {
+        if (hashCachePath != null && getDevice().isSameFileSystem(root.getDevice())) {
+            return root.getRelativePath(hashCachePath);
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @return cache for file hashes (loaded from hash cache file if configured)
+     */
+    public synchronized HashCache getHashCache()
+    {
+        if (hashCache == null) {
+            hashCache = readHashCache();
+        }
+        return hashCache;
+    }
+
     /**
      *
      * @return list errors can be ignored
@@ -428,7 +539,7 @@ public class FileListContainer implements PathHolder
      * @param target
      * @return list entry or null if no list
      */
-    public FileHistory getEntry(Path path, FileListTarget target)
+    public FileHistory getEntry(PathTrie.Node path, FileListTarget target)
     {
         if (!ready) {
             initialize();
@@ -11,6 +11,7 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.util.HashSet;
+import java.util.function.BiPredicate;
 import ru.com.rick.sync.fs.Device;
 import ru.com.rick.sync.fs.FileEntry;
 import ru.com.rick.sync.fs.Segment;
@@ -147,9 +148,22 @@ public abstract class FileManager
      * @return operation result
      */
     public SyncResult copy(FileEntry source, FileEntry target)
+    {
+        return copy(source, target, null);
+    }
+
+    /**
+     * Copy a source file or dir to a non-existent target, skipping ignored subpaths of a dir.
+     *
+     * @param source
+     * @param target
+     * @param ignored test of source and target entries of a subpath to skip, or null
+     * @return operation result
+     */
+    public SyncResult copy(FileEntry source, FileEntry target, BiPredicate<FileEntry, FileEntry> ignored)
     {
         if (source.isDir()) {
-            return copyDir(source, target);
+            return copyDir(source, target, ignored);
         } else {
             return copyFile(source, target);
         }
@@ -180,9 +194,10 @@ public abstract class FileManager
      *
      * @param source
      * @param target
+     * @param ignored test of source and target entries of a subpath to skip, or null
      * @return
      */
-    protected SyncResult copyDir(FileEntry source, FileEntry target)
+    protected SyncResult copyDir(FileEntry source, FileEntry target, BiPredicate<FileEntry, FileEntry> ignored)
     {
         if (!source.getSegment().followSymLinks() && source.isSymLink()) {
             return new SyncResult(SyncResult.SYNC_IGNORE, true);
@@ -207,7 +222,10 @@ public abstract class FileManager
                 Path rel = srootp.relativize(sp);
                 FileEntry se = new FileEntry(source.getSegment(), rel);
                 FileEntry te = new FileEntry(target.getSegment(), rel);
-                result.addSubResult(rel, copy(se, te));
+                if (ignored != null && ignored.test(se, te)) {
+                    continue;
+                }
+                result.addSubResult(rel, copy(se, te, ignored));
             }
             return result.transformSuccess(!result.isTotalFailure());
         } catch (IOException ex) {
@@ -8,6 +8,8 @@ package ru.com.rick.sync;
 
 import ru.com.rick.sync.fs.FileVersion;
 import ru.com.rick.sync.fs.FileEntry;
+import ru.com.rick.sync.fs.PathFilter;
+import ru.com.rick.sync.fs.PathTrie;
 import ru.com.rick.sync.fs.Segment;
 import ru.com.rick.sync.options.GlobalOptions;
 import java.io.IOException;
@@ -70,6 +72,22 @@ public class FileSyncEntry
      */
     private int ignoreCode = 0;
 
+    /**
+     * Matching states of the path in included and ignored paths, kept for children of a directory
+     */
+    private PathFilter.State includedState = null;
+    private PathFilter.State ignoredState = null;
+
+    /**
+     * Element keeping the state of this entry or null
+     */
+    private final SyncElement element;
+
+    /**
+     * Cell of the entry in the element store
+     */
+    private final int cell;
+
     /**
      *
      * @param target
@@ -84,6 +102,32 @@ public class FileSyncEntry
         this.entry = entry;
         this.segment = entry.getSegment();
         this.history = history;
+        this.element = null;
+        this.cell = -1;
+    }
+
+    /**
+     * Entry of an element, with state kept in the element store.
+     *
+     * @param element
+     * @param index sync target index
+     * @param parent
+     * @param entry
+     * @param history
+     */
+    FileSyncEntry(SyncElement element, int index, FileSyncEntry parent, FileEntry entry, FileHistory history)
+    {
+        this.target = element.getTarget(index);
+        this.parent = parent;
+        this.entry = entry;
+        this.segment = entry.getSegment();
+        this.history = history;
+        this.element = element;
+        this.cell = element.getStore().cell(element.getId(), index);
+        SyncElementStore store = element.getStore();
+        this.changeStatus = store.getChangeStatus(cell);
+        this.ignoreCode = store.getIgnoreCode(cell);
+        this.oldProperties = store.getOldProperties(cell);
     }
 
     /**
@@ -126,9 +170,9 @@ public class FileSyncEntry
      *
      * @return sync options
      */
-    public SyncOptions getSyncOptions()
+    public SyncOptions.Snapshot getSyncOptions()
     {
-        return target.getOptions();
+        return target.getOptionsSnapshot();
     }
 
     /**
@@ -155,7 +199,7 @@ public class FileSyncEntry
      */
     public boolean isContainer()
     {
-        return isAvailable() && !isIgnored() && entry.isDir() && (segment.getOptions().followSymLinks() || !entry.isSymLink());
+        return isAvailable() && !isIgnored() && entry.isDir() && (segment.followSymLinks() || !entry.isSymLink());
     }
 
     /**
@@ -177,23 +221,89 @@ public class FileSyncEntry
             return ignoreCode > 0;
         }
         if (parent != null && (parent.isIgnored() || !parent.isContainer())) {
-            ignoreCode = 2;
-        } else if (target.pathIsIgnored(entry.getRelativePath())) {
-            ignoreCode = 1;
+            setIgnoreCode(2);
+            return true;
+        }
+        PathFilter.State included = nextFilterState(target.getIncludedPaths(), true);
+        PathFilter.State ignored = nextFilterState(target.getIgnoredPaths(), false);
+        if (target.pathIsIgnored(entry, included, ignored)) {
+            setIgnoreCode(1);
         } else {
-            ignoreCode = -1;
+            setIgnoreCode(-1);
         }
         return ignoreCode > 0;
     }
 
+    /**
+     * Matching state of the path, kept for children of the entry.
+     *
+     * @param filter included or ignored paths of the target
+     * @param included state of included paths
+     * @return matching state
+     */
+    private PathFilter.State getFilterState(PathFilter filter, boolean included)
+    {
+        PathFilter.State state = included ? includedState : ignoredState;
+        if (state == null) {
+            state = nextFilterState(filter, included);
+            if (included) {
+                includedState = state;
+            } else {
+                ignoredState = state;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Matching state of the path advanced from the state of the parent directory (matched from the root if the parent
+     * entry is not the parent path).
+     *
+     * @param filter included or ignored paths of the target
+     * @param included state of included paths
+     * @return matching state
+     */
+    private PathFilter.State nextFilterState(PathFilter filter, boolean included)
+    {
+        PathTrie.Node rpath = entry.getPathNode();
+        if (parent != null && rpath.getParent() != null && parent.entry.getPathNode() == rpath.getParent()) {
+            return filter.next(parent.getFilterState(filter, included), rpath);
+        }
+        return filter.getState(rpath);
+    }
+
     /**
      * Refresh file entry and statuses.
      */
     public void refresh()
     {
         entry.refresh();
-        changeStatus = CHANGE_UNKNOWN;
-        ignoreCode = 0;
+        setChangeStatus(CHANGE_UNKNOWN);
+        setIgnoreCode(0);
+    }
+
+    /**
+     *
+     * @param value
+     */
+    private void setChangeStatus(int value)
+    {
+        changeStatus = value;
+        if (element != null) {
+            element.getStore().setChangeStatus(cell, value);
+        }
+    }
+
+    /**
+     *
+     * @param value
+     */
+    private void setIgnoreCode(int value)
+    {
+        ignoreCode = value;
+        if (element != null) {
+            element.getStore().setIgnoreCode(cell, value);
+        }
     }
 
     /**
@@ -317,7 +427,7 @@ public class FileSyncEntry
     public int getChangeStatus()
     {
         if (changeStatus == CHANGE_UNKNOWN) {
-            changeStatus = getChangeStatus(segment.canUseModifiedTime(), segment.canUseHash());
+            setChangeStatus(getChangeStatus(segment.canUseModifiedTime(), segment.canUseHash()));
         }
         return changeStatus;
     }
@@ -454,6 +564,9 @@ public class FileSyncEntry
     public void saveOldProperties()
     {
         oldProperties = new FileVersion(getProperties());
+        if (element != null) {
+            element.getStore().setOldProperties(cell, oldProperties);
+        }
     }
 
     /**
@@ -495,14 +608,75 @@ public class FileSyncEntry
             return new SyncResult(SyncResult.SYNC_IGNORE, true);
         }
         if (parent == null) {
-            SyncResult result = target.getBackuper().createDirs(entry, target.getOptions().createRoot());
+            SyncResult result = target.getBackuper().createDirs(entry, target.getOptionsSnapshot().createRoot());
             if (!result.isSuccess()) {
                 return result;
             }
         }
         saveOldProperties();
-        return target.getBackuper().copy(source.entry, entry);
+        return target.getBackuper().copy(source.entry, entry, (se, te) -> source.target.pathIsIgnored(se) || target.pathIsIgnored(te));
+
+    }
 
+    /**
+     * Check if source file can be copied to current file entry as a plain file, without creating directories.
+     *
+     * @param source
+     * @param replace
+     * @return true if copyFrom will copy file contents
+     */
+    public boolean canCopyFileFrom(FileSyncEntry source, boolean replace)
+    {
+        if (target.isReadOnly() || !source.entry.exists() || source.entry.isDir() || source.entry.isSymLink()) {
+            return false;
+        }
+        if (replace && entry.exists()) {
+            return !entry.isDir() && !entry.isSymLink() && target.canReplace(entry, source.entry);
+        }
+        return !entry.exists() && target.canCreate(source.entry);
+    }
+
+    /**
+     * Move a file of the same target to current file entry instead of copying source file. Falls back to copying
+     * and deleting if the file can not be moved.
+     *
+     * @param moved entry of a file equal to source
+     * @param source
+     * @param options
+     * @return operation result
+     */
+    public SyncResult moveFrom(FileSyncEntry moved, FileSyncEntry source, GlobalOptions options)
+    {
+        if (target.isReadOnly() || !target.canCreate(source.entry) || !target.canDelete(moved.entry)) {
+            return copyAndDelete(moved, source, options);
+        }
+        saveOldProperties();
+        moved.saveOldProperties();
+        try {
+            entry.getDevice().moveFile(moved.entry.getAbsolutePath(), entry.getAbsolutePath(), false);
+            moved.entry.refresh();
+            entry.refresh();
+            return new SyncResult(SyncResult.SYNC_CREATE, true);
+        } catch (IOException ex) {
+            return copyAndDelete(moved, source, options);
+        }
+    }
+
+    /**
+     * Copy source file to current file entry, then delete the file which was to be moved here (with backup).
+     *
+     * @param moved
+     * @param source
+     * @param options
+     * @return operation result
+     */
+    private SyncResult copyAndDelete(FileSyncEntry moved, FileSyncEntry source, GlobalOptions options)
+    {
+        SyncResult result = copyFrom(source, false, options);
+        if (result.isSuccess() && moved.entry.exists()) {
+            result.addSubResult(moved.entry.getRelativePath(), moved.delete(options));
+        }
+        return result;
     }
 
     /**
@@ -520,7 +694,7 @@ public class FileSyncEntry
         if (target.isReadOnly()) {
             return new SyncResult(SyncResult.SYNC_IGNORE, true);
         }
-        if (!segment.getOptions().writeToSymLinks() && entry.isSymLink()) {
+        if (!segment.writeToSymLinks() && entry.isSymLink()) {
             return new SyncResult(SyncResult.SYNC_IGNORE, true);
         }
         return new SyncResult(SyncResult.SYNC_MERGE, true);
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import ru.com.rick.sync.fs.FileProperties;
+import ru.com.rick.sync.fs.FileUtils;
+import ru.com.rick.sync.fs.FileVersion;
+import ru.com.rick.sync.fs.HashAlgorithm;
+
+/**
+ * Detection of moved (renamed) files and directories in analyzed sync list.
+ *
+ * A file or directory to be deleted from a target is matched with a file or directory to be created on the same
+ * target, if the file to be deleted is equal to the source of the created file. Candidates are found by a signature
+ * of size and modified time in seconds, then confirmed by modified time with ms accuracy (unless one of the times is
+ * stored in seconds) and by contents at the compare level of the segments. Directories are matched by the relative
+ * paths of all their files, and every file is confirmed the same way. Matched files are moved within the target
+ * instead of deleting and copying.
+ *
+ * @author Rick
+ */
+public class MoveDetector
+{
+    private final SyncList list;
+    private final SyncTarget[] targets;
+
+    public MoveDetector(SyncList list)
+    {
+        this.list = list;
+        this.targets = list.getTargets();
+    }
+
+    /**
+     * Find moved files in all targets and mark them to be moved on sync.
+     *
+     * @return count of moves
+     */
+    public int detect()
+    {
+        int count = 0;
+        for (int i = 0; i < targets.length; ++i) {
+            if (targets[i].isAvailable() && !targets[i].isReadOnly()) {
+                count += detect(i);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Find moved files in one target.
+     *
+     * @param index sync target index
+     * @return count of moves
+     */
+    private int detect(int index)
+    {
+        HashMap<String, LinkedList<SyncElement>> deleted = new HashMap<>();
+        for (SyncElement element : list.getElements()) {
+            if (isCandidate(element, index, SyncStatus.SYNC_DELETE)) {
+                FileSyncEntry entry = element.getEntry(index);
+                if (targets[index].canDelete(entry.getFileEntry())) {
+                    String signature = getSignature(element, index);
+                    if (signature != null) {
+                        deleted.computeIfAbsent(signature, x -> new LinkedList<>()).add(element);
+                    }
+                }
+            }
+        }
+        if (deleted.isEmpty()) {
+            return 0;
+        }
+
+        int count = 0;
+        for (SyncElement element : list.getElements()) {
+            if (isCandidate(element, index, SyncStatus.SYNC_CREATE)) {
+                FileSyncEntry source = element.getSelectedEntry();
+                if (!targets[index].canCreate(source.getFileEntry())) {
+                    continue;
+                }
+                String signature = getSignature(element, element.getSourceIndex());
+                LinkedList<SyncElement> matches = signature != null ? deleted.get(signature) : null;
+                if (matches != null) {
+                    SyncElement moved = findEqual(matches, index, element);
+                    if (moved != null) {
+                        matches.remove(moved);
+                        moved.getStatus(index).setMovedTo(element.getStatus(index));
+                        element.getStatus(index).setMovedFrom(moved.getEntry(index));
+                        count++;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param element
+     * @param index
+     * @param value
+     * @return element is to be created/deleted as a whole
+     */
+    private boolean isCandidate(SyncElement element, int index, int value)
+    {
+        if (element.getSourceIndex() < 0 || element.getSourceIndex() == index) {
+            return false;
+        }
+        SyncElement.Status status = element.getStatus(index);
+        return status.getValue() == value
+                && !status.isDone()
+                && status.getValidationError() == null
+                && status.parentIsMerging();
+    }
+
+    /**
+     *
+     * @param matches elements to be deleted
+     * @param index sync target index
+     * @param created element to be created
+     * @return matched element or null
+     */
+    private SyncElement findEqual(List<SyncElement> matches, int index, SyncElement created)
+    {
+        for (SyncElement element : matches) {
+            if (isEqual(element.getEntry(index), created.getSelectedEntry())) {
+                if (!created.getSelectedEntry().getProperties().isDir()) {
+                    return element;
+                }
+                TreeMap<String, FileSyncEntry> files = new TreeMap<>();
+                TreeMap<String, FileSyncEntry> sources = new TreeMap<>();
+                collectFiles(element, index, element.getPath(), files);
+                collectFiles(created, created.getSourceIndex(), created.getPath(), sources);
+                if (isEqual(files, sources)) {
+                    return element;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param files files within a directory to be deleted
+     * @param sources files within a source directory
+     * @return if all files are equal
+     */
+    private boolean isEqual(TreeMap<String, FileSyncEntry> files, TreeMap<String, FileSyncEntry> sources)
+    {
+        if (!files.keySet().equals(sources.keySet())) {
+            return false;
+        }
+        for (String key : files.keySet()) {
+            if (!isEqual(files.get(key), sources.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @param entry entry to be deleted
+     * @param source source of the entry to be created
+     * @return if entries are equal
+     */
+    private boolean isEqual(FileSyncEntry entry, FileSyncEntry source)
+    {
+        FileProperties tp = entry.getProperties();
+        FileProperties sp = source.getProperties();
+        if (sp.isDir() || tp.isDir()) {
+            return sp.isDir() && tp.isDir();
+        }
+        if (sp.getFileSize() != tp.getFileSize() || !FileUtils.compareModifiedTimes(sp.getModifiedTime(), tp.getModifiedTime(), false)) {
+            return false;
+        }
+        try {
+            return source.getFileEntry().isEqualTo(entry.getFileEntry());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @param element
+     * @param index sync target index
+     * @return signature to match files or null if the file can not be matched
+     */
+    private String getSignature(SyncElement element, int index)
+    {
+        FileSyncEntry entry = element.getEntry(index);
+        if (!entry.getFileEntry().getSegment().canUseModifiedTime() || entry.getFileEntry().isSymLink()) {
+            return null;
+        }
+        FileProperties props = entry.getProperties();
+        if (!props.isDir()) {
+            return getFileSignature(props);
+        }
+
+        TreeMap<String, FileSyncEntry> files = new TreeMap<>();
+        collectFiles(element, index, element.getPath(), files);
+        TreeMap<String, String> signatures = new TreeMap<>();
+        for (String key : files.keySet()) {
+            FileProperties fp = files.get(key).getProperties();
+            signatures.put(key, fp.isDir() ? "" : getFileSignature(fp));
+        }
+        if (!signatures.containsValue(null) && signatures.values().stream().anyMatch(x -> !x.isEmpty())) {
+            HashAlgorithm.Hasher hasher = HashAlgorithm.SHA256.createHasher();
+            for (String key : signatures.keySet()) {
+                hasher.update(ByteBuffer.wrap((key + "\0" + signatures.get(key) + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+            StringBuilder sb = new StringBuilder("dir:");
+            for (byte b : hasher.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param props
+     * @return signature of a file or null (modified time in seconds, as some segments don't store ms)
+     */
+    private String getFileSignature(FileProperties props)
+    {
+        long size = props.getFileSize();
+        long mtime = props.getModifiedTime();
+        if (size < 0 || mtime == FileVersion.TIME_UNKNOWN) {
+            return null;
+        }
+        return "file:" + size + ":" + (mtime / 1000);
+    }
+
+    /**
+     * Collect all existing files and directories within a directory by relative paths.
+     *
+     * @param element
+     * @param index
+     * @param base
+     * @param files
+     */
+    private void collectFiles(SyncElement element, int index, Path base, TreeMap<String, FileSyncEntry> files)
+    {
+        for (SyncElement child : list.getChildren(element)) {
+            FileSyncEntry entry = child.getEntry(index);
+            if (entry.getFileEntry().exists()) {
+                files.put(base.relativize(child.getPath()).toString(), entry);
+                if (entry.getProperties().isDir()) {
+                    collectFiles(child, index, base, files);
+                }
+            }
+        }
+    }
+}
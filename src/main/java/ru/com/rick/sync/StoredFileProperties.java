@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import ru.com.rick.sync.fs.Device;
+import ru.com.rick.sync.fs.FileProperties;
+import ru.com.rick.sync.fs.FileVersion;
+import ru.com.rick.sync.fs.HashAlgorithm;
+
+/**
+ * Properties of a file of a sync element cell. Values already checked are taken from the element store, values
+ * checked here are saved to it.
+ *
+ * @author Rick
+ */
+class StoredFileProperties extends FileProperties
+{
+    private final SyncElementStore store;
+    private final int cell;
+
+    /**
+     *
+     * @param store element store
+     * @param cell cell index
+     * @param device
+     * @param path full path to file
+     * @param algorithm hash algorithm
+     */
+    public StoredFileProperties(SyncElementStore store, int cell, Device device, Path path, HashAlgorithm algorithm)
+    {
+        super(device, path);
+        this.store = store;
+        this.cell = cell;
+        this.hashAlgorithm = algorithm;
+        int flags = store.getFlags(cell);
+        if ((flags & SyncElementStore.EXISTS_CHECKED) != 0) {
+            setExists((flags & SyncElementStore.EXISTS) != 0);
+            checkedExists = true;
+        }
+        if ((flags & SyncElementStore.DIR_CHECKED) != 0) {
+            setDir((flags & SyncElementStore.DIR) != 0);
+            checkedIsDir = true;
+        }
+        if ((flags & SyncElementStore.MTIME_CHECKED) != 0) {
+            mtime = store.getModifiedTime(cell);
+            checkedMtime = true;
+        }
+        if ((flags & SyncElementStore.SIZE_CHECKED) != 0) {
+            fsize = store.getFileSize(cell);
+            checkedFsize = true;
+        }
+        if ((flags & SyncElementStore.HASH_CHECKED) != 0) {
+            hashLength = store.getHashLength(cell);
+            hash0 = store.getHash0(cell);
+            hash1 = store.getHash1(cell);
+            hashExtra = store.getHashExtra(cell);
+            checkedHash = true;
+        }
+    }
+
+    @Override
+    public boolean exists()
+    {
+        if (!checkedExists) {
+            boolean result = super.exists();
+            save();
+            return result;
+        }
+        return super.exists();
+    }
+
+    @Override
+    public boolean isDir()
+    {
+        if (!checkedIsDir) {
+            boolean result = super.isDir();
+            save();
+            return result;
+        }
+        return super.isDir();
+    }
+
+    @Override
+    public long getModifiedTime()
+    {
+        if (!checkedMtime) {
+            long result = super.getModifiedTime();
+            save();
+            return result;
+        }
+        return mtime;
+    }
+
+    @Override
+    public long getFileSize()
+    {
+        if (!checkedFsize) {
+            long result = super.getFileSize();
+            save();
+            return result;
+        }
+        return fsize;
+    }
+
+    @Override
+    public synchronized String getHash()
+    {
+        if (!checkedHash) {
+            String result = super.getHash();
+            save();
+            return result;
+        }
+        return super.getHash();
+    }
+
+    @Override
+    protected synchronized void supplementHash(FileVersion version)
+    {
+        if (!checkedHash) {
+            super.supplementHash(version);
+            save();
+        }
+    }
+
+    @Override
+    public void setHashAlgorithm(HashAlgorithm algorithm)
+    {
+        if (algorithm != hashAlgorithm) {
+            super.setHashAlgorithm(algorithm);
+            save();
+        }
+    }
+
+    @Override
+    public long getCreatedTime()
+    {
+        checkAttributes();
+        return store.getCreatedTime(cell);
+    }
+
+    @Override
+    public boolean isSymLink()
+    {
+        return (checkAttributes() & SyncElementStore.SYMLINK) != 0;
+    }
+
+    @Override
+    public boolean refresh()
+    {
+        super.refresh();
+        save();
+        return true;
+    }
+
+    /**
+     * Read attributes if they are not known yet (they are not refreshed, as by FileProperties).
+     *
+     * @return cell flags
+     */
+    private int checkAttributes()
+    {
+        int flags = store.getFlags(cell);
+        if ((flags & SyncElementStore.ATTRS_CHECKED) == 0) {
+            BasicFileAttributes a = getAttributes();
+            store.setCreatedTime(cell, a != null ? a.creationTime().toMillis() : TIME_UNKNOWN);
+            int values = SyncElementStore.ATTRS_CHECKED | (a != null && a.isSymbolicLink() ? SyncElementStore.SYMLINK : 0);
+            flags = store.setFlags(cell, SyncElementStore.ATTRS_CHECKED | SyncElementStore.SYMLINK, values);
+        }
+        return flags;
+    }
+
+    /**
+     * Save checked values to the store.
+     */
+    private void save()
+    {
+        int flags = 0;
+        if (checkedExists) {
+            flags |= SyncElementStore.EXISTS_CHECKED | (super.exists() ? SyncElementStore.EXISTS : 0);
+        }
+        if (checkedIsDir) {
+            flags |= SyncElementStore.DIR_CHECKED | (super.isDir() ? SyncElementStore.DIR : 0);
+        }
+        if (checkedMtime) {
+            store.setModifiedTime(cell, mtime);
+            flags |= SyncElementStore.MTIME_CHECKED;
+        }
+        if (checkedFsize) {
+            store.setFileSize(cell, fsize);
+            flags |= SyncElementStore.SIZE_CHECKED;
+        }
+        if (checkedHash) {
+            store.setHash(cell, hashLength, hash0, hash1, hashExtra);
+            flags |= SyncElementStore.HASH_CHECKED;
+        }
+        store.setFlags(cell, SyncElementStore.PROPERTIES, flags);
+    }
+}
@@ -10,7 +10,12 @@ import ru.com.rick.sync.fs.FileEntry;
 import ru.com.rick.sync.options.GlobalOptions;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import ru.com.rick.sync.fs.BadDataException;
+import ru.com.rick.sync.fs.FanOutCopy;
+import ru.com.rick.sync.fs.FileProperties;
+import ru.com.rick.sync.fs.PathTrie;
+import ru.com.rick.sync.fs.Root;
 import ru.com.rick.sync.list.FileHistory;
 
 /**
@@ -20,26 +25,73 @@ import ru.com.rick.sync.list.FileHistory;
  */
 public class SyncElement implements SyncContainer
 {
-    private final Path rpath;
-    private final SyncTarget[] targets;
+    private final SyncElementStore store;
+    private final int id;
     private final SyncContainer parent;
     private final FileSyncEntry[] entries;
     private final Status[] statuses;
-    private int sourceIndex = -1;
 
     /**
+     * View of an element kept in a store.
+     *
+     * @param store element store
+     * @param id element id
+     * @param parent parent element (with parent relative path)
+     */
+    SyncElement(SyncElementStore store, int id, SyncContainer parent)
+    {
+        this.store = store;
+        this.id = id;
+        this.parent = parent;
+        this.entries = new FileSyncEntry[store.getTargets().length];
+        this.statuses = new Status[store.getTargets().length];
+    }
+
+    /**
+     * Element not added to a sync list.
      *
      * @param rpath relative path
      * @param targets sync targets
      * @param parent parent element (with parent relative path)
      */
-    public SyncElement(Path rpath, SyncTarget[] targets, SyncContainer parent)
+    public SyncElement(PathTrie.Node rpath, SyncTarget[] targets, SyncContainer parent)
     {
-        this.rpath = rpath;
-        this.targets = targets;
+        this.store = new SyncElementStore(targets, parent);
+        this.id = store.add(rpath, -1);
         this.parent = parent;
         this.entries = new FileSyncEntry[targets.length];
         this.statuses = new Status[targets.length];
+        store.attach(id, this);
+    }
+
+    /**
+     * Element not added to a sync list.
+     *
+     * @param rpath relative path
+     * @param targets sync targets
+     * @param parent parent element (with parent relative path)
+     */
+    public SyncElement(Path rpath, SyncTarget[] targets, SyncContainer parent)
+    {
+        this(PathTrie.detached(rpath), targets, parent);
+    }
+
+    /**
+     *
+     * @return store keeping the element state
+     */
+    SyncElementStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     *
+     * @return element id in the store
+     */
+    int getId()
+    {
+        return id;
     }
 
     /**
@@ -66,14 +118,29 @@ public class SyncElement implements SyncContainer
     @Override
     public SyncTarget[] getTargets()
     {
-        return targets;
+        return store.getTargets();
     }
 
     @Override
     public FileSyncEntry getEntry(int index)
     {
         if (entries[index] == null) {
-            return addEntry(index);
+            return isEntryAdded(index) ? createEntry(index) : addEntry(index);
+        }
+        return entries[index];
+    }
+
+    /**
+     * Get entry, create it with supplied attributes if not yet created.
+     *
+     * @param index sync target index
+     * @param attrs file attributes from directory listing or null
+     * @return single FileSyncEntry for index
+     */
+    public FileSyncEntry getEntry(int index, BasicFileAttributes attrs)
+    {
+        if (entries[index] == null) {
+            return isEntryAdded(index) ? createEntry(index) : addEntry(index, attrs);
         }
         return entries[index];
     }
@@ -88,6 +155,36 @@ public class SyncElement implements SyncContainer
         return parent != null ? parent.getEntry(index) : null;
     }
 
+    /**
+     *
+     * @param index sync target index
+     * @return if the entry has been added (its state is kept in the store)
+     */
+    private boolean isEntryAdded(int index)
+    {
+        return (store.getFlags(store.cell(id, index)) & SyncElementStore.ENTRY) != 0;
+    }
+
+    /**
+     * Create the entry object for the stored entry state.
+     *
+     * @param index sync target index
+     * @return sync entry for index
+     */
+    private FileSyncEntry createEntry(int index)
+    {
+        SyncTarget target = getTarget(index);
+        PathTrie.Node rpath = getPathNode();
+        Root root = target.getRoot();
+        FileProperties props = null;
+        if (target.isAvailable()) {
+            Path path = root.getAbsolutePath(rpath.toPath());
+            props = new StoredFileProperties(store, store.cell(id, index), root.getDevice(), path, root.getOptionsSnapshot().getHashAlgorithm());
+        }
+        FileEntry e = target.getFileEntry(rpath, props);
+        return entries[index] = new FileSyncEntry(this, index, getParentEntry(index), e, target.getFileHistory(rpath));
+    }
+
     /**
      *
      * @param index sync target index
@@ -98,15 +195,14 @@ public class SyncElement implements SyncContainer
     protected FileSyncEntry newEntry(int index, boolean checked, boolean exists)
     {
         FileSyncEntry p = getParentEntry(index);
-        FileEntry e;
+        int values = 0;
         if (checked) {
-            e = targets[index].getFileEntry(rpath, exists);
-        } else if (p == null || p.isContainer()) {
-            e = targets[index].getFileEntry(rpath);
-        } else {
-            e = targets[index].getFileEntry(rpath, false);
+            values = SyncElementStore.EXISTS_CHECKED | (exists ? SyncElementStore.EXISTS : 0);
+        } else if (p != null && !p.isContainer()) {
+            values = SyncElementStore.EXISTS_CHECKED;
         }
-        return new FileSyncEntry(targets[index], p, e, targets[index].getFileHistory(rpath));
+        store.initEntry(store.cell(id, index), values);
+        return createEntry(index);
     }
 
     /**
@@ -117,7 +213,24 @@ public class SyncElement implements SyncContainer
      */
     protected FileSyncEntry addEntry(int index)
     {
-        return entries[index] = newEntry(index, false, false);
+        return newEntry(index, false, false);
+    }
+
+    /**
+     * Add new sync entry to this element.
+     *
+     * @param index sync target index
+     * @param attrs file attributes from directory listing or null
+     * @return sync entry for index
+     */
+    protected FileSyncEntry addEntry(int index, BasicFileAttributes attrs)
+    {
+        if (attrs != null && getTarget(index).isAvailable()) {
+            store.initEntry(store.cell(id, index), attrs);
+        } else {
+            store.initEntry(store.cell(id, index), 0);
+        }
+        return createEntry(index);
     }
 
     /**
@@ -129,7 +242,7 @@ public class SyncElement implements SyncContainer
      */
     protected FileSyncEntry addEntry(int index, boolean exists)
     {
-        return entries[index] = newEntry(index, true, exists);
+        return newEntry(index, true, exists);
     }
 
     /**
@@ -151,7 +264,17 @@ public class SyncElement implements SyncContainer
      */
     public Path getPath()
     {
-        return rpath;
+        PathTrie.Node rpath = getPathNode();
+        return rpath != null ? rpath.toPath() : null;
+    }
+
+    /**
+     *
+     * @return sync element interned relative path
+     */
+    public PathTrie.Node getPathNode()
+    {
+        return store.getNode(id);
     }
 
     /**
@@ -161,7 +284,7 @@ public class SyncElement implements SyncContainer
     @Override
     public int getSourceIndex()
     {
-        return sourceIndex;
+        return store.getSourceIndex(id);
     }
 
     /**
@@ -192,10 +315,10 @@ public class SyncElement implements SyncContainer
      */
     public FileHistory generateResultHistory(int index, long defaultTime)
     {
-        if (!targets[index].isAvailable()) {
+        if (!getTarget(index).isAvailable()) {
             return getEntry(index).getHistory();
         }
-        if (index != sourceIndex) {
+        if (index != getSourceIndex()) {
             FileHistory history = new FileHistory(defaultTime);
             FileSyncEntry selected = getSelectedEntry(index);
             FileSyncEntry entry = getEntry(index);
@@ -227,8 +350,9 @@ public class SyncElement implements SyncContainer
      */
     public SyncTarget getSelectedTarget()
     {
+        int sourceIndex = getSourceIndex();
         if (sourceIndex >= 0) {
-            return targets[sourceIndex];
+            return getTarget(sourceIndex);
         }
         return null;
     }
@@ -239,6 +363,7 @@ public class SyncElement implements SyncContainer
      */
     public FileSyncEntry getSelectedEntry()
     {
+        int sourceIndex = getSourceIndex();
         if (sourceIndex >= 0) {
             return getEntry(sourceIndex);
         }
@@ -253,7 +378,7 @@ public class SyncElement implements SyncContainer
     public FileSyncEntry getSelectedEntry(int index)
     {
         Status status = getStatus(index);
-        if (status.isSuccess() || index == sourceIndex) {
+        if (status.isSuccess() || index == getSourceIndex()) {
             return getSelectedEntry();
         }
         return null;
@@ -265,8 +390,9 @@ public class SyncElement implements SyncContainer
      */
     public boolean isFullySynced()
     {
+        int sourceIndex = getSourceIndex();
         for (int i = 0; i < statuses.length; ++i) {
-            if (i != sourceIndex && (!statuses[i].isDone() || !statuses[i].isSuccess())) {
+            if (i != sourceIndex && (!getStatus(i).isDone() || !getStatus(i).isSuccess())) {
                 return false;
             }
         }
@@ -281,15 +407,16 @@ public class SyncElement implements SyncContainer
      */
     public int detectSource(GlobalOptions options)
     {
-        sourceIndex = -1;
+        int sourceIndex = -1;
         FileSyncEntry source = null;
         if (parent != null) {
             int ps = parent.getSourceIndex();
             if (ps >= 0 && !parent.isMerging(ps)) {
-                sourceIndex = ps;
-                return sourceIndex;
+                store.setSourceIndex(id, ps);
+                return ps;
             }
         }
+        SyncTarget[] targets = getTargets();
         for (int i = 0; i < targets.length; ++i) {
             SyncTarget target = targets[i];
             if (target.isSource() && target.isAvailable()) {
@@ -300,6 +427,7 @@ public class SyncElement implements SyncContainer
                 }
             }
         }
+        store.setSourceIndex(id, sourceIndex);
         return sourceIndex;
     }
 
@@ -315,9 +443,10 @@ public class SyncElement implements SyncContainer
         if (detectSource) {
             detectSource(options);
         }
+        int sourceIndex = getSourceIndex();
         if (sourceIndex >= 0) {
             FileSyncEntry source = getEntry(sourceIndex);
-            for (int i = 0; i < targets.length; ++i) {
+            for (int i = 0; i < entries.length; ++i) {
                 analyze(source, i, options);
             }
             return true;
@@ -334,7 +463,7 @@ public class SyncElement implements SyncContainer
      */
     public boolean analyze(int index, GlobalOptions options)
     {
-        if (sourceIndex >= 0) {
+        if (getSourceIndex() >= 0) {
             analyze(getEntry(index), index, options);
             return true;
         }
@@ -370,17 +499,61 @@ public class SyncElement implements SyncContainer
      */
     public SyncResult[] sync(GlobalOptions options)
     {
+        int sourceIndex = getSourceIndex();
         if (sourceIndex >= 0) {
             SyncResult[] results = new SyncResult[entries.length];
             FileSyncEntry source = getEntry(sourceIndex);
-            for (int i = 0; i < entries.length; ++i) {
-                results[i] = sync(source, i, options);
+            FanOutCopy fanOut = prepareFanOut(options);
+            try {
+                for (int i = 0; i < entries.length; ++i) {
+                    results[i] = sync(source, i, options);
+                }
+            } finally {
+                if (fanOut != null) {
+                    fanOut.cleanup();
+                }
             }
             return results;
         }
         return null;
     }
 
+    /**
+     * Read source file once and stage its copies for all targets to be created or replaced by it, if fan-out copy
+     * is enabled and there are at least two such targets. Staged copies are used by sync, the returned object must
+     * be cleaned up after sync of all targets.
+     *
+     * @param options
+     * @return fan-out copy or null
+     */
+    public FanOutCopy prepareFanOut(GlobalOptions options)
+    {
+        int sourceIndex = getSourceIndex();
+        if (sourceIndex < 0 || !options.fanOutCopy()) {
+            return null;
+        }
+        FileSyncEntry source = getEntry(sourceIndex);
+        FanOutCopy fanOut = new FanOutCopy(source.getFileEntry(), options.getFanOutQueueSize());
+        for (int i = 0; i < entries.length; ++i) {
+            Status status = getStatus(i);
+            FileSyncEntry target = getEntry(i);
+            int value = status.getValue();
+            boolean create = value == Status.SYNC_CREATE && status.getMovedFrom() == null;
+            if (i != sourceIndex && (create || value == Status.SYNC_REPLACE)
+                    && !status.isDone()
+                    && status.parentIsMerging()
+                    && status.getValidationError() == null
+                    && target.isAvailable()
+                    && target.canCopyFileFrom(source, !create)) {
+                fanOut.addTarget(target.getFileEntry());
+            }
+        }
+        if (fanOut.size() < 2 || fanOut.stage() == 0) {
+            return null;
+        }
+        return fanOut;
+    }
+
     /**
      * Synchronize one entry in this element.
      *
@@ -390,8 +563,9 @@ public class SyncElement implements SyncContainer
      */
     public SyncResult sync(int index, GlobalOptions options)
     {
+        int sourceIndex = getSourceIndex();
         if (sourceIndex >= 0) {
-            FileSyncEntry source = getEntry(index);
+            FileSyncEntry source = getEntry(sourceIndex);
             return sync(source, index, options);
         }
         return null;
@@ -445,8 +619,21 @@ public class SyncElement implements SyncContainer
 
         SyncResult result;
         int value = status.getValue();
-        if (value == Status.SYNC_DELETE) {
+        if (value == Status.SYNC_DELETE && status.getMovedTo() != null) {
+            // moved by the element at the new path, deleted as usual if it has been synced without moving
+            boolean moving = !status.getMovedTo().isDone();
+            if (!moving) {
+                target.getFileEntry().refresh();
+            }
+            if (moving || !target.getFileEntry().exists()) {
+                result = new SyncResult(Status.SYNC_DELETE, true);
+            } else {
+                result = target.delete(options);
+            }
+        } else if (value == Status.SYNC_DELETE) {
             result = target.delete(options);
+        } else if (value == Status.SYNC_CREATE && status.getMovedFrom() != null) {
+            result = target.moveFrom(status.getMovedFrom(), source, options);
         } else if (value == Status.SYNC_CREATE) {
             result = target.copyFrom(source, false, options);
         } else if (value == Status.SYNC_REPLACE) {
@@ -460,14 +647,12 @@ public class SyncElement implements SyncContainer
     }
 
     /**
-     * Internal sync status, storing analyze and sync results.
+     * Internal sync status, storing analyze and sync results (kept in the element store).
      */
     public class Status extends SyncStatus
     {
         private final int index;
-        private boolean conflict = false;
-        private Exception error = null;
-        private SyncResult result = null;
+        private final int cell;
 
         /**
          *
@@ -476,6 +661,18 @@ public class SyncElement implements SyncContainer
         public Status(int index)
         {
             this.index = index;
+            this.cell = store.cell(id, index);
+            this.value = store.getStatusValue(cell);
+        }
+
+        /**
+         *
+         * @param value status value
+         */
+        private void setValue(int value)
+        {
+            this.value = value;
+            store.setStatusValue(cell, value);
         }
 
         /**
@@ -487,7 +684,7 @@ public class SyncElement implements SyncContainer
          */
         private boolean init(int syncStatus, FileSyncEntry entry)
         {
-            value = syncStatus;
+            setValue(syncStatus);
             validate(entry);
             return true;
         }
@@ -500,8 +697,8 @@ public class SyncElement implements SyncContainer
          */
         private boolean init(Exception ex)
         {
-            value = SYNC_FAILURE;
-            error = ex;
+            setValue(SYNC_FAILURE);
+            store.setError(cell, ex);
             return false;
         }
 
@@ -512,8 +709,8 @@ public class SyncElement implements SyncContainer
          */
         private void validate(FileSyncEntry entry)
         {
-            error = null;
-            conflict = false;
+            Exception error = null;
+            boolean conflict = false;
             if (entry.isAvailable()) {
                 try {
                     entry.getFileEntry().getProperties().validateOrThrow();
@@ -525,6 +722,8 @@ public class SyncElement implements SyncContainer
                 int changeStatus = entry.getChangeStatus();
                 conflict = changeStatus > FileSyncEntry.CHANGE_UNKNOWN;
             }
+            store.setError(cell, error);
+            store.setFlags(cell, SyncElementStore.CONFLICT, conflict ? SyncElementStore.CONFLICT : 0);
         }
 
         /**
@@ -535,10 +734,11 @@ public class SyncElement implements SyncContainer
          */
         public SyncResult setResult(SyncResult result)
         {
-            this.result = result;
             if (this.value == SYNC_UNKNOWN) {
-                this.value = result.getValue();
+                setValue(result.getValue());
             }
+            // published last, so other sync threads seeing isDone() see the value too
+            store.setResult(cell, result);
             return result;
         }
 
@@ -572,17 +772,56 @@ public class SyncElement implements SyncContainer
          */
         public SyncResult setResult(boolean success)
         {
-            result = new SyncResult(value, success);
+            SyncResult result = new SyncResult(value, success);
+            store.setResult(cell, result);
             return result;
         }
 
+        /**
+         * Create by moving a file within the target instead of copying.
+         *
+         * @param entry entry of the same target to be moved here
+         */
+        public void setMovedFrom(FileSyncEntry entry)
+        {
+            store.setMovedFrom(cell, entry);
+        }
+
+        /**
+         *
+         * @return entry to be moved here or null
+         */
+        public FileSyncEntry getMovedFrom()
+        {
+            return store.getMovedFrom(cell);
+        }
+
+        /**
+         * Delete by moving a file within the target (done by the element at the new path).
+         *
+         * @param status status of the element at the new path
+         */
+        public void setMovedTo(Status status)
+        {
+            store.setMovedTo(cell, status);
+        }
+
+        /**
+         *
+         * @return status of the element at the new path of a moved file or null
+         */
+        public Status getMovedTo()
+        {
+            return store.getMovedTo(cell);
+        }
+
         /**
          *
          * @return validation error
          */
         public Exception getValidationError()
         {
-            return error;
+            return store.getError(cell);
         }
 
         /**
@@ -591,7 +830,7 @@ public class SyncElement implements SyncContainer
          */
         public boolean isConflict()
         {
-            return conflict && index != sourceIndex;
+            return (store.getFlags(cell) & SyncElementStore.CONFLICT) != 0 && index != getSourceIndex();
         }
 
         /**
@@ -600,7 +839,7 @@ public class SyncElement implements SyncContainer
          */
         public boolean isDone()
         {
-            return result != null;
+            return store.getResult(cell) != null;
         }
 
         /**
@@ -609,7 +848,7 @@ public class SyncElement implements SyncContainer
          */
         public SyncResult getResult()
         {
-            return result;
+            return store.getResult(cell);
         }
 
         /**
@@ -619,6 +858,7 @@ public class SyncElement implements SyncContainer
         @Override
         public boolean isSuccess()
         {
+            SyncResult result = store.getResult(cell);
             return result != null ? result.isSuccess() : isGoodStatus();
         }
 
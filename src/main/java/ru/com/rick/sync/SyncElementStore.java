@@ -0,0 +1,950 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import ru.com.rick.sync.fs.FileVersion;
+import ru.com.rick.sync.fs.PathTrie;
+
+/**
+ * Columnar store of sync list elements with int ids in order of addition.
+ *
+ * An element is a row of columns: interned path, parent id, first child, last child and next sibling links and the
+ * selected source. Each element has a cell for every sync target (id * targets + index), a cell keeps file
+ * properties found by the scan (packed flags, modified time, size, created time and hash bits) and analyze and sync
+ * state (status value, change status, ignore code, result). Rare values (errors, moves, old properties) are kept in
+ * object columns. Columns are split to pages allocated on first write, so unused columns take no memory.
+ *
+ * SyncElement objects are views created on demand. The store keeps them by weak references, so there is at most one
+ * view of an element while it is used, and views no longer used are collected. A view keeps its state in the
+ * columns, so a view created again sees the same element.
+ *
+ * @author Rick
+ */
+class SyncElementStore
+{
+    private static final int NONE = -1;
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // cell flags
+    public static final int ENTRY = 1;
+    public static final int EXISTS_CHECKED = 1 << 1;
+    public static final int EXISTS = 1 << 2;
+    public static final int DIR_CHECKED = 1 << 3;
+    public static final int DIR = 1 << 4;
+    public static final int MTIME_CHECKED = 1 << 5;
+    public static final int SIZE_CHECKED = 1 << 6;
+    public static final int HASH_CHECKED = 1 << 7;
+    public static final int ATTRS_CHECKED = 1 << 8;
+    public static final int SYMLINK = 1 << 9;
+    public static final int CONFLICT = 1 << 10;
+    public static final int OLD_MISSING = 1 << 11;
+    public static final int PROPERTIES = EXISTS_CHECKED | EXISTS | DIR_CHECKED | DIR | MTIME_CHECKED | SIZE_CHECKED | HASH_CHECKED;
+
+    private final SyncTarget[] targets;
+    private final SyncContainer root;
+    private final int width;
+    private final ReferenceQueue<SyncElement> queue = new ReferenceQueue<>();
+
+    // element columns
+    private final ObjectColumn<PathTrie.Node> nodes = new ObjectColumn<>();
+    private final ObjectColumn<View> views = new ObjectColumn<>();
+    private final IntColumn hashes = new IntColumn();
+    private final IntColumn parents = new IntColumn();
+    private final IntColumn firstChildren = new IntColumn();
+    private final IntColumn lastChildren = new IntColumn();
+    private final IntColumn nextSiblings = new IntColumn();
+    private final ByteColumn sources = new ByteColumn();
+
+    // cell columns
+    private final IntColumn flags = new IntColumn();
+    private final LongColumn mtimes = new LongColumn();
+    private final LongColumn sizes = new LongColumn();
+    private final LongColumn ctimes = new LongColumn();
+    private final ByteColumn hashLengths = new ByteColumn();
+    private final LongColumn hashes0 = new LongColumn();
+    private final LongColumn hashes1 = new LongColumn();
+    private final ObjectColumn<Object> hashExtras = new ObjectColumn<>();
+    private final ByteColumn statusValues = new ByteColumn();
+    private final ByteColumn changeStatuses = new ByteColumn();
+    private final ByteColumn ignoreCodes = new ByteColumn();
+    private final ObjectColumn<SyncResult> results = new ObjectColumn<>();
+    private final ObjectColumn<Exception> errors = new ObjectColumn<>();
+    private final ObjectColumn<FileSyncEntry> movedFrom = new ObjectColumn<>();
+    private final ObjectColumn<SyncElement.Status> movedTo = new ObjectColumn<>();
+    private final ObjectColumn<FileVersion> oldProperties = new ObjectColumn<>();
+
+    private int[] table = new int[32];
+    private volatile int size = 0;
+
+    /**
+     *
+     * @param targets sync targets
+     * @param root parent container of elements with no parent element
+     */
+    public SyncElementStore(SyncTarget[] targets, SyncContainer root)
+    {
+        this.targets = targets;
+        this.root = root;
+        this.width = targets.length;
+    }
+
+    /**
+     *
+     * @return elements count
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     *
+     * @return sync targets
+     */
+    public SyncTarget[] getTargets()
+    {
+        return targets;
+    }
+
+    /**
+     *
+     * @param id
+     * @return element view
+     */
+    public synchronized SyncElement get(int id)
+    {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("Index: " + id + ", Size: " + size);
+        }
+        expunge();
+        View view = views.get(id);
+        SyncElement element = view != null ? view.get() : null;
+        if (element == null) {
+            int parent = parents.get(id);
+            element = new SyncElement(this, id, parent != NONE ? get(parent) : root);
+            views.set(id, new View(element, id, queue));
+        }
+        return element;
+    }
+
+    /**
+     *
+     * @param path relative path
+     * @return element view or null
+     */
+    public synchronized SyncElement get(Path path)
+    {
+        int id = indexOf(path);
+        return id != NONE ? get(id) : null;
+    }
+
+    /**
+     *
+     * @param path relative path
+     * @return element id or -1
+     */
+    public synchronized int indexOf(Path path)
+    {
+        int hash = hash(path);
+        int mask = table.length - 1;
+        for (int i = hash & mask; table[i] != 0; i = (i + 1) & mask) {
+            int id = table[i] - 1;
+            if (hashes.get(id) == hash && nodes.get(id).toPath().equals(path)) {
+                return id;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Add an element or reset an element with the same path. Reset element keeps its id, parent and children, a
+     * view of it created before must not be used.
+     *
+     * @param node interned relative path (null is allowed for an element not to be found by path)
+     * @param parent parent element id or -1
+     * @return element id
+     */
+    public synchronized int add(PathTrie.Node node, int parent)
+    {
+        int hash = 0;
+        int i = 0;
+        if (node != null) {
+            Path path = node.toPath();
+            hash = hash(path);
+            int mask = table.length - 1;
+            for (i = hash & mask; table[i] != 0; i = (i + 1) & mask) {
+                int id = table[i] - 1;
+                if (hashes.get(id) == hash && nodes.get(id).toPath().equals(path)) {
+                    reset(id);
+                    return id;
+                }
+            }
+        }
+
+        int id = size;
+        nodes.set(id, node);
+        hashes.set(id, hash);
+        firstChildren.set(id, NONE);
+        lastChildren.set(id, NONE);
+        nextSiblings.set(id, NONE);
+        sources.set(id, NONE);
+        parents.set(id, parent);
+        if (parent != NONE) {
+            if (lastChildren.get(parent) == NONE) {
+                firstChildren.set(parent, id);
+            } else {
+                nextSiblings.set(lastChildren.get(parent), id);
+            }
+            lastChildren.set(parent, id);
+        }
+        size = id + 1;
+        if (node != null) {
+            if (size * 2 > table.length) {
+                rehash(table.length * 2);
+            } else {
+                table[i] = id + 1;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Use an element object as the view of a stored element.
+     *
+     * @param id
+     * @param element
+     */
+    public synchronized void attach(int id, SyncElement element)
+    {
+        views.set(id, new View(element, id, queue));
+    }
+
+    /**
+     *
+     * @param id
+     * @return interned relative path
+     */
+    public PathTrie.Node getNode(int id)
+    {
+        return nodes.get(id);
+    }
+
+    /**
+     *
+     * @param id
+     * @return parent element id or -1 if parent is not in store
+     */
+    public int getParent(int id)
+    {
+        return parents.get(id);
+    }
+
+    /**
+     *
+     * @param id
+     * @return first child element id or -1
+     */
+    public int getFirstChild(int id)
+    {
+        return firstChildren.get(id);
+    }
+
+    /**
+     *
+     * @param id
+     * @return next child of the same parent id or -1
+     */
+    public int getNextSibling(int id)
+    {
+        return nextSiblings.get(id);
+    }
+
+    /**
+     *
+     * @param id
+     * @return child elements in order of addition
+     */
+    public List<SyncElement> getChildren(int id)
+    {
+        ArrayList<SyncElement> result = new ArrayList<>();
+        for (int c = firstChildren.get(id); c != NONE; c = nextSiblings.get(c)) {
+            result.add(get(c));
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return live list of element views in order of addition
+     */
+    public List<SyncElement> elements()
+    {
+        return new AbstractList<SyncElement>()
+        {
+            @Override
+            public SyncElement get(int index)
+            {
+                return SyncElementStore.this.get(index);
+            }
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+        };
+    }
+
+    /**
+     *
+     * @return live list of paths in order of addition
+     */
+    public List<Path> paths()
+    {
+        return new AbstractList<Path>()
+        {
+            @Override
+            public Path get(int index)
+            {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+                }
+                PathTrie.Node node = nodes.get(index);
+                return node != null ? node.toPath() : null;
+            }
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object o)
+            {
+                return o instanceof Path && SyncElementStore.this.indexOf((Path)o) != NONE;
+            }
+
+            @Override
+            public int indexOf(Object o)
+            {
+                return o instanceof Path ? SyncElementStore.this.indexOf((Path)o) : NONE;
+            }
+        };
+    }
+
+    /**
+     *
+     * @param id
+     * @return selected source index or -1
+     */
+    public int getSourceIndex(int id)
+    {
+        return sources.get(id);
+    }
+
+    /**
+     *
+     * @param id
+     * @param index selected source index or -1
+     */
+    public void setSourceIndex(int id, int index)
+    {
+        sources.set(id, index);
+    }
+
+    /**
+     *
+     * @param id element id
+     * @param index sync target index
+     * @return cell index
+     */
+    public int cell(int id, int index)
+    {
+        return id * width + index;
+    }
+
+    /**
+     *
+     * @param cell
+     * @return cell flags
+     */
+    public int getFlags(int cell)
+    {
+        return flags.get(cell);
+    }
+
+    /**
+     * Change some flags of a cell.
+     *
+     * @param cell
+     * @param mask flags to change
+     * @param values new values of the flags
+     * @return new cell flags
+     */
+    public int setFlags(int cell, int mask, int values)
+    {
+        return flags.update(cell, mask, values & mask);
+    }
+
+    /**
+     * Start a new entry in a cell, clearing its file properties and entry state.
+     *
+     * @param cell
+     * @param values initial property and attribute flags
+     */
+    public void initEntry(int cell, int values)
+    {
+        int mask = PROPERTIES | ATTRS_CHECKED | SYMLINK;
+        changeStatuses.set(cell, 0);
+        ignoreCodes.set(cell, 0);
+        oldProperties.set(cell, null);
+        hashExtras.set(cell, null);
+        flags.update(cell, ENTRY | mask | OLD_MISSING, ENTRY | (values & mask));
+    }
+
+    /**
+     * Start a new entry in a cell with attributes from a directory listing.
+     *
+     * @param cell
+     * @param attrs file attributes (links followed)
+     */
+    public void initEntry(int cell, BasicFileAttributes attrs)
+    {
+        mtimes.set(cell, attrs.lastModifiedTime().toMillis());
+        sizes.set(cell, attrs.size());
+        ctimes.set(cell, attrs.creationTime().toMillis());
+        initEntry(cell, EXISTS_CHECKED | EXISTS | DIR_CHECKED | (attrs.isDirectory() ? DIR : 0) | MTIME_CHECKED | SIZE_CHECKED
+                | ATTRS_CHECKED | (attrs.isSymbolicLink() ? SYMLINK : 0));
+    }
+
+    /**
+     *
+     * @param cell
+     * @return modified time
+     */
+    public long getModifiedTime(int cell)
+    {
+        return mtimes.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @param value modified time
+     */
+    public void setModifiedTime(int cell, long value)
+    {
+        mtimes.set(cell, value);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return file size
+     */
+    public long getFileSize(int cell)
+    {
+        return sizes.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @param value file size
+     */
+    public void setFileSize(int cell, long value)
+    {
+        sizes.set(cell, value);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return created time
+     */
+    public long getCreatedTime(int cell)
+    {
+        return ctimes.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @param value created time
+     */
+    public void setCreatedTime(int cell, long value)
+    {
+        ctimes.set(cell, value);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return hash length
+     */
+    public byte getHashLength(int cell)
+    {
+        return hashLengths.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return the first 64 bits of hash
+     */
+    public long getHash0(int cell)
+    {
+        return hashes0.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return the second 64 bits of hash
+     */
+    public long getHash1(int cell)
+    {
+        return hashes1.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return the rest of hash or null
+     */
+    public Object getHashExtra(int cell)
+    {
+        return hashExtras.get(cell);
+    }
+
+    /**
+     * Set hash bits as they are kept by FileVersion.
+     *
+     * @param cell
+     * @param length hash length
+     * @param hash0 the first 64 bits
+     * @param hash1 the second 64 bits
+     * @param extra the rest or null
+     */
+    public void setHash(int cell, byte length, long hash0, long hash1, Object extra)
+    {
+        if (length != 0 || hashLengths.get(cell) != 0) {
+            hashLengths.set(cell, length);
+            hashes0.set(cell, hash0);
+            hashes1.set(cell, hash1);
+        }
+        hashExtras.set(cell, extra);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return status value
+     */
+    public int getStatusValue(int cell)
+    {
+        return statusValues.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @param value status value
+     */
+    public void setStatusValue(int cell, int value)
+    {
+        statusValues.set(cell, value);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return change status
+     */
+    public int getChangeStatus(int cell)
+    {
+        return changeStatuses.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @param value change status
+     */
+    public void setChangeStatus(int cell, int value)
+    {
+        changeStatuses.set(cell, value);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return ignore code
+     */
+    public int getIgnoreCode(int cell)
+    {
+        return ignoreCodes.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @param value ignore code
+     */
+    public void setIgnoreCode(int cell, int value)
+    {
+        ignoreCodes.set(cell, value);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return sync result or null
+     */
+    public SyncResult getResult(int cell)
+    {
+        return results.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @param result sync result
+     */
+    public void setResult(int cell, SyncResult result)
+    {
+        results.set(cell, result);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return validation error or null
+     */
+    public Exception getError(int cell)
+    {
+        return errors.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @param error validation error or null
+     */
+    public void setError(int cell, Exception error)
+    {
+        errors.set(cell, error);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return entry moved to this cell or null
+     */
+    public FileSyncEntry getMovedFrom(int cell)
+    {
+        return movedFrom.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @param entry entry moved to this cell or null
+     */
+    public void setMovedFrom(int cell, FileSyncEntry entry)
+    {
+        movedFrom.set(cell, entry);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return status of the cell a file is moved to or null
+     */
+    public SyncElement.Status getMovedTo(int cell)
+    {
+        return movedTo.get(cell);
+    }
+
+    /**
+     *
+     * @param cell
+     * @param status status of the cell a file is moved to or null
+     */
+    public void setMovedTo(int cell, SyncElement.Status status)
+    {
+        movedTo.set(cell, status);
+    }
+
+    /**
+     *
+     * @param cell
+     * @return saved properties or null
+     */
+    public FileVersion getOldProperties(int cell)
+    {
+        if ((flags.get(cell) & OLD_MISSING) != 0) {
+            return new FileVersion(FileVersion.EMPTY);
+        }
+        return oldProperties.get(cell);
+    }
+
+    /**
+     * Save properties before sync. Properties of a missing file (the most of them for new files) take no object.
+     *
+     * @param cell
+     * @param version
+     */
+    public void setOldProperties(int cell, FileVersion version)
+    {
+        boolean missing = version != null && !version.exists();
+        oldProperties.set(cell, missing ? null : version);
+        flags.update(cell, OLD_MISSING, missing ? OLD_MISSING : 0);
+    }
+
+    /**
+     * Clear state of an element and drop its view.
+     *
+     * @param id
+     */
+    private void reset(int id)
+    {
+        views.set(id, null);
+        sources.set(id, NONE);
+        for (int index = 0; index < width; ++index) {
+            int cell = cell(id, index);
+            flags.set(cell, 0);
+            changeStatuses.set(cell, 0);
+            ignoreCodes.set(cell, 0);
+            statusValues.set(cell, 0);
+            hashExtras.set(cell, null);
+            results.set(cell, null);
+            errors.set(cell, null);
+            movedFrom.set(cell, null);
+            movedTo.set(cell, null);
+            oldProperties.set(cell, null);
+        }
+    }
+
+    /**
+     * Forget views collected by GC.
+     */
+    private void expunge()
+    {
+        for (View view = (View)queue.poll(); view != null; view = (View)queue.poll()) {
+            if (views.get(view.id) == view) {
+                views.set(view.id, null);
+            }
+        }
+    }
+
+    private void rehash(int capacity)
+    {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < size; ++id) {
+            if (nodes.get(id) == null) {
+                continue;
+            }
+            int i = hashes.get(id) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = id + 1;
+        }
+    }
+
+    private static int hash(Path path)
+    {
+        int h = path.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Weak reference to an element view.
+     */
+    private static class View extends WeakReference<SyncElement>
+    {
+        private final int id;
+
+        public View(SyncElement element, int id, ReferenceQueue<SyncElement> queue)
+        {
+            super(element, queue);
+            this.id = id;
+        }
+    }
+
+    /**
+     * Column of int values, updated atomically.
+     */
+    private static class IntColumn
+    {
+        private volatile AtomicIntegerArray[] pages = new AtomicIntegerArray[0];
+
+        public int get(int i)
+        {
+            AtomicIntegerArray[] p = pages;
+            int n = i >>> PAGE_BITS;
+            return n < p.length && p[n] != null ? p[n].get(i & PAGE_MASK) : 0;
+        }
+
+        public void set(int i, int value)
+        {
+            page(i >>> PAGE_BITS).set(i & PAGE_MASK, value);
+        }
+
+        public int update(int i, int mask, int values)
+        {
+            AtomicIntegerArray page = page(i >>> PAGE_BITS);
+            int old;
+            int value;
+            do {
+                old = page.get(i & PAGE_MASK);
+                value = (old & ~mask) | values;
+            } while (!page.compareAndSet(i & PAGE_MASK, old, value));
+            return value;
+        }
+
+        private AtomicIntegerArray page(int n)
+        {
+            AtomicIntegerArray[] p = pages;
+            if (n < p.length && p[n] != null) {
+                return p[n];
+            }
+            return allocate(n);
+        }
+
+        private synchronized AtomicIntegerArray allocate(int n)
+        {
+            AtomicIntegerArray[] p = n < pages.length ? pages : Arrays.copyOf(pages, Math.max(n + 1, pages.length * 2));
+            if (p[n] == null) {
+                p[n] = new AtomicIntegerArray(PAGE_SIZE);
+            }
+            pages = p;
+            return p[n];
+        }
+    }
+
+    /**
+     * Column of long values.
+     */
+    private static class LongColumn
+    {
+        private volatile long[][] pages = new long[0][];
+
+        public long get(int i)
+        {
+            long[][] p = pages;
+            int n = i >>> PAGE_BITS;
+            return n < p.length && p[n] != null ? p[n][i & PAGE_MASK] : 0;
+        }
+
+        public void set(int i, long value)
+        {
+            long[][] p = pages;
+            int n = i >>> PAGE_BITS;
+            long[] page = n < p.length && p[n] != null ? p[n] : allocate(n);
+            page[i & PAGE_MASK] = value;
+        }
+
+        private synchronized long[] allocate(int n)
+        {
+            long[][] p = n < pages.length ? pages : Arrays.copyOf(pages, Math.max(n + 1, pages.length * 2));
+            if (p[n] == null) {
+                p[n] = new long[PAGE_SIZE];
+            }
+            pages = p;
+            return p[n];
+        }
+    }
+
+    /**
+     * Column of small int values.
+     */
+    private static class ByteColumn
+    {
+        private volatile byte[][] pages = new byte[0][];
+
+        public byte get(int i)
+        {
+            byte[][] p = pages;
+            int n = i >>> PAGE_BITS;
+            return n < p.length && p[n] != null ? p[n][i & PAGE_MASK] : 0;
+        }
+
+        public void set(int i, int value)
+        {
+            byte[][] p = pages;
+            int n = i >>> PAGE_BITS;
+            byte[] page = n < p.length && p[n] != null ? p[n] : allocate(n);
+            page[i & PAGE_MASK] = (byte)value;
+        }
+
+        private synchronized byte[] allocate(int n)
+        {
+            byte[][] p = n < pages.length ? pages : Arrays.copyOf(pages, Math.max(n + 1, pages.length * 2));
+            if (p[n] == null) {
+                p[n] = new byte[PAGE_SIZE];
+            }
+            pages = p;
+            return p[n];
+        }
+    }
+
+    /**
+     * Column of object references, with volatile semantics.
+     *
+     * @param <T>
+     */
+    private static class ObjectColumn<T>
+    {
+        private volatile AtomicReferenceArray<?>[] pages = new AtomicReferenceArray<?>[0];
+
+        @SuppressWarnings("unchecked")
+        public T get(int i)
+        {
+            AtomicReferenceArray<?>[] p = pages;
+            int n = i >>> PAGE_BITS;
+            return n < p.length && p[n] != null ? (T)p[n].get(i & PAGE_MASK) : null;
+        }
+
+        @SuppressWarnings("unchecked")
+        public void set(int i, T value)
+        {
+            AtomicReferenceArray<?>[] p = pages;
+            int n = i >>> PAGE_BITS;
+            if (value == null && (n >= p.length || p[n] == null)) {
+                return;
+            }
+            AtomicReferenceArray<Object> page = (AtomicReferenceArray<Object>)(n < p.length && p[n] != null ? p[n] : allocate(n));
+            page.set(i & PAGE_MASK, value);
+        }
+
+        private synchronized AtomicReferenceArray<?> allocate(int n)
+        {
+            AtomicReferenceArray<?>[] p = n < pages.length ? pages : Arrays.copyOf(pages, Math.max(n + 1, pages.length * 2));
+            if (p[n] == null) {
+                p[n] = new AtomicReferenceArray<>(PAGE_SIZE);
+            }
+            pages = p;
+            return p[n];
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import ru.com.rick.sync.fs.FanOutCopy;
+import ru.com.rick.sync.fs.IoScheduler;
+import ru.com.rick.sync.options.GlobalOptions;
+
+/**
+ * Parallel synchronization of all elements of a sync list.
+ *
+ * An element starts only after its parent element is synced for all targets, so directories are created or
+ * merged before their contents and a directory replaced, deleted or copied as a whole is never touched by its
+ * children (which are skipped in that case). Backups are done by the same operation as the replace itself.
+ * Independent elements are synced concurrently, each target entry on a bounded worker pool of its target device
+ * (targets sharing an I/O scheduler share a pool). Fan-out copies (if enabled) are staged on the pool of the source
+ * device before target entries are synced. A failure of an element is recorded as its result, other elements
+ * (including its children) go on.
+ *
+ * @author Rick
+ */
+public class SyncExecutor
+{
+    private final SyncList list;
+    private final int threads;
+    private final Object monitorLock = new Object();
+    private int count = 0;
+
+    /**
+     *
+     * @param list sync list
+     * @param threads worker threads for each target device (I/O scheduler)
+     */
+    public SyncExecutor(SyncList list, int threads)
+    {
+        this.list = list;
+        this.threads = threads;
+    }
+
+    /**
+     * Sync all elements.
+     *
+     * @param options
+     * @return sync results (with subresults)
+     */
+    public SyncResult[] sync(GlobalOptions options)
+    {
+        SyncTarget[] targets = list.getTargets();
+        SyncResult[] results = new SyncResult[targets.length];
+        for (int i = 0; i < targets.length; ++i) {
+            results[i] = list.startSync(i, options).enableSubResults();
+        }
+
+        IdentityHashMap<IoScheduler, ExecutorService> pools = new IdentityHashMap<>();
+        ExecutorService[] executors = new ExecutorService[targets.length];
+        for (int i = 0; i < targets.length; ++i) {
+            IoScheduler scheduler = targets[i].getDevice().getScheduler();
+            if (!pools.containsKey(scheduler)) {
+                pools.put(scheduler, Executors.newFixedThreadPool(threads));
+            }
+            executors[i] = pools.get(scheduler);
+        }
+
+        // elements are scheduled by id, views are fetched by each job, so only elements being synced are held
+        int size = list.size();
+        CompletableFuture<?>[] done = new CompletableFuture<?>[size];
+        try {
+            for (int id = 0; id < size; ++id) {
+                SyncElement element = list.get(id);
+                int parent = element.getParent() instanceof SyncElement ? ((SyncElement)element.getParent()).getId() : -1;
+                CompletableFuture<?> parentDone = parent >= 0 && parent < id ? done[parent] : null;
+                if (parentDone == null) {
+                    parentDone = CompletableFuture.completedFuture(null);
+                }
+                int elementId = id;
+                int sourceIndex = element.getSourceIndex();
+                CompletableFuture<Void> future;
+                if (sourceIndex >= 0) {
+                    CompletableFuture<Job> staged = parentDone.thenApplyAsync(x -> prepare(elementId, options), executors[sourceIndex]);
+                    CompletableFuture<?>[] entries = new CompletableFuture<?>[targets.length];
+                    for (int i = 0; i < targets.length; ++i) {
+                        int index = i;
+                        entries[i] = staged.thenAcceptAsync(job -> syncEntry(job.element, index, options), executors[i]);
+                    }
+                    future = CompletableFuture.allOf(entries).handle((x, ex) -> {
+                        Job job = staged.isCompletedExceptionally() ? null : staged.join();
+                        SyncElement e = job != null ? job.element : list.get(elementId);
+                        SyncResult[] rs = new SyncResult[targets.length];
+                        for (int i = 0; i < rs.length; ++i) {
+                            rs[i] = e.getSyncResult(i);
+                            if (rs[i] == null) {
+                                rs[i] = e.getStatus(i).setResult(toException(ex != null ? ex : new IllegalStateException("Element '" + e + "' is not synced")));
+                            }
+                        }
+                        try {
+                            if (job != null && job.fanOut != null) {
+                                job.fanOut.cleanup();
+                            }
+                        } finally {
+                            onElementSync(e, rs);
+                        }
+                        return null;
+                    });
+                } else {
+                    future = parentDone.thenRun(() -> onElementSync(list.get(elementId), null));
+                }
+                // a failed element must not fail its children and the whole sync
+                done[id] = future.exceptionally(ex -> null);
+            }
+            CompletableFuture.allOf(done).join();
+        } finally {
+            for (ExecutorService pool : pools.values()) {
+                pool.shutdown();
+            }
+        }
+
+        for (int id = 0; id < size; ++id) {
+            SyncElement element = list.get(id);
+            if (element.getSourceIndex() >= 0) {
+                for (int i = 0; i < results.length; ++i) {
+                    results[i].addSubResult(element.getPath(), element.getSyncResult(i));
+                }
+            }
+        }
+        for (int i = 0; i < results.length; ++i) {
+            results[i].transformSuccess(!results[i].isTotalFailure());
+        }
+        list.getMonitor().onFinishSync(list, count, results);
+        return results;
+    }
+
+    /**
+     * Get an element to sync and stage its fan-out copies.
+     *
+     * @param id element id
+     * @param options
+     * @return element job
+     */
+    private Job prepare(int id, GlobalOptions options)
+    {
+        Job job = new Job(list.get(id));
+        try {
+            job.fanOut = job.element.prepareFanOut(options);
+        } catch (RuntimeException ex) {
+            job.fanOut = null;
+        }
+        return job;
+    }
+
+    /**
+     * Sync one target entry of an element.
+     *
+     * @param element
+     * @param index
+     * @param options
+     * @return sync result
+     */
+    private SyncResult syncEntry(SyncElement element, int index, GlobalOptions options)
+    {
+        try {
+            return element.sync(index, options);
+        } catch (RuntimeException ex) {
+            return element.getStatus(index).setResult(ex);
+        }
+    }
+
+    /**
+     *
+     * @param ex failure of an element future
+     * @return exception to record as a sync result
+     */
+    private static Exception toException(Throwable ex)
+    {
+        Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+        if (cause instanceof Exception) {
+            return (Exception)cause;
+        }
+        return new RuntimeException(cause);
+    }
+
+    /**
+     * Report element sync to the progress monitor.
+     *
+     * @param element
+     * @param results
+     */
+    private void onElementSync(SyncElement element, SyncResult[] results)
+    {
+        synchronized (monitorLock) {
+            list.getMonitor().onElementSync(list, element, count++, results);
+        }
+    }
+
+    /**
+     * Element being synced, held until all its target entries are done.
+     */
+    private static class Job
+    {
+        private final SyncElement element;
+        private FanOutCopy fanOut = null;
+
+        public Job(SyncElement element)
+        {
+            this.element = element;
+        }
+    }
+}
@@ -7,17 +7,27 @@
 package ru.com.rick.sync;
 
 import ru.com.rick.sync.fs.PathFilter;
+import ru.com.rick.sync.fs.PathTrie;
 import ru.com.rick.sync.fs.Root;
 import ru.com.rick.sync.fs.Device;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
 import ru.com.rick.sync.options.GlobalOptions;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.stream.IntStream;
 import ru.com.rick.sync.list.FileHistory;
 import ru.com.rick.sync.list.FileList;
 import ru.com.rick.sync.list.GlobalFileList;
@@ -34,8 +44,8 @@ public class SyncList
     private final RootElement rootElement;
     private final ProgressMonitor monitor;
     private final long time;
-    private final LinkedHashMap<Path, SyncElement> map = new LinkedHashMap<>();
-    private final ArrayList<Path> paths = new ArrayList<>();
+    private final SyncElementStore store;
+    private final PathTrie pathTrie = new PathTrie();
 
     /**
      *
@@ -46,6 +56,7 @@ public class SyncList
     {
         this.targets = targets;
         this.rootElement = new RootElement();
+        this.store = new SyncElementStore(targets, rootElement);
         this.monitor = monitor != null ? monitor : new NoMonitor();
         this.time = System.currentTimeMillis();
     }
@@ -63,9 +74,9 @@ public class SyncList
      *
      * @return list items count
      */
-    public int size()
+    public synchronized int size()
     {
-        return paths.size();
+        return store.size();
     }
 
     /**
@@ -101,7 +112,7 @@ public class SyncList
      */
     public Collection<Path> getPaths()
     {
-        return map.keySet();
+        return store.paths();
     }
 
     /**
@@ -110,7 +121,20 @@ public class SyncList
      */
     public Collection<SyncElement> getElements()
     {
-        return map.values();
+        return store.elements();
+    }
+
+    /**
+     *
+     * @param element
+     * @return child elements of an element in order of addition
+     */
+    public synchronized List<SyncElement> getChildren(SyncElement element)
+    {
+        if (element.getStore() != store) {
+            return new ArrayList<>();
+        }
+        return store.getChildren(element.getId());
     }
 
     /**
@@ -119,9 +143,9 @@ public class SyncList
      * @param path
      * @return sync element
      */
-    public SyncElement get(Path path)
+    public synchronized SyncElement get(Path path)
     {
-        return map.get(path);
+        return store.get(path);
     }
 
     /**
@@ -130,9 +154,9 @@ public class SyncList
      * @param index
      * @return sync element
      */
-    public SyncElement get(int index)
+    public synchronized SyncElement get(int index)
     {
-        return map.get(paths.get(index));
+        return store.get(index);
     }
 
     /**
@@ -140,9 +164,9 @@ public class SyncList
      * @param path
      * @return if list contains a path
      */
-    public boolean contains(Path path)
+    public synchronized boolean contains(Path path)
     {
-        return map.containsKey(path);
+        return store.indexOf(path) >= 0;
     }
 
     /**
@@ -150,9 +174,9 @@ public class SyncList
      * @param path
      * @return index of element with a supplied path
      */
-    public int indexOf(Path path)
+    public synchronized int indexOf(Path path)
     {
-        return paths.indexOf(path);
+        return store.indexOf(path);
     }
 
     /**
@@ -162,15 +186,19 @@ public class SyncList
      * @param parent parent element/container
      * @return added element
      */
-    public SyncElement set(Path rpath, SyncContainer parent)
+    public synchronized SyncElement set(Path rpath, SyncContainer parent)
     {
         if (parent == null) {
             parent = rootElement;
         }
-        SyncElement element = new SyncElement(rpath, targets, parent);
-        if (map.put(rpath, element) == null) {
-            paths.add(rpath);
+        PathTrie.Node parentNode = null;
+        int parentId = -1;
+        if (parent instanceof SyncElement && ((SyncElement)parent).getStore() == store) {
+            parentNode = ((SyncElement)parent).getPathNode();
+            parentId = ((SyncElement)parent).getId();
         }
+        int id = store.add(pathTrie.intern(parentNode, rpath), parentId);
+        SyncElement element = store.get(id);
         monitor.onElementAdd(this, element);
         return element;
     }
@@ -182,15 +210,38 @@ public class SyncList
      * @param parent parent element/container
      * @return added or existing element
      */
-    public SyncElement add(Path rpath, SyncContainer parent)
+    public synchronized SyncElement add(Path rpath, SyncContainer parent)
     {
-        if (map.containsKey(rpath)) {
-            return map.get(rpath);
+        SyncElement element = store.get(rpath);
+        if (element != null) {
+            return element;
         } else {
             return set(rpath, parent);
         }
     }
 
+    /**
+     * Add an element to list (not overwrite).
+     *
+     * @param rpath rpath relative path
+     * @param parent parent element/container
+     * @param added collection for newly added elements or null
+     * @return added or existing element
+     */
+    private synchronized SyncElement add(Path rpath, SyncContainer parent, Collection<SyncElement> added)
+    {
+        SyncElement element = store.get(rpath);
+        if (element != null) {
+            return element;
+        } else {
+            element = set(rpath, parent);
+            if (added != null) {
+                added.add(element);
+            }
+            return element;
+        }
+    }
+
     /**
      * Add an element and all subelements (scan all targets).
      *
@@ -213,11 +264,46 @@ public class SyncList
      * @return results for each target
      */
     public SyncResult[] addChildren(SyncElement element, boolean recursive)
+    {
+        return addChildren(element, recursive, null);
+    }
+
+    /**
+     * Add all child elements to the supplied (scan all targets).
+     *
+     * @param element sync element
+     * @param recursive call this method for all children
+     * @param added collection to put newly added elements to, or null
+     * @return results for each target
+     */
+    public SyncResult[] addChildren(SyncElement element, boolean recursive, Collection<SyncElement> added)
     {
         SyncResult[] results = new SyncResult[targets.length];
         for (int i = 0; i < targets.length; ++i) {
             if (element.getEntry(i).isContainer()) {
-                results[i] = addChildrenForTarget(element, i, element.getPath(), recursive);
+                results[i] = addChildrenForTarget(element, i, element.getPath(), recursive, added);
+            } else {
+                results[i] = new SyncResult(SyncResult.SYNC_SKIP);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Add child elements non-recursively, listing only targets where the parent directory of the element is merged.
+     * Contents of a directory copied, replaced or deleted as a whole are not listed, so the element can be scanned
+     * while its parent is being synced.
+     *
+     * @param element analyzed sync element
+     * @param added collection to put newly added elements to, or null
+     * @return results for each target
+     */
+    public SyncResult[] addMergedChildren(SyncElement element, Collection<SyncElement> added)
+    {
+        SyncResult[] results = new SyncResult[targets.length];
+        for (int i = 0; i < targets.length; ++i) {
+            if (element.getStatus(i).parentIsMerging() && element.getEntry(i).isContainer()) {
+                results[i] = addChildrenForTarget(element, i, element.getPath(), false, added);
             } else {
                 results[i] = new SyncResult(SyncResult.SYNC_SKIP);
             }
@@ -240,6 +326,70 @@ public class SyncList
         return results;
     }
 
+    /**
+     * Add all child elements from all targets' roots using global options. Recursive scan is done in parallel if
+     * configured.
+     *
+     * @param recursive call this method for every added element
+     * @param options
+     * @return results array (one for each target)
+     */
+    public SyncResult[] addAllTargets(boolean recursive, GlobalOptions options)
+    {
+        return addAllTargets(recursive, options.getScanThreads(), options.getScanDeviceThreads());
+    }
+
+    /**
+     * Add all child elements from all targets' roots. All targets are scanned at once, subdirectories of each target
+     * are scanned in parallel with work stealing.
+     *
+     * @param recursive call this method for every added element
+     * @param threads scan threads count, serial scan if less than 2
+     * @param deviceThreads max directories listed at once on a single device, 0 for no limit
+     * @return results array (one for each target)
+     */
+    public SyncResult[] addAllTargets(boolean recursive, int threads, int deviceThreads)
+    {
+        if (!recursive || threads < 2) {
+            return addAllTargets(recursive);
+        }
+        IdentityHashMap<Device, Semaphore> permits = new IdentityHashMap<>();
+        for (SyncTarget target : targets) {
+            prepareTarget(target);
+            if (deviceThreads > 0 && !permits.containsKey(target.getDevice())) {
+                permits.put(target.getDevice(), new Semaphore(deviceThreads));
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ArrayList<ForkJoinTask<SyncResult>> tasks = new ArrayList<>();
+            for (int i = 0; i < targets.length; ++i) {
+                tasks.add(pool.submit(new TargetScanTask(i, permits.get(targets[i].getDevice()))));
+            }
+            SyncResult[] results = new SyncResult[targets.length];
+            for (int i = 0; i < targets.length; ++i) {
+                results[i] = tasks.get(i).join();
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Initialize lazy target state before it is accessed from multiple threads.
+     *
+     * @param target
+     */
+    private void prepareTarget(SyncTarget target)
+    {
+        if (target.isAvailable()) {
+            target.getIncludedPaths();
+            target.getIgnoredPaths();
+            target.getFileListContainer().getList();
+        }
+    }
+
     /**
      * Add child elements for a single target's root.
      *
@@ -251,7 +401,7 @@ public class SyncList
     {
         if (targets[index].isAvailable()) {
             PathFilter pf = targets[index].getIncludedPaths();
-            if (pf.size() > 0) {
+            if (pf.size() > 0 && pf.hasLiteralPrefixes()) {
                 return addRootPaths(index, pf, recursive);
             } else {
                 return addRootContents(index, recursive);
@@ -308,9 +458,9 @@ public class SyncList
         }
         SyncResult result = new SyncResult(SyncResult.SYNC_MERGE).enableSubResults();
         for (Path rel : pf.getReducedPathCollection()) {
-            SyncElement element = map.containsKey(rel) ? map.get(rel) : add(rel, null);
+            SyncElement element = add(rel, null);
             if (element.getEntry(index).isContainer()) {
-                result.addSubResult(rel, addChildrenForTarget(element, index, rel, recursive));
+                result.addSubResult(rel, addChildrenForTarget(element, index, rel, recursive, null));
             }
         }
         return result;
@@ -329,7 +479,7 @@ public class SyncList
         Root root = target.getRoot();
         Device device = target.getDevice();
         if (device.isDir(root.getRootPath())) {
-            return addChildrenForTarget(null, index, null, recursive).enableSubResults();
+            return addChildrenForTarget(null, index, null, recursive, null).enableSubResults();
         } else {
             return new SyncResult(SyncResult.SYNC_UNKNOWN);
         }
@@ -342,9 +492,10 @@ public class SyncList
      * @param index
      * @param rpath
      * @param recursive
+     * @param added
      * @return
      */
-    private SyncResult addChildrenForTarget(SyncElement element, int index, Path rpath, boolean recursive)
+    private SyncResult addChildrenForTarget(SyncElement element, int index, Path rpath, boolean recursive, Collection<SyncElement> added)
     {
         if (!targets[index].isAvailable()) {
             return new SyncResult(SyncResult.SYNC_SKIP);
@@ -354,13 +505,14 @@ public class SyncList
         Root root = target.getRoot();
         Path p = root.getAbsolutePath(rpath);
         Device device = target.getDevice();
-        try (DirectoryStream<Path> stream = device.openDir(p)) {
-            for (Path sp : stream) {
-                Path rel = root.getRelativePath(sp);
-                SyncElement e = add(rel, element);
-                if (recursive && e.getEntry(index).isContainer()) {
-                    result.addSubResult(rel, addChildrenForTarget(e, index, rel, recursive));
+        try {
+            for (Map.Entry<Path, BasicFileAttributes> child : device.listFilesWithAttributes(p).entrySet()) {
+                Path rel = root.getRelativePath(child.getKey());
+                SyncElement e = add(rel, element, added);
+                if (recursive && e.getEntry(index, child.getValue()).isContainer()) {
+                    result.addSubResult(rel, addChildrenForTarget(e, index, rel, recursive, added));
                 } else {
+                    e.getEntry(index, child.getValue());
                     result.addSubResult(rel, new SyncResult(SyncResult.SYNC_CREATE));
                 }
             }
@@ -374,6 +526,29 @@ public class SyncList
         }
     }
 
+    /**
+     * List directory for parallel scan.
+     *
+     * @param device
+     * @param dir
+     * @param permits device permits or null
+     * @return children paths with attributes
+     * @throws IOException
+     */
+    private Map<Path, BasicFileAttributes> listDir(Device device, Path dir, Semaphore permits) throws IOException
+    {
+        if (permits != null) {
+            permits.acquireUninterruptibly();
+        }
+        try {
+            return device.listFilesWithAttributes(dir);
+        } finally {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
     /**
      * Analyze all elements.
      *
@@ -383,13 +558,23 @@ public class SyncList
     public int analyze(GlobalOptions options)
     {
         int c = 0;
-        for (SyncElement el : map.values()) {
+        for (SyncElement el : store.elements()) {
             el.analyze(options, true);
             monitor.onElementAnalyze(this, el, c++);
         }
         return c;
     }
 
+    /**
+     * Find moved files after analyzing, to move them within targets instead of deleting and copying.
+     *
+     * @return count of detected moves
+     */
+    public int detectMoves()
+    {
+        return new MoveDetector(this).detect();
+    }
+
     /**
      *
      * @param index sync target index
@@ -415,25 +600,27 @@ public class SyncList
     }
 
     /**
-     * Sync all elements.
+     * Sync all elements. Elements are synced in parallel if configured.
      *
      * @param options
      * @return sync results (with subresults)
      */
     public SyncResult[] sync(GlobalOptions options)
     {
+        if (options.getSyncThreads() > 1) {
+            return new SyncExecutor(this, options.getSyncThreads()).sync(options);
+        }
         int c = 0;
         SyncResult[] results = new SyncResult[targets.length];
         for (int i = 0; i < targets.length; ++i) {
             results[i] = startSync(i, options).enableSubResults();
         }
-        for (Map.Entry<Path, SyncElement> entry : map.entrySet()) {
-            SyncElement element = entry.getValue();
+        for (SyncElement element : store.elements()) {
             SyncResult[] rs = element.sync(options);
             monitor.onElementSync(this, element, c++, rs);
             if (rs != null) {
                 for (int i = 0; i < results.length; ++i) {
-                    results[i].addSubResult(entry.getKey(), rs[i]);
+                    results[i].addSubResult(element.getPath(), rs[i]);
                 }
             }
         }
@@ -455,11 +642,8 @@ public class SyncList
         int c = 0;
         LocalFileList list = new LocalFileList(time);
         monitor.onFileListGenerateStart(this, index);
-        for (SyncElement element : map.values()) {
-            FileHistory entry = element.generateResultHistory(index, list.getTime());
-            if (entry != null) {
-                list.set(element.getPath(), entry, targets[index]);
-            }
+        for (SyncElement element : store.elements()) {
+            addFileListEntry(list, element, index);
             monitor.onFileListGenerateEntry(this, index, list, element, c++);
         }
         monitor.onFileListGenerateEnd(this, index, list, c);
@@ -494,23 +678,50 @@ public class SyncList
         int c = 0;
         GlobalFileList list = new GlobalFileList(time);
         monitor.onFileListGenerateStart(this, -1);
-        for (SyncElement element : map.values()) {
-            FileHistory selected = element.generateResultHistory(list.getTime());
-            if (selected != null) {
-                list.set(element.getPath(), selected, element.getSelectedTarget());
-            }
-            for (int index : indexes) {
-                FileHistory entry = element.generateResultHistory(index, list.getTime());
-                if (entry != null) {
-                    list.add(element.getPath(), entry, targets[index]);
-                }
-            }
+        for (SyncElement element : store.elements()) {
+            addGlobalFileListEntry(list, element, indexes);
             monitor.onFileListGenerateEntry(this, -1, list, element, c++);
         }
         monitor.onFileListGenerateEnd(this, -1, list, c);
         return list;
     }
 
+    /**
+     * Add resulting history of an element to local file list.
+     *
+     * @param list
+     * @param element
+     * @param index target index
+     */
+    private void addFileListEntry(LocalFileList list, SyncElement element, int index)
+    {
+        FileHistory entry = element.generateResultHistory(index, list.getTime());
+        if (entry != null) {
+            list.set(element.getPathNode(), entry, targets[index]);
+        }
+    }
+
+    /**
+     * Add resulting history of an element to global file list.
+     *
+     * @param list
+     * @param element
+     * @param indexes targets' indexes
+     */
+    private void addGlobalFileListEntry(GlobalFileList list, SyncElement element, int[] indexes)
+    {
+        FileHistory selected = element.generateResultHistory(list.getTime());
+        if (selected != null) {
+            list.set(element.getPathNode(), selected, element.getSelectedTarget());
+        }
+        for (int index : indexes) {
+            FileHistory entry = element.generateResultHistory(index, list.getTime());
+            if (entry != null) {
+                list.add(element.getPathNode(), entry, targets[index]);
+            }
+        }
+    }
+
     /**
      * Generate and save global file list (if not yet updated).
      *
@@ -564,6 +775,209 @@ public class SyncList
         return results;
     }
 
+    /**
+     * Generate and save all local file lists and the global file list (if not yet updated).
+     *
+     * @param container global list container
+     * @param options
+     * @return success of all saved lists
+     */
+    public boolean saveAllFileLists(FileListContainer container, GlobalOptions options)
+    {
+        return saveAllFileLists(container, options.getSaveThreads());
+    }
+
+    /**
+     * Generate and save all local file lists and the global file list (if not yet updated). All lists are generated
+     * in a single pass over elements, then saved in parallel, as lists are usually on different devices.
+     *
+     * @param container global list container
+     * @param threads lists saved at once, serial save if less than 2
+     * @return success of all saved lists
+     */
+    public boolean saveAllFileLists(FileListContainer container, int threads)
+    {
+        boolean success = true;
+        IdentityHashMap<FileListContainer, Integer> locals = new IdentityHashMap<>();
+        for (int i = 0; i < targets.length; ++i) {
+            FileListContainer flc = targets[i].getFileListContainer();
+            if (flc.isConfigured() && !flc.isGlobal() && targets[i].isAvailable() && !locals.containsKey(flc)) {
+                if (flc.isUpdated()) {
+                    success = flc.isValid() && success;
+                } else {
+                    locals.put(flc, i);
+                }
+            }
+        }
+        boolean global = container.isConfigured() && container.isGlobal();
+        if (global && container.isUpdated()) {
+            success = container.isValid() && success;
+            global = false;
+        }
+        int[] indexes = locals.values().stream().mapToInt(x -> x).sorted().toArray();
+        LocalFileList[] lists = new LocalFileList[indexes.length];
+        for (int k = 0; k < indexes.length; ++k) {
+            lists[k] = new LocalFileList(time);
+            monitor.onFileListGenerateStart(this, indexes[k]);
+        }
+        GlobalFileList globalList = null;
+        int[] related = null;
+        if (global) {
+            related = IntStream.range(0, targets.length).filter(i -> targets[i].getFileListContainer().isGlobal()).toArray();
+            globalList = new GlobalFileList(time);
+            monitor.onFileListGenerateStart(this, -1);
+        }
+        int c = 0;
+        for (SyncElement element : store.elements()) {
+            for (int k = 0; k < indexes.length; ++k) {
+                addFileListEntry(lists[k], element, indexes[k]);
+                monitor.onFileListGenerateEntry(this, indexes[k], lists[k], element, c);
+            }
+            if (globalList != null) {
+                addGlobalFileListEntry(globalList, element, related);
+                monitor.onFileListGenerateEntry(this, -1, globalList, element, c);
+            }
+            c++;
+        }
+        ArrayList<FileListContainer> containers = new ArrayList<>();
+        ArrayList<FileList> results = new ArrayList<>();
+        for (int k = 0; k < indexes.length; ++k) {
+            monitor.onFileListGenerateEnd(this, indexes[k], lists[k], c);
+            containers.add(targets[indexes[k]].getFileListContainer());
+            results.add(lists[k]);
+        }
+        if (globalList != null) {
+            monitor.onFileListGenerateEnd(this, -1, globalList, c);
+            containers.add(container);
+            results.add(globalList);
+        }
+        if (threads < 2 || containers.size() < 2) {
+            for (int k = 0; k < containers.size(); ++k) {
+                success = containers.get(k).update(results.get(k)) && success;
+            }
+            return success;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, containers.size()));
+        try {
+            ArrayList<CompletableFuture<Boolean>> tasks = new ArrayList<>();
+            for (int k = 0; k < containers.size(); ++k) {
+                FileListContainer flc = containers.get(k);
+                FileList list = results.get(k);
+                tasks.add(CompletableFuture.supplyAsync(() -> flc.update(list), pool));
+            }
+            for (CompletableFuture<Boolean> task : tasks) {
+                success = task.join() && success;
+            }
+            return success;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Parallel scan of a single target's root.
+     */
+    private class TargetScanTask extends RecursiveTask<SyncResult>
+    {
+        private final int index;
+        private final Semaphore permits;
+
+        public TargetScanTask(int index, Semaphore permits)
+        {
+            this.index = index;
+            this.permits = permits;
+        }
+
+        @Override
+        protected SyncResult compute()
+        {
+            SyncTarget target = targets[index];
+            if (!target.isAvailable()) {
+                return new SyncResult(SyncResult.SYNC_SKIP);
+            }
+            PathFilter pf = target.getIncludedPaths();
+            if (pf.size() > 0 && pf.hasLiteralPrefixes()) {
+                SyncResult result = new SyncResult(SyncResult.SYNC_MERGE).enableSubResults();
+                ArrayList<Path> rels = new ArrayList<>();
+                ArrayList<ScanTask> tasks = new ArrayList<>();
+                for (Path rel : pf.getReducedPathCollection()) {
+                    SyncElement element = add(rel, null);
+                    if (element.getEntry(index).isContainer()) {
+                        ScanTask task = new ScanTask(element, index, rel, permits);
+                        task.fork();
+                        rels.add(rel);
+                        tasks.add(task);
+                    }
+                }
+                for (int i = 0; i < tasks.size(); ++i) {
+                    result.addSubResult(rels.get(i), tasks.get(i).join());
+                }
+                return result;
+            } else if (target.getDevice().isDir(target.getRoot().getRootPath())) {
+                return new ScanTask(null, index, null, permits).compute().enableSubResults();
+            } else {
+                return new SyncResult(SyncResult.SYNC_UNKNOWN);
+            }
+        }
+    }
+
+    /**
+     * Parallel scan of a single directory of a single target.
+     */
+    private class ScanTask extends RecursiveTask<SyncResult>
+    {
+        private final SyncElement element;
+        private final int index;
+        private final Path rpath;
+        private final Semaphore permits;
+
+        public ScanTask(SyncElement element, int index, Path rpath, Semaphore permits)
+        {
+            this.element = element;
+            this.index = index;
+            this.rpath = rpath;
+            this.permits = permits;
+        }
+
+        @Override
+        protected SyncResult compute()
+        {
+            SyncTarget target = targets[index];
+            Root root = target.getRoot();
+            Map<Path, BasicFileAttributes> children;
+            try {
+                children = listDir(target.getDevice(), root.getAbsolutePath(rpath), permits);
+            } catch (IOException ex) {
+                if (element != null) {
+                    return element.getStatus(index).setResult(ex);
+                } else {
+                    return new SyncResult(ex);
+                }
+            }
+            Path[] rels = new Path[children.size()];
+            ScanTask[] tasks = new ScanTask[children.size()];
+            int i = 0;
+            for (Map.Entry<Path, BasicFileAttributes> child : children.entrySet()) {
+                rels[i] = root.getRelativePath(child.getKey());
+                SyncElement e = add(rels[i], element);
+                if (e.getEntry(index, child.getValue()).isContainer()) {
+                    tasks[i] = new ScanTask(e, index, rels[i], permits);
+                    tasks[i].fork();
+                }
+                i++;
+            }
+            SyncResult result = new SyncResult(SyncResult.SYNC_MERGE);
+            for (i = 0; i < rels.length; ++i) {
+                if (tasks[i] != null) {
+                    result.addSubResult(rels[i], tasks[i].join());
+                } else {
+                    result.addSubResult(rels[i], new SyncResult(SyncResult.SYNC_CREATE));
+                }
+            }
+            return result;
+        }
+    }
+
     /**
      * Default ProgressMonitor stub.
      */
@@ -597,7 +1011,7 @@ public class SyncList
                 if (!target.isAvailable()) {
                     results[index] = new SyncResult(SyncResult.SYNC_SKIP);
                 } else {
-                    results[index] = target.getBackuper().initializeRoot(target.getRoot(), target.getOptions().createRoot());
+                    results[index] = target.getBackuper().initializeRoot(target.getRoot(), target.getOptionsSnapshot().createRoot());
                 }
             }
             return results[index];
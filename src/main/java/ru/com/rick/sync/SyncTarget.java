@@ -6,13 +6,17 @@
  */
 package ru.com.rick.sync;
 
+import ru.com.rick.sync.fs.FanOutCopy;
 import ru.com.rick.sync.fs.PathFilter;
+import ru.com.rick.sync.fs.PathTrie;
 import ru.com.rick.sync.fs.Root;
 import ru.com.rick.sync.list.FileList;
 import ru.com.rick.sync.fs.FileEntry;
+import ru.com.rick.sync.fs.HashCache;
 import ru.com.rick.sync.fs.Device;
 import ru.com.rick.sync.options.SyncOptions;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
 import ru.com.rick.sync.fs.FileProperties;
 import ru.com.rick.sync.fs.Segment;
@@ -30,6 +34,7 @@ public class SyncTarget implements FileListTarget
     private final Device device;
     private final Root root;
     private final Options options;
+    private final Options.Snapshot snapshot;
     //
     private boolean enabled = true;
     private int availableState = 0;
@@ -50,6 +55,7 @@ public class SyncTarget implements FileListTarget
         this.controller = controller;
         this.device = device;
         this.options = options;
+        this.snapshot = options.compile();
         this.root = new Root(device, device.path(root), options);
     }
 
@@ -112,6 +118,15 @@ public class SyncTarget implements FileListTarget
         return options;
     }
 
+    /**
+     *
+     * @return sync options compiled once
+     */
+    public Options.Snapshot getOptionsSnapshot()
+    {
+        return snapshot;
+    }
+
     /**
      *
      * @return file list
@@ -145,6 +160,15 @@ public class SyncTarget implements FileListTarget
         return fileList;
     }
 
+    /**
+     *
+     * @return hash cache of the file list
+     */
+    public HashCache getHashCache()
+    {
+        return getFileListContainer().getHashCache();
+    }
+
     /**
      *
      * @return ignored paths
@@ -155,10 +179,14 @@ public class SyncTarget implements FileListTarget
             ignoredPaths = new PathFilter();
             ignoredPaths.addPaths(options.getIgnoredPaths(), device);
             Path listPath = getFileListContainer().getRelativePath(root);
+            Path cachePath = getFileListContainer().getHashCacheRelativePath(root);
             Path backupPath = getBackuper().getRelativePath(root);
             if (listPath != null) {
                 ignoredPaths.addPath(listPath);
             }
+            if (cachePath != null) {
+                ignoredPaths.addPath(cachePath);
+            }
             if (backupPath != null) {
                 ignoredPaths.addPath(backupPath);
             }
@@ -186,7 +214,7 @@ public class SyncTarget implements FileListTarget
      */
     public boolean canCreate(FileEntry source)
     {
-        return source.isDir() ? options.allowCreateDir() : options.allowCreate();
+        return source.isDir() ? snapshot.allowCreateDir() : snapshot.allowCreate();
     }
 
     /**
@@ -196,7 +224,7 @@ public class SyncTarget implements FileListTarget
      */
     public boolean canDelete(FileEntry target)
     {
-        return target.isDir() ? options.allowDeleteDir() : options.allowDelete();
+        return target.isDir() ? snapshot.allowDeleteDir() : snapshot.allowDelete();
     }
 
     /**
@@ -207,7 +235,7 @@ public class SyncTarget implements FileListTarget
      */
     public boolean canReplace(FileEntry target, FileEntry source)
     {
-        return target.isDir() ? options.allowReplaceDir() : options.allowReplace();
+        return target.isDir() ? snapshot.allowReplaceDir() : snapshot.allowReplace();
     }
 
     /**
@@ -215,7 +243,7 @@ public class SyncTarget implements FileListTarget
      * @param rpath
      * @return file history entry from file list
      */
-    public FileHistory getFileHistory(Path rpath)
+    public FileHistory getFileHistory(PathTrie.Node rpath)
     {
         return getFileListContainer().getEntry(rpath, this);
     }
@@ -225,10 +253,12 @@ public class SyncTarget implements FileListTarget
      * @param rpath
      * @return file entry for path
      */
-    public FileEntry getFileEntry(Path rpath)
+    public FileEntry getFileEntry(PathTrie.Node rpath)
     {
         if (isAvailable()) {
-            return new FileEntry(root, rpath);
+            FileEntry entry = new FileEntry(root, rpath);
+            entry.setHashCache(getHashCache());
+            return entry;
         } else {
             return new UnavailableFileEntry(root, rpath);
         }
@@ -240,25 +270,79 @@ public class SyncTarget implements FileListTarget
      * @param exists file exists
      * @return file entry for path with known exists state
      */
-    public FileEntry getFileEntry(Path rpath, boolean exists)
+    public FileEntry getFileEntry(PathTrie.Node rpath, boolean exists)
     {
-        return new FileEntry(root, rpath, exists);
+        FileEntry entry = new FileEntry(root, rpath, exists);
+        entry.setHashCache(getHashCache());
+        return entry;
     }
 
     /**
      *
      * @param rpath
-     * @return relative path is ignored
+     * @param attrs file attributes from directory listing or null
+     * @return file entry, pre-populated if attributes are supplied
      */
-    public boolean pathIsIgnored(Path rpath)
+    public FileEntry getFileEntry(PathTrie.Node rpath, BasicFileAttributes attrs)
     {
-        PathFilter paths = getIncludedPaths();
-        if (paths.size() > 0 && !paths.containsPath(rpath)) {
+        if (attrs != null && isAvailable()) {
+            FileEntry entry = new FileEntry(root, rpath, attrs);
+            entry.setHashCache(getHashCache());
+            return entry;
+        } else {
+            return getFileEntry(rpath);
+        }
+    }
+
+    /**
+     *
+     * @param rpath
+     * @param props properties of the file (used if target is available)
+     * @return file entry for path with supplied properties
+     */
+    public FileEntry getFileEntry(PathTrie.Node rpath, FileProperties props)
+    {
+        if (isAvailable()) {
+            FileEntry entry = new FileEntry(root, rpath, props);
+            entry.setHashCache(getHashCache());
+            return entry;
+        } else {
+            return new UnavailableFileEntry(root, rpath);
+        }
+    }
+
+    /**
+     *
+     * @param entry
+     * @return relative path of the entry is ignored
+     */
+    public boolean pathIsIgnored(FileEntry entry)
+    {
+        PathTrie.Node rpath = entry.getPathNode();
+        return pathIsIgnored(entry, getIncludedPaths().getState(rpath), getIgnoredPaths().getState(rpath));
+    }
+
+    /**
+     *
+     * @param entry
+     * @param included matching state of the entry path in included paths
+     * @param ignored matching state of the entry path in ignored paths
+     * @return relative path of the entry is ignored
+     */
+    public boolean pathIsIgnored(FileEntry entry, PathFilter.State included, PathFilter.State ignored)
+    {
+        PathTrie.Node rpath = entry.getPathNode();
+        if (rpath.getName() != null && FanOutCopy.isStagedFile(rpath.getName())) {
             return true;
         }
-        
-        PathFilter ignored = getIgnoredPaths();
-        return ignored.containsPath(rpath);
+        PathFilter paths = getIncludedPaths();
+        if (paths.size() > 0 && !included.isMatched()) {
+            // paths on the way to included patterns are kept to be scanned and created, unless they are files here
+            if (!paths.mayContainPath(included) || (entry.exists() && !entry.isDir())) {
+                return true;
+            }
+        }
+        return ignored.isMatched();
     }
 
     /**
@@ -267,7 +351,7 @@ public class SyncTarget implements FileListTarget
      */
     public boolean isBackup()
     {
-        return options.isBackup();
+        return snapshot.isBackup();
     }
 
     /**
@@ -276,7 +360,7 @@ public class SyncTarget implements FileListTarget
      */
     public boolean isSource()
     {
-        return options.isSource();
+        return snapshot.isSource();
     }
 
     /**
@@ -285,7 +369,7 @@ public class SyncTarget implements FileListTarget
      */
     public boolean isRequired()
     {
-        return options.isRequired();
+        return snapshot.isRequired();
     }
 
     /**
@@ -294,7 +378,7 @@ public class SyncTarget implements FileListTarget
      */
     public boolean isReadOnly()
     {
-        return options.isReadOnly();
+        return snapshot.isReadOnly();
     }
 
     /**
@@ -303,7 +387,7 @@ public class SyncTarget implements FileListTarget
      */
     public boolean preferNewer()
     {
-        return options.preferNewer();
+        return snapshot.preferNewer();
     }
 
     /**
@@ -312,7 +396,7 @@ public class SyncTarget implements FileListTarget
      */
     public boolean preferExisting()
     {
-        return options.preferExisting();
+        return snapshot.preferExisting();
     }
 
     /**
@@ -321,7 +405,7 @@ public class SyncTarget implements FileListTarget
      */
     public int getPriority()
     {
-        return options.getPriority();
+        return snapshot.getPriority();
     }
     
     @Override
@@ -360,7 +444,7 @@ public class SyncTarget implements FileListTarget
      */
     private static class UnavailableFileEntry extends FileEntry
     {
-        public UnavailableFileEntry(Segment segment, Path rpath)
+        public UnavailableFileEntry(Segment segment, PathTrie.Node rpath)
         {
             super(segment, rpath);
         }
@@ -402,5 +486,51 @@ public class SyncTarget implements FileListTarget
         {
             return getBooleanOption("required", !isReadOnly());
         }
+
+        @Override
+        public Snapshot compile()
+        {
+            return new Snapshot(this);
+        }
+
+        /**
+         * Immutable option values of a sync target.
+         */
+        public static class Snapshot extends SyncOptions.Snapshot
+        {
+            private final int priority;
+            private final boolean readOnly;
+            private final boolean source;
+            private final boolean required;
+
+            public Snapshot(Options options)
+            {
+                super(options);
+                priority = options.getPriority();
+                readOnly = options.isReadOnly();
+                source = options.isSource();
+                required = options.isRequired();
+            }
+
+            public int getPriority()
+            {
+                return priority;
+            }
+
+            public boolean isReadOnly()
+            {
+                return readOnly;
+            }
+
+            public boolean isSource()
+            {
+                return source;
+            }
+
+            public boolean isRequired()
+            {
+                return required;
+            }
+        }
     }
 }
@@ -9,14 +9,18 @@ package ru.com.rick.sync.fs;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
 
 /**
  * Abstraction for a file system or other file-system-like location. Used to manage files.
@@ -27,6 +31,15 @@ import org.apache.commons.io.IOUtils;
  */
 public abstract class Device
 {
+    /**
+     * Engine for copying data from this device
+     */
+    private TransferEngine transferEngine = new TransferEngine();
+
+    /**
+     * Scheduler limiting concurrent operations on this device
+     */
+    private IoScheduler scheduler = IoScheduler.UNLIMITED;
 
     /**
      * Create Path object.
@@ -149,6 +162,19 @@ public abstract class Device
      */
     public abstract OutputStream getOutputStream(Path path) throws IOException;
 
+    /**
+     * Open file for appending at a position. Create if not exists, data after the position is discarded.
+     *
+     * @param path path
+     * @param position file size to keep
+     * @return output stream
+     * @throws IOException if not supported by the device
+     */
+    public OutputStream getAppendStream(Path path, long position) throws IOException
+    {
+        throw new IOException("append not supported");
+    }
+
     /**
      * Create directory.
      *
@@ -194,6 +220,64 @@ public abstract class Device
      */
     public abstract void copyFile(Path source, Path target, boolean replace) throws IOException;
 
+    /**
+     *
+     * @param path
+     * @return channel for reading a file
+     * @throws IOException
+     */
+    public ReadableByteChannel getReadChannel(Path path) throws IOException
+    {
+        return Channels.newChannel(getInputStream(path));
+    }
+
+    /**
+     *
+     * @param path
+     * @return channel for writing a file
+     * @throws IOException
+     */
+    public WritableByteChannel getWriteChannel(Path path) throws IOException
+    {
+        return Channels.newChannel(getOutputStream(path));
+    }
+
+    /**
+     *
+     * @return engine used to copy data from this device, with transfer statistics
+     */
+    public TransferEngine getTransferEngine()
+    {
+        return transferEngine;
+    }
+
+    /**
+     *
+     * @param engine engine used to copy data from this device
+     */
+    protected void setTransferEngine(TransferEngine engine)
+    {
+        transferEngine = engine;
+    }
+
+    /**
+     *
+     * @return scheduler limiting concurrent operations on this device
+     */
+    public IoScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     *
+     * @param scheduler scheduler limiting concurrent operations on this device
+     */
+    protected void setScheduler(IoScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
     /**
      * Copy file to different device.
      *
@@ -211,9 +295,9 @@ public abstract class Device
             if (!replace && targetDevice.exists(targetPath)) {
                 throw new FileAlreadyExistsException(targetPath.toString());
             } else {
-                try (InputStream inp = getInputStream(source)) {
-                    try (OutputStream out = targetDevice.getOutputStream(targetPath)) {
-                        IOUtils.copy(inp, out);
+                try (ReadableByteChannel inp = getReadChannel(source)) {
+                    try (WritableByteChannel out = targetDevice.getWriteChannel(targetPath)) {
+                        transferEngine.transfer(inp, out, getFileSize(source));
                     }
                 }
                 copyFileAttributes(source, targetDevice, targetPath);
@@ -238,6 +322,22 @@ public abstract class Device
         }
     }
 
+    /**
+     * List directory contents with attributes of each child.
+     *
+     * @param dir directory
+     * @return files with attributes in listing order, attributes are null if not available
+     * @throws IOException
+     */
+    public Map<Path, BasicFileAttributes> listFilesWithAttributes(Path dir) throws IOException
+    {
+        LinkedHashMap<Path, BasicFileAttributes> result = new LinkedHashMap<>();
+        for (Path path : listFiles(dir)) {
+            result.put(path, readFileAttrubutes(path));
+        }
+        return result;
+    }
+
     /**
      * Copy file attributes to another file.
      *
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copy of one source file to multiple targets, reading the source only once.
+ *
+ * The source is read into pooled buffers, every buffer is written to all targets at the same time. Each target has a
+ * bounded queue of buffers, so a slow target delays reading only when its queue is full. Data is written to
+ * temporary files next to the targets (staged), then a staged file is moved to the target when the target is copied
+ * by FileReference.copyFile. A target which failed to stage is copied as usual.
+ *
+ * @author Rick
+ */
+public class FanOutCopy
+{
+    /**
+     * Suffix of staged files
+     */
+    public static final String TEMP_SUFFIX = ".multisync-tmp";
+
+    private static final Chunk END = new Chunk(null, 0);
+
+    private static final ExecutorService writers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fan-out-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileReference source;
+    private final int queueSize;
+    private final ArrayList<FileReference> targets = new ArrayList<>();
+    private final IdentityHashMap<FileReference, Path> staged = new IdentityHashMap<>();
+
+    /**
+     *
+     * @param source source file
+     * @param queueSize max buffers queued for one target
+     */
+    public FanOutCopy(FileReference source, int queueSize)
+    {
+        this.source = source;
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     *
+     * @param target file to be created or replaced by the source
+     */
+    public void addTarget(FileReference target)
+    {
+        targets.add(target);
+    }
+
+    /**
+     *
+     * @return count of targets
+     */
+    public int size()
+    {
+        return targets.size();
+    }
+
+    /**
+     *
+     * @param name file name
+     * @return if the name is a name of a staged file (left behind if the process was stopped during sync)
+     */
+    public static boolean isStagedFile(String name)
+    {
+        return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+    }
+
+    /**
+     * Read the source and write staged files for all targets. Attach this object to the source, so copyFile uses
+     * staged files.
+     *
+     * @return count of staged files
+     */
+    public int stage()
+    {
+        Device device = source.getDevice();
+        Path path = source.getAbsolutePath();
+        List<Writer> ws = new ArrayList<>();
+        long start = System.nanoTime();
+        long count = 0;
+        try (ReadableByteChannel in = device.getReadChannel(path)) {
+            for (FileReference target : targets) {
+                Path tp = target.getAbsolutePath();
+                Writer writer = new Writer(target, tp.resolveSibling("." + tp.getFileName() + TEMP_SUFFIX));
+                try {
+                    writer.channel = target.getDevice().getWriteChannel(writer.temp);
+                    ws.add(writer);
+                } catch (IOException ex) {
+                    writer.discard();
+                }
+            }
+            if (ws.size() > 1 && device.getFileSize(path) >= TransferEngine.BUFFER_SIZE) {
+                count = copyParallel(in, ws);
+            } else if (!ws.isEmpty()) {
+                count = copySequential(in, ws);
+            }
+        } catch (IOException ex) {
+            for (Writer writer : ws) {
+                writer.error = ex;
+            }
+        } finally {
+            for (Writer writer : ws) {
+                writer.close();
+            }
+            device.getTransferEngine().addStatistics(count, System.nanoTime() - start);
+        }
+
+        int result = 0;
+        for (Writer writer : ws) {
+            if (writer.error == null) {
+                device.copyFileAttributes(path, writer.target.getDevice(), writer.temp);
+                synchronized (staged) {
+                    staged.put(writer.target, writer.temp);
+                }
+                result++;
+            } else {
+                writer.discard();
+            }
+        }
+        if (result > 0) {
+            source.setFanOutCopy(this);
+        }
+        return result;
+    }
+
+    /**
+     * Move staged file to the target.
+     *
+     * @param target
+     * @param replace
+     * @return false if the target has no staged file
+     * @throws IOException
+     */
+    boolean moveStaged(FileReference target, boolean replace) throws IOException
+    {
+        Path temp;
+        synchronized (staged) {
+            temp = staged.remove(target);
+        }
+        if (temp == null) {
+            return false;
+        }
+        try {
+            target.getDevice().moveFile(temp, target.getAbsolutePath(), replace);
+        } catch (IOException ex) {
+            target.getDevice().deleteFile(temp);
+            throw ex;
+        }
+        return true;
+    }
+
+    /**
+     * Delete unused staged files and detach this object from the source.
+     */
+    public void cleanup()
+    {
+        source.setFanOutCopy(null);
+        synchronized (staged) {
+            for (FileReference target : staged.keySet()) {
+                try {
+                    target.getDevice().deleteFile(staged.get(target));
+                } catch (IOException ex) {
+                    // left as is
+                }
+            }
+            staged.clear();
+        }
+    }
+
+    /**
+     * Copy in the current thread, one buffer at a time.
+     *
+     * @param in
+     * @param ws
+     * @return bytes read
+     * @throws IOException
+     */
+    private long copySequential(ReadableByteChannel in, List<Writer> ws) throws IOException
+    {
+        ByteBuffer buffer = TransferEngine.acquireBuffer();
+        try {
+            long count = 0;
+            while (read(in, buffer) > 0) {
+                count += buffer.remaining();
+                for (Writer writer : ws) {
+                    writer.write(buffer.duplicate());
+                }
+                buffer.clear();
+            }
+            return count;
+        } finally {
+            TransferEngine.releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Read in the current thread, write each target in a separate thread.
+     *
+     * @param in
+     * @param ws
+     * @return bytes read
+     * @throws IOException
+     */
+    private long copyParallel(ReadableByteChannel in, List<Writer> ws) throws IOException
+    {
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        for (Writer writer : ws) {
+            writer.queue = new ArrayBlockingQueue<>(queueSize);
+            futures.add(writers.submit(writer));
+        }
+        long count = 0;
+        boolean completed = false;
+        try {
+            while (true) {
+                ByteBuffer buffer = TransferEngine.acquireBuffer();
+                if (read(in, buffer) <= 0) {
+                    TransferEngine.releaseBuffer(buffer);
+                    break;
+                }
+                count += buffer.remaining();
+                Chunk chunk = new Chunk(buffer, ws.size());
+                for (Writer writer : ws) {
+                    writer.queue.put(chunk);
+                }
+            }
+            for (Writer writer : ws) {
+                writer.queue.put(END);
+            }
+            completed = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Fan-out copy interrupted");
+        } finally {
+            if (!completed) {
+                for (Writer writer : ws) {
+                    writer.queue.clear();
+                    writer.queue.offer(END);
+                }
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ex) {
+                    // writer errors are stored in writers
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fill the buffer and flip it.
+     *
+     * @param in
+     * @param buffer
+     * @return bytes in buffer
+     * @throws IOException
+     */
+    private static int read(ReadableByteChannel in, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+            // read until full or end of file
+        }
+        buffer.flip();
+        return buffer.remaining();
+    }
+
+    /**
+     * Buffer shared by all writers.
+     */
+    private static class Chunk
+    {
+        private final ByteBuffer buffer;
+        private final AtomicInteger refs;
+
+        public Chunk(ByteBuffer buffer, int refs)
+        {
+            this.buffer = buffer;
+            this.refs = new AtomicInteger(refs);
+        }
+
+        public void release()
+        {
+            if (refs.decrementAndGet() == 0) {
+                TransferEngine.releaseBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Writer of one staged file.
+     */
+    private static class Writer implements Runnable
+    {
+        private final FileReference target;
+        private final Path temp;
+        private WritableByteChannel channel = null;
+        private ArrayBlockingQueue<Chunk> queue = null;
+        private volatile IOException error = null;
+
+        public Writer(FileReference target, Path temp)
+        {
+            this.target = target;
+            this.temp = temp;
+        }
+
+        public void write(ByteBuffer buffer)
+        {
+            if (error == null) {
+                try {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException ex) {
+                    error = ex;
+                } catch (RuntimeException ex) {
+                    error = new IOException(ex);
+                }
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                Chunk chunk;
+                while ((chunk = queue.take()) != END) {
+                    try {
+                        write(chunk.buffer.duplicate());
+                    } finally {
+                        chunk.release();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                error = new InterruptedIOException("Fan-out copy interrupted");
+            }
+        }
+
+        public void close()
+        {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                if (error == null) {
+                    error = ex;
+                }
+            }
+        }
+
+        public void discard()
+        {
+            try {
+                target.getDevice().deleteFile(temp);
+            } catch (IOException ex) {
+                // left as is
+            }
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tiered comparison of two files. Cheaper tiers run first and the first tier able to decide gives the result:
+ * properties (existence, size, modified time), known hashes, sampled blocks (head, tail and evenly strided blocks),
+ * then either whole contents compared chunk by chunk with early exit, or whole file hashes for files larger than the
+ * size limit. Blocks are sampled only before hashing or before comparing contents many times larger than the samples,
+ * so different large files are usually rejected after reading a few blocks, and equal small files are read once.
+ *
+ * @author Rick
+ */
+public class FileComparator
+{
+    /**
+     * Comparison tier.
+     */
+    public static enum Tier
+    {
+        PROPERTIES, HASH, SAMPLE, CONTENT, FULL_HASH
+    }
+
+    private static final int SAMPLE_RATIO = 16;
+
+    // at most a thread per processor, a comparing thread reads both files itself when all are busy
+    private static final ExecutorService readers = new ThreadPoolExecutor(0, Runtime.getRuntime().availableProcessors(),
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(r, "compare-reader");
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    private final boolean checkTime;
+    private final boolean checkHash;
+    private final int compareLevel;
+    private final long sizeLimit;
+    private final int sampleBlocks;
+    private final int sampleSize;
+
+    /**
+     *
+     * @param checkTime trust modified time
+     * @param checkHash check hash
+     * @param compareLevel compare mode (see FileReference constants)
+     * @param sizeLimit max size to compare file contents, larger files are compared by hash (0 = no limit)
+     * @param sampleBlocks count of sampled blocks (0 = no sampling)
+     * @param sampleSize size of a sampled block
+     */
+    public FileComparator(boolean checkTime, boolean checkHash, int compareLevel, long sizeLimit, int sampleBlocks, int sampleSize)
+    {
+        this.checkTime = checkTime;
+        this.checkHash = checkHash;
+        this.compareLevel = compareLevel;
+        this.sizeLimit = sizeLimit;
+        this.sampleBlocks = sampleBlocks;
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Comparator with the strictest options of two segments.
+     *
+     * @param segment
+     * @param other
+     * @return comparator
+     */
+    public static FileComparator forSegments(Segment segment, Segment other)
+    {
+        PathOptions.Snapshot thisOpt = segment.getOptionsSnapshot();
+        PathOptions.Snapshot otherOpt = other.getOptionsSnapshot();
+        boolean checkTime = segment.canCompareModifiedTime() && other.canCompareModifiedTime();
+        boolean checkHash = segment.canUseHash() && other.canUseHash();
+        int compareLevel = Math.min(thisOpt.getCompareLevel(), otherOpt.getCompareLevel());
+        long sizeLimit = getMinSizeLimit(thisOpt.getCompareSizeLimit(), otherOpt.getCompareSizeLimit());
+        int sampleBlocks = Math.min(thisOpt.getCompareSampleBlocks(), otherOpt.getCompareSampleBlocks());
+        int sampleSize = Math.min(thisOpt.getCompareSampleSize(), otherOpt.getCompareSampleSize());
+        return new FileComparator(checkTime, checkHash, compareLevel, sizeLimit, sampleBlocks, sampleSize);
+    }
+
+    /**
+     *
+     * @param lim1
+     * @param lim2
+     * @return
+     */
+    private static long getMinSizeLimit(long lim1, long lim2)
+    {
+        if (lim1 > 0 && lim2 > 0) {
+            return Math.min(lim1, lim2);
+        } else if (lim1 > 0) {
+            return lim1;
+        } else if (lim2 > 0) {
+            return lim2;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     *
+     * @param file
+     * @param other
+     * @return comparison result (counted in the statistics of the file device transfer engine)
+     * @throws IOException
+     */
+    public Result compare(FileReference file, FileReference other) throws IOException
+    {
+        Result result = decide(file, other);
+        file.getDevice().getTransferEngine().addComparison(result.getTier());
+        return result;
+    }
+
+    /**
+     * Run tiers until one decides.
+     *
+     * @param file
+     * @param other
+     * @return comparison result
+     * @throws IOException
+     */
+    private Result decide(FileReference file, FileReference other) throws IOException
+    {
+        FileProperties thisProp = file.getProperties();
+        FileProperties otherProp = other.getProperties();
+        if (compareLevel <= FileReference.COMPARE_LEVEL_SIZE) {
+            return new Result(thisProp.isEqualTo(otherProp, checkTime, false), Tier.PROPERTIES);
+        }
+        if (compareLevel <= FileReference.COMPARE_LEVEL_HASH) {
+            boolean hashed = checkHash && thisProp.hasHash() && otherProp.hasHash();
+            return new Result(thisProp.isEqualTo(otherProp, checkTime, checkHash), hashed ? Tier.HASH : Tier.PROPERTIES);
+        }
+        if (!thisProp.isEqualTo(otherProp, checkTime, false)) {
+            return new Result(false, Tier.PROPERTIES);
+        }
+        if (compareLevel <= FileReference.COMPARE_LEVEL_MIXED && checkHash && thisProp.hasHash() && otherProp.hasHash() && thisProp.isHashComparable(otherProp)) {
+            return new Result(thisProp.getHash().equals(otherProp.getHash()), Tier.HASH);
+        }
+
+        long size = Math.max(thisProp.getFileSize(), otherProp.getFileSize()); // in case one file size is unknown (-1)
+        boolean large = sizeLimit > 0 && size > sizeLimit;
+        if (sampleBlocks > 0 && thisProp.getFileSize() == otherProp.getFileSize() && (large || size / SAMPLE_RATIO > (long)sampleBlocks * sampleSize)) {
+            if (!compareSamples(file, other, size)) {
+                return new Result(false, Tier.SAMPLE);
+            }
+        }
+
+        if (large) {
+            String hash = thisProp.getHash();
+            return new Result(hash != null && hash.equals(otherProp.getHash(thisProp.getHashAlgorithm())), Tier.FULL_HASH);
+        }
+        return new Result(compareContents(file, other), Tier.CONTENT);
+    }
+
+    /**
+     * Compare head, tail and evenly strided blocks of files of the same size.
+     *
+     * @param file
+     * @param other
+     * @param size file size
+     * @return false if any block differs, true if all equal or files can't be read by position
+     * @throws IOException
+     */
+    private boolean compareSamples(FileReference file, FileReference other, long size) throws IOException
+    {
+        try (ReadableByteChannel c1 = file.getReadChannel();
+                ReadableByteChannel c2 = other.getReadChannel()) {
+            if (!(c1 instanceof FileChannel) || !(c2 instanceof FileChannel)) {
+                return true;
+            }
+            int length = (int)Math.min(sampleSize, size);
+            ByteBuffer b1 = ByteBuffer.allocate(length);
+            ByteBuffer b2 = ByteBuffer.allocate(length);
+            long last = size - length;
+            long prev = -1;
+            for (int i = 0; i < sampleBlocks; ++i) {
+                long position = sampleBlocks > 1 ? last / (sampleBlocks - 1) * i : 0;
+                if (i > 0 && i == sampleBlocks - 1) {
+                    position = last;
+                }
+                if (position == prev) {
+                    continue;
+                }
+                prev = position;
+                b1.clear();
+                b2.clear();
+                readFully((FileChannel)c1, b1, position);
+                readFully((FileChannel)c2, b2, position);
+                if (!b1.equals(b2)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Compare whole contents chunk by chunk, reading both files at once.
+     *
+     * @param file
+     * @param other
+     * @return if contents are equal
+     * @throws IOException
+     */
+    private boolean compareContents(FileReference file, FileReference other) throws IOException
+    {
+        ByteBuffer b1 = TransferEngine.acquireBuffer();
+        ByteBuffer b2 = TransferEngine.acquireBuffer();
+        Future<Integer> pending = null;
+        try {
+            try (ReadableByteChannel c1 = file.getReadChannel();
+                    ReadableByteChannel c2 = other.getReadChannel()) {
+                while (true) {
+                    b1.clear();
+                    b2.clear();
+                    pending = readers.submit(() -> {
+                        try {
+                            return readFully(c2, b2);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    });
+                    int n1 = readFully(c1, b1);
+                    int n2 = await(pending);
+                    if (n1 != n2 || !b1.equals(b2)) {
+                        return false;
+                    }
+                    if (n1 < b1.capacity()) {
+                        return true;
+                    }
+                }
+            }
+        } finally {
+            // the reader may still fill b2 if reading c1 failed, channels are closed so it ends soon
+            if (pending != null) {
+                awaitDone(pending);
+            }
+            TransferEngine.releaseBuffer(b1);
+            TransferEngine.releaseBuffer(b2);
+        }
+    }
+
+    /**
+     *
+     * @param pending
+     * @return read result
+     * @throws IOException
+     */
+    private static int await(Future<Integer> pending) throws IOException
+    {
+        try {
+            return pending.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)cause).getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Wait until a task is finished, ignoring its result.
+     *
+     * @param pending
+     */
+    private static void awaitDone(Future<?> pending)
+    {
+        boolean interrupted = false;
+        while (!pending.isDone()) {
+            try {
+                pending.get();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            } catch (ExecutionException | CancellationException ex) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fill a buffer from a channel, then flip it.
+     *
+     * @param channel
+     * @param buffer
+     * @return bytes read
+     * @throws IOException
+     */
+    private static int readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+        buffer.flip();
+        return buffer.remaining();
+    }
+
+    /**
+     * Fill a buffer from a file position, then flip it.
+     *
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        long p = position;
+        int n;
+        while (buffer.hasRemaining() && (n = channel.read(buffer, p)) >= 0) {
+            p += n;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Result of comparison and the tier which decided it.
+     */
+    public static final class Result
+    {
+        private final boolean equal;
+        private final Tier tier;
+
+        public Result(boolean equal, Tier tier)
+        {
+            this.equal = equal;
+            this.tier = tier;
+        }
+
+        /**
+         *
+         * @return if files are equal
+         */
+        public boolean isEqual()
+        {
+            return equal;
+        }
+
+        /**
+         *
+         * @return tier which decided the result
+         */
+        public Tier getTier()
+        {
+            return tier;
+        }
+
+        @Override
+        public String toString()
+        {
+            return (equal ? "equal" : "different") + " by " + tier.name().toLowerCase();
+        }
+    }
+}
@@ -7,6 +7,7 @@
 package ru.com.rick.sync.fs;
 
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 
 /**
  * Reference to a file with a relative path.
@@ -15,23 +16,52 @@ import java.nio.file.Path;
  */
 public class FileEntry extends FileReference implements PathHolder
 {
-    private final Path rpath;
-    private FileProperties props = null;
+    private final PathTrie.Node rpath;
+    private volatile FileProperties props = null;
+    private HashCache hashCache = null;
 
-    public FileEntry(Segment segment, Path rpath)
+    public FileEntry(Segment segment, PathTrie.Node rpath)
     {
         super(segment);
         this.rpath = rpath;
     }
 
-    public FileEntry(Segment segment, Path rpath, boolean exists)
+    public FileEntry(Segment segment, PathTrie.Node rpath, boolean exists)
     {
         this(segment, rpath);
         this.props = new FileProperties(getDevice(), getAbsolutePath(), exists);
+        this.props.setHashAlgorithm(segment.getOptionsSnapshot().getHashAlgorithm());
+    }
+
+    public FileEntry(Segment segment, PathTrie.Node rpath, BasicFileAttributes attrs)
+    {
+        this(segment, rpath);
+        this.props = new FileProperties(getDevice(), getAbsolutePath(), attrs);
+        this.props.setHashAlgorithm(segment.getOptionsSnapshot().getHashAlgorithm());
+    }
+
+    public FileEntry(Segment segment, PathTrie.Node rpath, FileProperties props)
+    {
+        this(segment, rpath);
+        this.props = props;
+    }
+
+    public FileEntry(Segment segment, Path rpath)
+    {
+        this(segment, PathTrie.detached(rpath));
     }
 
     @Override
     public final Path getRelativePath()
+    {
+        return rpath.toPath();
+    }
+
+    /**
+     *
+     * @return interned relative path
+     */
+    public final PathTrie.Node getPathNode()
     {
         return rpath;
     }
@@ -39,18 +69,34 @@ public class FileEntry extends FileReference implements PathHolder
     @Override
     public final Path getAbsolutePath()
     {
-        return getSegment().getAbsolutePath(rpath);
+        FileProperties p = props;
+        return p != null ? p.getPath() : getSegment().getAbsolutePath(rpath.toPath());
     }
 
     @Override
-    public FileProperties getProperties()
+    public synchronized FileProperties getProperties()
     {
         if (props == null) {
             props = new FileProperties(getDevice(), getAbsolutePath());
+            props.setHashAlgorithm(getSegment().getOptionsSnapshot().getHashAlgorithm());
+            props.setHashCache(hashCache);
         }
         return props;
     }
 
+    /**
+     * Set cache for file hash.
+     *
+     * @param cache
+     */
+    public synchronized void setHashCache(HashCache cache)
+    {
+        hashCache = cache;
+        if (props != null) {
+            props.setHashCache(cache);
+        }
+    }
+
     @Override
     public void refresh()
     {
@@ -7,15 +7,8 @@
 package ru.com.rick.sync.fs;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.math.BigInteger;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import org.apache.commons.io.IOUtils;
 
 /**
  *
@@ -41,12 +34,17 @@ public class FileProperties extends FileVersion
     private BasicFileAttributes attrs = null;
     private boolean checkedAttrs = false;
 
+    /**
+     * Cache for file hash
+     */
+    private HashCache hashCache = null;
+
     // file props check statuses
     protected boolean checkedExists = false;
     protected boolean checkedIsDir = false;
     protected boolean checkedMtime = false;
     protected boolean checkedFsize = false;
-    protected boolean checkedMd5 = false;
+    protected boolean checkedHash = false;
 
     public FileProperties(Device device, Path path)
     {
@@ -58,27 +56,56 @@ public class FileProperties extends FileVersion
     {
         this(device, path);
         this.checkedExists = true;
-        this.exists = exists;
+        setExists(exists);
+    }
+
+    /**
+     * Properties of an existing file, pre-populated with attributes from a directory listing.
+     *
+     * @param device
+     * @param path
+     * @param attrs file attributes (links followed)
+     */
+    public FileProperties(Device device, Path path, BasicFileAttributes attrs)
+    {
+        this(device, path, true);
+        this.attrs = attrs;
+        this.checkedAttrs = true;
+        setDir(attrs.isDirectory());
+        this.checkedIsDir = true;
+        this.mtime = attrs.lastModifiedTime().toMillis();
+        this.checkedMtime = true;
+        this.fsize = attrs.size();
+        this.checkedFsize = true;
+    }
+
+    /**
+     *
+     * @return full path to file
+     */
+    public Path getPath()
+    {
+        return path;
     }
 
     @Override
     public boolean exists()
     {
         if (!checkedExists) {
-            exists = device.exists(path);
+            setExists(device.exists(path));
             checkedExists = true;
         }
-        return exists;
+        return super.exists();
     }
 
     @Override
     public boolean isDir()
     {
         if (!checkedIsDir) {
-            isDir = device.isDir(path);
+            setDir(device.isDir(path));
             checkedIsDir = true;
         }
-        return isDir;
+        return super.isDir();
     }
 
     @Override
@@ -101,18 +128,107 @@ public class FileProperties extends FileVersion
         return fsize;
     }
 
+    /**
+     * Synchronized, as properties can be shared by file lists saved in parallel.
+     *
+     * @return content hash
+     */
     @Override
-    public String getHash()
-    {
-        if (!checkedMd5) {
-            checkedMd5 = true;
-            try (InputStream is = device.getInputStream(path)) {
-                md5 = md5hash(is);
-            } catch (IOException ex) {
-                md5 = null;
+    public synchronized String getHash()
+    {
+        if (!checkedHash) {
+            String h = hashCache != null ? hashCache.get(path, this) : null;
+            if (h == null) {
+                h = getHash(hashAlgorithm);
+                if (h != null && hashCache != null) {
+                    hashCache.put(path, this, h);
+                }
             }
+            setHash(h);
+            checkedHash = true;
+        }
+        return super.getHash();
+    }
+
+    /**
+     * Hash of other version is used only if it is valid for the file (see HashCache).
+     *
+     * @param version
+     */
+    @Override
+    protected void supplementHash(FileVersion version)
+    {
+        if (checkedHash) {
+            return;
+        }
+        boolean valid;
+        if (hashCache != null) {
+            valid = hashCache.check(path, version, this);
+        } else {
+            valid = HashCache.isValid(version.getHash(), version.getHashAlgorithm(), version.getFileSize(), version.getModifiedTime(), version.getSyncTime(), this);
+        }
+        if (valid) {
+            copyHash(version);
+            checkedHash = true;
+        }
+    }
+
+    /**
+     * Hash of other version is reused only with a persistent hash cache and if it is valid for the file, otherwise
+     * the file is hashed, so a change keeping size and modified time is detected.
+     *
+     * @param other
+     * @return
+     */
+    @Override
+    protected String getHashToCompare(FileVersion other)
+    {
+        if (hashCache != null && hashCache.isPersistent()) {
+            supplementHash(other);
+        }
+        return getHash();
+    }
+
+    /**
+     * Set cache for file hash.
+     *
+     * @param cache
+     */
+    public void setHashCache(HashCache cache)
+    {
+        hashCache = cache;
+    }
+
+    /**
+     * Calculate hash with a specific algorithm. Only the hash of current algorithm is cached.
+     *
+     * @param algorithm
+     * @return content hash or null
+     */
+    public String getHash(HashAlgorithm algorithm)
+    {
+        if (algorithm == hashAlgorithm && checkedHash) {
+            return super.getHash();
+        }
+        try {
+            return algorithm.hash(device, path);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Set algorithm for content hash.
+     *
+     * @param algorithm
+     */
+    public void setHashAlgorithm(HashAlgorithm algorithm)
+    {
+        if (algorithm != hashAlgorithm) {
+            hashAlgorithm = algorithm;
+            setHash(null);
+            checkedHash = false;
         }
-        return md5;
     }
 
     /**
@@ -159,7 +275,7 @@ public class FileProperties extends FileVersion
         checkedIsDir = false;
         checkedMtime = false;
         checkedFsize = false;
-        checkedMd5 = false;
+        checkedHash = false;
         return true;
     }
 
@@ -179,7 +295,7 @@ public class FileProperties extends FileVersion
         if (checkedFsize && fsize < 0) {
             throw new BadDataException("Unable to get file size of '" + path + "'");
         }
-        if (checkedMd5 && md5 == null) {
+        if (checkedHash && !hasHash()) {
             throw new BadDataException("Unable to get hash of '" + path + "'");
         }
     }
@@ -196,23 +312,4 @@ public class FileProperties extends FileVersion
         return time == TIME_UNKNOWN ? Long.MAX_VALUE : time;
     }
 
-    private static String md5hash(InputStream is)
-    {
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            DigestInputStream dis = new DigestInputStream(is, md);
-            IOUtils.copy(dis, new OutputStream()
-            {
-                @Override
-                public void write(int b) throws IOException
-                {
-
-                }
-            });
-            return String.format("%032x", new BigInteger(1, md.digest()));
-        } catch (IOException | NoSuchAlgorithmException ex) {
-            return null;
-        }
-    }
-
 }
@@ -8,8 +8,8 @@ package ru.com.rick.sync.fs;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
-import org.apache.commons.io.IOUtils;
 
 /**
  * Abstract reference to a file on device segment. Used to compare files and perform some operations, like copying or
@@ -29,6 +29,11 @@ public abstract class FileReference
      */
     private final Segment segment;
 
+    /**
+     * Fan-out copy with staged copies of this file.
+     */
+    private volatile FanOutCopy fanOut = null;
+
     public FileReference(Segment segment)
     {
         this.segment = segment;
@@ -108,21 +113,12 @@ public abstract class FileReference
 
     /**
      *
-     * @param lim1
-     * @param lim2
-     * @return
+     * @return channel for reading the file
+     * @throws IOException
      */
-    private long getMinSizeLimit(long lim1, long lim2)
+    public ReadableByteChannel getReadChannel() throws IOException
     {
-        if (lim1 > 0 && lim2 > 0) {
-            return Math.min(lim1, lim2);
-        } else if (lim1 > 0) {
-            return lim1;
-        } else if (lim2 > 0) {
-            return lim2;
-        } else {
-            return 0;
-        }
+        return getDevice().getReadChannel(getAbsolutePath());
     }
 
     /**
@@ -133,13 +129,18 @@ public abstract class FileReference
      */
     public boolean isEqualTo(FileReference other) throws IOException
     {
-        PathOptions thisOpt = segment.getOptions();
-        PathOptions otherOpt = other.segment.getOptions();
-        boolean checkTime = segment.canCompareModifiedTime() && other.segment.canCompareModifiedTime();
-        boolean checkHash = segment.canUseHash() && other.segment.canUseHash();
-        int compareLevel = Math.min(thisOpt.getCompareLevel(), otherOpt.getCompareLevel());
-        long sizeLimit = getMinSizeLimit(thisOpt.getCompareSizeLimit(), otherOpt.getCompareSizeLimit());
-        return isEqualTo(other, checkTime, checkHash, compareLevel, sizeLimit);
+        return compare(other).isEqual();
+    }
+
+    /**
+     *
+     * @param other
+     * @return comparison result with the tier which decided it
+     * @throws IOException
+     */
+    public FileComparator.Result compare(FileReference other) throws IOException
+    {
+        return FileComparator.forSegments(segment, other.segment).compare(this, other);
     }
 
     /**
@@ -154,29 +155,9 @@ public abstract class FileReference
      */
     public boolean isEqualTo(FileReference other, boolean checkTime, boolean checkHash, int compareLevel, long sizeLimit) throws IOException
     {
-        FileVersion thisProp = getProperties();
-        FileVersion otherProp = other.getProperties();
-        if (compareLevel <= COMPARE_LEVEL_SIZE) {
-            return thisProp.isEqualTo(otherProp, checkTime, false);
-        }
-        if (compareLevel <= COMPARE_LEVEL_HASH) {
-            return thisProp.isEqualTo(otherProp, checkTime, checkHash);
-        }
-        if (!thisProp.isEqualTo(otherProp, checkTime, false)) {
-            return false;
-        }
-        if (compareLevel <= COMPARE_LEVEL_MIXED && checkHash && thisProp.hasHash() && otherProp.hasHash()) {
-            return thisProp.getHash().equals(otherProp.getHash());
-        }
-
-        long size = Math.max(thisProp.getFileSize(), otherProp.getFileSize()); // in case one file size is unknown (-1)
-        if (sizeLimit > 0 && size > sizeLimit) {
-            return thisProp.getHash().equals(otherProp.getHash());
-        }
-
-        try (InputStream s1 = getInputStream(); InputStream s2 = other.getInputStream()) {
-            return IOUtils.contentEquals(s1, s2);
-        }
+        PathOptions.Snapshot opt = segment.getOptionsSnapshot();
+        FileComparator comparator = new FileComparator(checkTime, checkHash, compareLevel, sizeLimit, opt.getCompareSampleBlocks(), opt.getCompareSampleSize());
+        return comparator.compare(this, other).isEqual();
     }
 
     /**
@@ -191,7 +172,7 @@ public abstract class FileReference
     }
 
     /**
-     * Copy a file.
+     * Copy a file. If a copy is already staged by a fan-out copy, the staged file is moved to the destination.
      *
      * @param dest
      * @param replace
@@ -199,7 +180,19 @@ public abstract class FileReference
      */
     public void copyFile(FileReference dest, boolean replace) throws IOException
     {
-        getDevice().copyFile(getAbsolutePath(), dest.getDevice(), dest.getAbsolutePath(), replace);
+        FanOutCopy f = fanOut;
+        if (f == null || !f.moveStaged(dest, replace)) {
+            getDevice().copyFile(getAbsolutePath(), dest.getDevice(), dest.getAbsolutePath(), replace);
+        }
         refresh();
     }
+
+    /**
+     *
+     * @param fanOut fan-out copy with staged copies of this file or null
+     */
+    void setFanOutCopy(FanOutCopy fanOut)
+    {
+        this.fanOut = fanOut;
+    }
 }
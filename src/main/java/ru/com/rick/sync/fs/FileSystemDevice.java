@@ -9,13 +9,29 @@ package ru.com.rick.sync.fs;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import ru.com.rick.sync.json.JsonUtils;
 
@@ -52,6 +68,16 @@ public class FileSystemDevice extends Device
     }
 
     public FileSystemDevice(Map json)
+    {
+        this(json, new IoScheduler.Groups());
+    }
+
+    /**
+     *
+     * @param json device configuration
+     * @param schedulers I/O schedulers of device groups
+     */
+    public FileSystemDevice(Map json, IoScheduler.Groups schedulers)
     {
         if (json.containsKey("defaultPath")) {
             defaultPath = JsonUtils.getString(json, "defaultPath");
@@ -60,7 +86,46 @@ public class FileSystemDevice extends Device
             mountPath = JsonUtils.getString(json, "mount");
             checkMounted = JsonUtils.getBoolean(json, "check", true);
         }
+        if (json.containsKey("transferThreshold")) {
+            setTransferEngine(new TransferEngine(getTransferThreshold(json)));
+        }
+        setScheduler(schedulers.get(JsonUtils.getMap(json, "io", "group"), getFileStoreGroup()));
+    }
 
+    /**
+     *
+     * @return name of the file store of the mount path (or default path), the mount path if not available
+     */
+    private String getFileStoreGroup()
+    {
+        String p = mountPath != null ? mountPath : defaultPath != null ? defaultPath : ".";
+        try {
+            return Files.getFileStore(getAbsolutePath(path(p))).toString();
+        } catch (IOException | RuntimeException ex) {
+            return mountPath;
+        }
+    }
+
+    /**
+     *
+     * @param json
+     * @return min file size to be transferred by the file system
+     */
+    private static long getTransferThreshold(Map json)
+    {
+        Long value;
+        try {
+            value = JsonUtils.getSize(json, "transferThreshold", null);
+        } catch (NumberFormatException | ClassCastException ex) {
+            value = -1L;
+        }
+        if (value == null) {
+            return TransferEngine.BUFFER_SIZE;
+        }
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid value for JSON configuration option 'transferThreshold'");
+        }
+        return value;
     }
 
     @Override
@@ -122,19 +187,25 @@ public class FileSystemDevice extends Device
     @Override
     public boolean exists(Path path)
     {
-        return Files.exists(path);
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
+            return Files.exists(path);
+        }
     }
 
     @Override
     public boolean isDir(Path path)
     {
-        return Files.isDirectory(path);
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
+            return Files.isDirectory(path);
+        }
     }
 
     @Override
     public boolean isSymLink(Path path)
     {
-        return Files.isSymbolicLink(path);
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
+            return Files.isSymbolicLink(path);
+        }
     }
 
     @Override
@@ -152,7 +223,7 @@ public class FileSystemDevice extends Device
     @Override
     public long getModifiedTime(Path path)
     {
-        try {
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
             return Files.getLastModifiedTime(path).toMillis();
         } catch (IOException ex) {
             return FileVersion.TIME_UNKNOWN;
@@ -162,7 +233,7 @@ public class FileSystemDevice extends Device
     @Override
     public long getFileSize(Path path)
     {
-        try {
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
             return Files.size(path);
         } catch (IOException ex) {
             return -1;
@@ -172,7 +243,7 @@ public class FileSystemDevice extends Device
     @Override
     public BasicFileAttributes readFileAttrubutes(Path path)
     {
-        try {
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
             return Files.readAttributes(path, BasicFileAttributes.class);
         } catch (IOException ex) {
             return null;
@@ -182,7 +253,7 @@ public class FileSystemDevice extends Device
     @Override
     public boolean setModifiedTime(Path path, long time)
     {
-        try {
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
             Files.setLastModifiedTime(path, FileTime.fromMillis(time));
             return true;
         } catch (IOException ex) {
@@ -203,56 +274,210 @@ public class FileSystemDevice extends Device
     @Override
     public DirectoryStream<Path> openDir(Path dir) throws IOException
     {
-        return Files.newDirectoryStream(dir);
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
+            return Files.newDirectoryStream(dir);
+        }
+    }
+
+    /**
+     * Single-level file tree walk, which reuses attributes read by directory listing where the platform provides
+     * them. Links are followed to match other attribute methods, broken links are returned without attributes.
+     *
+     * @param dir directory
+     * @return files with attributes in listing order
+     * @throws IOException
+     */
+    @Override
+    public Map<Path, BasicFileAttributes> listFilesWithAttributes(Path dir) throws IOException
+    {
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
+            LinkedHashMap<Path, BasicFileAttributes> result = new LinkedHashMap<>();
+            Files.walkFileTree(dir, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    if (file.equals(dir)) {
+                        throw new NotDirectoryException(dir.toString());
+                    }
+                    result.put(file, attrs.isSymbolicLink() ? null : attrs);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) throws IOException
+                {
+                    if (file.equals(dir)) {
+                        throw ex;
+                    }
+                    result.put(file, null);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return result;
+        }
     }
 
     @Override
     public InputStream getInputStream(Path path) throws IOException
     {
-        return Files.newInputStream(path);
+        return Channels.newInputStream(getReadChannel(path));
     }
 
     @Override
     public OutputStream getOutputStream(Path path) throws IOException
     {
-        return Files.newOutputStream(path);
+        return Channels.newOutputStream(getWriteChannel(path));
+    }
+
+    @Override
+    public OutputStream getAppendStream(Path path, long position) throws IOException
+    {
+        FileChannel channel = openChannel(path, IoScheduler.WRITE, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            channel.truncate(position);
+            channel.position(position);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+        return Channels.newOutputStream(channel);
+    }
+
+    @Override
+    public ReadableByteChannel getReadChannel(Path path) throws IOException
+    {
+        return openChannel(path, IoScheduler.READ, StandardOpenOption.READ);
+    }
+
+    @Override
+    public WritableByteChannel getWriteChannel(Path path) throws IOException
+    {
+        return openChannel(path, IoScheduler.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Open file channel, which holds a scheduler permit until closed.
+     *
+     * @param path
+     * @param kind scheduler operation kind
+     * @param options
+     * @return file channel
+     * @throws IOException
+     */
+    private FileChannel openChannel(Path path, int kind, OpenOption... options) throws IOException
+    {
+        if (getScheduler().isUnlimited()) {
+            return FileChannel.open(path, options);
+        }
+        IoScheduler.Permit permit = getScheduler().acquire(kind);
+        try {
+            return new ScheduledFileChannel(FileChannel.open(path, options), permit);
+        } catch (IOException | RuntimeException ex) {
+            permit.close();
+            throw ex;
+        }
     }
 
     @Override
     public void createDir(Path path) throws IOException
     {
-        Files.createDirectory(path);
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
+            Files.createDirectory(path);
+        }
     }
 
     @Override
     public void createDirs(Path path) throws IOException
     {
-        Files.createDirectories(path);
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
+            Files.createDirectories(path);
+        }
     }
 
     @Override
     public boolean deleteFile(Path path) throws IOException
     {
-        return Files.deleteIfExists(path);
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
+            return Files.deleteIfExists(path);
+        }
     }
 
     @Override
     public void moveFile(Path source, Path target, boolean replace) throws IOException
     {
-        if (replace) {
-            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
-        } else {
-            Files.move(source, target);
+        try (IoScheduler.Permit permit = getScheduler().acquire(IoScheduler.METADATA)) {
+            if (replace) {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.move(source, target);
+            }
         }
     }
 
+    /**
+     * Copy file. Large regular files are transferred by the transfer engine, others are copied by the file system.
+     *
+     * @param source source path
+     * @param target target path
+     * @param replace replace or not
+     * @throws IOException
+     */
     @Override
     public void copyFile(Path source, Path target, boolean replace) throws IOException
+    {
+        try (IoScheduler.Permit read = getScheduler().acquire(IoScheduler.READ);
+                IoScheduler.Permit write = getScheduler().acquire(IoScheduler.WRITE)) {
+            BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+            if (attrs.isRegularFile() && getTransferEngine().isChannelTransfer(attrs.size())) {
+                transferFile(source, target, replace, attrs);
+            } else if (replace) {
+                Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            } else {
+                Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+    }
+
+    /**
+     * Copy file contents with the transfer engine, then copy attributes like Files.copy does.
+     *
+     * @param source
+     * @param target
+     * @param replace
+     * @param attrs source attributes
+     * @throws IOException
+     */
+    private void transferFile(Path source, Path target, boolean replace, BasicFileAttributes attrs) throws IOException
     {
         if (replace) {
-            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.deleteIfExists(target);
+        }
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                getTransferEngine().transfer(in, out, attrs.size());
+                out.close();
+            } catch (IOException ex) {
+                out.close();
+                Files.deleteIfExists(target);
+                throw ex;
+            }
+        }
+        Files.getFileAttributeView(target, BasicFileAttributeView.class).setTimes(attrs.lastModifiedTime(), attrs.lastAccessTime(), attrs.creationTime());
+        PosixFileAttributeView posix = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        if (posix != null) {
+            Files.setPosixFilePermissions(target, posix.readAttributes().permissions());
         } else {
-            Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+            DosFileAttributeView dos = Files.getFileAttributeView(source, DosFileAttributeView.class);
+            DosFileAttributeView targetDos = Files.getFileAttributeView(target, DosFileAttributeView.class);
+            if (dos != null && targetDos != null) {
+                DosFileAttributes da = dos.readAttributes();
+                targetDos.setArchive(da.isArchive());
+                targetDos.setHidden(da.isHidden());
+                targetDos.setSystem(da.isSystem());
+                targetDos.setReadOnly(da.isReadOnly());
+            }
         }
     }
 
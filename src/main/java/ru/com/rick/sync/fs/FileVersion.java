@@ -6,6 +6,7 @@
  */
 package ru.com.rick.sync.fs;
 
+import java.util.Arrays;
 import java.util.Map;
 import ru.com.rick.sync.json.JsonObject;
 import ru.com.rick.sync.json.JsonUtils;
@@ -13,6 +14,9 @@ import ru.com.rick.sync.json.JsonUtils;
 /**
  * File properties to identify a file and it's status (exists or not).
  *
+ * Stored versions are kept compact: flags are packed into a byte, hex hashes are kept as bits in two longs (plus an
+ * array for hashes longer than 128 bits) and converted to strings only when requested.
+ *
  * @author Rick
  */
 public class FileVersion
@@ -28,7 +32,10 @@ public class FileVersion
     private static final String KEY_DIR = "dir";
     private static final String KEY_MTIME = "modified";
     private static final String KEY_SIZE = "size";
-    private static final String KEY_HASH = "md5";
+    //
+    private static final byte FLAG_EXISTS = 1;
+    private static final byte FLAG_DIR = 2;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
     /**
      * The last seen time (unix, ms) of file version
@@ -41,11 +48,26 @@ public class FileVersion
     protected long since = TIME_UNKNOWN;
 
     // props
-    protected boolean exists = false;
-    protected boolean isDir = false;
     protected long mtime = TIME_UNKNOWN;
     protected long fsize = -1;
-    protected String md5 = null;
+    protected HashAlgorithm hashAlgorithm = HashAlgorithm.DEFAULT;
+    private byte flags = 0;
+
+    /**
+     * Hash length in bytes (0 if no hash, -1 if hash is not a hex string and kept in hashExtra)
+     */
+    protected byte hashLength = 0;
+
+    /**
+     * The first 128 bits of hash
+     */
+    protected long hash0 = 0;
+    protected long hash1 = 0;
+
+    /**
+     * The rest of hash bits (long[]) or a hash string which is not a hex string
+     */
+    protected Object hashExtra = null;
 
     protected FileVersion()
     {
@@ -60,11 +82,11 @@ public class FileVersion
     public FileVersion(FileVersion base)
     {
         time = base.time;
-        exists = base.exists;
-        isDir = base.isDir;
+        flags = base.flags;
         mtime = base.mtime;
         fsize = base.fsize;
-        md5 = base.md5;
+        copyHash(base);
+        hashAlgorithm = base.hashAlgorithm;
     }
 
     /**
@@ -77,11 +99,17 @@ public class FileVersion
     {
         time = getTimeFromJson(json, KEY_SYNCTIME, defaultTime);
         since = getTimeFromJson(json, KEY_SINCE, time);
-        exists = JsonUtils.getBoolean(json, KEY_EXISTS, true);
+        setExists(JsonUtils.getBoolean(json, KEY_EXISTS, true));
         mtime = getTimeFromJson(json, KEY_MTIME, TIME_UNKNOWN);
         fsize = JsonUtils.getLong(json, KEY_SIZE, -1L);
-        md5 = JsonUtils.getString(json, KEY_HASH, null);
-        isDir = JsonUtils.getBoolean(json, KEY_DIR, false);
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            if (json.containsKey(algorithm.getName())) {
+                setHash(JsonUtils.getString(json, algorithm.getName(), null));
+                hashAlgorithm = algorithm;
+                break;
+            }
+        }
+        setDir(JsonUtils.getBoolean(json, KEY_DIR, false));
     }
 
     /**
@@ -109,7 +137,7 @@ public class FileVersion
         } else {
             long vmtime = getModifiedTime();
             long vfsize = getFileSize();
-            String vhash = withHash ? getHash() : md5;
+            String vhash = withHash || hasHash() ? getHash() : null;
             if (vmtime != TIME_UNKNOWN) {
                 putTimeToJson(result, KEY_MTIME, vmtime);
             }
@@ -117,7 +145,7 @@ public class FileVersion
                 result.put(KEY_SIZE, vfsize);
             }
             if (vhash != null) {
-                result.put(KEY_HASH, vhash);
+                result.put(getHashAlgorithm().getName(), vhash);
             }
         }
         return result;
@@ -190,12 +218,113 @@ public class FileVersion
         if (!hasFileSize() && version.hasFileSize()) {
             fsize = version.getFileSize();
         }
-        if (!hasHash() && version.hasHash()) {
-            md5 = version.getHash();
+        if (!hasHash() && version.hasHash() && isHashComparable(version)) {
+            supplementHash(version);
         }
         return true;
     }
 
+    /**
+     *
+     * @param other version with hash of the same algorithm
+     * @return hash to compare with hash of other version
+     */
+    protected String getHashToCompare(FileVersion other)
+    {
+        return getHash();
+    }
+
+    /**
+     * Take hash from other version of the same file.
+     *
+     * @param version version with hash of the same algorithm
+     */
+    protected void supplementHash(FileVersion version)
+    {
+        copyHash(version);
+    }
+
+    /**
+     * Set content hash.
+     *
+     * @param hash hex string or null
+     */
+    protected void setHash(String hash)
+    {
+        hash0 = 0;
+        hash1 = 0;
+        hashExtra = null;
+        if (hash == null) {
+            hashLength = 0;
+            return;
+        }
+        int n = hash.length() / 2;
+        if (n == 0 || n > Byte.MAX_VALUE || hash.length() % 2 != 0) {
+            hashLength = -1;
+            hashExtra = hash;
+            return;
+        }
+        long[] words = new long[(n + 7) / 8];
+        for (int i = 0; i < hash.length(); ++i) {
+            int d = Character.digit(hash.charAt(i), 16);
+            if (d < 0 || Character.isUpperCase(hash.charAt(i))) {
+                hashLength = -1;
+                hashExtra = hash;
+                return;
+            }
+            words[i / 16] |= (long)d << (60 - 4 * (i % 16));
+        }
+        hashLength = (byte)n;
+        hash0 = words[0];
+        hash1 = words.length > 1 ? words[1] : 0;
+        hashExtra = words.length > 2 ? Arrays.copyOfRange(words, 2, words.length) : null;
+    }
+
+    /**
+     * Take hash of other version as is.
+     *
+     * @param version
+     */
+    protected void copyHash(FileVersion version)
+    {
+        hashLength = version.hashLength;
+        hash0 = version.hash0;
+        hash1 = version.hash1;
+        hashExtra = version.hashExtra;
+    }
+
+    /**
+     *
+     * @param other version with hash of the same algorithm
+     * @return if hashes are equal
+     */
+    protected boolean isSameHash(FileVersion other)
+    {
+        if (hashLength > 0 && hashLength == other.hashLength) {
+            return hash0 == other.hash0 && hash1 == other.hash1
+                    && (hashExtra == null ? other.hashExtra == null : other.hashExtra != null && Arrays.equals((long[])hashExtra, (long[])other.hashExtra));
+        }
+        return getHash().equals(other.getHash());
+    }
+
+    /**
+     *
+     * @param exists
+     */
+    protected void setExists(boolean exists)
+    {
+        flags = (byte)(exists ? flags | FLAG_EXISTS : flags & ~FLAG_EXISTS);
+    }
+
+    /**
+     *
+     * @param isDir
+     */
+    protected void setDir(boolean isDir)
+    {
+        flags = (byte)(isDir ? flags | FLAG_DIR : flags & ~FLAG_DIR);
+    }
+
     /**
      *
      * @return last time the data was synced (TIME_UNKNOWN for new)
@@ -220,7 +349,7 @@ public class FileVersion
      */
     public boolean exists()
     {
-        return exists;
+        return (flags & FLAG_EXISTS) != 0;
     }
 
     /**
@@ -229,7 +358,7 @@ public class FileVersion
      */
     public boolean isDir()
     {
-        return isDir;
+        return (flags & FLAG_DIR) != 0;
     }
 
     /**
@@ -252,11 +381,38 @@ public class FileVersion
 
     /**
      *
-     * @return md5 hash
+     * @return content hash
      */
     public String getHash()
     {
-        return md5;
+        if (hashLength <= 0) {
+            return (String)hashExtra;
+        }
+        char[] chars = new char[hashLength * 2];
+        for (int i = 0; i < chars.length; ++i) {
+            long word = i < 16 ? hash0 : (i < 32 ? hash1 : ((long[])hashExtra)[i / 16 - 2]);
+            chars[i] = HEX[(int)(word >>> (60 - 4 * (i % 16))) & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /**
+     *
+     * @return algorithm of content hash
+     */
+    public HashAlgorithm getHashAlgorithm()
+    {
+        return hashAlgorithm;
+    }
+
+    /**
+     *
+     * @param other
+     * @return if hashes of versions are calculated with the same algorithm
+     */
+    public boolean isHashComparable(FileVersion other)
+    {
+        return getHashAlgorithm() == other.getHashAlgorithm();
     }
 
     /**
@@ -283,7 +439,7 @@ public class FileVersion
      */
     public boolean hasHash()
     {
-        return md5 != null;
+        return hashLength != 0;
     }
 
     /**
@@ -316,9 +472,9 @@ public class FileVersion
                 return false;
             }
         }
-        if (checkHash) {
-            String hNew = getHash();
+        if (checkHash && isHashComparable(other)) {
             String hOld = other.getHash();
+            String hNew = hOld != null ? getHashToCompare(other) : getHash();
             if (hOld != null && !hOld.equals(hNew)) {
                 return false;
             }
@@ -353,7 +509,7 @@ public class FileVersion
      */
     public boolean isValidVersion()
     {
-        return time != TIME_UNKNOWN && (isDir || hasModifiedTime() || hasFileSize() || hasHash());
+        return time != TIME_UNKNOWN && ((flags & FLAG_DIR) != 0 || hasModifiedTime() || hasFileSize() || hasHash());
     }
 
     /**
@@ -381,7 +537,7 @@ public class FileVersion
         if (getFileSize() != other.getFileSize()) {
             return false;
         }
-        if (hasHash() && other.hasHash() && !getHash().equals(other.getHash())) {
+        if (hasHash() && other.hasHash() && isHashComparable(other) && !isSameHash(other)) {
             return false;
         }
         return true;
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Algorithms to calculate file content hash. The name of an algorithm is used as a key for the hash in file lists.
+ *
+ * @author Rick
+ */
+public enum HashAlgorithm
+{
+    MD5("md5")
+    {
+        @Override
+        public Hasher createHasher()
+        {
+            return new DigestHasher("MD5");
+        }
+    },
+    SHA256("sha256")
+    {
+        @Override
+        public Hasher createHasher()
+        {
+            return new DigestHasher("SHA-256");
+        }
+    },
+    CRC32("crc32")
+    {
+        @Override
+        public Hasher createHasher()
+        {
+            return new Crc32Hasher();
+        }
+    },
+    XXH64("xxh64")
+    {
+        @Override
+        public Hasher createHasher()
+        {
+            return new XxHash64Hasher();
+        }
+    };
+
+    /**
+     * Default algorithm (compatible with old file lists)
+     */
+    public static final HashAlgorithm DEFAULT = MD5;
+
+    /**
+     * Max size of file region mapped to memory at once
+     */
+    private static final long MAP_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Windows does not allow to replace, move or delete a file while it is mapped, and mapping lives until garbage
+     * collection
+     */
+    private static final boolean MAP_FILES = File.separatorChar != '\\';
+
+    private final String name;
+
+    private HashAlgorithm(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     *
+     * @return algorithm name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     *
+     * @return new hash calculator
+     */
+    public abstract Hasher createHasher();
+
+    /**
+     * Calculate hash of a file. Large local files are mapped to memory (except on Windows), other files are read with
+     * pooled direct buffers.
+     *
+     * @param device
+     * @param path
+     * @return hash as a hex string
+     * @throws IOException
+     */
+    public String hash(Device device, Path path) throws IOException
+    {
+        Hasher hasher = createHasher();
+        try (ReadableByteChannel channel = device.getReadChannel(path)) {
+            if (MAP_FILES && channel instanceof FileChannel && ((FileChannel)channel).size() >= TransferEngine.BUFFER_SIZE) {
+                FileChannel fc = (FileChannel)channel;
+                long size = fc.size();
+                for (long position = 0; position < size; position += MAP_SIZE) {
+                    MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+                    hasher.update(buffer);
+                }
+            } else {
+                ByteBuffer buffer = TransferEngine.acquireBuffer();
+                try {
+                    while (channel.read(buffer) >= 0) {
+                        buffer.flip();
+                        hasher.update(buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    TransferEngine.releaseBuffer(buffer);
+                }
+            }
+        }
+        return toHex(hasher.digest());
+    }
+
+    /**
+     *
+     * @param name
+     * @return algorithm or null
+     */
+    public static HashAlgorithm fromName(String name)
+    {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm.name.equalsIgnoreCase(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] toBytes(long value, int length)
+    {
+        byte[] bytes = new byte[length];
+        for (int i = length - 1; i >= 0; --i) {
+            bytes[i] = (byte)value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+
+    /**
+     * Incremental hash calculator.
+     */
+    public static interface Hasher
+    {
+        /**
+         * Consume all remaining bytes of the buffer.
+         *
+         * @param buffer
+         */
+        public void update(ByteBuffer buffer);
+
+        /**
+         *
+         * @return hash bytes
+         */
+        public byte[] digest();
+    }
+
+    private static class DigestHasher implements Hasher
+    {
+        private final MessageDigest md;
+
+        public DigestHasher(String algorithm)
+        {
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public void update(ByteBuffer buffer)
+        {
+            md.update(buffer);
+        }
+
+        @Override
+        public byte[] digest()
+        {
+            return md.digest();
+        }
+    }
+
+    private static class Crc32Hasher implements Hasher
+    {
+        private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+
+        @Override
+        public void update(ByteBuffer buffer)
+        {
+            crc.update(buffer);
+        }
+
+        @Override
+        public byte[] digest()
+        {
+            return toBytes(crc.getValue(), 4);
+        }
+    }
+
+    private static class XxHash64Hasher implements Hasher
+    {
+        private final XxHash64 xxh = new XxHash64();
+
+        @Override
+        public void update(ByteBuffer buffer)
+        {
+            xxh.update(buffer);
+        }
+
+        @Override
+        public byte[] digest()
+        {
+            return toBytes(xxh.getValue(), 8);
+        }
+    }
+}
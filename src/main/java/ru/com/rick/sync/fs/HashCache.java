@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.fs;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import ru.com.rick.sync.json.JsonObject;
+import ru.com.rick.sync.json.JsonUtils;
+
+/**
+ * Cache of file hashes to avoid reading unchanged files.
+ *
+ * A cached hash (from the cache itself or from a previous file list version) is reused only if all of the following
+ * is true:
+ * - the hash was calculated with the same algorithm;
+ * - file size is the same;
+ * - file modified time is the same;
+ * - file key (inode) is the same, if known for both;
+ * - the file was modified at least a second before the hash was recorded (otherwise the file could be changed
+ * again within the precision of modified time).
+ *
+ * Records not used during a run are dropped on save.
+ *
+ * @author Rick
+ */
+public class HashCache
+{
+    private static final String KEY_FILES = "files";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_MTIME = "modified";
+    private static final String KEY_FILEKEY = "key";
+    private static final String KEY_TIME = "time";
+
+    private final ConcurrentHashMap<String, Record> records = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final boolean persistent;
+
+    public HashCache()
+    {
+        this(false);
+    }
+
+    /**
+     *
+     * @param persistent cache is saved to a file
+     */
+    public HashCache(boolean persistent)
+    {
+        this.persistent = persistent;
+    }
+
+    /**
+     * Cache from JSON.
+     *
+     * @param json
+     */
+    public HashCache(Map json)
+    {
+        this(true);
+        Object files = json.get(KEY_FILES);
+        if (files instanceof Map) {
+            for (Object key : ((Map)files).keySet()) {
+                Object value = ((Map)files).get(key);
+                if (value instanceof Map) {
+                    Record record = new Record((Map)value);
+                    if (record.hash != null) {
+                        record.used = false;
+                        records.put(key.toString(), record);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Export used records to JSON.
+     *
+     * @return
+     */
+    public JsonObject toJson()
+    {
+        JsonObject files = new JsonObject();
+        for (Map.Entry<String, Record> e : records.entrySet()) {
+            if (e.getValue().used) {
+                files.put(e.getKey(), e.getValue().toJson());
+            }
+        }
+        JsonObject result = new JsonObject();
+        result.put(KEY_FILES, files);
+        return result;
+    }
+
+    /**
+     * Get valid cached hash.
+     *
+     * @param path absolute path
+     * @param props current file properties
+     * @return hash or null
+     */
+    public String get(Path path, FileProperties props)
+    {
+        Record record = records.get(path.toString());
+        if (record != null && record.isValidFor(props)) {
+            record.used = true;
+            hits.incrementAndGet();
+            return record.hash;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Check hash of other version of a file (from a file list).
+     *
+     * @param path absolute path
+     * @param version other version
+     * @param props current file properties
+     * @return true if hash of other version is valid for the file
+     */
+    public boolean check(Path path, FileVersion version, FileProperties props)
+    {
+        if (isValid(version.getHash(), version.getHashAlgorithm(), version.getFileSize(), version.getModifiedTime(), version.getSyncTime(), props)) {
+            hits.incrementAndGet();
+            put(path, props, version.getHash(), version.getSyncTime());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Record calculated hash.
+     *
+     * @param path absolute path
+     * @param props file properties
+     * @param hash hash of properties' algorithm
+     */
+    public void put(Path path, FileProperties props, String hash)
+    {
+        put(path, props, hash, System.currentTimeMillis());
+    }
+
+    private void put(Path path, FileProperties props, String hash, long time)
+    {
+        if (hash != null && props.getFileSize() >= 0 && props.getModifiedTime() != FileVersion.TIME_UNKNOWN) {
+            records.put(path.toString(), new Record(props, hash, time));
+        }
+    }
+
+    /**
+     *
+     * @return cache is saved to a file (configured by list option 'hashCache')
+     */
+    public boolean isPersistent()
+    {
+        return persistent;
+    }
+
+    /**
+     *
+     * @return count of reused hashes
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     *
+     * @return count of hashes not found in cache
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     *
+     * @return count of records
+     */
+    public int size()
+    {
+        return records.size();
+    }
+
+    /**
+     * Invalidation rules, see class description.
+     *
+     * @param hash
+     * @param algorithm
+     * @param size
+     * @param mtime
+     * @param time time the hash was recorded
+     * @param props current file properties
+     * @return if hash is valid for the file
+     */
+    public static boolean isValid(String hash, HashAlgorithm algorithm, long size, long mtime, long time, FileProperties props)
+    {
+        if (hash == null || algorithm != props.getHashAlgorithm()) {
+            return false;
+        }
+        if (size < 0 || size != props.getFileSize()) {
+            return false;
+        }
+        if (mtime == FileVersion.TIME_UNKNOWN || !FileUtils.compareModifiedTimes(mtime, props.getModifiedTime(), false)) {
+            return false;
+        }
+        return time != FileVersion.TIME_UNKNOWN && mtime / 1000 < time / 1000;
+    }
+
+    /**
+     *
+     * @param props
+     * @return file key as a string or null if not supported
+     */
+    private static String getFileKey(FileProperties props)
+    {
+        BasicFileAttributes attrs = props.getAttributes();
+        Object key = attrs != null ? attrs.fileKey() : null;
+        return key != null ? key.toString() : null;
+    }
+
+    private static class Record
+    {
+        private final long size;
+        private final long mtime;
+        private final String fileKey;
+        private final long time;
+        private final HashAlgorithm algorithm;
+        private final String hash;
+        private volatile boolean used = true;
+
+        public Record(FileProperties props, String hash, long time)
+        {
+            this.size = props.getFileSize();
+            this.mtime = props.getModifiedTime();
+            this.fileKey = getFileKey(props);
+            this.time = time;
+            this.algorithm = props.getHashAlgorithm();
+            this.hash = hash;
+        }
+
+        public Record(Map json)
+        {
+            size = JsonUtils.getLong(json, KEY_SIZE, -1L);
+            mtime = JsonUtils.getLong(json, KEY_MTIME, FileVersion.TIME_UNKNOWN);
+            fileKey = JsonUtils.getString(json, KEY_FILEKEY, null);
+            time = JsonUtils.getLong(json, KEY_TIME, FileVersion.TIME_UNKNOWN);
+            HashAlgorithm alg = null;
+            String h = null;
+            for (HashAlgorithm a : HashAlgorithm.values()) {
+                if (json.containsKey(a.getName())) {
+                    alg = a;
+                    h = JsonUtils.getString(json, a.getName(), null);
+                    break;
+                }
+            }
+            algorithm = alg;
+            hash = h;
+        }
+
+        public boolean isValidFor(FileProperties props)
+        {
+            if (!isValid(hash, algorithm, size, mtime, time, props)) {
+                return false;
+            }
+            if (fileKey != null) {
+                String key = getFileKey(props);
+                return key == null || key.equals(fileKey);
+            }
+            return true;
+        }
+
+        public JsonObject toJson()
+        {
+            JsonObject result = new JsonObject();
+            result.put(KEY_SIZE, size);
+            result.put(KEY_MTIME, mtime);
+            if (fileKey != null) {
+                result.put(KEY_FILEKEY, fileKey);
+            }
+            result.put(KEY_TIME, time);
+            result.put(algorithm.getName(), hash);
+            return result;
+        }
+    }
+}
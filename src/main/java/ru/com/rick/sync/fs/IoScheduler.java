@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.fs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import ru.com.rick.sync.json.JsonUtils;
+
+/**
+ * Limits concurrent operations on one physical device. Reads, writes and metadata operations (listing, attributes,
+ * creating, moving and deleting files) have separate limits, waiting operations are served in order of arrival.
+ *
+ * A read or write permit is held while a file is open. Permits held by a thread are tracked by scheduler and kind. A
+ * thread waits for a permit only in a fixed global order (by kind, then by scheduler), so threads holding permits
+ * never wait for each other in a cycle. A permit of a kind already held by the thread, or one out of order, is taken
+ * if available and otherwise the operation goes on under the permits the thread already holds.
+ *
+ * So the limits are advisory for nested operations: the first operation of a thread always waits for a permit, and
+ * only a thread holding a permit of the same or a later order may go on without one. Operations of a kind on a
+ * scheduler never exceed the limit plus the count of nested operations run by threads holding such permits.
+ *
+ * Schedulers are shared by devices of the same group (see Groups), one set of groups is used by a controller.
+ *
+ * @author Rick
+ */
+public class IoScheduler
+{
+    public static final int READ = 0;
+    public static final int WRITE = 1;
+    public static final int METADATA = 2;
+
+    private static final AtomicInteger ids = new AtomicInteger();
+    private static final ThreadLocal<ArrayList<Permit>> held = ThreadLocal.withInitial(ArrayList::new);
+
+    /**
+     * Scheduler without limits
+     */
+    public static final IoScheduler UNLIMITED = new IoScheduler(0, 0, 0);
+
+    private final int id = ids.incrementAndGet();
+    private final int[] limits = new int[3];
+    private final Semaphore[] semaphores = new Semaphore[3];
+
+    /**
+     *
+     * @param maxReads max files open for reading, 0 for no limit
+     * @param maxWrites max files open for writing, 0 for no limit
+     * @param maxMetadata max concurrent metadata operations, 0 for no limit
+     */
+    public IoScheduler(int maxReads, int maxWrites, int maxMetadata)
+    {
+        if (!merge(maxReads, maxWrites, maxMetadata)) {
+            throw new IllegalArgumentException("Invalid I/O limits");
+        }
+    }
+
+    /**
+     * Set limits not set yet. Done while devices are configured, before any operation.
+     *
+     * @param maxReads max files open for reading, 0 for no limit
+     * @param maxWrites max files open for writing, 0 for no limit
+     * @param maxMetadata max concurrent metadata operations, 0 for no limit
+     * @return false if a limit is negative or conflicts with one already set
+     */
+    private synchronized boolean merge(int maxReads, int maxWrites, int maxMetadata)
+    {
+        int[] values = {maxReads, maxWrites, maxMetadata};
+        for (int kind = 0; kind < values.length; ++kind) {
+            if (values[kind] < 0 || values[kind] > 0 && limits[kind] > 0 && values[kind] != limits[kind]) {
+                return false;
+            }
+        }
+        for (int kind = 0; kind < values.length; ++kind) {
+            if (values[kind] > 0 && limits[kind] == 0) {
+                limits[kind] = values[kind];
+                semaphores[kind] = new Semaphore(values[kind], true);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Schedulers of device groups. A device configured without a group belongs to the group of its file store, so
+     * devices on one disk share limits. Devices of a group may set different limits, but not conflicting ones.
+     */
+    public static class Groups
+    {
+        private final HashMap<String, IoScheduler> groups = new HashMap<>();
+
+        /**
+         * Get scheduler from JSON configuration: "reads", "writes", "metadata" limits and "group" name.
+         *
+         * @param json configuration or null for no limits
+         * @param defaultGroup group name if not configured or null
+         * @return scheduler, shared by all devices of a group
+         */
+        public synchronized IoScheduler get(Map json, String defaultGroup)
+        {
+            int reads = json != null ? JsonUtils.getInteger(json, "reads", 0) : 0;
+            int writes = json != null ? JsonUtils.getInteger(json, "writes", 0) : 0;
+            int metadata = json != null ? JsonUtils.getInteger(json, "metadata", 0) : 0;
+            String group = json != null ? JsonUtils.getString(json, "group", defaultGroup) : defaultGroup;
+            IoScheduler scheduler;
+            if (group != null) {
+                scheduler = groups.computeIfAbsent(group, x -> new IoScheduler(0, 0, 0));
+            } else if (json != null) {
+                scheduler = new IoScheduler(0, 0, 0);
+            } else {
+                return UNLIMITED;
+            }
+            if (!scheduler.merge(reads, writes, metadata)) {
+                throw new IllegalArgumentException("Invalid value for JSON configuration option 'io'");
+            }
+            return scheduler;
+        }
+    }
+
+    /**
+     *
+     * @return true if no operations are limited
+     */
+    public boolean isUnlimited()
+    {
+        return semaphores[READ] == null && semaphores[WRITE] == null && semaphores[METADATA] == null;
+    }
+
+    /**
+     * Wait for a permit for an operation.
+     *
+     * @param kind READ, WRITE or METADATA
+     * @return permit to be closed when the operation is done
+     */
+    public Permit acquire(int kind)
+    {
+        Semaphore semaphore = semaphores[kind];
+        if (semaphore == null) {
+            return Permit.NONE;
+        }
+        ArrayList<Permit> permits = held.get();
+        boolean wait = true;
+        synchronized (permits) {
+            for (Permit permit : permits) {
+                if (permit.compareTo(this, kind) >= 0) {
+                    wait = false;
+                    break;
+                }
+            }
+        }
+        Permit permit;
+        if (wait) {
+            semaphore.acquireUninterruptibly();
+            permit = new Permit(this, kind, semaphore, permits);
+        } else {
+            permit = new Permit(this, kind, semaphore.tryAcquire() ? semaphore : null, permits);
+        }
+        synchronized (permits) {
+            permits.add(permit);
+        }
+        return permit;
+    }
+
+    /**
+     * Permit for one operation.
+     */
+    public static class Permit implements AutoCloseable
+    {
+        private static final Permit NONE = new Permit(null, 0, null, null);
+
+        private final IoScheduler scheduler;
+        private final int kind;
+        private final Semaphore semaphore;
+        private final ArrayList<Permit> owner;
+        private boolean released = false;
+
+        private Permit(IoScheduler scheduler, int kind, Semaphore semaphore, ArrayList<Permit> owner)
+        {
+            this.scheduler = scheduler;
+            this.kind = kind;
+            this.semaphore = semaphore;
+            this.owner = owner;
+        }
+
+        /**
+         *
+         * @param scheduler
+         * @param kind
+         * @return order of this permit relative to a permit of the scheduler and kind
+         */
+        private int compareTo(IoScheduler scheduler, int kind)
+        {
+            if (this.kind != kind) {
+                return this.kind < kind ? -1 : 1;
+            }
+            return Integer.compare(this.scheduler.id, scheduler.id);
+        }
+
+        /**
+         * Release the permit, repeated calls are ignored.
+         */
+        @Override
+        public synchronized void close()
+        {
+            if (!released && owner != null) {
+                released = true;
+                synchronized (owner) {
+                    owner.remove(this);
+                }
+                if (semaphore != null) {
+                    semaphore.release();
+                }
+            }
+        }
+    }
+}
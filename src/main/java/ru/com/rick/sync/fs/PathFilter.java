@@ -10,37 +10,57 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.regex.Pattern;
 
 /**
- * Class for matching subpaths against a set of parent paths.
+ * Class for matching subpaths against a set of parent paths and patterns.
+ *
+ * Paths and glob patterns (prefixed with "glob:") are compiled into a single automaton over path segments: a trie of
+ * literal segments with additional edges for glob segments ("*", "?", "[...]", "{a,b}") and for "**" (any number of
+ * segments). Patterns prefixed with "regex:" are matched against a whole relative path with '/' separators. Strings
+ * without a prefix are plain paths, even if they contain glob characters. A path matches if it or any of its parent
+ * paths matches a path or pattern.
+ *
+ * Matching can be done segment by segment (see start() and next()), so a scanner can keep the state for a directory
+ * and check its children without matching the whole path again.
  *
  * @author Rick
  */
 public class PathFilter
 {
+    private static final String GLOB_PREFIX = "glob:";
+    private static final String REGEX_PREFIX = "regex:";
+
     private final LinkedHashSet<Path> paths = new LinkedHashSet<>();
+    private final LinkedHashSet<String> patterns = new LinkedHashSet<>();
+    private final ArrayList<Path> prefixes = new ArrayList<>();
+    private final ArrayList<String> regexes = new ArrayList<>();
+    private final Node root = new Node(false);
+    private Pattern regex = null;
+    private State start = null;
 
     /**
      *
-     * @return
+     * @return count of paths and patterns
      */
     public int size()
     {
-        return paths.size();
+        return paths.size() + patterns.size();
     }
 
     /**
      *
-     * @param array
+     * @param array paths or patterns
      * @param device
-     * @return
+     * @return count of added paths and patterns
      */
     public int addPaths(String[] array, Device device)
     {
         int c = 0;
         for (String s : array) {
-            if (addPath(device.path(s))) {
+            if (isPattern(s) ? addPattern(s, device) : addPath(device.path(s))) {
                 c++;
             }
         }
@@ -50,12 +70,77 @@ public class PathFilter
     /**
      *
      * @param path
-     * @return
+     * @return if path was added
      */
-    public boolean addPath(Path path)
+    public synchronized boolean addPath(Path path)
     {
         Path np = path.normalize();
-        return paths.add(np);
+        if (!paths.add(np)) {
+            return false;
+        }
+        Node node = root;
+        for (Path segment : np) {
+            if (!segment.toString().isEmpty()) {
+                node = node.literal(segment);
+            }
+        }
+        if (node != root) {
+            node.terminal = true;
+        }
+        start = null;
+        return true;
+    }
+
+    /**
+     * Add a glob pattern prefixed with "glob:" or a regular expression prefixed with "regex:", other strings are
+     * added as plain paths.
+     *
+     * @param pattern
+     * @param device
+     * @return if pattern was added
+     */
+    public synchronized boolean addPattern(String pattern, Device device)
+    {
+        if (!isPattern(pattern)) {
+            return addPath(device.path(pattern));
+        }
+        if (!patterns.add(pattern)) {
+            return false;
+        }
+        if (pattern.startsWith(REGEX_PREFIX)) {
+            regexes.add("(?:" + pattern.substring(REGEX_PREFIX.length()) + ")");
+            regex = Pattern.compile(String.join("|", regexes));
+            prefixes.add(null);
+        } else {
+            String glob = pattern.substring(GLOB_PREFIX.length());
+            Path prefix = null;
+            boolean literal = true;
+            Node node = root;
+            for (String segment : glob.split("[/\\\\]+")) {
+                if (segment.isEmpty() || segment.equals(".")) {
+                    continue;
+                }
+                if (segment.equals("**")) {
+                    node = node.anyDepth();
+                    literal = false;
+                } else if (isGlob(segment)) {
+                    node = node.glob(segment);
+                    literal = false;
+                } else {
+                    Path p = device.path(segment);
+                    node = node.literal(p);
+                    if (literal) {
+                        prefix = prefix != null ? prefix.resolve(p) : p;
+                    }
+                }
+            }
+            if (node != root) {
+                node.terminal = true;
+            }
+            prefixes.add(prefix);
+        }
+        start = null;
+        return true;
     }
 
     /**
@@ -75,22 +160,51 @@ public class PathFilter
      */
     public boolean containsPath(Path path)
     {
-        Path np = path.normalize();
-        for (Path p : paths) {
-            if (np.startsWith(p)) {
-                return true;
-            }
-        }
-        return false;
+        return match(path.normalize()).isMatched();
+    }
+
+    /**
+     *
+     * @param node interned relative path
+     * @return if contains a path or a subpath
+     */
+    public boolean containsPath(PathTrie.Node node)
+    {
+        return getState(node).isMatched();
     }
 
     /**
      *
-     * @return minimal paths collection to represent this set (extra subpaths removed).
+     * @param node interned relative path
+     * @return if path or any of its subpaths can match a pattern
+     */
+    public boolean mayContainPath(PathTrie.Node node)
+    {
+        return mayContainPath(getState(node));
+    }
+
+    /**
+     *
+     * @return true if every path and pattern starts with a literal path (see getReducedPathCollection)
+     */
+    public boolean hasLiteralPrefixes()
+    {
+        return !prefixes.contains(null);
+    }
+
+    /**
+     *
+     * @return minimal paths collection to represent this set (extra subpaths removed), patterns are represented by
+     * their literal prefixes
      */
     public Collection<Path> getReducedPathCollection()
     {
         ArrayList<Path> list = new ArrayList<>(paths);
+        for (Path prefix : prefixes) {
+            if (prefix != null) {
+                list.add(prefix);
+            }
+        }
         ArrayList<Path> result = new ArrayList<>();
         Collections.sort(list);
         for (Path np : list) {
@@ -108,4 +222,329 @@ public class PathFilter
         return result;
     }
 
+    /**
+     *
+     * @return matching state of the empty path
+     */
+    public synchronized State start()
+    {
+        if (start == null) {
+            ArrayList<Node> nodes = new ArrayList<>();
+            root.addTo(nodes);
+            start = new State(nodes.toArray(new Node[nodes.size()]), isTerminal(nodes), regex != null ? "" : null);
+        }
+        return start;
+    }
+
+    /**
+     *
+     * @param state matching state of a parent path
+     * @param name child path segment
+     * @return matching state of a child path
+     */
+    public State next(State state, Path name)
+    {
+        if (state.matched || !state.isAlive()) {
+            return state;
+        }
+        String s = name.toString();
+        ArrayList<Node> nodes = step(state, name, s);
+        String path = null;
+        boolean matched = isTerminal(nodes);
+        if (state.path != null) {
+            path = state.path.isEmpty() ? s : state.path + "/" + s;
+            matched = matched || regex.matcher(path).matches();
+        }
+        return new State(nodes.toArray(new Node[nodes.size()]), matched, path);
+    }
+
+    /**
+     * Advance a state kept for a directory to its child. Regex patterns are matched against the cached path string of
+     * the node.
+     *
+     * @param state matching state of the parent path
+     * @param node interned child path
+     * @return matching state of the child path
+     */
+    public State next(State state, PathTrie.Node node)
+    {
+        if (state.matched || !state.isAlive()) {
+            return state;
+        }
+        String s = node.getName();
+        ArrayList<Node> nodes = step(state, node.toPath().getFileName(), s);
+        String path = null;
+        boolean matched = isTerminal(nodes);
+        if (state.path != null) {
+            path = node.toString();
+            matched = matched || regex.matcher(path).matches();
+        }
+        return new State(nodes.toArray(new Node[nodes.size()]), matched, path);
+    }
+
+    /**
+     * Get matching state of an interned path, advancing states of its parent nodes.
+     *
+     * @param node interned relative path
+     * @return matching state
+     */
+    public State getState(PathTrie.Node node)
+    {
+        if (node.getDepth() == 0) {
+            return start();
+        } else if (node.getParent() == null) {
+            return match(node.toPath().normalize());
+        }
+        return next(getState(node.getParent()), node);
+    }
+
+    /**
+     *
+     * @param state matching state of a path
+     * @return if the path or any of its subpaths can match a pattern
+     */
+    public boolean mayContainPath(State state)
+    {
+        return !patterns.isEmpty() && state.isAlive();
+    }
+
+    /**
+     *
+     * @param state matching state of a parent path
+     * @param name child path segment
+     * @param s child path segment string
+     * @return automaton nodes of a child path
+     */
+    private ArrayList<Node> step(State state, Path name, String s)
+    {
+        ArrayList<Node> nodes = new ArrayList<>();
+        for (Node node : state.nodes) {
+            if (node.any) {
+                node.addTo(nodes);
+            }
+            if (node.literals != null) {
+                Node child = node.literals.get(name);
+                if (child != null) {
+                    child.addTo(nodes);
+                }
+            }
+            if (node.globs != null) {
+                for (int i = 0; i < node.globs.size(); ++i) {
+                    if (node.globs.get(i).matcher(s).matches()) {
+                        node.globNodes.get(i).addTo(nodes);
+                    }
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     *
+     * @param path normalized relative path
+     * @return matching state
+     */
+    private State match(Path path)
+    {
+        State state = start();
+        for (Path segment : path) {
+            if (state.matched || !state.isAlive()) {
+                break;
+            }
+            if (!segment.toString().isEmpty()) {
+                state = next(state, segment);
+            }
+        }
+        return state;
+    }
+
+    /**
+     *
+     * @param segment
+     * @return true if path segment contains glob special characters
+     */
+    private static boolean isGlob(String segment)
+    {
+        for (int i = 0; i < segment.length(); ++i) {
+            switch (segment.charAt(i)) {
+                case '*':
+                case '?':
+                case '[':
+                case '{':
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @param s
+     * @return true if string is a glob or regex pattern rather than a path
+     */
+    private static boolean isPattern(String s)
+    {
+        return s.startsWith(GLOB_PREFIX) || s.startsWith(REGEX_PREFIX);
+    }
+
+    /**
+     *
+     * @param glob path segment glob
+     * @return compiled pattern
+     */
+    private static Pattern compileGlob(String glob)
+    {
+        StringBuilder sb = new StringBuilder();
+        boolean group = false;
+        for (int i = 0; i < glob.length(); ++i) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    sb.append(".*");
+                    break;
+                case '?':
+                    sb.append('.');
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end < 0) {
+                        sb.append("\\[");
+                    } else {
+                        String set = glob.substring(i + 1, end);
+                        sb.append('[');
+                        if (set.startsWith("!")) {
+                            sb.append('^');
+                            set = set.substring(1);
+                        }
+                        sb.append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                        i = end;
+                    }
+                    break;
+                case '{':
+                    sb.append("(?:");
+                    group = true;
+                    break;
+                case '}':
+                    sb.append(group ? ")" : "\\}");
+                    group = false;
+                    break;
+                case ',':
+                    sb.append(group ? "|" : ",");
+                    break;
+                default:
+                    sb.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(sb.toString());
+    }
+
+    /**
+     *
+     * @param nodes
+     * @return true if any node is an end of a path or pattern
+     */
+    private static boolean isTerminal(ArrayList<Node> nodes)
+    {
+        for (Node node : nodes) {
+            if (node.terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Matching state of a path.
+     */
+    public static final class State
+    {
+        private final Node[] nodes;
+        private final boolean matched;
+        private final String path;
+
+        private State(Node[] nodes, boolean matched, String path)
+        {
+            this.nodes = nodes;
+            this.matched = matched;
+            this.path = path;
+        }
+
+        /**
+         *
+         * @return if path or any of its parent paths matches
+         */
+        public boolean isMatched()
+        {
+            return matched;
+        }
+
+        /**
+         *
+         * @return if path or any of its subpaths can match
+         */
+        public boolean isAlive()
+        {
+            return matched || nodes.length > 0 || path != null;
+        }
+    }
+
+    /**
+     * State of the automaton.
+     */
+    private static class Node
+    {
+        private final boolean any;
+        private HashMap<Path, Node> literals = null;
+        private ArrayList<Pattern> globs = null;
+        private ArrayList<Node> globNodes = null;
+        private Node anyDepth = null;
+        private boolean terminal = false;
+
+        public Node(boolean any)
+        {
+            this.any = any;
+        }
+
+        public Node literal(Path segment)
+        {
+            if (literals == null) {
+                literals = new HashMap<>();
+            }
+            return literals.computeIfAbsent(segment, x -> new Node(false));
+        }
+
+        public Node glob(String segment)
+        {
+            if (globs == null) {
+                globs = new ArrayList<>();
+                globNodes = new ArrayList<>();
+            }
+            globs.add(compileGlob(segment));
+            globNodes.add(new Node(false));
+            return globNodes.get(globNodes.size() - 1);
+        }
+
+        public Node anyDepth()
+        {
+            if (anyDepth == null) {
+                anyDepth = new Node(true);
+            }
+            return anyDepth;
+        }
+
+        /**
+         * Add this node and nodes reachable without consuming a segment.
+         *
+         * @param nodes
+         */
+        public void addTo(ArrayList<Node> nodes)
+        {
+            if (!nodes.contains(this)) {
+                nodes.add(this);
+                if (anyDepth != null) {
+                    anyDepth.addTo(nodes);
+                }
+            }
+        }
+    }
 }
@@ -46,13 +46,27 @@ public class PathOptions extends JsonOptions
 
     /**
      *
-     * @return use file hash (md5) to identify a file
+     * @return use file hash to identify a file
      */
     public boolean useHash()
     {
         return getBooleanOption("useHash", true);
     }
 
+    /**
+     *
+     * @return algorithm for file hash
+     */
+    public HashAlgorithm getHashAlgorithm()
+    {
+        String name = getStringOption("hashAlgorithm", HashAlgorithm.DEFAULT.getName());
+        HashAlgorithm algorithm = HashAlgorithm.fromName(name);
+        if (algorithm == null) {
+            throw new IllegalArgumentException("Invalid value for JSON configuration option 'hashAlgorithm'");
+        }
+        return algorithm;
+    }
+
     /**
      *
      * @return compare level for comparing files
@@ -88,25 +102,36 @@ public class PathOptions extends JsonOptions
     public long getCompareSizeLimit()
     {
         Object value = getOption("compareSizeLimit", "1M");
-        if (value instanceof String) {
-            String v = (String)value;
-            int len = v.length();
-            if (!v.matches("^\\d+$") && len != 0) {
-                String ch = v.substring(len - 1).toUpperCase();
-                int ix = "KMGT".indexOf(ch);
-                if (ix >= 0) {
-                    long xv = Long.valueOf(v.substring(0, len - 1));
-                    for (int i = 0; i <= ix; ++i) {
-                        xv *= 1024;
-                    }
-                    return xv;
-                }
-            }
-        }
         if (value == null || value.equals(false)) {
             return 0;
         }
-        return JsonUtils.castToLong(value);
+        return JsonUtils.castToSize(value);
+    }
+
+    /**
+     *
+     * @return count of blocks compared before comparing whole contents (0 = no sampling)
+     */
+    public int getCompareSampleBlocks()
+    {
+        int value = getIntegerOption("compareSampleBlocks", 8);
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid value for JSON configuration option 'compareSampleBlocks'");
+        }
+        return value;
+    }
+
+    /**
+     *
+     * @return size of a compared block
+     */
+    public int getCompareSampleSize()
+    {
+        long value = JsonUtils.castToSize(getOption("compareSampleSize", "64K"));
+        if (value <= 0 || value > TransferEngine.BUFFER_SIZE) {
+            throw new IllegalArgumentException("Invalid value for JSON configuration option 'compareSampleSize'");
+        }
+        return (int)value;
     }
 
     /**
@@ -135,4 +160,101 @@ public class PathOptions extends JsonOptions
     {
         return getBooleanOption("followSymLinks", true);
     }
+
+    /**
+     *
+     * @return current option values
+     */
+    public Snapshot compile()
+    {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Immutable option values, read from JSON once. Used in per-file checks instead of JSON lookups.
+     */
+    public static final class Snapshot
+    {
+        private final boolean useModifiedTime;
+        private final boolean useCreatedTime;
+        private final boolean useHash;
+        private final HashAlgorithm hashAlgorithm;
+        private final int compareLevel;
+        private final long compareSizeLimit;
+        private final int compareSampleBlocks;
+        private final int compareSampleSize;
+        private final boolean compareModifiedTime;
+        private final boolean followSymLinks;
+        private final boolean writeToSymLinks;
+
+        public Snapshot(PathOptions options)
+        {
+            useModifiedTime = options.useModifiedTime();
+            useCreatedTime = options.useCreatedTime();
+            useHash = options.useHash();
+            hashAlgorithm = options.getHashAlgorithm();
+            compareLevel = options.getCompareLevel();
+            compareSizeLimit = options.getCompareSizeLimit();
+            compareSampleBlocks = options.getCompareSampleBlocks();
+            compareSampleSize = options.getCompareSampleSize();
+            compareModifiedTime = options.compareModifiedTime();
+            followSymLinks = options.followSymLinks();
+            writeToSymLinks = options.writeToSymLinks();
+        }
+
+        public boolean useModifiedTime()
+        {
+            return useModifiedTime;
+        }
+
+        public boolean useCreatedTime()
+        {
+            return useCreatedTime;
+        }
+
+        public boolean useHash()
+        {
+            return useHash;
+        }
+
+        public HashAlgorithm getHashAlgorithm()
+        {
+            return hashAlgorithm;
+        }
+
+        public int getCompareLevel()
+        {
+            return compareLevel;
+        }
+
+        public long getCompareSizeLimit()
+        {
+            return compareSizeLimit;
+        }
+
+        public int getCompareSampleBlocks()
+        {
+            return compareSampleBlocks;
+        }
+
+        public int getCompareSampleSize()
+        {
+            return compareSampleSize;
+        }
+
+        public boolean compareModifiedTime()
+        {
+            return compareModifiedTime;
+        }
+
+        public boolean followSymLinks()
+        {
+            return followSymLinks;
+        }
+
+        public boolean writeToSymLinks()
+        {
+            return writeToSymLinks;
+        }
+    }
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.fs;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/**
+ * Dictionary of interned relative paths.
+ *
+ * Every relative path is represented by a single node with a link to its parent node, so equal paths share one
+ * node and can be compared by identity. The Path form is built from the parent's one on first use and kept, the
+ * string form (used as a file list key) is kept only by directory nodes, so a file name string costs a single
+ * concatenation with the cached parent string and no string is kept for each file.
+ *
+ * @author Rick
+ */
+public class PathTrie
+{
+    private final Node root = new Node(null, null, 0);
+
+    /**
+     * Get the node of a relative path, add it if not exists.
+     *
+     * @param rpath relative path
+     * @return node
+     */
+    public synchronized Node intern(Path rpath)
+    {
+        if (root.path == null) {
+            root.path = rpath.getFileSystem().getPath("");
+        }
+        Node node = root;
+        int count = rpath.getNameCount();
+        if (count == 1 && rpath.getFileName().toString().isEmpty()) {
+            return root;
+        }
+        for (int i = 0; i < count; ++i) {
+            node = node.child(rpath.getName(i).toString());
+        }
+        return node;
+    }
+
+    /**
+     * Get the node of a relative path, add it if not exists.
+     *
+     * @param parent node of the parent path or null if unknown
+     * @param rpath relative path
+     * @return node
+     */
+    public synchronized Node intern(Node parent, Path rpath)
+    {
+        if (parent == null || parent.trie() != root || parent.depth + 1 != rpath.getNameCount()) {
+            return intern(rpath);
+        }
+        return parent.child(rpath.getFileName().toString());
+    }
+
+    /**
+     *
+     * @param rpath relative path
+     * @return node not added to any dictionary or null for null path
+     */
+    public static Node detached(Path rpath)
+    {
+        if (rpath == null) {
+            return null;
+        }
+        Path name = rpath.getFileName();
+        Node node = new Node(null, name != null ? name.toString() : null, rpath.getNameCount());
+        node.path = rpath;
+        return node;
+    }
+
+    /**
+     * Interned relative path.
+     */
+    public static final class Node
+    {
+        private final Node parent;
+        private final String name;
+        private final int depth;
+        private HashMap<String, Node> children = null;
+        private volatile Path path = null;
+        private volatile String string = null;
+
+        private Node(Node parent, String name, int depth)
+        {
+            this.parent = parent;
+            this.name = name;
+            this.depth = depth;
+        }
+
+        /**
+         *
+         * @return parent node or null for empty path
+         */
+        public Node getParent()
+        {
+            return parent;
+        }
+
+        /**
+         *
+         * @return last path segment
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         *
+         * @return number of path segments
+         */
+        public int getDepth()
+        {
+            return depth;
+        }
+
+        /**
+         *
+         * @return relative path (built on first use)
+         */
+        public Path toPath()
+        {
+            Path p = path;
+            if (p == null) {
+                p = parent.toPath().resolve(name);
+                path = p;
+            }
+            return p;
+        }
+
+        /**
+         *
+         * @return relative path with unix separators (kept by directory nodes)
+         */
+        @Override
+        public String toString()
+        {
+            String s = string;
+            if (s == null) {
+                if (parent == null) {
+                    s = path != null ? path.toString().replace('\\', '/') : "";
+                } else if (parent.parent == null) {
+                    s = name.replace('\\', '/');
+                } else {
+                    s = parent.toString() + '/' + name.replace('\\', '/');
+                }
+                if (parent == null || children != null) {
+                    string = s;
+                }
+            }
+            return s;
+        }
+
+        /**
+         *
+         * @return root node of the dictionary
+         */
+        private Node trie()
+        {
+            Node node = this;
+            while (node.parent != null) {
+                node = node.parent;
+            }
+            return node;
+        }
+
+        /**
+         *
+         * @param name segment
+         * @return child node, added if not exists
+         */
+        private Node child(String name)
+        {
+            if (children == null) {
+                children = new HashMap<>(4);
+            }
+            Node node = children.get(name);
+            if (node == null) {
+                node = new Node(this, name, depth + 1);
+                children.put(name, node);
+            }
+            return node;
+        }
+    }
+}
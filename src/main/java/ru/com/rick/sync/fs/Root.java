@@ -19,11 +19,13 @@ public class Root implements Segment
     private final Device device;
     private final Path path;
     private final PathOptions options;
+    private final PathOptions.Snapshot snapshot;
 
     public Root(Device device, Path path, PathOptions options)
     {
         this.device = device;
         this.options = options;
+        this.snapshot = options.compile();
         if (path != null) {
             this.path = device.getAbsolutePath(path.normalize());
         } else {
@@ -54,6 +56,12 @@ public class Root implements Segment
         return options;
     }
 
+    @Override
+    public final PathOptions.Snapshot getOptionsSnapshot()
+    {
+        return snapshot;
+    }
+
     @Override
     public Path getAbsolutePath(Path rpath)
     {
@@ -92,37 +100,37 @@ public class Root implements Segment
     @Override
     public boolean canUseModifiedTime()
     {
-        return options.useModifiedTime();
+        return snapshot.useModifiedTime();
     }
 
     @Override
     public boolean canUseCreatedTime()
     {
-        return options.useCreatedTime();
+        return snapshot.useCreatedTime();
     }
 
     @Override
     public boolean canCompareModifiedTime()
     {
-        return options.useModifiedTime() && options.compareModifiedTime();
+        return snapshot.useModifiedTime() && snapshot.compareModifiedTime();
     }
 
     @Override
     public boolean canUseHash()
     {
-        return options.useHash();
+        return snapshot.useHash();
     }
 
     @Override
     public boolean followSymLinks()
     {
-        return options.followSymLinks();
+        return snapshot.followSymLinks();
     }
 
     @Override
     public boolean writeToSymLinks()
     {
-        return options.writeToSymLinks();
+        return snapshot.writeToSymLinks();
     }
 
     @Override
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * File channel holding an I/O scheduler permit until closed. Transfers between file channels are done by the
+ * underlying channels, so the file system can still copy data directly.
+ *
+ * @author Rick
+ */
+class ScheduledFileChannel extends FileChannel
+{
+    private final FileChannel channel;
+    private final IoScheduler.Permit permit;
+
+    public ScheduledFileChannel(FileChannel channel, IoScheduler.Permit permit)
+    {
+        this.channel = channel;
+        this.permit = permit;
+    }
+
+    /**
+     *
+     * @param channel
+     * @return underlying channel of a scheduled channel, or the channel itself
+     */
+    private static Object unwrap(Object channel)
+    {
+        return channel instanceof ScheduledFileChannel ? ((ScheduledFileChannel)channel).channel : channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        return channel.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+    {
+        return channel.read(dsts, offset, length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException
+    {
+        return channel.write(src);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+    {
+        return channel.write(srcs, offset, length);
+    }
+
+    @Override
+    public long position() throws IOException
+    {
+        return channel.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException
+    {
+        channel.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException
+    {
+        return channel.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException
+    {
+        channel.truncate(size);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException
+    {
+        channel.force(metaData);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+    {
+        return channel.transferTo(position, count, (WritableByteChannel)unwrap(target));
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException
+    {
+        return channel.transferFrom((ReadableByteChannel)unwrap(src), position, count);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException
+    {
+        return channel.read(dst, position);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException
+    {
+        return channel.write(src, position);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException
+    {
+        return channel.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException
+    {
+        return channel.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException
+    {
+        return channel.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException
+    {
+        try {
+            channel.close();
+        } finally {
+            permit.close();
+        }
+    }
+}
@@ -33,6 +33,12 @@ public interface Segment
      */
     public PathOptions getOptions();
 
+    /**
+     *
+     * @return path options compiled once
+     */
+    public PathOptions.Snapshot getOptionsSnapshot();
+
     /**
      *
      * @param rpath relative path
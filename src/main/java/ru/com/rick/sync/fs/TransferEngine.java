@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Copies data between channels. Large files are transferred by the file system (FileChannel.transferTo or
+ * transferFrom), small files and other channels use pooled direct buffers.
+ *
+ * @author Rick
+ */
+public class TransferEngine
+{
+    /**
+     * Size of pooled buffers
+     */
+    public static final int BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Max count of buffers kept in pool
+     */
+    private static final int POOL_SIZE = 16;
+
+    /**
+     * Max bytes transferred by the file system at once
+     */
+    private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final long channelThreshold;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLongArray comparisons = new AtomicLongArray(FileComparator.Tier.values().length);
+
+    /**
+     *
+     * @param channelThreshold min file size to be transferred by the file system
+     */
+    public TransferEngine(long channelThreshold)
+    {
+        this.channelThreshold = channelThreshold;
+    }
+
+    public TransferEngine()
+    {
+        this(BUFFER_SIZE);
+    }
+
+    /**
+     *
+     * @return direct buffer from pool
+     */
+    public static ByteBuffer acquireBuffer()
+    {
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Return buffer to pool.
+     *
+     * @param buffer buffer from acquireBuffer
+     */
+    public static void releaseBuffer(ByteBuffer buffer)
+    {
+        if (pooled.incrementAndGet() <= POOL_SIZE) {
+            pool.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     *
+     * @return min file size to be transferred by the file system
+     */
+    public long getChannelThreshold()
+    {
+        return channelThreshold;
+    }
+
+    /**
+     *
+     * @param size file size or -1 if unknown
+     * @return true if file system transfer should be used for the size
+     */
+    public boolean isChannelTransfer(long size)
+    {
+        return size >= channelThreshold;
+    }
+
+    /**
+     * Copy all data.
+     *
+     * @param in source channel
+     * @param out target channel
+     * @param size source size or -1 if unknown
+     * @return bytes copied
+     * @throws IOException
+     */
+    public long transfer(ReadableByteChannel in, WritableByteChannel out, long size) throws IOException
+    {
+        long start = System.nanoTime();
+        long count = 0;
+        try {
+            if (isChannelTransfer(size)) {
+                if (in instanceof FileChannel) {
+                    count = transferTo((FileChannel)in, out, size);
+                } else if (out instanceof FileChannel) {
+                    count = transferFrom(in, (FileChannel)out, size);
+                }
+            }
+            count += copyBuffered(in, out);
+            return count;
+        } finally {
+            bytes.addAndGet(count);
+            nanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Add statistics of a transfer done outside of this engine.
+     *
+     * @param count bytes transferred
+     * @param time time spent in ns
+     */
+    void addStatistics(long count, long time)
+    {
+        bytes.addAndGet(count);
+        nanos.addAndGet(time);
+    }
+
+    /**
+     * Count a file comparison by the tier which decided it.
+     *
+     * @param tier
+     */
+    void addComparison(FileComparator.Tier tier)
+    {
+        comparisons.incrementAndGet(tier.ordinal());
+    }
+
+    /**
+     *
+     * @param tier comparison tier
+     * @return count of file comparisons decided by the tier
+     */
+    public long getComparisons(FileComparator.Tier tier)
+    {
+        return comparisons.get(tier.ordinal());
+    }
+
+    /**
+     *
+     * @return count of all file comparisons
+     */
+    public long getComparisons()
+    {
+        long count = 0;
+        for (int i = 0; i < comparisons.length(); ++i) {
+            count += comparisons.get(i);
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @return total bytes transferred
+     */
+    public long getTransferredBytes()
+    {
+        return bytes.get();
+    }
+
+    /**
+     *
+     * @return total time spent in transfers in ms
+     */
+    public long getTransferTime()
+    {
+        return nanos.get() / 1000000;
+    }
+
+    /**
+     *
+     * @return average transfer speed, bytes per second
+     */
+    public long getBytesPerSecond()
+    {
+        long t = nanos.get();
+        return t > 0 ? (long)(bytes.get() * 1e9 / t) : 0;
+    }
+
+    /**
+     * Transfer from file until the expected size or until file system transfers nothing.
+     *
+     * @param in
+     * @param out
+     * @param size
+     * @return bytes copied
+     * @throws IOException
+     */
+    private long transferTo(FileChannel in, WritableByteChannel out, long size) throws IOException
+    {
+        long position = in.position();
+        long count = 0;
+        while (count < size) {
+            long n = in.transferTo(position + count, Math.min(CHUNK_SIZE, size - count), out);
+            if (n <= 0) {
+                break;
+            }
+            count += n;
+        }
+        in.position(position + count);
+        return count;
+    }
+
+    /**
+     * Transfer to file until the expected size or until file system transfers nothing.
+     *
+     * @param in
+     * @param out
+     * @param size
+     * @return bytes copied
+     * @throws IOException
+     */
+    private long transferFrom(ReadableByteChannel in, FileChannel out, long size) throws IOException
+    {
+        long position = out.position();
+        long count = 0;
+        while (count < size) {
+            long n = out.transferFrom(in, position + count, Math.min(CHUNK_SIZE, size - count));
+            if (n <= 0) {
+                break;
+            }
+            count += n;
+        }
+        out.position(position + count);
+        return count;
+    }
+
+    /**
+     * Copy the rest of data using pooled buffer.
+     *
+     * @param in
+     * @param out
+     * @return bytes copied
+     * @throws IOException
+     */
+    private long copyBuffered(ReadableByteChannel in, WritableByteChannel out) throws IOException
+    {
+        ByteBuffer buffer = acquireBuffer();
+        try {
+            long count = 0;
+            while (in.read(buffer) >= 0 || buffer.position() > 0) {
+                buffer.flip();
+                count += out.write(buffer);
+                buffer.compact();
+            }
+            return count;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.fs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming implementation of 64-bit xxHash (XXH64).
+ *
+ * @author Rick
+ */
+public class XxHash64
+{
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long P5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE = 32;
+
+    private final long seed;
+    private long v1;
+    private long v2;
+    private long v3;
+    private long v4;
+    private long total = 0;
+    private final byte[] mem = new byte[STRIPE];
+    private final ByteBuffer memBuffer = ByteBuffer.wrap(mem).order(ByteOrder.LITTLE_ENDIAN);
+    private int memSize = 0;
+
+    public XxHash64(long seed)
+    {
+        this.seed = seed;
+        this.v1 = seed + P1 + P2;
+        this.v2 = seed + P2;
+        this.v3 = seed;
+        this.v4 = seed - P1;
+    }
+
+    public XxHash64()
+    {
+        this(0);
+    }
+
+    /**
+     * Consume all remaining bytes of the buffer.
+     *
+     * @param buffer
+     */
+    public void update(ByteBuffer buffer)
+    {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.limit());
+        total += in.remaining();
+
+        if (memSize > 0) {
+            int n = Math.min(STRIPE - memSize, in.remaining());
+            in.get(mem, memSize, n);
+            memSize += n;
+            if (memSize < STRIPE) {
+                return;
+            }
+            processStripe(memBuffer, 0);
+            memSize = 0;
+        }
+
+        int position = in.position();
+        int limit = in.limit();
+        while (limit - position >= STRIPE) {
+            processStripe(in, position);
+            position += STRIPE;
+        }
+        in.position(position);
+        memSize = in.remaining();
+        in.get(mem, 0, memSize);
+    }
+
+    /**
+     *
+     * @param bytes
+     * @param offset
+     * @param length
+     */
+    public void update(byte[] bytes, int offset, int length)
+    {
+        update(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     *
+     * @return hash of all consumed bytes
+     */
+    public long getValue()
+    {
+        long h;
+        if (total >= STRIPE) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = seed + P5;
+        }
+        h += total;
+
+        int i = 0;
+        for (; i + 8 <= memSize; i += 8) {
+            h ^= round(0, memBuffer.getLong(i));
+            h = Long.rotateLeft(h, 27) * P1 + P4;
+        }
+        if (i + 4 <= memSize) {
+            h ^= (memBuffer.getInt(i) & 0xFFFFFFFFL) * P1;
+            h = Long.rotateLeft(h, 23) * P2 + P3;
+            i += 4;
+        }
+        for (; i < memSize; ++i) {
+            h ^= (mem[i] & 0xFFL) * P5;
+            h = Long.rotateLeft(h, 11) * P1;
+        }
+
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private void processStripe(ByteBuffer in, int position)
+    {
+        v1 = round(v1, in.getLong(position));
+        v2 = round(v2, in.getLong(position + 8));
+        v3 = round(v3, in.getLong(position + 16));
+        v4 = round(v4, in.getLong(position + 24));
+    }
+
+    private static long round(long acc, long input)
+    {
+        acc += input * P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * P1;
+    }
+
+    private static long merge(long h, long v)
+    {
+        h ^= round(0, v);
+        return h * P1 + P4;
+    }
+}
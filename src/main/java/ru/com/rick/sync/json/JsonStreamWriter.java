@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.json;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.json.simple.JSONValue;
+
+/**
+ * Writes JSON text value by value, without building the whole document in memory.
+ *
+ * @author Rick
+ */
+public class JsonStreamWriter implements Flushable
+{
+    private final Writer writer;
+    private final boolean prettyPrint;
+
+    /**
+     * Open containers: true for arrays, false for objects
+     */
+    private final ArrayList<Boolean> containers = new ArrayList<>();
+
+    /**
+     * Current container has no values yet
+     */
+    private boolean empty = true;
+
+    /**
+     *
+     * @param writer output (should be buffered)
+     * @param prettyPrint pretty print JSON
+     */
+    public JsonStreamWriter(Writer writer, boolean prettyPrint)
+    {
+        this.writer = writer;
+        this.prettyPrint = prettyPrint;
+    }
+
+    /**
+     * Start an object.
+     *
+     * @return this
+     * @throws IOException
+     */
+    public JsonStreamWriter beginObject() throws IOException
+    {
+        return begin(false, '{');
+    }
+
+    /**
+     * End current object.
+     *
+     * @return this
+     * @throws IOException
+     */
+    public JsonStreamWriter endObject() throws IOException
+    {
+        return end(false, '}');
+    }
+
+    /**
+     * Start an array.
+     *
+     * @return this
+     * @throws IOException
+     */
+    public JsonStreamWriter beginArray() throws IOException
+    {
+        return begin(true, '[');
+    }
+
+    /**
+     * End current array.
+     *
+     * @return this
+     * @throws IOException
+     */
+    public JsonStreamWriter endArray() throws IOException
+    {
+        return end(true, ']');
+    }
+
+    /**
+     * Write a key in current object. Must be followed by a value.
+     *
+     * @param key
+     * @return this
+     * @throws IOException
+     */
+    public JsonStreamWriter name(String key) throws IOException
+    {
+        if (containers.isEmpty() || containers.get(containers.size() - 1)) {
+            throw new IllegalStateException("Key outside of JSON object");
+        }
+        separate();
+        writer.write('"');
+        writer.write(JSONValue.escape(key));
+        writer.write("\":");
+        return this;
+    }
+
+    /**
+     * Write a value: object, array or primitive.
+     *
+     * @param value
+     * @return this
+     * @throws IOException
+     */
+    public JsonStreamWriter value(Object value) throws IOException
+    {
+        if (value instanceof Map) {
+            beginObject();
+            for (Object o : ((Map)value).entrySet()) {
+                Map.Entry e = (Map.Entry)o;
+                name(String.valueOf(e.getKey()));
+                value(e.getValue());
+            }
+            return endObject();
+        } else if (value instanceof List) {
+            beginArray();
+            for (Object o : (List)value) {
+                value(o);
+            }
+            return endArray();
+        } else {
+            beforeValue();
+            writer.write(JSONValue.toJSONString(value));
+            return this;
+        }
+    }
+
+    /**
+     * Write a key and a value in current object.
+     *
+     * @param key
+     * @param value
+     * @return this
+     * @throws IOException
+     */
+    public JsonStreamWriter value(String key, Object value) throws IOException
+    {
+        return name(key).value(value);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        writer.flush();
+    }
+
+    private JsonStreamWriter begin(boolean array, char c) throws IOException
+    {
+        beforeValue();
+        writer.write(c);
+        containers.add(array);
+        empty = true;
+        return this;
+    }
+
+    private JsonStreamWriter end(boolean array, char c) throws IOException
+    {
+        int last = containers.size() - 1;
+        if (last < 0 || containers.get(last) != array) {
+            throw new IllegalStateException("Unbalanced JSON " + (array ? "array" : "object"));
+        }
+        containers.remove(last);
+        if (!empty) {
+            indent();
+        }
+        writer.write(c);
+        empty = false;
+        return this;
+    }
+
+    /**
+     * Separate array elements, object values are separated by keys.
+     *
+     * @throws IOException
+     */
+    private void beforeValue() throws IOException
+    {
+        if (!containers.isEmpty() && containers.get(containers.size() - 1)) {
+            separate();
+        }
+    }
+
+    private void separate() throws IOException
+    {
+        if (!empty) {
+            writer.write(',');
+        }
+        empty = false;
+        indent();
+    }
+
+    private void indent() throws IOException
+    {
+        if (prettyPrint) {
+            writer.write('\n');
+            for (int i = 0; i < containers.size(); ++i) {
+                writer.write("  ");
+            }
+        }
+    }
+}
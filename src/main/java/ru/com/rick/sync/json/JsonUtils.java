@@ -153,6 +153,32 @@ public abstract class JsonUtils
         }
     }
 
+    /**
+     * Cast to size in bytes, strings may have K, M, G or T suffix.
+     *
+     * @param val
+     * @return
+     */
+    public static Long castToSize(Object val)
+    {
+        if (val instanceof String) {
+            String v = (String)val;
+            int len = v.length();
+            if (!v.matches("^\\d+$") && len != 0) {
+                String ch = v.substring(len - 1).toUpperCase();
+                int ix = "KMGT".indexOf(ch);
+                if (ix >= 0) {
+                    long xv = Long.valueOf(v.substring(0, len - 1));
+                    for (int i = 0; i <= ix; ++i) {
+                        xv *= 1024;
+                    }
+                    return xv;
+                }
+            }
+        }
+        return castToLong(val);
+    }
+
     /**
      *
      * @param val
@@ -254,6 +280,18 @@ public abstract class JsonUtils
         return json.containsKey(key) ? castToLong(json.get(key)) : defval;
     }
 
+    /**
+     *
+     * @param json
+     * @param key
+     * @param defval
+     * @return size in bytes
+     */
+    public static Long getSize(Map json, String key, Long defval)
+    {
+        return json.containsKey(key) ? castToSize(json.get(key)) : defval;
+    }
+
     /**
      *
      * @param json
@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.list;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.json.simple.JSONAware;
+import ru.com.rick.sync.fs.HashAlgorithm;
+import ru.com.rick.sync.json.JsonArray;
+import ru.com.rick.sync.json.JsonObject;
+
+/**
+ * File list in binary form.
+ *
+ * The file starts with a magic string and a version, followed by a single value. Strings (object keys, paths) are
+ * split by '/' into segments, every segment is written once and then referenced by its number in the dictionary of
+ * read segments. Integers (times, sizes) are zigzag varints, hashes are raw bytes. Entries of "files" are written and
+ * read one by one, the object is terminated by an empty key (zero segments) instead of a leading size (version 2).
+ *
+ * @author Rick
+ */
+public class BinaryFileListFormat extends FileListFormat
+{
+    public static final String NAME = "binary";
+
+    private static final byte[] MAGIC = "MSBL".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+
+    private static final int T_NULL = 0;
+    private static final int T_FALSE = 1;
+    private static final int T_TRUE = 2;
+    private static final int T_INTEGER = 3;
+    private static final int T_DOUBLE = 4;
+    private static final int T_STRING = 5;
+    private static final int T_HASH = 6;
+    private static final int T_OBJECT = 7;
+    private static final int T_ARRAY = 8;
+    private static final int T_ENTRIES = 9;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    /**
+     * Check if a stream contains a binary file list, without consuming it.
+     *
+     * @param in
+     * @return true for binary file list
+     * @throws IOException
+     */
+    public static boolean detect(BufferedInputStream in) throws IOException
+    {
+        in.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) {
+                if (in.read() != (b & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    @Override
+    public Object read(InputStream in) throws IOException
+    {
+        return new Reader(readHeader(in)).readValue();
+    }
+
+    @Override
+    FileList readList(InputStream in, FileListReader reader) throws IOException
+    {
+        Reader r = new Reader(readHeader(in));
+        if (!r.readObjectStart()) {
+            return reader.finish(r.readValue());
+        }
+        JsonObject json = new JsonObject();
+        for (String key = r.readKey(); key != null; key = r.readKey()) {
+            if ("files".equals(key) && r.readObjectStart()) {
+                reader.header(json);
+                for (String path = r.readKey(); path != null; path = r.readKey()) {
+                    reader.entry(path, r.readValue());
+                }
+                json.put(key, new JsonObject());
+            } else {
+                json.put(key, r.readValue());
+            }
+        }
+        return reader.finish(json);
+    }
+
+    @Override
+    public void write(JSONAware data, OutputStream out) throws IOException
+    {
+        DataOutputStream dout = writeHeader(out);
+        new Writer(dout).writeValue(data, false);
+        dout.flush();
+    }
+
+    @Override
+    public void writeList(Map<String, Object> header, Consumer<BiConsumer<String, JsonObject>> entries, OutputStream out) throws IOException
+    {
+        DataOutputStream dout = writeHeader(out);
+        Writer writer = new Writer(dout);
+        writer.writeObjectStart();
+        for (Map.Entry<String, Object> e : header.entrySet()) {
+            writer.writeEntry(e.getKey(), e.getValue());
+        }
+        writer.writeKey("files");
+        writer.writeObjectStart();
+        try {
+            entries.accept((path, json) -> {
+                try {
+                    writer.writeEntry(path, json);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        writer.writeObjectEnd();
+        writer.writeObjectEnd();
+        dout.flush();
+    }
+
+    /**
+     * Check magic string and version.
+     *
+     * @param in
+     * @return stream positioned at the value
+     * @throws IOException
+     */
+    private static DataInputStream readHeader(InputStream in) throws IOException
+    {
+        DataInputStream din = new DataInputStream(new BufferedInputStream(in, 65536));
+        for (byte b : MAGIC) {
+            if (din.readByte() != b) {
+                throw new IOException("Not a binary file list");
+            }
+        }
+        int version = din.readUnsignedByte();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported binary file list version " + version);
+        }
+        return din;
+    }
+
+    /**
+     * Write magic string and version.
+     *
+     * @param out
+     * @return stream to write the value to
+     * @throws IOException
+     */
+    private static DataOutputStream writeHeader(OutputStream out) throws IOException
+    {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out, 65536));
+        dout.write(MAGIC);
+        dout.writeByte(VERSION);
+        return dout;
+    }
+
+    /**
+     *
+     * @param key
+     * @return true if key is a hash algorithm name
+     */
+    private static boolean isHashKey(Object key)
+    {
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            if (algorithm.getName().equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @param s
+     * @return true if string is lowercase hex of whole bytes
+     */
+    private static boolean isHex(String s)
+    {
+        if (s.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static class Writer
+    {
+        private final DataOutputStream out;
+        private final HashMap<String, Integer> segments = new HashMap<>();
+
+        public Writer(DataOutputStream out)
+        {
+            this.out = out;
+        }
+
+        public void writeValue(Object value, boolean hash) throws IOException
+        {
+            if (value == null) {
+                out.writeByte(T_NULL);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean)value ? T_TRUE : T_FALSE);
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                out.writeByte(T_INTEGER);
+                long v = ((Number)value).longValue();
+                writeVarLong((v << 1) ^ (v >> 63));
+            } else if (value instanceof Number) {
+                out.writeByte(T_DOUBLE);
+                out.writeDouble(((Number)value).doubleValue());
+            } else if (value instanceof String && hash && isHex((String)value)) {
+                String s = (String)value;
+                out.writeByte(T_HASH);
+                writeVarLong(s.length() / 2);
+                for (int i = 0; i < s.length(); i += 2) {
+                    out.writeByte(Character.digit(s.charAt(i), 16) << 4 | Character.digit(s.charAt(i + 1), 16));
+                }
+            } else if (value instanceof String) {
+                out.writeByte(T_STRING);
+                writeString((String)value);
+            } else if (value instanceof Map) {
+                Map map = (Map)value;
+                out.writeByte(T_OBJECT);
+                writeVarLong(map.size());
+                for (Object o : map.entrySet()) {
+                    Map.Entry e = (Map.Entry)o;
+                    writeString(String.valueOf(e.getKey()));
+                    writeValue(e.getValue(), isHashKey(e.getKey()));
+                }
+            } else if (value instanceof List) {
+                List list = (List)value;
+                out.writeByte(T_ARRAY);
+                writeVarLong(list.size());
+                for (Object o : list) {
+                    writeValue(o, false);
+                }
+            } else {
+                throw new IOException("Unsupported value in file list: " + value.getClass().getName());
+            }
+        }
+
+        /**
+         * Start an object of unknown size, its entries are written by writeEntry() and terminated by
+         * writeObjectEnd().
+         *
+         * @throws IOException
+         */
+        public void writeObjectStart() throws IOException
+        {
+            out.writeByte(T_ENTRIES);
+        }
+
+        public void writeKey(String key) throws IOException
+        {
+            writeString(key);
+        }
+
+        public void writeEntry(String key, Object value) throws IOException
+        {
+            writeString(key);
+            writeValue(value, isHashKey(key));
+        }
+
+        public void writeObjectEnd() throws IOException
+        {
+            writeVarLong(0);
+        }
+
+        private void writeString(String s) throws IOException
+        {
+            String[] parts = s.split("/", -1);
+            writeVarLong(parts.length);
+            for (String part : parts) {
+                Integer id = segments.get(part);
+                if (id != null) {
+                    writeVarLong(id);
+                } else {
+                    byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+                    writeVarLong(0);
+                    writeVarLong(bytes.length);
+                    out.write(bytes);
+                    segments.put(part, segments.size() + 1);
+                }
+            }
+        }
+
+        private void writeVarLong(long v) throws IOException
+        {
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int)(v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.writeByte((int)v);
+        }
+    }
+
+    static class Reader
+    {
+        private final DataInputStream in;
+        private final ArrayList<String> segments = new ArrayList<>();
+        private final ArrayDeque<Integer> remaining = new ArrayDeque<>(); // per started object, -1 if terminated
+
+        public Reader(DataInputStream in)
+        {
+            this.in = in;
+            segments.add(null);
+        }
+
+        public Object readValue() throws IOException
+        {
+            int type = in.readUnsignedByte();
+            switch (type) {
+                case T_NULL:
+                    return null;
+                case T_FALSE:
+                    return false;
+                case T_TRUE:
+                    return true;
+                case T_INTEGER:
+                    long v = readVarLong();
+                    return (v >>> 1) ^ -(v & 1);
+                case T_DOUBLE:
+                    return in.readDouble();
+                case T_HASH:
+                    int length = readLength();
+                    StringBuilder sb = new StringBuilder(length * 2);
+                    for (int i = 0; i < length; ++i) {
+                        int b = in.readUnsignedByte();
+                        sb.append(Character.forDigit(b >> 4, 16));
+                        sb.append(Character.forDigit(b & 0xF, 16));
+                    }
+                    return sb.toString();
+                case T_STRING:
+                    return readString();
+                case T_OBJECT:
+                    int size = readLength();
+                    JsonObject object = new JsonObject();
+                    for (int i = 0; i < size; ++i) {
+                        String key = readString();
+                        object.put(key, readValue());
+                    }
+                    return object;
+                case T_ENTRIES:
+                    JsonObject entries = new JsonObject();
+                    remaining.push(-1);
+                    for (String key = readKey(); key != null; key = readKey()) {
+                        entries.put(key, readValue());
+                    }
+                    return entries;
+                case T_ARRAY:
+                    int count = readLength();
+                    JsonArray array = new JsonArray();
+                    for (int i = 0; i < count; ++i) {
+                        array.add(readValue());
+                    }
+                    return array;
+                default:
+                    throw new IOException("Invalid binary file list: unknown value type " + type);
+            }
+        }
+
+        /**
+         * Start reading an object entry by entry, if the next value is an object. Entries are read by readKey() and
+         * readValue().
+         *
+         * @return false if the next value is not an object, nothing is consumed then
+         * @throws IOException
+         */
+        public boolean readObjectStart() throws IOException
+        {
+            in.mark(1);
+            int type = in.readUnsignedByte();
+            if (type == T_ENTRIES) {
+                remaining.push(-1);
+                return true;
+            } else if (type == T_OBJECT) {
+                remaining.push(readLength());
+                return true;
+            }
+            in.reset();
+            return false;
+        }
+
+        /**
+         * Read a key of the object started by readObjectStart().
+         *
+         * @return key or null at the end of the object
+         * @throws IOException
+         */
+        public String readKey() throws IOException
+        {
+            int left = remaining.pop();
+            if (left == 0) {
+                return null;
+            } else if (left > 0) {
+                remaining.push(left - 1);
+                return readString();
+            }
+            int count = readLength();
+            if (count == 0) {
+                return null;
+            }
+            remaining.push(left);
+            return readString(count);
+        }
+
+        private String readString() throws IOException
+        {
+            return readString(readLength());
+        }
+
+        private String readString(int count) throws IOException
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < count; ++i) {
+                if (i > 0) {
+                    sb.append('/');
+                }
+                int id = readLength();
+                if (id == 0) {
+                    byte[] bytes = new byte[readLength()];
+                    in.readFully(bytes);
+                    String part = new String(bytes, StandardCharsets.UTF_8);
+                    segments.add(part);
+                    sb.append(part);
+                } else if (id < segments.size()) {
+                    sb.append(segments.get(id));
+                } else {
+                    throw new IOException("Invalid binary file list: unknown path segment " + id);
+                }
+            }
+            return sb.toString();
+        }
+
+        private int readLength() throws IOException
+        {
+            long v = readVarLong();
+            if (v < 0 || v > Integer.MAX_VALUE) {
+                throw new IOException("Invalid binary file list: invalid length " + v);
+            }
+            return (int)v;
+        }
+
+        private long readVarLong() throws IOException
+        {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                v |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Invalid binary file list: varint is too long");
+        }
+    }
+}
@@ -104,6 +104,15 @@ public class FileHistory extends FileListEntry
         return (history == null || history.isEmpty());
     }
 
+    @Override
+    public void setMaxVersions(int maxVersions)
+    {
+        this.maxVersions = maxVersions;
+        if (history != null) {
+            history.setLimit(maxVersions);
+        }
+    }
+
     @Override
     public FileVersion[] getHistoryVersions()
     {
@@ -170,6 +179,7 @@ public class FileHistory extends FileListEntry
         }
         if (history == null) {
             history = new FileVersionCollection();
+            history.setLimit(maxVersions);
         }
         return history.addVersion(ver);
     }
@@ -8,8 +8,11 @@ package ru.com.rick.sync.list;
 
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.function.BiConsumer;
 import org.apache.commons.io.FilenameUtils;
 import org.json.simple.JSONAware;
+import ru.com.rick.sync.fs.PathTrie;
+import ru.com.rick.sync.json.JsonObject;
 
 /**
  * Abstraction for file lists.
@@ -39,6 +42,18 @@ public interface FileList
         set(pathToString(path), entry, target);
     }
 
+    /**
+     * Add history for the file (replace if exists).
+     *
+     * @param path
+     * @param entry
+     * @param target
+     */
+    public default void set(PathTrie.Node path, FileHistory entry, FileListTarget target)
+    {
+        set(path.toString(), entry, target);
+    }
+
     /**
      * Add history for the file (replace if exists).
      *
@@ -82,6 +97,18 @@ public interface FileList
         add(pathToString(path), entry, target);
     }
 
+    /**
+     * Add history for the file (no not replace).
+     *
+     * @param path
+     * @param entry
+     * @param target
+     */
+    public default void add(PathTrie.Node path, FileHistory entry, FileListTarget target)
+    {
+        add(path.toString(), entry, target);
+    }
+
     /**
      * Add history for the file (no not replace).
      *
@@ -125,6 +152,18 @@ public interface FileList
         return get(pathToString(path), target);
     }
 
+    /**
+     * Get history for the file or empty history, if not in list.
+     *
+     * @param path
+     * @param target
+     * @return
+     */
+    public default FileHistory get(PathTrie.Node path, FileListTarget target)
+    {
+        return get(path.toString(), target);
+    }
+
     /**
      * Get history for the file or empty history, if not in list.
      *
@@ -179,6 +218,13 @@ public interface FileList
      */
     public Collection<String> getPaths();
 
+    /**
+     * Limit history of entries in memory to a number of the newest versions.
+     *
+     * @param maxVersions max file versions kept (less 0 = unlimited)
+     */
+    public void setMaxVersions(int maxVersions);
+
     /**
      * Generate JSON.
      *
@@ -188,6 +234,22 @@ public interface FileList
      */
     public JSONAware toJson(int maxVersions, boolean withHash);
 
+    /**
+     * Generate JSON without file entries ("files"), see toJson.
+     *
+     * @return json
+     */
+    public JsonObject toJsonHeader();
+
+    /**
+     * Generate JSON of file entries one by one, see toJson.
+     *
+     * @param maxVersions
+     * @param withHash
+     * @param action receives path and JSON of every non-empty entry
+     */
+    public void forEachJson(int maxVersions, boolean withHash, BiConsumer<String, JsonObject> action);
+
     /**
      * Generate compact JSON.
      *
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.list;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of a file list file. Data is compressed and decompressed as a stream, compressed files are detected by
+ * their first bytes on reading, so a list in any format can be compressed.
+ *
+ * @author Rick
+ */
+public enum FileListCompression
+{
+    NONE("none", null)
+    {
+        @Override
+        public OutputStream compress(OutputStream out, int level)
+        {
+            return out;
+        }
+    },
+    GZIP("gzip", ".gz")
+    {
+        @Override
+        public OutputStream compress(OutputStream out, int level) throws IOException
+        {
+            return new BufferedOutputStream(new GZIPOutputStream(out, BUFFER_SIZE)
+            {
+                {
+                    def.setLevel(level);
+                }
+            }, BUFFER_SIZE);
+        }
+    },
+    DEFLATE("deflate", ".zz")
+    {
+        @Override
+        public OutputStream compress(OutputStream out, int level)
+        {
+            Deflater deflater = new Deflater(level);
+            return new BufferedOutputStream(new DeflaterOutputStream(out, deflater, BUFFER_SIZE)
+            {
+                @Override
+                public void close() throws IOException
+                {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            }, BUFFER_SIZE);
+        }
+    };
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final String name;
+    private final String extension;
+
+    private FileListCompression(String name, String extension)
+    {
+        this.name = name;
+        this.extension = extension;
+    }
+
+    /**
+     *
+     * @return compression name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Wrap a stream to compress written data. Closing the result closes the stream.
+     *
+     * @param out
+     * @param level compression level (0-9 or -1 for default)
+     * @return compressing stream
+     * @throws IOException
+     */
+    public abstract OutputStream compress(OutputStream out, int level) throws IOException;
+
+    /**
+     * Wrap a stream to decompress data if it is compressed.
+     *
+     * @param in
+     * @return stream of decompressed data
+     * @throws IOException
+     */
+    public static BufferedInputStream decompress(InputStream in) throws IOException
+    {
+        BufferedInputStream bin = in instanceof BufferedInputStream ? (BufferedInputStream)in : new BufferedInputStream(in);
+        switch (detect(bin)) {
+            case GZIP:
+                return new BufferedInputStream(new GZIPInputStream(bin, BUFFER_SIZE), BUFFER_SIZE);
+            case DEFLATE:
+                return new BufferedInputStream(new InflaterInputStream(bin), BUFFER_SIZE);
+            default:
+                return bin;
+        }
+    }
+
+    /**
+     * Detect compression of a stream, without consuming it.
+     *
+     * @param in
+     * @return compression
+     * @throws IOException
+     */
+    public static FileListCompression detect(BufferedInputStream in) throws IOException
+    {
+        in.mark(2);
+        try {
+            int b0 = in.read();
+            int b1 = in.read();
+            if (b0 == 0x1F && b1 == 0x8B) {
+                return GZIP;
+            } else if (b0 >= 0 && b1 >= 0 && (b0 & 0x0F) == Deflater.DEFLATED && ((b0 << 8) | b1) % 31 == 0) {
+                return DEFLATE; // zlib header, JSON and binary lists never start with such bytes
+            }
+            return NONE;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     *
+     * @param name "none", "gzip" or "deflate"
+     * @return compression
+     */
+    public static FileListCompression fromName(String name)
+    {
+        for (FileListCompression c : values()) {
+            if (c.name.equals(name)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("Invalid value for JSON configuration option 'compression'");
+    }
+
+    /**
+     *
+     * @param path
+     * @return compression by file name extension
+     */
+    public static FileListCompression fromPath(Path path)
+    {
+        String fileName = path.getFileName() != null ? path.getFileName().toString() : "";
+        for (FileListCompression c : values()) {
+            if (c.extension != null && fileName.endsWith(c.extension)) {
+                return c;
+            }
+        }
+        return NONE;
+    }
+}
@@ -42,6 +42,11 @@ public abstract class FileListEntry
      */
     protected long time = FileVersion.TIME_UNKNOWN;
 
+    /**
+     * Max history versions kept (less 0 = unlimited)
+     */
+    protected int maxVersions = -1;
+
     /**
      * New record without specific info.
      *
@@ -225,6 +230,13 @@ public abstract class FileListEntry
         }
     }
 
+    /**
+     * Limit history to a number of the newest versions.
+     *
+     * @param maxVersions max versions kept (less 0 = unlimited)
+     */
+    public abstract void setMaxVersions(int maxVersions);
+
     /**
      *
      * @return history versions sorted DESC by sync time
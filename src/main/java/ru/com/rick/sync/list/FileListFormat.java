@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.list;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.json.simple.JSONAware;
+import org.json.simple.parser.ParseException;
+import ru.com.rick.sync.fs.Device;
+import ru.com.rick.sync.json.JsonObject;
+
+/**
+ * Format of a file list file. File lists are stored as JSON data (objects, arrays and values), which can be written
+ * as JSON text or in binary form. The format and compression of an existing file are detected on reading.
+ *
+ * @author Rick
+ */
+public abstract class FileListFormat
+{
+    /**
+     *
+     * @return format name
+     */
+    public abstract String getName();
+
+    /**
+     * Read JSON data.
+     *
+     * @param in
+     * @return JSON object or array
+     * @throws IOException
+     * @throws ParseException
+     */
+    public abstract Object read(InputStream in) throws IOException, ParseException;
+
+    /**
+     * Write JSON data.
+     *
+     * @param data JSON object or array
+     * @param out
+     * @throws IOException
+     */
+    public abstract void write(JSONAware data, OutputStream out) throws IOException;
+
+    /**
+     * Read a file list.
+     *
+     * @param in
+     * @param global if list is global
+     * @param defaultTime list generation time if not stored
+     * @return list or null if there is no data
+     * @throws IOException
+     * @throws ParseException
+     */
+    public FileList readList(InputStream in, boolean global, long defaultTime) throws IOException, ParseException
+    {
+        return readList(in, new FileListReader(global, defaultTime));
+    }
+
+    /**
+     * Read a file list.
+     *
+     * @param in
+     * @param reader
+     * @return list or null if there is no data
+     * @throws IOException
+     * @throws ParseException
+     */
+    FileList readList(InputStream in, FileListReader reader) throws IOException, ParseException
+    {
+        return reader.read(read(in));
+    }
+
+    /**
+     * Write a file list. See FileList::toJson.
+     *
+     * @param list
+     * @param maxVersions
+     * @param withHash
+     * @param out
+     * @throws IOException
+     */
+    public void writeList(FileList list, int maxVersions, boolean withHash, OutputStream out) throws IOException
+    {
+        writeList(list.toJsonHeader(), action -> list.forEachJson(maxVersions, withHash, action), out);
+    }
+
+    /**
+     * Write a file list.
+     *
+     * @param header top-level values except "files"
+     * @param entries generates entries of "files" (see FileList::forEachJson)
+     * @param out
+     * @throws IOException
+     */
+    public void writeList(Map<String, Object> header, Consumer<BiConsumer<String, JsonObject>> entries, OutputStream out) throws IOException
+    {
+        JsonObject json = new JsonObject(header);
+        JsonObject files = new JsonObject();
+        entries.accept(files::put);
+        json.put("files", files);
+        write(json, out);
+    }
+
+    /**
+     * Create a file list from JSON data.
+     *
+     * @param json
+     * @param global if list is global
+     * @param defaultTime list generation time if not stored
+     * @return list or null if there is no data
+     */
+    public static FileList createList(Object json, boolean global, long defaultTime)
+    {
+        if (json == null) {
+            return null;
+        } else if (global) {
+            return new GlobalFileList((Map)json, defaultTime);
+        } else if (json instanceof List) {
+            return new LocalFileList((List)json, defaultTime);
+        } else {
+            return new LocalFileList((Map)json, defaultTime);
+        }
+    }
+
+    /**
+     *
+     * @param name "json", "binary" or "indexed"
+     * @param prettyPrint pretty print JSON
+     * @return format
+     */
+    public static FileListFormat fromName(String name, boolean prettyPrint)
+    {
+        if (name == null || name.equals(JsonFileListFormat.NAME)) {
+            return new JsonFileListFormat(prettyPrint);
+        } else if (name.equals(BinaryFileListFormat.NAME)) {
+            return new BinaryFileListFormat();
+        } else if (name.equals(IndexedFileListFormat.NAME)) {
+            return new IndexedFileListFormat();
+        }
+        throw new IllegalArgumentException("Invalid value for JSON configuration option 'format'");
+    }
+
+    /**
+     * Read JSON data in any format.
+     *
+     * @param in
+     * @return JSON object or array
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static Object readAny(InputStream in) throws IOException, ParseException
+    {
+        BufferedInputStream bin = FileListCompression.decompress(in);
+        return detect(bin).read(bin);
+    }
+
+    /**
+     * Read a file list in any format.
+     *
+     * @param in
+     * @param global if list is global
+     * @param defaultTime list generation time if not stored
+     * @return list or null if there is no data
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static FileList readAnyList(InputStream in, boolean global, long defaultTime) throws IOException, ParseException
+    {
+        return readAnyList(in, new FileListReader(global, defaultTime));
+    }
+
+    /**
+     * Read a file list in any format.
+     *
+     * @param in
+     * @param reader
+     * @return list or null if there is no data
+     * @throws IOException
+     * @throws ParseException
+     */
+    static FileList readAnyList(InputStream in, FileListReader reader) throws IOException, ParseException
+    {
+        BufferedInputStream bin = FileListCompression.decompress(in);
+        return detect(bin).readList(bin, reader);
+    }
+
+    /**
+     * Open a file list file in any format. Uncompressed lists in indexed format read entries on demand, others are read
+     * at once.
+     *
+     * @param device
+     * @param path
+     * @param global if list is global
+     * @param defaultTime list generation time if not stored
+     * @return list or null if there is no data
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static FileList openList(Device device, Path path, boolean global, long defaultTime) throws IOException, ParseException
+    {
+        try (InputStream in = device.getInputStream(path)) {
+            BufferedInputStream bin = new BufferedInputStream(in);
+            if (FileListCompression.detect(bin) != FileListCompression.NONE) {
+                return readAnyList(bin, global, defaultTime);
+            }
+            FileListFormat format = detect(bin);
+            if (!(format instanceof IndexedFileListFormat)) {
+                return format.readList(bin, global, defaultTime);
+            }
+        }
+        return IndexedFileListFormat.open(device, path, global, defaultTime);
+    }
+
+    /**
+     *
+     * @param in
+     * @return format of the stream data
+     * @throws IOException
+     */
+    private static FileListFormat detect(BufferedInputStream in) throws IOException
+    {
+        if (BinaryFileListFormat.detect(in)) {
+            return new BinaryFileListFormat();
+        } else if (IndexedFileListFormat.detect(in)) {
+            return new IndexedFileListFormat();
+        } else {
+            return new JsonFileListFormat(false);
+        }
+    }
+
+    /**
+     * Convert a file list file to another format.
+     *
+     * @param source file in any format
+     * @param target target file
+     * @param format target format
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static void convert(Path source, Path target, FileListFormat format) throws IOException, ParseException
+    {
+        Object data;
+        try (InputStream in = Files.newInputStream(source)) {
+            data = readAny(in);
+        }
+        if (!(data instanceof JSONAware)) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, data);
+        }
+        try (OutputStream out = Files.newOutputStream(target)) {
+            format.write((JSONAware)data, out);
+        }
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+    }
+}
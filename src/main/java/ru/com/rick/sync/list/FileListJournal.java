@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.list;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+import ru.com.rick.sync.fs.Device;
+import ru.com.rick.sync.fs.XxHash64;
+import ru.com.rick.sync.json.JsonArray;
+import ru.com.rick.sync.json.JsonObject;
+import ru.com.rick.sync.json.JsonUtils;
+
+/**
+ * File list stored as a snapshot and a journal of changes.
+ *
+ * Every save appends a segment to the journal with the entries changed since the previous save and the paths of
+ * removed entries, so the amount of written data depends on the number of changes, not on the size of the list.
+ * Segments are framed with their length and CRC, a segment torn by a crash is discarded on load.
+ *
+ * When the journal grows larger than a ratio of the snapshot size (or targets of a global list change, or the device
+ * fails to append), the list is compacted: a new snapshot is written to a temporary file and moved over the old one.
+ * Segments refer to the snapshot by its generation id, so the journal of the previous snapshot is ignored.
+ *
+ * @author Rick
+ */
+public class FileListJournal
+{
+    public static final String SUFFIX = ".journal";
+    public static final double DEFAULT_RATIO = 0.5;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final byte[] MAGIC = "MSJL".getBytes(StandardCharsets.US_ASCII);
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final String KEY_GENERATION = "journal";
+    private static final String KEY_TARGETS = "targets";
+    private static final String KEY_FILES = "files";
+    private static final String KEY_DELETE = "delete";
+
+    private final Device device;
+    private final Path path;
+    private final Path journalPath;
+    private final FileListFormat format;
+    private final FileListCompression compression;
+    private final int compressionLevel;
+    private final boolean global;
+    private final double ratio;
+
+    /**
+     * Generation id of the snapshot
+     */
+    private String generation = null;
+
+    /**
+     * Fingerprints of stored entries JSON, null if stored list is unknown
+     */
+    private HashMap<String, Long> fingerprints = null;
+
+    /**
+     * Target ids of stored global list (entries refer to targets by index)
+     */
+    private List<Object> targets = null;
+
+    private long snapshotSize = 0;
+    private long journalSize = 0;
+
+    /**
+     *
+     * @param device
+     * @param path snapshot path
+     * @param format format of snapshot and journal segments
+     * @param compression compression of snapshot
+     * @param compressionLevel
+     * @param global if list is global
+     * @param ratio max journal size relative to snapshot size
+     */
+    public FileListJournal(Device device, Path path, FileListFormat format, FileListCompression compression, int compressionLevel, boolean global, double ratio)
+    {
+        this.device = device;
+        this.path = path;
+        this.journalPath = getJournalPath(path);
+        this.format = format;
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+        this.global = global;
+        this.ratio = ratio;
+    }
+
+    /**
+     *
+     * @param path snapshot path
+     * @return journal file path
+     */
+    public static Path getJournalPath(Path path)
+    {
+        return path.resolveSibling(path.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Read snapshot and apply the journal.
+     *
+     * @param defaultTime list generation time if not stored
+     * @return list or null if there is no data
+     * @throws IOException
+     * @throws ParseException
+     */
+    public FileList read(long defaultTime) throws IOException, ParseException
+    {
+        generation = null;
+        fingerprints = null;
+        targets = null;
+        journalSize = 0;
+        ArrayList<Map> segments = new ArrayList<>();
+        ArrayList<Long> ends = new ArrayList<>();
+        readJournal(segments, ends);
+        JournalReader reader = new JournalReader(segments, ends, global, defaultTime);
+        FileList list;
+        try (InputStream in = device.getInputStream(path)) {
+            list = FileListFormat.readAnyList(in, reader);
+        }
+        snapshotSize = device.getFileSize(path);
+        if (generation != null) {
+            fingerprints = reader.entries;
+        }
+        return list;
+    }
+
+    /**
+     * Save list: append changes to the journal or compact.
+     *
+     * @param list
+     * @param maxVersions
+     * @param withHash
+     * @throws IOException
+     */
+    public void write(FileList list, int maxVersions, boolean withHash) throws IOException
+    {
+        JsonObject header = list.toJsonHeader();
+        if (fingerprints != null && getTargets(header).equals(targets) && device.exists(path)) {
+            HashMap<String, Long> next = new HashMap<>();
+            byte[] segment = createSegment(list, header, maxVersions, withHash, next);
+            long size = (journalSize > 0 ? journalSize : MAGIC.length) + FRAME_HEADER_SIZE + segment.length;
+            if (size <= snapshotSize * ratio) {
+                try {
+                    append(segment);
+                    journalSize = size;
+                    fingerprints = next;
+                    return;
+                } catch (IOException ex) {
+                    // append is not supported or failed, a torn segment is discarded on load
+                }
+            }
+        }
+        compact(list, header, maxVersions, withHash);
+    }
+
+    /**
+     * Write a new snapshot and drop the journal.
+     *
+     * @param list
+     * @param header
+     * @param maxVersions
+     * @param withHash
+     * @throws IOException
+     */
+    private void compact(FileList list, JsonObject header, int maxVersions, boolean withHash) throws IOException
+    {
+        String id = UUID.randomUUID().toString();
+        HashMap<String, Long> next = new HashMap<>();
+        JsonObject h = new JsonObject(header);
+        h.put(KEY_GENERATION, id);
+        Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+        try {
+            try (OutputStream out = compression.compress(device.getOutputStream(temp), compressionLevel)) {
+                format.writeList(h, action -> list.forEachJson(maxVersions, withHash, (p, json) -> {
+                    next.put(p, fingerprint(json));
+                    action.accept(p, json);
+                }), out);
+            }
+            device.moveFile(temp, path, true);
+        } catch (IOException ex) {
+            device.deleteFile(temp);
+            throw ex;
+        }
+        generation = id;
+        fingerprints = next;
+        targets = getTargets(header);
+        snapshotSize = device.getFileSize(path);
+        journalSize = 0;
+        device.deleteFile(journalPath);
+    }
+
+    /**
+     * Serialize changes of the list since the last save.
+     *
+     * @param list
+     * @param header
+     * @param maxVersions
+     * @param withHash
+     * @param next receives fingerprints of all entries
+     * @return segment data
+     * @throws IOException
+     */
+    private byte[] createSegment(FileList list, JsonObject header, int maxVersions, boolean withHash, HashMap<String, Long> next) throws IOException
+    {
+        JsonObject files = new JsonObject();
+        JsonArray delete = new JsonArray();
+        list.forEachJson(maxVersions, withHash, (p, json) -> {
+            long f = fingerprint(json);
+            Long old = fingerprints.get(p);
+            if (old == null || old != f) {
+                files.put(p, json);
+            }
+            next.put(p, f);
+        });
+        for (String p : fingerprints.keySet()) {
+            if (!next.containsKey(p)) {
+                delete.add(p);
+            }
+        }
+        JsonObject segment = new JsonObject(header);
+        segment.put(KEY_GENERATION, generation);
+        segment.put(KEY_DELETE, delete);
+        segment.put(KEY_FILES, files);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        format.write(segment, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Append a segment after the last valid one.
+     *
+     * @param segment
+     * @throws IOException
+     */
+    private void append(byte[] segment) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(segment);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(device.getAppendStream(journalPath, journalSize)))) {
+            if (journalSize == 0) {
+                out.write(MAGIC);
+            }
+            out.writeInt(segment.length);
+            out.writeInt((int)crc.getValue());
+            out.write(segment);
+        }
+    }
+
+    /**
+     * Read valid segments of the journal.
+     *
+     * @param segments
+     * @param ends journal size after each segment
+     */
+    private void readJournal(List<Map> segments, List<Long> ends)
+    {
+        if (!device.exists(journalPath)) {
+            return;
+        }
+        long size = device.getFileSize(journalPath);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(device.getInputStream(journalPath)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                return;
+            }
+            long offset = MAGIC.length;
+            while (offset + FRAME_HEADER_SIZE <= size) {
+                int length = in.readInt();
+                int crc = in.readInt();
+                if (length < 0 || length > size - offset - FRAME_HEADER_SIZE) {
+                    return; // torn or invalid frame
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                CRC32 actual = new CRC32();
+                actual.update(data);
+                if ((int)actual.getValue() != crc) {
+                    return;
+                }
+                Object json = FileListFormat.readAny(new ByteArrayInputStream(data));
+                if (!(json instanceof Map)) {
+                    return;
+                }
+                offset += FRAME_HEADER_SIZE + length;
+                segments.add((Map)json);
+                ends.add(offset);
+            }
+        } catch (EOFException | ParseException ex) {
+            // the rest of the journal is discarded
+        } catch (IOException ex) {
+            segments.clear();
+            ends.clear();
+        }
+    }
+
+    /**
+     *
+     * @param header
+     * @return ids of global list targets in order
+     */
+    private static List<Object> getTargets(Map header)
+    {
+        Object t = header.get(KEY_TARGETS);
+        return t instanceof Map ? new ArrayList<>(((Map<?, ?>)t).keySet()) : new ArrayList<>();
+    }
+
+    /**
+     *
+     * @param json
+     * @return hash of entry JSON
+     */
+    private static long fingerprint(Object json)
+    {
+        byte[] bytes = JSONValue.toJSONString(json).getBytes(StandardCharsets.UTF_8);
+        XxHash64 hash = new XxHash64();
+        hash.update(bytes, 0, bytes.length);
+        return hash.getValue();
+    }
+
+    /**
+     * Reads snapshot entries, replacing the ones changed in the journal.
+     */
+    private class JournalReader extends FileListReader
+    {
+        private final List<Map> segments;
+        private final List<Long> ends;
+        private final LinkedHashMap<String, Object> changes = new LinkedHashMap<>();
+        private final HashMap<String, Long> entries = new HashMap<>();
+
+        public JournalReader(List<Map> segments, List<Long> ends, boolean global, long defaultTime)
+        {
+            super(global, defaultTime);
+            this.segments = segments;
+            this.ends = ends;
+        }
+
+        @Override
+        public void header(Map header)
+        {
+            generation = JsonUtils.getString(header, KEY_GENERATION, null);
+            targets = getTargets(header);
+            Map last = header;
+            for (int i = 0; i < segments.size() && generation != null; ++i) {
+                Map segment = segments.get(i);
+                if (!generation.equals(segment.get(KEY_GENERATION)) || !targets.equals(getTargets(segment))) {
+                    break;
+                }
+                Object delete = segment.get(KEY_DELETE);
+                Object files = segment.get(KEY_FILES);
+                if (delete instanceof List) {
+                    for (Object p : (List)delete) {
+                        changes.put((String)p, null);
+                    }
+                }
+                if (files instanceof Map) {
+                    for (Object o : ((Map)files).entrySet()) {
+                        Map.Entry e = (Map.Entry)o;
+                        changes.put((String)e.getKey(), e.getValue());
+                    }
+                }
+                last = segment;
+                journalSize = ends.get(i);
+            }
+            // entries are stored relative to the last saved header
+            JsonObject h = new JsonObject(last);
+            h.remove(KEY_GENERATION);
+            h.remove(KEY_DELETE);
+            h.remove(KEY_FILES);
+            super.header(h);
+        }
+
+        @Override
+        public void entry(String path, Object json)
+        {
+            if (!changes.containsKey(path)) {
+                super.entry(path, json);
+                entries.put(path, fingerprint(json));
+            }
+        }
+
+        @Override
+        public FileList finish(Object json)
+        {
+            if (list != null) {
+                for (Map.Entry<String, Object> e : changes.entrySet()) {
+                    if (e.getValue() != null) {
+                        super.entry(e.getKey(), e.getValue());
+                        entries.put(e.getKey(), fingerprint(e.getValue()));
+                    }
+                }
+            } else {
+                generation = null; // no entries object
+            }
+            return super.finish(json);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.list;
+
+import java.util.Map;
+import ru.com.rick.sync.json.JsonObject;
+
+/**
+ * Builds a file list from JSON data as it is read: header (all top-level values preceding "files") first, then
+ * entries of "files" one by one.
+ *
+ * @author Rick
+ */
+class FileListReader
+{
+    protected final boolean global;
+    protected final long defaultTime;
+    protected FileList list = null;
+
+    /**
+     *
+     * @param global if list is global
+     * @param defaultTime list generation time if not stored
+     */
+    public FileListReader(boolean global, long defaultTime)
+    {
+        this.global = global;
+        this.defaultTime = defaultTime;
+    }
+
+    /**
+     * Start list, called before the first entry.
+     *
+     * @param header
+     */
+    public void header(Map header)
+    {
+        list = FileListFormat.createList(header, global, defaultTime);
+    }
+
+    /**
+     * Add an entry of "files".
+     *
+     * @param path
+     * @param json
+     */
+    public void entry(String path, Object json)
+    {
+        readEntry(list, path, json);
+    }
+
+    /**
+     * Finish list.
+     *
+     * @param json whole JSON data, without entries passed to entry()
+     * @return list or null if there is no data
+     */
+    public FileList finish(Object json)
+    {
+        if (list == null) {
+            list = FileListFormat.createList(json, global, defaultTime); // no "files" object
+        }
+        return list;
+    }
+
+    /**
+     * Read list from JSON tree.
+     *
+     * @param json
+     * @return list or null if there is no data
+     */
+    public FileList read(Object json)
+    {
+        if (json instanceof Map && ((Map)json).get("files") instanceof Map) {
+            JsonObject header = new JsonObject((Map)json);
+            Map files = (Map)header.remove("files");
+            header(header);
+            for (Object o : files.entrySet()) {
+                Map.Entry e = (Map.Entry)o;
+                entry((String)e.getKey(), e.getValue());
+            }
+            header.put("files", new JsonObject());
+            return finish(header);
+        }
+        return finish(json);
+    }
+
+    /**
+     * Add an entry from JSON object of "files" to a list.
+     *
+     * @param list
+     * @param path
+     * @param json
+     */
+    static void readEntry(FileList list, String path, Object json)
+    {
+        if (list instanceof GlobalFileList) {
+            ((GlobalFileList)list).readEntry(path, json);
+        } else {
+            ((LocalFileList)list).readEntry(path, json);
+        }
+    }
+}
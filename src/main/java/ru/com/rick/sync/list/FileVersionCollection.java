@@ -7,6 +7,9 @@
 package ru.com.rick.sync.list;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
@@ -20,16 +23,36 @@ import ru.com.rick.sync.json.JsonObject;
 /**
  * Abstraction for storing file versions.
  *
+ * Versions are kept sorted by sync time (oldest first) and indexed by size, so equal versions are found without
+ * scanning the whole collection. Modified times are not part of the key: times in different seconds are not a mismatch
+ * for FileUtils::compareModifiedTimes with default true. Versions with unknown size (and directories) are kept out of
+ * the index and always checked. The collection can be limited to a number of the newest versions.
+ *
  * @author Rick
  * @param <T> extra options
  */
 public class FileVersionCollection<T extends FileVersionCollection.Options>
 {
     /**
-     * versions
+     * versions, sorted ASC by sync time
      */
     protected final ArrayList<Record> versions = new ArrayList<>();
 
+    /**
+     * Indexed versions by size
+     */
+    private final HashMap<Key, ArrayList<Record>> index = new HashMap<>();
+
+    /**
+     * Versions not in index
+     */
+    private final ArrayList<Record> unindexed = new ArrayList<>();
+
+    /**
+     * Max versions kept (less 0 = unlimited)
+     */
+    private int limit = -1;
+
     /**
      * Export to JSON array.
      *
@@ -42,10 +65,9 @@ public class FileVersionCollection<T extends FileVersionCollection.Options>
     {
         JsonArray result = new JsonArray();
         if (versions.size() > 0 && maxVersions != 0) {
-            Iterable<Record> items = () -> getStream(null).sorted().iterator();
             int count = 0;
-            for (Record item : items) {
-                result.add(item.toJson(defaultTime, withHash));
+            for (int i = versions.size() - 1; i >= 0; --i) {
+                result.add(versions.get(i).toJson(defaultTime, withHash));
                 count++;
                 if (maxVersions > 0 && count >= maxVersions) {
                     break;
@@ -55,6 +77,17 @@ public class FileVersionCollection<T extends FileVersionCollection.Options>
         return result;
     }
 
+    /**
+     * Limit the collection to a number of the newest versions, the oldest ones are removed.
+     *
+     * @param limit max versions (less 0 = unlimited)
+     */
+    public void setLimit(int limit)
+    {
+        this.limit = limit;
+        evict();
+    }
+
     /**
      * Fill the list form JSON array.
      *
@@ -148,7 +181,121 @@ public class FileVersionCollection<T extends FileVersionCollection.Options>
      */
     protected void addRecord(Record item)
     {
-        versions.add(item);
+        insertRecord(item);
+        evict();
+    }
+
+    /**
+     * Insert record after records with the same or older sync time.
+     *
+     * @param item
+     */
+    private void insertRecord(Record item)
+    {
+        int low = 0;
+        int high = versions.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (versions.get(mid).version.compareSyncTime(item.version) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        versions.add(low, item);
+        if (Key.isIndexed(item.version)) {
+            item.key = new Key(item.version);
+            index.computeIfAbsent(item.key, x -> new ArrayList<>(1)).add(item);
+        } else {
+            unindexed.add(item);
+        }
+    }
+
+    /**
+     * Remove record.
+     *
+     * @param item
+     */
+    private void removeRecord(Record item)
+    {
+        versions.remove(item);
+        ArrayList<Record> bucket = getBucket(item);
+        bucket.remove(item);
+        if (bucket.isEmpty() && item.key != null) {
+            index.remove(item.key);
+        }
+    }
+
+    /**
+     * Replace record in place.
+     *
+     * @param item
+     * @param replacement record with the same version
+     */
+    private void replaceRecord(Record item, Record replacement)
+    {
+        replacement.key = item.key;
+        versions.set(versions.indexOf(item), replacement);
+        ArrayList<Record> bucket = getBucket(item);
+        bucket.set(bucket.indexOf(item), replacement);
+    }
+
+    /**
+     *
+     * @param item
+     * @return index bucket containing record
+     */
+    private ArrayList<Record> getBucket(Record item)
+    {
+        return item.key != null ? index.get(item.key) : unindexed;
+    }
+
+    /**
+     * Remove the oldest versions over limit.
+     */
+    private void evict()
+    {
+        while (limit >= 0 && versions.size() > limit) {
+            removeRecord(versions.get(0));
+        }
+    }
+
+    /**
+     * Find the first record matching the version.
+     *
+     * @param ver
+     * @param test version test, requires the same size for indexed versions
+     * @return record or null
+     */
+    private Record findRecord(FileVersion ver, Predicate<Record> test)
+    {
+        if (!Key.isIndexed(ver)) {
+            for (Record item : versions) {
+                if (test.test(item)) {
+                    return item;
+                }
+            }
+            return null;
+        }
+        Record found = null;
+        boolean multiple = false;
+        ArrayList<Record> bucket = index.get(new Key(ver));
+        for (List<Record> candidates : Arrays.asList(bucket != null ? bucket : Collections.<Record>emptyList(), unindexed)) {
+            for (Record item : candidates) {
+                if (test.test(item)) {
+                    multiple = found != null;
+                    found = found == null || item.compareTo(found) > 0 ? item : found;
+                }
+            }
+        }
+        if (multiple) {
+            for (Record item : versions) { // first by order among versions with the same sync time
+                if (item.version.compareSyncTime(found.version) == 0 && test.test(item)) {
+                    return item;
+                }
+            }
+        }
+        return found;
     }
 
     /**
@@ -200,7 +347,10 @@ public class FileVersionCollection<T extends FileVersionCollection.Options>
      */
     public Stream<FileVersion> getSortedVersionsStream(Predicate<? super T> predicate)
     {
-        return getStream(predicate).sorted().map(x -> x.getVersion());
+        ArrayList<Record> sorted = new ArrayList<>(versions);
+        Collections.reverse(sorted);
+        Stream<Record> stream = sorted.stream();
+        return (predicate != null ? stream.filter(x -> x.test(predicate)) : stream).map(x -> x.getVersion());
     }
 
     /**
@@ -259,21 +409,17 @@ public class FileVersionCollection<T extends FileVersionCollection.Options>
      */
     public boolean addVersion(FileVersion ver, T options)
     {
-        for (int i = 0; i < versions.size(); ++i) {
-            Record item = versions.get(i);
-            FileVersion v = item.getVersion();
-            if (ver.isSameVersion(v)) {
-                if (ver.compareSyncTime(v) > 0) {
-                    options = mergeOptions(options, item.getOptions());
-                    versions.remove(i);
-                    break;
-                } else {
-                    versions.set(i, copyRecordMergeOptions(item, options));
-                    return false;
-                }
+        Record item = findRecord(ver, x -> ver.isSameVersion(x.getVersion()));
+        if (item != null) {
+            if (ver.compareSyncTime(item.getVersion()) > 0) {
+                options = mergeOptions(options, item.getOptions());
+                removeRecord(item);
+            } else {
+                replaceRecord(item, copyRecordMergeOptions(item, options));
+                return false;
             }
         }
-        versions.add(new Record(ver, options));
+        addRecord(new Record(ver, options));
         return true;
     }
 
@@ -329,16 +475,8 @@ public class FileVersionCollection<T extends FileVersionCollection.Options>
      */
     public FileVersion getVersion(FileVersion ver, Predicate<? super T> predicate)
     {
-        for (int i = 0; i < versions.size(); ++i) {
-            Record item = versions.get(i);
-            if (predicate != null && !item.test(predicate)) {
-                continue;
-            }
-            if (ver.isSameVersion(item.getVersion())) {
-                return item.getVersion();
-            }
-        }
-        return null;
+        Record item = findRecord(ver, x -> (predicate == null || x.test(predicate)) && ver.isSameVersion(x.getVersion()));
+        return item != null ? item.getVersion() : null;
     }
 
     /**
@@ -352,16 +490,8 @@ public class FileVersionCollection<T extends FileVersionCollection.Options>
      */
     public FileVersion getVersion(FileVersion ver, boolean checkTime, boolean checkHash, Predicate<? super T> predicate)
     {
-        for (int i = 0; i < versions.size(); ++i) {
-            Record item = versions.get(i);
-            if (predicate != null && !item.test(predicate)) {
-                continue;
-            }
-            if (ver.isEqualTo(item.getVersion(), checkTime, checkHash)) {
-                return item.getVersion();
-            }
-        }
-        return null;
+        Record item = findRecord(ver, x -> (predicate == null || x.test(predicate)) && ver.isEqualTo(x.getVersion(), checkTime, checkHash));
+        return item != null ? item.getVersion() : null;
     }
 
     /**
@@ -388,6 +518,41 @@ public class FileVersionCollection<T extends FileVersionCollection.Options>
         return getVersion(ver, null);
     }
 
+    /**
+     * Index key: size of an existing file.
+     */
+    private static class Key
+    {
+        private final long size;
+
+        public Key(FileVersion ver)
+        {
+            this.size = ver.getFileSize();
+        }
+
+        /**
+         *
+         * @param ver
+         * @return if equal versions must have the same key
+         */
+        public static boolean isIndexed(FileVersion ver)
+        {
+            return ver.exists() && !ver.isDir() && ver.getFileSize() >= 0;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof Key && ((Key)obj).size == size;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Long.hashCode(size);
+        }
+    }
+
     /**
      * Interface for extra version info.
      */
@@ -415,6 +580,7 @@ public class FileVersionCollection<T extends FileVersionCollection.Options>
     {
         private final FileVersion version;
         private final T options;
+        private Key key = null;
 
         public Record(Map json, long defaultTime, T options)
         {
@@ -7,14 +7,14 @@
 package ru.com.rick.sync.list;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import org.json.simple.JSONAware;
 import ru.com.rick.sync.fs.FileUtils;
 import ru.com.rick.sync.fs.FileVersion;
@@ -32,7 +32,14 @@ public class GlobalFileList implements FileList
     private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>();
     private final ArrayList<Target> targets = new ArrayList<>();
     private final HashMap<String, Integer> indexes = new HashMap<>();
+
+    /**
+     * Indexes of targets resolved by FileListTarget objects (-1 if not in list), to avoid building target ids for
+     * every path
+     */
+    private final ConcurrentHashMap<FileListTarget, Integer> resolved = new ConcurrentHashMap<>();
     private final long time;
+    private int maxVersions = -1;
 
     /**
      * Create new list.
@@ -69,32 +76,56 @@ public class GlobalFileList implements FileList
                 if (entry instanceof Map.Entry) {
                     Object key = ((Map.Entry)entry).getKey();
                     Object val = ((Map.Entry)entry).getValue();
-                    map.put((String)key, new Entry((Map)val, time));
+                    readEntry((String)key, val);
                 }
             }
         }
     }
 
+    /**
+     * Add an entry from JSON object of "files". Targets must be already read.
+     *
+     * @param path
+     * @param json
+     */
+    void readEntry(String path, Object json)
+    {
+        map.put(path, new Entry((Map)json, time));
+    }
+
     @Override
     public JSONAware toJson(int maxVersions, boolean withHash)
     {
-        JsonObject result = new JsonObject();
+        JsonObject result = toJsonHeader();
         JsonObject files = new JsonObject();
+        forEachJson(maxVersions, withHash, files::put);
+        result.put("files", files);
+        return result;
+    }
+
+    @Override
+    public JsonObject toJsonHeader()
+    {
+        JsonObject result = new JsonObject();
         JsonObject tlist = new JsonObject();
-        for (Map.Entry<String, Entry> entry : map.entrySet()) {
-            if (!entry.getValue().isEmpty(maxVersions != 0)) {
-                files.put(entry.getKey(), entry.getValue().toJson(time, maxVersions, withHash));
-            }
-        }
         for (Target target : targets) {
             tlist.put(target.id, target.getJsonParams());
         }
         FileVersion.putTimeToJson(result, "time", time);
         result.put("targets", tlist);
-        result.put("files", files);
         return result;
     }
 
+    @Override
+    public void forEachJson(int maxVersions, boolean withHash, BiConsumer<String, JsonObject> action)
+    {
+        for (Map.Entry<String, Entry> entry : map.entrySet()) {
+            if (!entry.getValue().isEmpty(maxVersions != 0)) {
+                action.accept(entry.getKey(), entry.getValue().toJson(time, maxVersions, withHash));
+            }
+        }
+    }
+
     @Override
     public JSONAware toCompactJson()
     {
@@ -109,31 +140,13 @@ public class GlobalFileList implements FileList
     private void addTarget(Target target)
     {
         int index = targets.size();
+        target.index = index;
         targets.add(target);
         indexes.put(target.id, index);
         if (target.path != null && !indexes.containsKey(target.path)) {
             indexes.put(target.path, index);
         }
-    }
-
-    /**
-     * Targets set to int indexes.
-     *
-     * @param set
-     * @return
-     */
-    private ArrayList<Integer> getIndexes(HashSet<Target> set)
-    {
-        ArrayList<Integer> result = new ArrayList<>();
-        for (int i = 0; i < targets.size(); ++i) {
-            if (set.contains(targets.get(i))) {
-                result.add(i);
-            }
-        }
-        if (result.size() == targets.size()) {
-            return null; // all targets
-        }
-        return result;
+        resolved.clear();
     }
 
     /**
@@ -155,15 +168,23 @@ public class GlobalFileList implements FileList
      */
     private Target getTarget(FileListTarget target)
     {
-        String id = target.getTargetId();
-        String path = target.getRelativeTargetId();
-        if (indexes.containsKey(id)) {
-            return targets.get(indexes.get(id));
-        }
-        if (indexes.containsKey(path)) {
-            return targets.get(indexes.get(path));
+        return getTarget(resolved.computeIfAbsent(target, this::findTarget));
+    }
+
+    /**
+     * Find index of internal target by ids of FileListTarget.
+     *
+     * @param target
+     * @return index or -1
+     */
+    private int findTarget(FileListTarget target)
+    {
+        Integer index = indexes.get(target.getTargetId());
+        if (index == null) {
+            String path = target.getRelativeTargetId();
+            index = path != null ? indexes.get(path) : null;
         }
-        return null;
+        return index != null ? index : -1;
     }
 
     @Override
@@ -205,14 +226,35 @@ public class GlobalFileList implements FileList
 
     @Override
     public FileHistory get(String path, FileListTarget target)
+    {
+        return getHistory(map.get(path), target);
+    }
+
+    /**
+     * Get history from JSON entry of "files" without adding it to the list.
+     *
+     * @param json entry or null if not in list
+     * @param target
+     * @return see get()
+     */
+    FileHistory readHistory(Object json, FileListTarget target)
+    {
+        return getHistory(json != null ? new Entry((Map)json, time) : null, target);
+    }
+
+    /**
+     *
+     * @param current
+     * @param target
+     * @return see get()
+     */
+    private FileHistory getHistory(Entry current, FileListTarget target)
     {
         if (target == null) {
-            Entry current = map.get(path);
             return current != null ? current.extractHistory(null) : new FileHistory(time);
         } else {
             Target t = getTarget(target);
             if (t != null) {
-                Entry current = map.get(path);
                 if (current != null) {
                     return current.extractHistory(t);
                 } else if (target.isAvailable()) {
@@ -243,6 +285,15 @@ public class GlobalFileList implements FileList
         return map.keySet();
     }
 
+    @Override
+    public void setMaxVersions(int maxVersions)
+    {
+        this.maxVersions = maxVersions;
+        for (Entry entry : map.values()) {
+            entry.setMaxVersions(maxVersions);
+        }
+    }
+
     /**
      * Class for identification of SyncTarget.
      */
@@ -251,6 +302,7 @@ public class GlobalFileList implements FileList
         private final String id;
         private final String path;
         private final long time;
+        private int index = -1;
 
         public Target(String id, Object json, long defaultTime)
         {
@@ -284,11 +336,13 @@ public class GlobalFileList implements FileList
     }
 
     /**
-     * Version options (targets).
+     * Version options (targets). Targets are stored as a bitset of their indexes: a mask for the first 64 targets and
+     * an overflow array for the rest.
      */
     protected class Options implements FileVersionCollection.Options
     {
-        private final HashSet<Target> targets = new HashSet<>();
+        private long mask = 0;
+        private long[] overflow = null;
         private boolean global = false;
 
         public Options(int[] targets)
@@ -297,9 +351,8 @@ public class GlobalFileList implements FileList
                 this.global = true;
             } else {
                 for (int i : targets) {
-                    Target t = getTarget(i);
-                    if (t != null) {
-                        this.targets.add(t);
+                    if (getTarget(i) != null) {
+                        set(i);
                     }
                 }
             }
@@ -310,7 +363,7 @@ public class GlobalFileList implements FileList
             if (target == null) {
                 this.global = true;
             } else {
-                this.targets.add(target);
+                set(target.index);
             }
         }
 
@@ -319,7 +372,15 @@ public class GlobalFileList implements FileList
         {
             if (other instanceof Options) {
                 Options options = (Options)other;
-                targets.addAll(options.targets);
+                mask |= options.mask;
+                if (options.overflow != null) {
+                    if (overflow == null || overflow.length < options.overflow.length) {
+                        overflow = overflow == null ? new long[options.overflow.length] : Arrays.copyOf(overflow, options.overflow.length);
+                    }
+                    for (int i = 0; i < options.overflow.length; ++i) {
+                        overflow[i] |= options.overflow[i];
+                    }
+                }
                 global = global || options.global;
             }
         }
@@ -331,18 +392,53 @@ public class GlobalFileList implements FileList
          */
         public boolean isForTarget(Target target)
         {
-            return global || target == null || targets.contains(target);
+            return global || target == null || get(target.index);
         }
 
         @Override
         public void export(JsonObject versionJson)
         {
             if (!global) {
-                ArrayList<Integer> indexes = getIndexes(targets);
-                if (indexes != null) {
-                    String v = indexes.stream().map(String::valueOf).collect(Collectors.joining(","));
-                    versionJson.put("targets", v);
+                StringBuilder v = new StringBuilder();
+                int count = 0;
+                for (int i = 0; i < targets.size(); ++i) {
+                    if (get(i)) {
+                        if (count++ > 0) {
+                            v.append(',');
+                        }
+                        v.append(i);
+                    }
+                }
+                if (count < targets.size()) { // not all targets
+                    versionJson.put("targets", v.toString());
+                }
+            }
+        }
+
+        private void set(int index)
+        {
+            if (index < 0) {
+                throw new IndexOutOfBoundsException("Invalid target index: " + index);
+            } else if (index < 64) {
+                mask |= 1L << index;
+            } else {
+                int i = (index >> 6) - 1;
+                if (overflow == null || overflow.length <= i) {
+                    overflow = overflow == null ? new long[i + 1] : Arrays.copyOf(overflow, i + 1);
                 }
+                overflow[i] |= 1L << index;
+            }
+        }
+
+        private boolean get(int index)
+        {
+            if (index < 0) {
+                return false;
+            } else if (index < 64) {
+                return (mask & (1L << index)) != 0;
+            } else {
+                int i = (index >> 6) - 1;
+                return overflow != null && i < overflow.length && (overflow[i] & (1L << index)) != 0;
             }
         }
 
@@ -371,6 +467,7 @@ public class GlobalFileList implements FileList
         public Entry(Map json, long defaultTime)
         {
             super(json, defaultTime);
+            this.maxVersions = GlobalFileList.this.maxVersions;
             Object vobj = json.get("variants");
             Object hobj = json.get("history");
             if (vobj instanceof List) {
@@ -394,6 +491,7 @@ public class GlobalFileList implements FileList
         public Entry(long defaultTime)
         {
             super(false, defaultTime, null);
+            this.maxVersions = GlobalFileList.this.maxVersions;
         }
 
         @Override
@@ -433,6 +531,15 @@ public class GlobalFileList implements FileList
             return history != null ? history.getSortedVersions() : new FileVersion[0];
         }
 
+        @Override
+        public void setMaxVersions(int maxVersions)
+        {
+            this.maxVersions = maxVersions;
+            if (history != null) {
+                history.setLimit(maxVersions);
+            }
+        }
+
         @Override
         public FileVersion[] getHistoryVersions()
         {
@@ -489,25 +596,42 @@ public class GlobalFileList implements FileList
          */
         private FileHistory extractHistory(Target target)
         {
-            FileVersion c;
-            ArrayList<FileVersion> vs = new ArrayList<>();
+            FileVersion c = current;
+            ArrayList<FileVersion> vs = null;
             if (variants != null) {
-                Optional<FileVersion> v = variants.getVersionsStream(x -> x.isForTarget(target)).findFirst();
-                c = v.isPresent() ? v.get() : current;
-            } else {
-                c = current;
+                for (FileVersionCollection<Options>.Record r : variants.versions) {
+                    if (isForTarget(r, target)) {
+                        c = r.getVersion();
+                        break;
+                    }
+                }
             }
             if (c != null && target != null && FileUtils.compareSeconds(c.getFirstSeenTime(), target.getTime()) > 0) {
                 return null;
             }
             if (history != null) {
-                history.getVersionsStream(x -> x.isForTarget(target)).forEachOrdered(vs::add);
-            } else {
-                vs = null;
+                vs = new ArrayList<>(history.versions.size());
+                for (FileVersionCollection<Options>.Record r : history.versions) {
+                    if (isForTarget(r, target)) {
+                        vs.add(r.getVersion());
+                    }
+                }
             }
             return new FileHistory(c, time, state, vs);
         }
 
+        /**
+         *
+         * @param record
+         * @param target
+         * @return if version record is valid for target
+         */
+        private boolean isForTarget(FileVersionCollection<Options>.Record record, Target target)
+        {
+            Options o = record.getOptions();
+            return o == null || o.isForTarget(target);
+        }
+
         /**
          *
          * @param map
@@ -554,6 +678,7 @@ public class GlobalFileList implements FileList
         {
             if (history == null) {
                 history = new FileVersionCollection<>();
+                history.setLimit(maxVersions);
             }
             Options opt = new Options(getTargets(map));
             FileVersion ver = new FileVersion(map, defaultTime);
@@ -581,6 +706,7 @@ public class GlobalFileList implements FileList
             }
             if (history == null) {
                 history = new FileVersionCollection<>();
+                history.setLimit(maxVersions);
             }
             return history.addVersion(ver, opt);
         }
@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.list;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import org.json.simple.JSONAware;
+import ru.com.rick.sync.json.JsonObject;
+
+/**
+ * File list backed by data in the indexed format (usually a memory-mapped file). Entries are decoded when requested,
+ * paths are found by binary search in the sorted index, so the list is usable without reading all of it.
+ *
+ * The data is never changed: the first change reads all entries into a regular list, which is used from then on. Data
+ * may be split into windows of equal size (the last one may be shorter), so lists over 2 GB can be mapped.
+ *
+ * @author Rick
+ */
+public class IndexedFileList implements FileList
+{
+    private final ByteBuffer[] windows;
+    private final long windowSize;
+    private final boolean global;
+    private final long defaultTime;
+    private final long indexOffset;
+    private final int count;
+
+    /**
+     * Top-level values except "files"
+     */
+    private final Map headerJson;
+
+    /**
+     * Empty list with time and targets from the header
+     */
+    private final FileList header;
+
+    /**
+     * All entries read on the first change or null
+     */
+    private FileList list = null;
+    private int maxVersions = -1;
+
+    /**
+     *
+     * @param data list data in indexed format
+     * @param global if list is global
+     * @param defaultTime list generation time if not stored
+     * @throws IOException
+     */
+    public IndexedFileList(ByteBuffer data, boolean global, long defaultTime) throws IOException
+    {
+        this(new ByteBuffer[] {data}, Math.max(data.capacity(), 1), global, defaultTime);
+    }
+
+    /**
+     *
+     * @param windows list data in indexed format, split into consecutive windows
+     * @param windowSize size of every window except the last one
+     * @param global if list is global
+     * @param defaultTime list generation time if not stored
+     * @throws IOException
+     */
+    public IndexedFileList(ByteBuffer[] windows, long windowSize, boolean global, long defaultTime) throws IOException
+    {
+        this.windows = windows;
+        this.windowSize = windowSize;
+        this.global = global;
+        this.defaultTime = defaultTime;
+        long size = 0;
+        for (int i = 0; i < windows.length; ++i) {
+            if (i < windows.length - 1 && windows[i].capacity() != windowSize || windows[i].capacity() > windowSize) {
+                throw new IllegalArgumentException("Invalid window size");
+            }
+            size += windows[i].capacity();
+        }
+        long trailer = size - IndexedFileListFormat.TRAILER_SIZE;
+        if (trailer < IndexedFileListFormat.HEADER_OFFSET || !hasMagic(0) || !hasMagic(size - IndexedFileListFormat.MAGIC.length)) {
+            throw new IOException("Not an indexed file list");
+        }
+        if (get(IndexedFileListFormat.MAGIC.length) != IndexedFileListFormat.VERSION) {
+            throw new IOException("Unsupported indexed file list version " + get(IndexedFileListFormat.MAGIC.length));
+        }
+        long offset = getLong(trailer);
+        count = getInt(trailer + 8);
+        if (count < 0 || offset < 0 || offset + (long)count * IndexedFileListFormat.RECORD_SIZE != trailer) {
+            throw new IOException("Invalid indexed file list: broken index");
+        }
+        indexOffset = offset;
+        Object json = decode(IndexedFileListFormat.HEADER_OFFSET + 4, getInt(IndexedFileListFormat.HEADER_OFFSET));
+        if (!(json instanceof Map)) {
+            throw new IOException("Invalid indexed file list: header is not an object");
+        }
+        headerJson = (Map)json;
+        header = FileListFormat.createList(headerJson, global, defaultTime);
+    }
+
+    @Override
+    public synchronized void set(String path, FileHistory entry, FileListTarget target)
+    {
+        getMutableList().set(path, entry, target);
+    }
+
+    @Override
+    public synchronized void add(String path, FileHistory entry, FileListTarget target)
+    {
+        getMutableList().add(path, entry, target);
+    }
+
+    @Override
+    public FileHistory get(String path, FileListTarget target)
+    {
+        FileList l = getChangedList();
+        if (l != null) {
+            return l.get(path, target);
+        }
+        int i = indexOf(path);
+        Object json = i >= 0 ? getEntry(i) : null;
+        if (header instanceof GlobalFileList) {
+            return ((GlobalFileList)header).readHistory(json, target);
+        } else {
+            return ((LocalFileList)header).readHistory(json);
+        }
+    }
+
+    @Override
+    public long getTime(FileListTarget target)
+    {
+        FileList l = getChangedList();
+        return l != null ? l.getTime(target) : header.getTime(target);
+    }
+
+    @Override
+    public Collection<String> getPaths()
+    {
+        FileList l = getChangedList();
+        if (l != null) {
+            return l.getPaths();
+        }
+        return new AbstractCollection<String>()
+        {
+            @Override
+            public Iterator<String> iterator()
+            {
+                return new Iterator<String>()
+                {
+                    private int i = 0;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return i < count;
+                    }
+
+                    @Override
+                    public String next()
+                    {
+                        if (i >= count) {
+                            throw new NoSuchElementException();
+                        }
+                        return getPath(i++);
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o)
+            {
+                return o instanceof String && indexOf((String)o) >= 0;
+            }
+
+            @Override
+            public int size()
+            {
+                return count;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void setMaxVersions(int maxVersions)
+    {
+        this.maxVersions = maxVersions;
+        header.setMaxVersions(maxVersions);
+        if (list != null) {
+            list.setMaxVersions(maxVersions);
+        }
+    }
+
+    @Override
+    public JSONAware toJson(int maxVersions, boolean withHash)
+    {
+        FileList l = getChangedList();
+        return (l != null ? l : toList()).toJson(maxVersions, withHash);
+    }
+
+    @Override
+    public JsonObject toJsonHeader()
+    {
+        FileList l = getChangedList();
+        return (l != null ? l : header).toJsonHeader();
+    }
+
+    @Override
+    public void forEachJson(int maxVersions, boolean withHash, BiConsumer<String, JsonObject> action)
+    {
+        FileList l = getChangedList();
+        (l != null ? l : toList()).forEachJson(maxVersions, withHash, action);
+    }
+
+    @Override
+    public JSONAware toCompactJson()
+    {
+        FileList l = getChangedList();
+        return (l != null ? l : toList()).toCompactJson();
+    }
+
+    /**
+     *
+     * @return if the list was changed and doesn't use the indexed data anymore
+     */
+    public synchronized boolean isChanged()
+    {
+        return list != null;
+    }
+
+    /**
+     *
+     * @return list of all entries if changed or null
+     */
+    private synchronized FileList getChangedList()
+    {
+        return list;
+    }
+
+    /**
+     *
+     * @return list of all entries to be changed
+     */
+    private FileList getMutableList()
+    {
+        if (list == null) {
+            list = toList();
+            list.setMaxVersions(maxVersions);
+        }
+        return list;
+    }
+
+    /**
+     *
+     * @return all stored data as JSON (changes are not included)
+     */
+    public JsonObject toTree()
+    {
+        JsonObject result = new JsonObject(headerJson);
+        JsonObject files = new JsonObject();
+        for (int i = 0; i < count; ++i) {
+            files.put(getPath(i), getEntry(i));
+        }
+        result.put("files", files);
+        return result;
+    }
+
+    /**
+     *
+     * @return list with all entries read
+     */
+    private FileList toList()
+    {
+        FileListReader reader = new FileListReader(global, defaultTime);
+        reader.header(headerJson);
+        for (int i = 0; i < count; ++i) {
+            reader.entry(getPath(i), getEntry(i));
+        }
+        return reader.finish(null);
+    }
+
+    /**
+     *
+     * @param path
+     * @return index of path or negative if not found
+     */
+    private int indexOf(String path)
+    {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = getPath(mid).compareTo(path);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private String getPath(int i)
+    {
+        long record = indexOffset + (long)i * IndexedFileListFormat.RECORD_SIZE;
+        ByteBuffer b = slice(getLong(record), getInt(record + 8));
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Object getEntry(int i)
+    {
+        long record = indexOffset + (long)i * IndexedFileListFormat.RECORD_SIZE;
+        return decode(getLong(record + 12), getInt(record + 20));
+    }
+
+    private Object decode(long offset, int length)
+    {
+        try {
+            return new BinaryFileListFormat.Reader(new DataInputStream(new BufferInputStream(slice(offset, length)))).readValue();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private boolean hasMagic(long offset)
+    {
+        for (int i = 0; i < IndexedFileListFormat.MAGIC.length; ++i) {
+            if (get(offset + i) != IndexedFileListFormat.MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte get(long offset)
+    {
+        return windows[(int)(offset / windowSize)].get((int)(offset % windowSize));
+    }
+
+    private int getInt(long offset)
+    {
+        return slice(offset, 4).getInt();
+    }
+
+    private long getLong(long offset)
+    {
+        return slice(offset, 8).getLong();
+    }
+
+    /**
+     *
+     * @param offset
+     * @param length
+     * @return buffer with data at offset, shared if the data is in one window, copied otherwise
+     */
+    private ByteBuffer slice(long offset, int length)
+    {
+        int window = (int)(offset / windowSize);
+        int position = (int)(offset % windowSize);
+        if (position + length <= windows[window].capacity()) {
+            ByteBuffer b = windows[window].duplicate();
+            b.limit(position + length);
+            b.position(position);
+            return b;
+        }
+        ByteBuffer b = ByteBuffer.allocate(length);
+        while (b.hasRemaining()) {
+            ByteBuffer part = windows[window++].duplicate();
+            part.position(position);
+            part.limit(Math.min(part.capacity(), position + b.remaining()));
+            b.put(part);
+            position = 0;
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Stream over a buffer.
+     */
+    private static class BufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        public BufferInputStream(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
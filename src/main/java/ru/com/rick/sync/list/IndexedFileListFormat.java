@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.list;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.apache.commons.io.IOUtils;
+import org.json.simple.JSONAware;
+import ru.com.rick.sync.fs.Device;
+import ru.com.rick.sync.json.JsonObject;
+
+/**
+ * File list in binary form with an index, for reading entries on demand.
+ *
+ * After a magic string and a version follows the header (all top-level values except "files"), then entries, each in
+ * binary form with its own dictionary of path segments, then paths sorted by string order, the index and a trailer
+ * with the index offset and entry count. Index records are of fixed size: path offset and length, entry offset and
+ * length.
+ *
+ * @author Rick
+ */
+public class IndexedFileListFormat extends FileListFormat
+{
+    public static final String NAME = "indexed";
+
+    static final byte[] MAGIC = "MSIX".getBytes(StandardCharsets.US_ASCII);
+    static final byte VERSION = 1;
+    static final int HEADER_OFFSET = MAGIC.length + 1;
+    static final int RECORD_SIZE = 24;
+    static final int TRAILER_SIZE = 8 + 4 + MAGIC.length;
+
+    /**
+     * Windows does not allow to replace a file while it is mapped, and mapping lives until garbage collection
+     */
+    private static final boolean MAP_FILES = File.separatorChar != '\\';
+
+    /**
+     * Size of mapped windows, a single mapping is limited to 2 GB
+     */
+    private static final int WINDOW_SIZE = 1 << 30;
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    /**
+     * Check if a stream contains an indexed file list, without consuming it.
+     *
+     * @param in
+     * @return true for indexed file list
+     * @throws IOException
+     */
+    public static boolean detect(BufferedInputStream in) throws IOException
+    {
+        in.mark(MAGIC.length);
+        try {
+            for (byte b : MAGIC) {
+                if (in.read() != (b & 0xFF)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Open a list file for reading entries on demand. The file is memory-mapped if possible.
+     *
+     * @param device
+     * @param path
+     * @param global if list is global
+     * @param defaultTime list generation time if not stored
+     * @return list
+     * @throws IOException
+     */
+    public static IndexedFileList open(Device device, Path path, boolean global, long defaultTime) throws IOException
+    {
+        return open(device, path, global, defaultTime, WINDOW_SIZE);
+    }
+
+    /**
+     * Open a list file for reading entries on demand. The file is memory-mapped (or read) in windows.
+     *
+     * @param device
+     * @param path
+     * @param global if list is global
+     * @param defaultTime list generation time if not stored
+     * @param windowSize
+     * @return list
+     * @throws IOException
+     */
+    public static IndexedFileList open(Device device, Path path, boolean global, long defaultTime, int windowSize) throws IOException
+    {
+        long size = device.getFileSize(path);
+        ByteBuffer[] windows = new ByteBuffer[(int)Math.max((size + windowSize - 1) / windowSize, 1)];
+        try (ReadableByteChannel channel = device.getReadChannel(path)) {
+            for (int i = 0; i < windows.length; ++i) {
+                long offset = (long)i * windowSize;
+                int length = (int)Math.min(windowSize, size - offset);
+                if (MAP_FILES && channel instanceof FileChannel) {
+                    windows[i] = ((FileChannel)channel).map(FileChannel.MapMode.READ_ONLY, offset, length);
+                } else {
+                    windows[i] = ByteBuffer.allocate(length);
+                    while (windows[i].hasRemaining() && channel.read(windows[i]) >= 0) {
+                    }
+                    windows[i].flip();
+                }
+            }
+        }
+        return new IndexedFileList(windows, windowSize, global, defaultTime);
+    }
+
+    @Override
+    public Object read(InputStream in) throws IOException
+    {
+        return new IndexedFileList(ByteBuffer.wrap(IOUtils.toByteArray(in)), false, 0).toTree();
+    }
+
+    @Override
+    public void write(JSONAware data, OutputStream out) throws IOException
+    {
+        if (!(data instanceof Map) || (((Map)data).containsKey("files") && !(((Map)data).get("files") instanceof Map))) {
+            throw new IOException("Only full file lists can be written in indexed format");
+        }
+        JsonObject header = new JsonObject((Map)data);
+        Object files = header.remove("files");
+        writeList(header, action -> {
+            if (files instanceof Map) {
+                for (Object o : ((Map)files).entrySet()) {
+                    Map.Entry e = (Map.Entry)o;
+                    action.accept((String)e.getKey(), JsonObject.from((Map)e.getValue()));
+                }
+            }
+        }, out);
+    }
+
+    @Override
+    public void writeList(Map<String, Object> header, Consumer<BiConsumer<String, JsonObject>> entries, OutputStream out) throws IOException
+    {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out, 65536));
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ArrayList<Record> records = new ArrayList<>();
+        dout.write(MAGIC);
+        dout.writeByte(VERSION);
+        encode(header, buffer);
+        dout.writeInt(buffer.size());
+        buffer.writeTo(dout);
+        long[] position = {HEADER_OFFSET + 4 + buffer.size()};
+        try {
+            entries.accept((path, json) -> {
+                try {
+                    encode(json, buffer);
+                    buffer.writeTo(dout);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                records.add(new Record(path, position[0], buffer.size()));
+                position[0] += buffer.size();
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        records.sort(Comparator.comparing(r -> r.path));
+        for (Record r : records) {
+            byte[] bytes = r.path.getBytes(StandardCharsets.UTF_8);
+            r.pathOffset = position[0];
+            r.pathLength = bytes.length;
+            dout.write(bytes);
+            position[0] += bytes.length;
+        }
+        for (Record r : records) {
+            dout.writeLong(r.pathOffset);
+            dout.writeInt(r.pathLength);
+            dout.writeLong(r.offset);
+            dout.writeInt(r.length);
+        }
+        dout.writeLong(position[0]);
+        dout.writeInt(records.size());
+        dout.write(MAGIC);
+        dout.flush();
+    }
+
+    private static void encode(Object value, ByteArrayOutputStream buffer) throws IOException
+    {
+        buffer.reset();
+        DataOutputStream out = new DataOutputStream(buffer);
+        new BinaryFileListFormat.Writer(out).writeValue(value, false);
+        out.flush();
+    }
+
+    private static class Record
+    {
+        private final String path;
+        private final long offset;
+        private final int length;
+        private long pathOffset;
+        private int pathLength;
+
+        public Record(String path, long offset, int length)
+        {
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.list;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.json.simple.JSONAware;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.ParseException;
+import ru.com.rick.sync.json.JsonArray;
+import ru.com.rick.sync.json.JsonObject;
+import ru.com.rick.sync.json.JsonParser;
+import ru.com.rick.sync.json.JsonStreamWriter;
+
+/**
+ * File list as JSON text.
+ *
+ * Lists are written and read entry by entry: entries of "files" are written as they are generated and handed to the
+ * list as soon as they are parsed, so the whole JSON tree is never held in memory. Other top-level keys ("time",
+ * "targets") are written before "files" and have to precede it when read.
+ *
+ * @author Rick
+ */
+public class JsonFileListFormat extends FileListFormat
+{
+    public static final String NAME = "json";
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final boolean prettyPrint;
+
+    /**
+     *
+     * @param prettyPrint pretty print JSON
+     */
+    public JsonFileListFormat(boolean prettyPrint)
+    {
+        this.prettyPrint = prettyPrint;
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public Object read(InputStream in) throws IOException, ParseException
+    {
+        InputStreamReader reader = new InputStreamReader(in);
+        return new JsonParser().parse(reader);
+    }
+
+    @Override
+    public void write(JSONAware data, OutputStream out) throws IOException
+    {
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+        JsonStreamWriter writer = new JsonStreamWriter(bw, prettyPrint);
+        writer.value(data);
+        writer.flush();
+    }
+
+    @Override
+    FileList readList(InputStream in, FileListReader reader) throws IOException, ParseException
+    {
+        ListHandler handler = new ListHandler(reader);
+        new JsonParser().parse(new InputStreamReader(in), handler);
+        return reader.finish(handler.result);
+    }
+
+    @Override
+    public void writeList(Map<String, Object> header, Consumer<BiConsumer<String, JsonObject>> entries, OutputStream out) throws IOException
+    {
+        BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out), BUFFER_SIZE);
+        JsonStreamWriter writer = new JsonStreamWriter(bw, prettyPrint);
+        writer.beginObject();
+        for (Map.Entry<String, Object> e : header.entrySet()) {
+            writer.value(e.getKey(), e.getValue());
+        }
+        writer.name("files").beginObject();
+        try {
+            entries.accept((path, json) -> {
+                try {
+                    writer.value(path, json);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Passes parser events to a list reader. Entries of "files" object are passed to the reader when complete, all
+     * other values are collected into JSON containers.
+     */
+    private static class ListHandler implements ContentHandler
+    {
+        private final FileListReader reader;
+        private final ArrayDeque<Object> containers = new ArrayDeque<>();
+        private final ArrayDeque<String> keys = new ArrayDeque<>();
+        private Object result = null;
+        private JsonObject files = null;
+
+        public ListHandler(FileListReader reader)
+        {
+            this.reader = reader;
+        }
+
+        @Override
+        public void startJSON()
+        {
+        }
+
+        @Override
+        public void endJSON()
+        {
+        }
+
+        @Override
+        public boolean startObject()
+        {
+            JsonObject object = new JsonObject();
+            if (containers.size() == 1 && containers.peek() instanceof Map && "files".equals(keys.peek())) {
+                files = object;
+                reader.header((Map)containers.peek());
+            }
+            containers.push(object);
+            return true;
+        }
+
+        @Override
+        public boolean endObject()
+        {
+            add(containers.pop());
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(String key)
+        {
+            keys.push(key);
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry()
+        {
+            keys.pop();
+            return true;
+        }
+
+        @Override
+        public boolean startArray()
+        {
+            containers.push(new JsonArray());
+            return true;
+        }
+
+        @Override
+        public boolean endArray()
+        {
+            add(containers.pop());
+            return true;
+        }
+
+        @Override
+        public boolean primitive(Object value)
+        {
+            add(value);
+            return true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void add(Object value)
+        {
+            Object container = containers.peek();
+            if (container == null) {
+                result = value;
+            } else if (container instanceof List) {
+                ((List)container).add(value);
+            } else if (container == files) {
+                reader.entry(keys.peek(), value);
+            } else {
+                ((Map)container).put(keys.peek(), value);
+            }
+        }
+    }
+}
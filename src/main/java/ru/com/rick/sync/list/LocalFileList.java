@@ -10,6 +10,7 @@ import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.BiConsumer;
 import org.json.simple.JSONAware;
 import ru.com.rick.sync.fs.FileVersion;
 import ru.com.rick.sync.json.JsonArray;
@@ -24,6 +25,7 @@ public class LocalFileList implements FileList
 {
     private final LinkedHashMap<String, FileHistory> map = new LinkedHashMap<>();
     private final long time;
+    private int maxVersions = -1;
     
     public LocalFileList(long defaultTime)
     {
@@ -47,7 +49,7 @@ public class LocalFileList implements FileList
                 if (delete instanceof List) {
                     fillMap((List)delete, time, true);
                 }
-            } else {
+            } else if (files instanceof Map) {
                 fillMap((Map)files, time);
             }
         } else {
@@ -87,13 +89,28 @@ public class LocalFileList implements FileList
             if (entry instanceof Map.Entry) {
                 Object key = ((Map.Entry)entry).getKey();
                 Object val = ((Map.Entry)entry).getValue();
-                if (key instanceof String && val instanceof Map) {
-                    map.put((String)key, new FileHistory((Map)val, defaultTime));
+                if (key instanceof String) {
+                    readEntry((String)key, val);
                 }
             }
         }
     }
 
+    /**
+     * Add an entry from JSON object of "files".
+     *
+     * @param path
+     * @param json
+     */
+    void readEntry(String path, Object json)
+    {
+        if (json instanceof Map) {
+            FileHistory entry = new FileHistory((Map)json, time);
+            entry.setMaxVersions(maxVersions);
+            map.put(path, entry);
+        }
+    }
+
     /**
      *
      * @param maxVersions max file versions included (less 0 = unlimited)
@@ -103,16 +120,29 @@ public class LocalFileList implements FileList
     @Override
     public JsonObject toJson(int maxVersions, boolean withHash)
     {
-        JsonObject result = new JsonObject();
+        JsonObject result = toJsonHeader();
         JsonObject files = new JsonObject();
+        forEachJson(maxVersions, withHash, files::put);
+        result.put("files", files);
+        return result;
+    }
+
+    @Override
+    public JsonObject toJsonHeader()
+    {
+        JsonObject result = new JsonObject();
+        FileVersion.putTimeToJson(result, "time", time);
+        return result;
+    }
+
+    @Override
+    public void forEachJson(int maxVersions, boolean withHash, BiConsumer<String, JsonObject> action)
+    {
         for (Map.Entry<String, FileHistory> entry : map.entrySet()) {
             if (!entry.getValue().isEmpty(maxVersions != 0)) {
-                files.put(entry.getKey(), entry.getValue().toJson(time, maxVersions, withHash));
+                action.accept(entry.getKey(), entry.getValue().toJson(time, maxVersions, withHash));
             }
         }
-        FileVersion.putTimeToJson(result, "time", time);
-        result.put("files", files);
-        return result;
     }
     
     @Override
@@ -170,6 +200,7 @@ public class LocalFileList implements FileList
     @Override
     public void set(String path, FileHistory entry, FileListTarget target)
     {
+        entry.setMaxVersions(maxVersions);
         map.put(path, entry);
     }
     
@@ -180,6 +211,7 @@ public class LocalFileList implements FileList
         if (history != null) {
             history.addHistoryVersions(entry);
         } else {
+            entry.setMaxVersions(maxVersions);
             map.put(path, entry);
         }
     }
@@ -191,6 +223,19 @@ public class LocalFileList implements FileList
         return entry != null ? entry : new FileHistory(time);
     }
     
+    /**
+     * Get history from JSON entry of "files" without adding it to the list.
+     *
+     * @param json entry or null if not in list
+     * @return see get()
+     */
+    FileHistory readHistory(Object json)
+    {
+        FileHistory entry = json instanceof Map ? new FileHistory((Map)json, time) : new FileHistory(time);
+        entry.setMaxVersions(maxVersions);
+        return entry;
+    }
+
     @Override
     public long getTime(FileListTarget target)
     {
@@ -202,5 +247,14 @@ public class LocalFileList implements FileList
     {
         return map.keySet();
     }
+
+    @Override
+    public void setMaxVersions(int maxVersions)
+    {
+        this.maxVersions = maxVersions;
+        for (FileHistory entry : map.values()) {
+            entry.setMaxVersions(maxVersions);
+        }
+    }
     
 }
@@ -34,4 +34,44 @@ public class GlobalOptions extends SyncOptions
     {
         return getBooleanOption("configDirAsRoot", true);
     }
+
+    public int getScanThreads()
+    {
+        return getIntegerOption("scanThreads", 1);
+    }
+
+    public int getScanDeviceThreads()
+    {
+        return getIntegerOption("scanDeviceThreads", 0);
+    }
+
+    public int getSyncThreads()
+    {
+        return getIntegerOption("syncThreads", 1);
+    }
+
+    public int getSaveThreads()
+    {
+        return getIntegerOption("saveThreads", 1);
+    }
+
+    public int getPipelineQueueSize()
+    {
+        return getIntegerOption("pipelineQueueSize", 1000);
+    }
+
+    public boolean fanOutCopy()
+    {
+        return getBooleanOption("fanOutCopy", false);
+    }
+
+    public int getFanOutQueueSize()
+    {
+        return getIntegerOption("fanOutQueueSize", 8);
+    }
+
+    public boolean detectMoves()
+    {
+        return getBooleanOption("detectMoves", false);
+    }
 }
@@ -194,4 +194,101 @@ public class SyncOptions extends JsonOptions
         }
         return result;
     }
+
+    /**
+     *
+     * @return current option values
+     */
+    public Snapshot compile()
+    {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Immutable option values, read from JSON once. Used in per-file checks instead of JSON lookups.
+     */
+    public static class Snapshot
+    {
+        private final boolean backup;
+        private final boolean ignoreMinorErrors;
+        private final boolean createRoot;
+        private final boolean allowCreate;
+        private final boolean allowCreateDir;
+        private final boolean allowReplace;
+        private final boolean allowReplaceDir;
+        private final boolean allowDelete;
+        private final boolean allowDeleteDir;
+        private final boolean preferNewer;
+        private final boolean preferExisting;
+
+        public Snapshot(SyncOptions options)
+        {
+            backup = options.isBackup();
+            ignoreMinorErrors = options.ignoreMinorErrors();
+            createRoot = options.createRoot();
+            allowCreate = options.allowCreate();
+            allowCreateDir = options.allowCreateDir();
+            allowReplace = options.allowReplace();
+            allowReplaceDir = options.allowReplaceDir();
+            allowDelete = options.allowDelete();
+            allowDeleteDir = options.allowDeleteDir();
+            preferNewer = options.preferNewer();
+            preferExisting = options.preferExisting();
+        }
+
+        public boolean isBackup()
+        {
+            return backup;
+        }
+
+        public boolean ignoreMinorErrors()
+        {
+            return ignoreMinorErrors;
+        }
+
+        public boolean createRoot()
+        {
+            return createRoot;
+        }
+
+        public boolean allowCreate()
+        {
+            return allowCreate;
+        }
+
+        public boolean allowCreateDir()
+        {
+            return allowCreateDir;
+        }
+
+        public boolean allowReplace()
+        {
+            return allowReplace;
+        }
+
+        public boolean allowReplaceDir()
+        {
+            return allowReplaceDir;
+        }
+
+        public boolean allowDelete()
+        {
+            return allowDelete;
+        }
+
+        public boolean allowDeleteDir()
+        {
+            return allowDeleteDir;
+        }
+
+        public boolean preferNewer()
+        {
+            return preferNewer;
+        }
+
+        public boolean preferExisting()
+        {
+            return preferExisting;
+        }
+    }
 }
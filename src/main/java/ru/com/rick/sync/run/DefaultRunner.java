@@ -7,6 +7,7 @@
 package ru.com.rick.sync.run;
 
 import java.nio.file.Path;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
 import ru.com.rick.sync.Controller;
@@ -17,6 +18,9 @@ import ru.com.rick.sync.SyncElement;
 import ru.com.rick.sync.SyncList;
 import ru.com.rick.sync.SyncResult;
 import ru.com.rick.sync.SyncTarget;
+import ru.com.rick.sync.fs.HashCache;
+import ru.com.rick.sync.fs.FileComparator;
+import ru.com.rick.sync.fs.TransferEngine;
 
 /**
  *
@@ -97,6 +101,24 @@ public class DefaultRunner extends Runner
                 }
             }
         }
+        IdentityHashMap<TransferEngine, Boolean> engines = new IdentityHashMap<>();
+        for (SyncTarget target : list.getTargets()) {
+            engines.put(target.getDevice().getTransferEngine(), true);
+        }
+        for (TransferEngine engine : engines.keySet()) {
+            if (engine.getTransferredBytes() > 0) {
+                out.println("Transferred " + engine.getTransferredBytes() + " bytes at " + engine.getBytesPerSecond() + " bytes/s.");
+            }
+            if (engine.getComparisons() > 0) {
+                StringBuilder sb = new StringBuilder("Compared " + engine.getComparisons() + " files, decided by");
+                String sep = " ";
+                for (FileComparator.Tier tier : FileComparator.Tier.values()) {
+                    sb.append(sep).append(tier.name().toLowerCase().replace('_', ' ')).append(' ').append(engine.getComparisons(tier));
+                    sep = ", ";
+                }
+                out.println(sb.append('.').toString());
+            }
+        }
     }
 
     @Override
@@ -106,6 +128,12 @@ public class DefaultRunner extends Runner
         long done = lists.stream().filter(x -> x.isUpdated()).count();
         long fail = lists.stream().filter(x -> x.isUpdated() && !x.isValid()).count();
         out.println("Done saving " + (done - fail) + " of " + done + " file lists.");
+        for (FileListContainer flc : lists) {
+            HashCache cache = flc.getHashCache();
+            if (cache.getHits() + cache.getMisses() > 0) {
+                out.println("Hash cache '" + flc + "': " + cache.getHits() + " hits, " + cache.getMisses() + " misses.");
+            }
+        }
     }
 
     private class DebugMonitor implements ProgressMonitor
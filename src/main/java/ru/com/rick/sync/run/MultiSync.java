@@ -9,6 +9,7 @@ import java.util.Map;
 import org.json.simple.parser.ParseException;
 import ru.com.rick.sync.Controller;
 import ru.com.rick.sync.json.JsonUtils;
+import ru.com.rick.sync.list.FileListFormat;
 
 public final class MultiSync
 {
@@ -31,16 +32,39 @@ public final class MultiSync
             }
         } while (index < args.length);
 
+        if (options.containsKey("--convert-list")) {
+            String[] values = options.get("--convert-list");
+            convertList(values[0], values[1], values[2]);
+            return;
+        }
         if (!options.containsKey("")) {
             printUsage("No path to JSON config supplied");
             return;
         }
 
         String jsonPath = options.get("")[0];
-        runSync(jsonPath);
+        runSync(jsonPath, options.containsKey("--pipelined"));
     }
 
-    private static void runSync(String jsonPath)
+    private static void convertList(String source, String target, String formatName)
+    {
+        FileListFormat format;
+        try {
+            format = FileListFormat.fromName(formatName, true);
+        } catch (IllegalArgumentException ex) {
+            printUsage("Unknown file list format '" + formatName + "'");
+            return;
+        }
+        try {
+            FileListFormat.convert(Paths.get(source), Paths.get(target), format);
+            System.out.println("File list '" + source + "' converted to " + format.getName() + " file list '" + target + "'");
+        } catch (IOException | ParseException ex) {
+            System.err.println("Unable to convert file list '" + source + "'");
+            System.err.println(ex.toString());
+        }
+    }
+
+    private static void runSync(String jsonPath, boolean pipelined)
     {
         Map config;
         try {
@@ -64,16 +88,19 @@ public final class MultiSync
             return;
         }
 
-        DefaultRunner runner = new DefaultRunner(controller);
+        DefaultRunner runner = pipelined ? new PipelinedRunner(controller) : new DefaultRunner(controller);
         runner.run(true);
     }
 
     private static int setOption(Options options, String arg, String[] args, int index) throws ArgException
     {
         if (arg.startsWith("--")) {
-            if (arg.equals("--test")) {
+            if (arg.equals("--test") || arg.equals("--pipelined")) {
                 return setOption(options, arg, args, index, 0);
             }
+            if (arg.equals("--convert-list")) {
+                return setOption(options, arg, args, index, 3);
+            }
             throw new ArgException("Unknown option '" + arg + "'");
         }
         if (options.containsKey("")) {
@@ -89,6 +116,9 @@ public final class MultiSync
         if (options.containsKey(opt)) {
             throw new ArgException("Option '" + opt + "' is already set");
         }
+        if (index + count >= args.length) {
+            throw new ArgException("Option '" + opt + "' requires " + count + " arguments");
+        }
         String[] value = Arrays.copyOfRange(args, index + 1, index + 1 + count);
         options.put(opt, value);
         return count;
@@ -102,6 +132,9 @@ public final class MultiSync
         System.out.println("Usage: <main class> JSON_CONFIG");
         //-----------------#    **op                        # text here
         System.out.println("      JSON_CONFIG               Synchronization config file in JSON format.");
+        System.out.println("      --pipelined               Scan, analyze and sync elements in a pipeline.");
+        System.out.println("      --convert-list IN OUT FORMAT");
+        System.out.println("                                Convert file list IN to file list OUT in FORMAT (json, binary or indexed).");
         System.out.println("      --test                    Test option, does nothing.");
     }
 
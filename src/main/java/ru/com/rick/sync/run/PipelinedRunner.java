@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync.run;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import ru.com.rick.sync.Controller;
+import ru.com.rick.sync.ProgressMonitor;
+import ru.com.rick.sync.SyncElement;
+import ru.com.rick.sync.SyncList;
+import ru.com.rick.sync.SyncResult;
+import ru.com.rick.sync.SyncTarget;
+import ru.com.rick.sync.options.GlobalOptions;
+
+/**
+ * Runner streaming elements through concurrent scan, analyze and sync stages.
+ *
+ * Elements are processed consecutively like in per-element sync: an element is analyzed and synced as soon as it
+ * is found. The contents of a directory are listed after the directory is analyzed and before it is synced, so a
+ * directory created, replaced or deleted as a whole is synced by a single operation and its contents are neither
+ * listed again in that target nor synced. Scanning threads, analyzing thread and syncing thread are connected with
+ * bounded queues, so a slow stage holds back the scanning. Moves are not detected and elements are synced by a
+ * single thread, the runner fails on start if 'detectMoves' or 'syncThreads' is set.
+ *
+ * @author Rick
+ */
+public class PipelinedRunner extends DefaultRunner
+{
+    private SyncResult[] syncResults = null;
+
+    public PipelinedRunner(Controller controller)
+    {
+        super(controller);
+    }
+
+    public PipelinedRunner(Controller controller, ProgressMonitor monitor)
+    {
+        super(controller, monitor);
+    }
+
+    @Override
+    protected void runCheck()
+    {
+        super.runCheck();
+        GlobalOptions options = controller.getGlobalOptions();
+        if (options.detectMoves()) {
+            throw new CheckException("Option 'detectMoves' is not supported by pipelined run");
+        }
+        if (options.getSyncThreads() > 1) {
+            throw new CheckException("Option 'syncThreads' is not supported by pipelined run");
+        }
+    }
+
+    @Override
+    protected void runScan(SyncList list)
+    {
+        Pipeline pipeline = new Pipeline(list, controller.getGlobalOptions());
+        SyncResult[] results = pipeline.run();
+        syncResults = pipeline.syncResults;
+        onAfterScan(list, results);
+    }
+
+    @Override
+    protected void runAnalyze(SyncList list)
+    {
+        onAfterAnalyze(list);
+    }
+
+    @Override
+    protected void runSync(SyncList list)
+    {
+        onAfterSync(list, syncResults);
+    }
+
+    /**
+     * Single pipelined run over a sync list.
+     */
+    private static class Pipeline
+    {
+        private final SyncElement end;
+        private final SyncList list;
+        private final GlobalOptions options;
+        private final SyncTarget[] targets;
+        private final ArrayBlockingQueue<SyncElement> analyzeQueue;
+        private final ArrayBlockingQueue<SyncElement> syncQueue;
+        private final ExecutorService scanPool;
+        private final HashMap<Path, SyncResult[]> scanned = new HashMap<>();
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile Throwable error = null;
+        private SyncResult[] scanResults;
+        private SyncResult[] syncResults;
+        private int analyzed = 0;
+        private int synced = 0;
+
+        public Pipeline(SyncList list, GlobalOptions options)
+        {
+            this.list = list;
+            this.options = options;
+            this.targets = list.getTargets();
+            this.end = new SyncElement((Path)null, new SyncTarget[0], null);
+            this.analyzeQueue = new ArrayBlockingQueue<>(options.getPipelineQueueSize());
+            this.syncQueue = new ArrayBlockingQueue<>(options.getPipelineQueueSize());
+            this.scanPool = Executors.newFixedThreadPool(Math.max(1, options.getScanThreads()));
+        }
+
+        public SyncResult[] run()
+        {
+            scanResults = list.addAllTargets(false);
+            syncResults = new SyncResult[targets.length];
+            for (int i = 0; i < targets.length; ++i) {
+                syncResults[i] = list.startSync(i, options).enableSubResults();
+            }
+
+            Thread analyzer = new Thread(this::analyzeLoop, "multisync-analyze");
+            Thread syncer = new Thread(this::syncLoop, "multisync-sync");
+            analyzer.start();
+            syncer.start();
+            try {
+                int roots = list.size();
+                for (int i = 0; i < roots; ++i) {
+                    submit(list.get(i));
+                }
+                release();
+                finished.await();
+                if (error == null) {
+                    analyzeQueue.put(end);
+                    analyzer.join();
+                    syncer.join();
+                }
+            } catch (InterruptedException ex) {
+                fail(ex);
+            } finally {
+                scanPool.shutdownNow();
+                analyzer.interrupt();
+                syncer.interrupt();
+            }
+            if (error != null) {
+                throw new RuntimeException(error);
+            }
+
+            int index = list.size();
+            list.addAllFileLists();
+            for (; index < list.size(); ++index) {
+                SyncElement element = list.get(index);
+                if (analyze(element)) {
+                    sync(element);
+                }
+            }
+
+            for (int i = 0; i < targets.length; ++i) {
+                scanResults[i] = nest(scanResults[i], i);
+                syncResults[i].transformSuccess(!syncResults[i].isTotalFailure());
+            }
+            list.getMonitor().onFinishSync(list, synced, syncResults);
+            return scanResults;
+        }
+
+        private void submit(SyncElement element) throws InterruptedException
+        {
+            pending.incrementAndGet();
+            analyzeQueue.put(element);
+        }
+
+        private void release()
+        {
+            if (pending.decrementAndGet() == 0) {
+                finished.countDown();
+            }
+        }
+
+        private void fail(Throwable ex)
+        {
+            if (error == null) {
+                error = ex;
+            }
+            finished.countDown();
+        }
+
+        private boolean analyze(SyncElement element)
+        {
+            boolean result = element.analyze(options, true);
+            synchronized (list) {
+                list.getMonitor().onElementAnalyze(list, element, analyzed++);
+            }
+            return result;
+        }
+
+        private void sync(SyncElement element)
+        {
+            SyncResult[] rs = element.sync(options);
+            synchronized (list) {
+                list.getMonitor().onElementSync(list, element, synced++, rs);
+            }
+            if (rs != null) {
+                for (int i = 0; i < targets.length; ++i) {
+                    syncResults[i].addSubResult(element.getPath(), rs[i]);
+                }
+            }
+        }
+
+        private boolean isContainer(SyncElement element)
+        {
+            for (int i = 0; i < targets.length; ++i) {
+                if (element.getEntry(i).isContainer()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Nest scan results of listed directories into a listing result, like a recursive scan does.
+         *
+         * @param listing result of listing a directory
+         * @param index target index
+         * @return result with subresults of all listed subdirectories
+         */
+        private SyncResult nest(SyncResult listing, int index)
+        {
+            if (listing.getSubResults().isEmpty()) {
+                return listing;
+            }
+            SyncResult result = new SyncResult(listing.getValue()).enableSubResults();
+            for (Map.Entry<Path, SyncResult> entry : listing.getSubResults().entrySet()) {
+                SyncResult[] rs = scanned.get(entry.getKey());
+                if (rs != null && !rs[index].isSkipStatus()) {
+                    result.addSubResult(entry.getKey(), nest(rs[index], index));
+                } else {
+                    result.addSubResult(entry.getKey(), entry.getValue());
+                }
+            }
+            return result;
+        }
+
+        private void analyzeLoop()
+        {
+            try {
+                while (true) {
+                    SyncElement element = analyzeQueue.take();
+                    if (element == end) {
+                        syncQueue.put(end);
+                        return;
+                    }
+                    if (!analyze(element)) {
+                        release();
+                    } else if (isContainer(element)) {
+                        // listed before it is synced, passed to sync by the scan
+                        pending.incrementAndGet();
+                        scanPool.execute(() -> scan(element));
+                    } else {
+                        syncQueue.put(element);
+                    }
+                }
+            } catch (InterruptedException ex) {
+            } catch (Throwable ex) {
+                fail(ex);
+            }
+        }
+
+        private void syncLoop()
+        {
+            try {
+                while (true) {
+                    SyncElement element = syncQueue.take();
+                    if (element == end) {
+                        return;
+                    }
+                    sync(element);
+                    release();
+                }
+            } catch (InterruptedException ex) {
+            } catch (Throwable ex) {
+                fail(ex);
+            }
+        }
+
+        private void scan(SyncElement element)
+        {
+            try {
+                ArrayList<SyncElement> added = new ArrayList<>();
+                SyncResult[] rs = list.addMergedChildren(element, added);
+                synchronized (scanned) {
+                    scanned.put(element.getPath(), rs);
+                }
+                // the directory goes to sync before its children, which are analyzed after
+                syncQueue.put(element);
+                for (SyncElement e : added) {
+                    submit(e);
+                }
+                release();
+            } catch (InterruptedException ex) {
+            } catch (Throwable ex) {
+                fail(ex);
+            }
+        }
+    }
+}
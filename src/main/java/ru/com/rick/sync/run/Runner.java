@@ -169,7 +169,7 @@ public abstract class Runner
 
     protected void runScan(SyncList list)
     {
-        SyncResult[] results = list.addAllTargets(true);
+        SyncResult[] results = list.addAllTargets(true, controller.getGlobalOptions());
         list.addAllFileLists();
         onAfterScan(list, results);
     }
@@ -183,13 +183,15 @@ public abstract class Runner
     protected void runAnalyze(SyncList list)
     {
         list.analyze(controller.getGlobalOptions());
+        if (controller.getGlobalOptions().detectMoves()) {
+            list.detectMoves();
+        }
         onAfterAnalyze(list);
     }
 
     protected void runSave(SyncList list)
     {
-        list.saveFileLists();
-        list.saveGlobalFileList(controller.getFileListContainer());
+        list.saveAllFileLists(controller.getFileListContainer(), controller.getGlobalOptions());
         for (FileListContainer flc : controller.getFileListContainers()) {
             if (flc.isUpdated() && !flc.isValid()) {
                 onWarning("Error writing file list '" + flc + "'", -1, flc.getError());
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.sync;
+
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.com.rick.sync.fs.FileProperties;
+import ru.com.rick.sync.fs.PathTrie;
+import ru.com.rick.synctests.GenerateConfig;
+import ru.com.rick.synctests.GenerateFiles;
+
+/**
+ *
+ * @author Rick
+ */
+public class TestSyncElementStore
+{
+    private static final SyncTarget[] TARGETS = new SyncTarget[0];
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final PathTrie trie = new PathTrie();
+
+    private PathTrie.Node node(String path)
+    {
+        return trie.intern(Paths.get(path));
+    }
+
+    @Test
+    public void testSiblingLinks()
+    {
+        SyncElementStore store = new SyncElementStore(TARGETS, null);
+        int dir = store.add(node("dir"), -1);
+        int a = store.add(node("dir/a"), dir);
+        int other = store.add(node("other"), -1);
+        int b = store.add(node("dir/b"), dir);
+        int c = store.add(node("dir/c"), dir);
+
+        assert store.getParent(dir) == -1;
+        assert store.getParent(other) == -1;
+        assert store.getParent(a) == dir && store.getParent(b) == dir && store.getParent(c) == dir;
+        assert store.getFirstChild(dir) == a;
+        assert store.getNextSibling(a) == b;
+        assert store.getNextSibling(b) == c;
+        assert store.getNextSibling(c) == -1;
+        assert store.getFirstChild(other) == -1;
+        assert store.getNextSibling(dir) == -1; // root level elements are not linked
+
+        List<SyncElement> children = store.getChildren(dir);
+        assert children.size() == 3;
+        assert children.get(0) == store.get(a) && children.get(1) == store.get(b) && children.get(2) == store.get(c);
+        assert store.get(a).getParent() == store.get(dir);
+        assert store.get(a).getId() == a && store.get(a).getPath().equals(Paths.get("dir/a"));
+    }
+
+    @Test
+    public void testRehash()
+    {
+        SyncElementStore store = new SyncElementStore(TARGETS, null);
+        List<Path> added = new ArrayList<>();
+        store.add(node("root"), -1);
+        added.add(Paths.get("root"));
+        for (int i = 0; i < 100; ++i) {
+            assert store.add(node("root/f" + i), 0) == i + 1;
+            added.add(Paths.get("root/f" + i));
+        }
+
+        assert store.size() == added.size();
+        for (int id = 0; id < added.size(); ++id) {
+            Path path = added.get(id);
+            assert store.indexOf(path) == id;
+            assert store.get(path) == store.get(id);
+            assert store.get(id).getPath().equals(path);
+            assert store.paths().indexOf(path) == id;
+        }
+        assert store.indexOf(Paths.get("root/f100")) == -1;
+        assert store.get(Paths.get("missing")) == null;
+        assert !store.paths().contains(Paths.get("missing"));
+        assert store.getChildren(0).equals(store.elements().subList(1, added.size()));
+        assert store.paths().equals(added);
+    }
+
+    @Test
+    public void testAddExisting()
+    {
+        SyncElementStore store = new SyncElementStore(TARGETS, null);
+        int dir = store.add(node("dir"), -1);
+        int a = store.add(node("dir/a"), dir);
+        int b = store.add(node("dir/b"), dir);
+        store.setSourceIndex(a, 0);
+        SyncElement old = store.get(a);
+
+        assert store.add(node("dir"), -1) == dir;
+        assert store.add(node("dir/a"), dir) == a;
+        assert store.size() == 3;
+        assert store.getFirstChild(dir) == a;
+        assert store.getNextSibling(a) == b;
+        assert store.getParent(a) == dir;
+        assert store.getSourceIndex(a) == -1; // state of the element is reset
+        assert store.get(a) != old; // and its old view is dropped
+        assert store.getChildren(dir).size() == 2;
+        assert store.paths().equals(Arrays.asList(Paths.get("dir"), Paths.get("dir/a"), Paths.get("dir/b")));
+    }
+
+    @Test
+    public void testViewsFromColumns()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateFile(1, "new.txt", "new", gf.getTime(-100));
+        gf.generateFile(1, "changed.txt", "newer", gf.getTime(-100));
+        gf.generateFile(2, "changed.txt", "old", gf.getTime(-1000));
+        gf.generateDir(1, "dir");
+        gf.generateFile(1, "dir/in.txt", "in", gf.getTime(-100));
+        gf.generateFile(2, "same.txt", "same", gf.getTime(-100));
+        gf.generateFile(1, "same.txt", "same", gf.getTime(-100));
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        SyncList list = new SyncList(controller.getTargets());
+        list.addAllTargets(true);
+        list.analyze(controller.getGlobalOptions());
+
+        String state = describe(list);
+        WeakReference<SyncElement> probe = new WeakReference<>(list.get(0));
+        for (int i = 0; i < 100 && probe.get() != null; ++i) {
+            System.gc();
+        }
+        assert probe.get() == null;
+        assert describe(list).equals(state);
+
+        list.sync(controller.getGlobalOptions());
+        assert gf.read(2, "new.txt").equals("new");
+        assert gf.read(2, "changed.txt").equals("newer");
+        assert gf.read(2, "dir/in.txt").equals("in");
+        for (SyncElement element : list.getElements()) {
+            for (int i = 0; i < 2; ++i) {
+                assert element.getSyncResult(i) != null && element.getSyncResult(i).isSuccess();
+            }
+        }
+    }
+
+    private String describe(SyncList list)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (SyncElement element : list.getElements()) {
+            sb.append(element.getPath()).append(" source ").append(element.getSourceIndex());
+            for (int i = 0; i < 2; ++i) {
+                FileSyncEntry entry = element.getEntry(i);
+                FileProperties props = entry.getProperties();
+                sb.append(" | ").append(element.getStatus(i).getValue())
+                        .append(' ').append(entry.getChangeStatus())
+                        .append(' ').append(props.exists())
+                        .append(' ').append(props.isDir());
+                if (props.exists() && !props.isDir()) {
+                    sb.append(' ').append(props.getFileSize())
+                            .append(' ').append(props.getModifiedTime())
+                            .append(' ').append(props.getHash());
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.synctests;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.com.rick.sync.Controller;
+import ru.com.rick.sync.fs.FileComparator;
+import ru.com.rick.sync.fs.FileEntry;
+import ru.com.rick.sync.fs.FileReference;
+import ru.com.rick.sync.fs.Segment;
+import ru.com.rick.sync.fs.TransferEngine;
+
+/**
+ *
+ * @author Rick
+ */
+public class TestFileComparator
+{
+    private static final int SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Segment root;
+
+    private FileEntry file(String name, int size, int changed) throws IOException
+    {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte)(i * 31 + i / 251);
+        }
+        if (changed >= 0) {
+            data[changed] ^= 1;
+        }
+        Files.write(folder.getRoot().toPath().resolve(name), data);
+        return new FileEntry(root, Paths.get(name));
+    }
+
+    private FileComparator.Result compare(long sizeLimit, int size, int changed) throws IOException
+    {
+        if (root == null) {
+            GenerateConfig gc = new GenerateConfig();
+            gc.addTarget(1);
+            root = new Controller(gc.config(), folder.getRoot().toString()).getDefaultRoot();
+        }
+        FileEntry file = file("file" + changed + ".bin", size, -1);
+        FileEntry other = file("other" + changed + ".bin", size, changed);
+        FileComparator comparator = new FileComparator(false, true, FileReference.COMPARE_LEVEL_CONTENT, sizeLimit, 4, 1024);
+        return comparator.compare(file, other);
+    }
+
+    private static void check(FileComparator.Result result, boolean equal, FileComparator.Tier tier)
+    {
+        assert result.isEqual() == equal : result;
+        assert result.getTier() == tier : result;
+    }
+
+    @Test
+    public void testSampledBlocks() throws IOException
+    {
+        check(compare(0, SIZE, 0), false, FileComparator.Tier.SAMPLE);
+        check(compare(0, SIZE, SIZE - 1), false, FileComparator.Tier.SAMPLE);
+        check(compare(0, SIZE, SIZE / 3 + 10), false, FileComparator.Tier.SAMPLE);
+    }
+
+    @Test
+    public void testContents() throws IOException
+    {
+        check(compare(0, SIZE, SIZE / 2), false, FileComparator.Tier.CONTENT); // between sampled blocks
+        check(compare(0, SIZE, -1), true, FileComparator.Tier.CONTENT);
+        // contents not much larger than samples are compared without sampling
+        check(compare(0, 16 * 1024, 0), false, FileComparator.Tier.CONTENT);
+        check(compare(0, 16 * 1024, 16 * 1024 - 1), false, FileComparator.Tier.CONTENT);
+    }
+
+    @Test
+    public void testAboveSizeLimit() throws IOException
+    {
+        check(compare(64 * 1024, SIZE, SIZE / 2), false, FileComparator.Tier.FULL_HASH);
+        check(compare(64 * 1024, SIZE, -1), true, FileComparator.Tier.FULL_HASH);
+        check(compare(64 * 1024, SIZE, 0), false, FileComparator.Tier.SAMPLE);
+        check(compare(64 * 1024, SIZE, SIZE - 1), false, FileComparator.Tier.SAMPLE);
+    }
+
+    @Test
+    public void testProperties() throws IOException
+    {
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        root = new Controller(gc.config(), folder.getRoot().toString()).getDefaultRoot();
+        FileEntry file = file("file.bin", SIZE, -1);
+        FileEntry other = file("other.bin", SIZE - 1, -1);
+        FileComparator comparator = new FileComparator(false, true, FileReference.COMPARE_LEVEL_CONTENT, 0, 4, 1024);
+        check(comparator.compare(file, other), false, FileComparator.Tier.PROPERTIES);
+    }
+
+    @Test
+    public void testTierStatistics() throws IOException
+    {
+        compare(0, SIZE, 0);
+        TransferEngine engine = root.getDevice().getTransferEngine();
+        long sampled = engine.getComparisons(FileComparator.Tier.SAMPLE);
+        long total = engine.getComparisons();
+        compare(0, SIZE, SIZE / 2);
+        compare(0, SIZE, -1);
+        compare(64 * 1024, SIZE, SIZE / 2);
+        FileEntry file = new FileEntry(root, Paths.get("file0.bin"));
+        FileEntry other = file("other.bin", SIZE - 1, -1);
+        assert !file.isEqualTo(other);
+
+        assert engine.getComparisons(FileComparator.Tier.SAMPLE) == sampled;
+        assert engine.getComparisons(FileComparator.Tier.CONTENT) >= 2;
+        assert engine.getComparisons(FileComparator.Tier.FULL_HASH) >= 1;
+        assert engine.getComparisons(FileComparator.Tier.PROPERTIES) >= 1; // recorded through FileReference.isEqualTo
+        assert engine.getComparisons() == total + 4;
+    }
+}
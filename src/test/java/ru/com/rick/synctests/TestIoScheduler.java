@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.synctests;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.com.rick.sync.Controller;
+import ru.com.rick.sync.fs.FileSystemDevice;
+import ru.com.rick.sync.fs.IoScheduler;
+import ru.com.rick.sync.json.JsonObject;
+
+/**
+ *
+ * @author Rick
+ */
+public class TestIoScheduler
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileSystemDevice device(int reads, int writes)
+    {
+        JsonObject io = new JsonObject();
+        io.put("reads", reads);
+        io.put("writes", writes);
+        JsonObject json = new JsonObject();
+        json.put("io", io);
+        return new FileSystemDevice(json);
+    }
+
+    @Test
+    public void testCopyWaitsForWrite() throws Exception
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateFile(1, "source.txt", "source", gf.getTime(-100));
+        FileSystemDevice device = device(2, 1);
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> copy;
+            try (WritableByteChannel out = device.getWriteChannel(gf.path(1, "held.txt"))) {
+                copy = pool.submit(() -> {
+                    device.copyFile(gf.path(1, "source.txt"), gf.path(1, "copy.txt"), false);
+                    return null;
+                });
+                Thread.sleep(500);
+                assert !copy.isDone(); // the only write permit is held
+                assert !Files.exists(gf.path(1, "copy.txt"));
+            }
+            copy.get(10, TimeUnit.SECONDS);
+            assert gf.read(1, "copy.txt").equals("source");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testConcurrentWritersLimited() throws Exception
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 2 * 1024 * 1024) {
+            big.append("limited copy ").append(big.length()).append(' ');
+        }
+        gf.generateFile(1, "source.txt", big.toString(), gf.getTime(-100));
+        FileSystemDevice device = device(8, 2);
+
+        AtomicInteger writing = new AtomicInteger();
+        AtomicInteger maxWriting = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> copies = new ArrayList<>();
+            for (int i = 0; i < 16; ++i) {
+                String name = "copy" + i + ".txt";
+                copies.add(pool.submit(() -> {
+                    // a target opened while the source is open, as a copy between devices does
+                    try (ReadableByteChannel in = device.getReadChannel(gf.path(1, "source.txt"));
+                            WritableByteChannel out = device.getWriteChannel(gf.path(1, name))) {
+                        maxWriting.accumulateAndGet(writing.incrementAndGet(), Math::max);
+                        device.getTransferEngine().transfer(in, out, big.length());
+                        Thread.sleep(20);
+                        writing.decrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> copy : copies) {
+                copy.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assert maxWriting.get() <= 2;
+        for (int i = 0; i < 16; ++i) {
+            assert Files.size(gf.path(1, "copy" + i + ".txt")) == big.length();
+        }
+    }
+
+    @Test
+    public void testOutOfOrderDoesNotWait() throws IOException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateFile(1, "source.txt", "source", gf.getTime(-100));
+        FileSystemDevice device = device(1, 1);
+        IoScheduler scheduler = device.getScheduler();
+
+        // read requested while holding a write is out of order, it must not wait for itself
+        try (IoScheduler.Permit write = scheduler.acquire(IoScheduler.WRITE);
+                IoScheduler.Permit read = scheduler.acquire(IoScheduler.READ);
+                IoScheduler.Permit nested = scheduler.acquire(IoScheduler.WRITE)) {
+            device.copyFile(gf.path(1, "source.txt"), gf.path(1, "copy.txt"), false);
+        }
+        assert gf.read(1, "copy.txt").equals("source");
+    }
+
+    private JsonObject ioTarget(String group, int reads, int writes)
+    {
+        JsonObject io = new JsonObject();
+        if (group != null) {
+            io.put("group", group);
+        }
+        io.put("reads", reads);
+        io.put("writes", writes);
+        JsonObject device = new JsonObject();
+        device.put("defaultPath", folder.getRoot().toString());
+        device.put("io", io);
+        JsonObject target = new JsonObject();
+        target.put("device", device);
+        return target;
+    }
+
+    @Test
+    public void testGroupsPerController()
+    {
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1, ioTarget("disk", 2, 0));
+        gc.addTarget(2, ioTarget("disk", 0, 1));
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        IoScheduler scheduler = controller.getTargets()[0].getDevice().getScheduler();
+        assert controller.getTargets()[1].getDevice().getScheduler() == scheduler;
+
+        // the same group name of another controller is another scheduler with its own limits
+        GenerateConfig other = new GenerateConfig();
+        other.addTarget(1, ioTarget("disk", 4, 4));
+        Controller otherController = new Controller(other.config(), folder.getRoot().toString());
+        assert otherController.getTargets()[0].getDevice().getScheduler() != scheduler;
+
+        GenerateConfig conflict = new GenerateConfig();
+        conflict.addTarget(1, ioTarget("disk", 2, 0));
+        conflict.addTarget(2, ioTarget("disk", 3, 0));
+        try {
+            new Controller(conflict.config(), folder.getRoot().toString());
+            assert false;
+        } catch (IllegalArgumentException ex) {
+            assert ex.getMessage().contains("'io'");
+        }
+    }
+
+    @Test
+    public void testFileStoreGroup()
+    {
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1, ioTarget(null, 2, 0));
+        gc.addTarget(2, ioTarget(null, 2, 1));
+        JsonObject device = new JsonObject();
+        device.put("defaultPath", folder.getRoot().toString());
+        JsonObject target = new JsonObject();
+        target.put("device", device);
+        gc.addTarget(3, target);
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+
+        // devices on one file store share a scheduler, also one without limits of its own
+        IoScheduler scheduler = controller.getTargets()[0].getDevice().getScheduler();
+        assert !scheduler.isUnlimited();
+        assert controller.getTargets()[1].getDevice().getScheduler() == scheduler;
+        assert controller.getTargets()[2].getDevice().getScheduler() == scheduler;
+    }
+
+    @Test
+    public void testNestedOvershootBounded() throws Exception
+    {
+        IoScheduler scheduler = new IoScheduler(1, 1, 1);
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger reads = new AtomicInteger();
+        AtomicInteger maxHolders = new AtomicInteger();
+        AtomicInteger maxReads = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < 32; ++i) {
+                int kind = i % 2 == 0 ? IoScheduler.READ : IoScheduler.METADATA;
+                tasks.add(pool.submit(() -> {
+                    // a read nested in a read (same order) or in a metadata operation (out of order)
+                    try (IoScheduler.Permit first = scheduler.acquire(kind)) {
+                        maxHolders.accumulateAndGet(holders.incrementAndGet(), Math::max);
+                        int outer = kind == IoScheduler.READ ? 1 : 0;
+                        reads.addAndGet(outer);
+                        try (IoScheduler.Permit nested = scheduler.acquire(IoScheduler.READ)) {
+                            maxReads.accumulateAndGet(reads.incrementAndGet(), Math::max);
+                            Thread.sleep(5);
+                            reads.addAndGet(-1 - outer);
+                        }
+                        holders.decrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        // first operations of threads never exceed the limits (a read and a metadata operation),
+        // nested reads exceed the read limit at most by one for each of these threads
+        assert maxHolders.get() <= 2;
+        assert maxReads.get() <= 1 + 2;
+    }
+}
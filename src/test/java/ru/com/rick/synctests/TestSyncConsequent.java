@@ -6,13 +6,25 @@
  */
 package ru.com.rick.synctests;
 
+import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import ru.com.rick.sync.Controller;
+import ru.com.rick.sync.FileListContainer;
+import ru.com.rick.sync.ProgressMonitor;
 import ru.com.rick.sync.SyncElement;
 import ru.com.rick.sync.SyncList;
+import ru.com.rick.sync.SyncResult;
+import ru.com.rick.sync.list.FileList;
+import ru.com.rick.sync.run.DefaultRunner;
+import ru.com.rick.sync.run.PipelinedRunner;
 
 /**
  *
@@ -44,6 +56,114 @@ public class TestSyncConsequent
         return list;
     }
 
+    private Map<Path, Integer> runPipelined(TemporaryFolder root, boolean pipelined, Map<Path, Integer> synced)
+    {
+        GenerateFiles gf = new GenerateFiles(root);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateFile(1, "test.txt", "source", gf.getTime(-100));
+        gf.generateFile(2, "test.txt", "target1", gf.getTime(-200));
+        gf.generateDir(2, "common");
+        gf.generateFile(2, "common/old.txt", "old", gf.getTime(-1000));
+        for (int i = 0; i < 3; ++i) {
+            gf.generateDir(1, "folder" + i);
+            gf.generateDir(1, "folder" + i + "/sub");
+            for (int j = 0; j < 3; ++j) {
+                gf.generateFile(1, "folder" + i + "/sub/in" + j + ".txt", "in" + i + j, gf.getTime(-1000));
+            }
+        }
+        gf.generateDir(1, "common");
+        gf.generateFile(1, "common/new.txt", "new", gf.getTime(-1000));
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("pipelineQueueSize", 2);
+        gc.config().put("scanThreads", 2);
+
+        ProgressMonitor monitor = new ProgressMonitor()
+        {
+            @Override
+            public void onElementSync(SyncList list, SyncElement element, int count, SyncResult[] results)
+            {
+                synced.put(element.getPath(), results != null && results[1].isUpdated() ? 1 : 0);
+            }
+        };
+        Map<Path, Integer> scanned = new HashMap<>();
+        Controller controller = new Controller(gc.config(), root.getRoot().toString());
+        DefaultRunner runner;
+        if (pipelined) {
+            runner = new PipelinedRunner(controller, monitor)
+            {
+                @Override
+                protected void onAfterScan(SyncList list, SyncResult[] results)
+                {
+                    results[1].getSubResults().forEach((k, v) -> scanned.put(k, v.getValue()));
+                }
+            };
+        } else {
+            runner = new DefaultRunner(controller, monitor)
+            {
+                @Override
+                protected void onAfterScan(SyncList list, SyncResult[] results)
+                {
+                    results[1].getSubResults().forEach((k, v) -> scanned.put(k, v.getValue()));
+                }
+            };
+        }
+        assert runner.run(true);
+        assert gf.read(2, "folder2/sub/in1.txt").equals("in21");
+        assert gf.read(2, "common/new.txt").equals("new");
+        return scanned;
+    }
+
+    @Test
+    public void testPipelinedRunnerMatchesDefault() throws IOException
+    {
+        TemporaryFolder other = new TemporaryFolder();
+        other.create();
+        try {
+            Map<Path, Integer> pipelinedSynced = new HashMap<>();
+            Map<Path, Integer> defaultSynced = new HashMap<>();
+            Map<Path, Integer> pipelinedScanned = runPipelined(folder, true, pipelinedSynced);
+            Map<Path, Integer> defaultScanned = runPipelined(other, false, defaultSynced);
+
+            // the same scan results, directories created whole are not synced again
+            assert pipelinedScanned.equals(defaultScanned);
+            assert pipelinedSynced.equals(defaultSynced);
+            assert pipelinedSynced.get(Paths.get("folder1")) == 1;
+            assert pipelinedSynced.get(Paths.get("folder1/sub")) == 0;
+            assert pipelinedSynced.get(Paths.get("folder1/sub/in2.txt")) == 0;
+            assert pipelinedSynced.get(Paths.get("common/new.txt")) == 1;
+
+            FileList pipelinedList = new FileListContainer(new Controller(new GenerateConfig().config(), folder.getRoot().toString()).getDefaultRoot(), folder.getRoot().toPath().resolve("filelist.json"), true).getList();
+            FileList defaultList = new FileListContainer(new Controller(new GenerateConfig().config(), other.getRoot().toString()).getDefaultRoot(), other.getRoot().toPath().resolve("filelist.json"), true).getList();
+            assert new HashSet<>(pipelinedList.getPaths()).equals(new HashSet<>(defaultList.getPaths()));
+        } finally {
+            other.delete();
+        }
+    }
+
+    @Test
+    public void testPipelinedRunnerOptions()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateFile(1, "test.txt", "source", gf.getTime(-100));
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("syncThreads", 2);
+        assert !new PipelinedRunner(new Controller(gc.config(), folder.getRoot().toString())).run(true);
+
+        gc.config().remove("syncThreads");
+        gc.config().put("detectMoves", true);
+        assert !new PipelinedRunner(new Controller(gc.config(), folder.getRoot().toString())).run(true);
+        assert !Files.exists(gf.path(2, "test.txt"));
+    }
+
     @Test
     public void testReplaceByModifiedTime()
     {
@@ -70,4 +190,44 @@ public class TestSyncConsequent
         assert gf.read(gf.currentBackup("backup").resolve("test.txt")).equals("target1");
     }
 
+    @Test
+    public void testPipelinedRunner()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(3);
+        gf.generateFile(1, "test.txt", "source", gf.getTime(-100));
+        gf.generateFile(2, "test.txt", "target1", gf.getTime(-200));
+        for (int i = 0; i < 5; ++i) {
+            gf.generateDir(1, "folder" + i);
+            gf.generateDir(1, "folder" + i + "/sub");
+            for (int j = 0; j < 5; ++j) {
+                gf.generateFile(1, "folder" + i + "/sub/in" + j + ".txt", "in" + i + j, gf.getTime(-1000));
+            }
+        }
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.addTarget(3);
+        gc.config().put("pipelineQueueSize", 2);
+        gc.config().put("scanThreads", 2);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        PipelinedRunner runner = new PipelinedRunner(controller);
+        boolean result = runner.run(true);
+
+        assert result;
+        assert Files.exists(gf.path("filelist.json"));
+        assert gf.read(2, "test.txt").equals("source");
+        assert gf.read(3, "test.txt").equals("source");
+        assert gf.read(3, "folder4/sub/in3.txt").equals("in43");
+        assert gf.read(gf.currentBackup("backup").resolve("test.txt")).equals("target1");
+
+        FileListContainer flc = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.json"), true);
+        FileList fl = flc.getList();
+        assert fl.getPaths().size() == 36;
+        assert fl.get("folder2/sub/in1.txt").getCurrentVersion() != null;
+    }
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2022 Rick.
+ *
+ * This file is a part of a project 'MultiSync'.
+ * For license information see the project licence.
+ */
+package ru.com.rick.synctests;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ru.com.rick.sync.Controller;
+import ru.com.rick.sync.ProgressMonitor;
+import ru.com.rick.sync.SyncElement;
+import ru.com.rick.sync.SyncList;
+import ru.com.rick.sync.SyncResult;
+import ru.com.rick.sync.fs.IoScheduler;
+import ru.com.rick.sync.json.JsonObject;
+import ru.com.rick.sync.run.DefaultRunner;
+
+/**
+ *
+ * @author Rick
+ */
+public class TestSyncParallel
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void generateTree(GenerateFiles gf, int index, String prefix)
+    {
+        generateTree(gf, index, prefix, prefix, gf.getTime(-100));
+    }
+
+    private void generateTree(GenerateFiles gf, int index, String name, String prefix, long mtime)
+    {
+        for (int i = 0; i < 4; ++i) {
+            gf.generateDir(index, "dir" + i);
+            for (int j = 0; j < 3; ++j) {
+                gf.generateDir(index, "dir" + i + "/sub" + j);
+                gf.generateFile(index, "dir" + i + "/sub" + j + "/" + name + ".txt", prefix + i + j, mtime);
+            }
+            gf.generateFile(index, "dir" + i + "/" + name + ".txt", prefix + i, mtime);
+        }
+    }
+
+    @Test
+    public void testParallelScan()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(3);
+        generateTree(gf, 1, "a");
+        generateTree(gf, 2, "b");
+        generateTree(gf, 3, "c");
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.addTarget(3);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        SyncList serial = new SyncList(controller.getTargets());
+        SyncResult[] serialResults = serial.addAllTargets(true);
+        SyncList parallel = new SyncList(controller.getTargets());
+        SyncResult[] parallelResults = parallel.addAllTargets(true, 4, 2);
+
+        assert serial.size() == parallel.size();
+        assert new HashSet<>(serial.getPaths()).equals(new HashSet<>(parallel.getPaths()));
+        for (SyncElement element : parallel.getElements()) {
+            SyncElement expected = serial.get(element.getPath());
+            if (expected.getParent() instanceof SyncElement) {
+                assert ((SyncElement)element.getParent()).getPath().equals(((SyncElement)expected.getParent()).getPath());
+            } else {
+                assert !(element.getParent() instanceof SyncElement);
+            }
+        }
+        for (int i = 0; i < serialResults.length; ++i) {
+            assert serialResults[i].getValue() == parallelResults[i].getValue();
+            assert serialResults[i].getSubResults().keySet().equals(parallelResults[i].getSubResults().keySet());
+        }
+    }
+
+    @Test
+    public void testParallelScanRun()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        generateTree(gf, 1, "a");
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("scanThreads", 4);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        DefaultRunner runner = new DefaultRunner(controller);
+        boolean result = runner.run(true);
+
+        assert result;
+        assert Files.exists(gf.path("filelist.json"));
+        assert gf.read(2, "dir3/sub2/a.txt").equals("a32");
+        assert gf.read(2, "dir0/a.txt").equals("a0");
+    }
+
+    @Test
+    public void testParallelSync()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(3);
+        generateTree(gf, 1, "f", "source", gf.getTime(-100));
+        generateTree(gf, 2, "f", "target", gf.getTime(-200));
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.addTarget(3);
+        gc.config().put("scanThreads", 4);
+        gc.config().put("syncThreads", 4);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        DefaultRunner runner = new DefaultRunner(controller);
+        boolean result = runner.run(true);
+
+        assert result;
+        assert Files.exists(gf.path("filelist.json"));
+        for (int index = 1; index <= 3; ++index) {
+            for (int i = 0; i < 4; ++i) {
+                for (int j = 0; j < 3; ++j) {
+                    assert gf.read(index, "dir" + i + "/sub" + j + "/f.txt").equals("source" + i + j);
+                }
+                assert gf.read(index, "dir" + i + "/f.txt").equals("source" + i);
+            }
+        }
+        assert gf.read(gf.currentBackup("backup").resolve("dir2/sub1/f.txt")).equals("target21");
+    }
+
+    @Test
+    public void testParallelSyncFailure()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(3);
+        generateTree(gf, 1, "f", "source", gf.getTime(-100));
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.addTarget(3);
+        gc.config().put("syncThreads", 4);
+
+        ProgressMonitor monitor = new ProgressMonitor()
+        {
+            @Override
+            public void onElementSync(SyncList list, SyncElement element, int count, SyncResult[] results)
+            {
+                if (element.getPath().equals(Paths.get("dir1"))) {
+                    throw new IllegalStateException("failure of one element");
+                }
+            }
+        };
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        DefaultRunner runner = new DefaultRunner(controller, monitor);
+        boolean result = runner.run(true);
+
+        assert result;
+        for (int index = 2; index <= 3; ++index) {
+            for (int i = 0; i < 4; ++i) {
+                for (int j = 0; j < 3; ++j) {
+                    assert gf.read(index, "dir" + i + "/sub" + j + "/f.txt").equals("source" + i + j);
+                }
+                assert gf.read(index, "dir" + i + "/f.txt").equals("source" + i);
+            }
+        }
+    }
+
+    @Test
+    public void testIoScheduler()
+    {
+        IoScheduler scheduler = new IoScheduler(1, 1, 1);
+        try (IoScheduler.Permit read = scheduler.acquire(IoScheduler.READ)) {
+            try (IoScheduler.Permit nested = scheduler.acquire(IoScheduler.READ)) {
+                assert nested != null; // nested permit does not wait
+            }
+        }
+
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(3);
+        generateTree(gf, 1, "f", "source", gf.getTime(-100));
+        generateTree(gf, 2, "f", "target", gf.getTime(-200));
+
+        JsonObject io = new JsonObject();
+        io.put("group", "testIoScheduler");
+        io.put("reads", 1);
+        io.put("writes", 1);
+        io.put("metadata", 2);
+        GenerateConfig gc = new GenerateConfig();
+        for (int index = 1; index <= 3; ++index) {
+            JsonObject device = new JsonObject();
+            device.put("defaultPath", folder.getRoot().toString());
+            device.put("io", io);
+            JsonObject target = new JsonObject();
+            target.put("device", device);
+            gc.addTarget(index, target);
+        }
+        gc.config().put("scanThreads", 4);
+        gc.config().put("syncThreads", 4);
+        gc.config().put("fanOutCopy", true);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        DefaultRunner runner = new DefaultRunner(controller);
+        boolean result = runner.run(true);
+
+        assert result;
+        for (int index = 1; index <= 3; ++index) {
+            for (int i = 0; i < 4; ++i) {
+                for (int j = 0; j < 3; ++j) {
+                    assert gf.read(index, "dir" + i + "/sub" + j + "/f.txt").equals("source" + i + j);
+                }
+                assert gf.read(index, "dir" + i + "/f.txt").equals("source" + i);
+            }
+        }
+    }
+}
@@ -6,16 +6,45 @@
  */
 package ru.com.rick.synctests;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import ru.com.rick.sync.Controller;
 import ru.com.rick.sync.FileListContainer;
+import ru.com.rick.sync.SyncTarget;
+import ru.com.rick.sync.fs.Device;
+import ru.com.rick.sync.fs.FileEntry;
 import ru.com.rick.sync.fs.FileProperties;
+import ru.com.rick.sync.fs.FileSystemDevice;
+import ru.com.rick.sync.fs.FileVersion;
+import ru.com.rick.sync.fs.HashCache;
+import ru.com.rick.sync.fs.HashAlgorithm;
+import ru.com.rick.sync.fs.PathFilter;
+import ru.com.rick.sync.fs.PathOptions;
+import ru.com.rick.sync.fs.PathTrie;
+import ru.com.rick.sync.fs.Segment;
+import ru.com.rick.sync.fs.TransferEngine;
+import ru.com.rick.sync.json.JsonArray;
 import ru.com.rick.sync.json.JsonObject;
 import ru.com.rick.sync.list.FileHistory;
 import ru.com.rick.sync.list.FileList;
+import ru.com.rick.sync.list.FileListFormat;
 import ru.com.rick.sync.run.DefaultRunner;
 
 /**
@@ -91,6 +120,7 @@ public class TestSyncSimple
         JsonObject listConfig = new JsonObject();
         listConfig.put("path", "filelist.json");
         listConfig.put("requireHash", true);
+        listConfig.put("maxVersions", 5);
 
         GenerateConfig gc = new GenerateConfig();
         gc.addTarget(1);
@@ -116,4 +146,567 @@ public class TestSyncSimple
         assert history.getCurrentVersion().isSameVersion(props);
         assert history.getCurrentVersion().getHash().equals("36cd38f49b9afa08222c0dc9ebfe35eb");
     }
+
+    @Test
+    public void testFileListHashAlgorithm()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateFile(1, "test.txt", "source", gf.getTime(-100));
+
+        JsonObject listConfig = new JsonObject();
+        listConfig.put("path", "filelist.json");
+        listConfig.put("requireHash", true);
+        listConfig.put("maxVersions", 5);
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("list", listConfig);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+
+        gc.config().put("hashAlgorithm", "xxh64");
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+
+        FileListContainer flc = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.json"), true);
+        FileHistory history = flc.getList().get("test.txt");
+        assert history != null;
+        assert history.getCurrentVersion().getHashAlgorithm() == HashAlgorithm.XXH64;
+        assert history.getCurrentVersion().getHash().equals("6e8510db31a284ab");
+        assert gf.read(2, "test.txt").equals("source");
+    }
+
+    @Test
+    public void testCompactHash()
+    {
+        String[][] hashes = {
+            {"md5", "47bce5c74f589f4867dbd57e9ca9f808"},
+            {"sha256", "00a1b2c3d4e5f60718293a4b5c6d7e8f90a1b2c3d4e5f60718293a4b5c6d7e8f"},
+            {"crc32", "0000f00d"},
+            {"xxh64", "6e8510db31a284ab"},
+            {"md5", "ABCDEF"}, // not lowercase hex
+            {"md5", "abc"}, // odd length
+            {"md5", "xyz0"},
+            {"md5", ""},
+            {"sha256", String.join("", Collections.nCopies(40, "0f1e2d3c"))} // longer than 127 bytes
+        };
+        for (String[] hash : hashes) {
+            JsonObject json = new JsonObject();
+            json.put("sync", 1600000000L);
+            json.put("modified", 1600000000L);
+            json.put("size", 6L);
+            json.put(hash[0], hash[1]);
+            FileVersion version = new FileVersion(json, 0);
+            assert version.hasHash();
+            assert version.getHash().equals(hash[1]);
+            assert version.getHashAlgorithm().getName().equals(hash[0]);
+            assert version.toJson(0, false).equals(json);
+
+            FileVersion copy = new FileVersion(version);
+            assert copy.getHash().equals(hash[1]);
+            assert copy.getHashAlgorithm() == version.getHashAlgorithm();
+            assert copy.exists() && !copy.isDir();
+            assert copy.getModifiedTime() == version.getModifiedTime() && copy.getFileSize() == version.getFileSize();
+            assert copy.isSameVersion(version) && version.isSameVersion(copy);
+            assert copy.isEqualTo(version, true, true);
+
+            json.put(hash[0], hash[1].isEmpty() ? "00" : hash[1].substring(1) + "0");
+            FileVersion other = new FileVersion(json, 0);
+            assert !other.isSameVersion(version) && !version.isEqualTo(other, true, true);
+        }
+
+        JsonObject json = new JsonObject();
+        json.put("sync", 1600000000L);
+        json.put("dir", true);
+        FileVersion copy = new FileVersion(new FileVersion(json, 0));
+        assert copy.exists() && copy.isDir() && !copy.hasHash() && copy.getHash() == null;
+        json = new JsonObject();
+        json.put("exists", false);
+        copy = new FileVersion(new FileVersion(json, 0));
+        assert !copy.exists() && !copy.isDir();
+    }
+
+    @Test
+    public void testHashCache()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateFile(1, "test.txt", "source", gf.getTime(-100));
+        gf.generateFile(1, "other.txt", "other", gf.getTime(-100));
+
+        JsonObject listConfig = new JsonObject();
+        listConfig.put("path", "filelist.json");
+        listConfig.put("hashCache", "hashcache.json");
+        listConfig.put("requireHash", true);
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("list", listConfig);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        assert Files.exists(gf.path("hashcache.json"));
+        assert controller.getFileListContainer().getHashCache().getHits() == 0;
+
+        gf.writeFile(1, "test.txt", "changed", gf.getTime(-50));
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        HashCache cache = controller.getFileListContainer().getHashCache();
+        assert cache.getHits() > 0;
+        assert cache.getMisses() > 0;
+        assert gf.read(2, "test.txt").equals("changed");
+        assert !Files.exists(gf.path(1, "hashcache.json"));
+
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        cache = controller.getFileListContainer().getHashCache();
+        assert cache.getHits() > 0;
+        assert cache.getMisses() == 0;
+
+        FileListContainer flc = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.json"), true);
+        FileHistory history = flc.getList().get("test.txt");
+        assert history.getCurrentVersion().getHash().equals("8977dfac2f8e04cb96e66882235f5aba");
+    }
+
+    @Test
+    public void testHashChangeDetection()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateFile(1, "test.txt", "source1", gf.getTime(-100));
+
+        JsonObject listConfig = new JsonObject();
+        listConfig.put("path", "filelist.json");
+        listConfig.put("requireHash", true);
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("list", listConfig);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        assert gf.read(2, "test.txt").equals("source1");
+
+        // same size and modified time, only the hash shows the change
+        gf.writeFile(2, "test.txt", "source2", gf.getTime(-100));
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        assert gf.read(1, "test.txt").equals("source2");
+    }
+
+    @Test
+    public void testBinaryFileList() throws Exception
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(1, "folder");
+        gf.generateFile(1, "test.txt", "source", gf.getTime(-100));
+        gf.generateFile(1, "folder/in1.txt", "aaa", gf.getTime(-100));
+        gf.generateFile(1, "folder/in2.txt", "bbb", gf.getTime(-100));
+
+        JsonObject listConfig = new JsonObject();
+        listConfig.put("path", "filelist.bin");
+        listConfig.put("format", "binary");
+        listConfig.put("requireHash", true);
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("list", listConfig);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        assert new String(Files.readAllBytes(gf.path("filelist.bin")), StandardCharsets.ISO_8859_1).startsWith("MSBL");
+
+        FileListFormat.convert(gf.path("filelist.bin"), gf.path("filelist.json"), FileListFormat.fromName("json", true));
+        FileListFormat.convert(gf.path("filelist.json"), gf.path("converted.bin"), FileListFormat.fromName("binary", false));
+        Object binary = readList(gf.path("filelist.bin"));
+        assert binary.equals(readList(gf.path("filelist.json")));
+        assert binary.equals(readList(gf.path("converted.bin")));
+
+        // entries are streamed, the result is the same as for a whole tree
+        FileListFormat format = FileListFormat.fromName("binary", true);
+        FileList streamed;
+        try (InputStream in = Files.newInputStream(gf.path("filelist.bin"))) {
+            streamed = format.readList(in, true, 0);
+        }
+        FileList parsed = FileListFormat.createList(binary, true, 0);
+        assert streamed.toJson(-1, false).toJSONString().equals(parsed.toJson(-1, false).toJSONString());
+        try (OutputStream out = Files.newOutputStream(gf.path("tree.bin"))) {
+            format.write(parsed.toJson(-1, false), out);
+        }
+        try (InputStream in = Files.newInputStream(gf.path("tree.bin"))) {
+            assert format.readList(in, true, 0).toJson(-1, false).toJSONString().equals(parsed.toJson(-1, false).toJSONString());
+        }
+
+        FileListContainer flc = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.bin"), true);
+        FileHistory history = flc.getList().get("folder/in1.txt");
+        assert history.getCurrentVersion().getHash().equals("47bce5c74f589f4867dbd57e9ca9f808");
+
+        Files.delete(gf.path(2, "folder/in1.txt"));
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        assert !Files.exists(gf.path(1, "folder/in1.txt"));
+        assert gf.read(1, "folder/in2.txt").equals("bbb");
+    }
+
+    @Test
+    public void testStreamingFileList() throws Exception
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(1, "folder");
+        gf.generateFile(1, "test.txt", "source", gf.getTime(-100));
+        gf.generateFile(1, "folder/in1.txt", "aaa", gf.getTime(-100));
+        gf.generateFile(1, "folder/in2.txt", "bbb", gf.getTime(-100));
+
+        JsonObject listConfig = new JsonObject();
+        listConfig.put("path", "filelist.json");
+        listConfig.put("requireHash", true);
+        listConfig.put("maxVersions", 5);
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("list", listConfig);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        gf.writeFile(2, "folder/in1.txt", "ccc", gf.getTime(-50));
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        assert gf.read(1, "folder/in1.txt").equals("ccc");
+
+        FileList streamed;
+        try (InputStream in = Files.newInputStream(gf.path("filelist.json"))) {
+            streamed = FileListFormat.readAnyList(in, true, 0);
+        }
+        FileList parsed = FileListFormat.createList(readList(gf.path("filelist.json")), true, 0);
+        assert streamed.toJson(-1, false).toJSONString().equals(parsed.toJson(-1, false).toJSONString());
+        assert streamed.get("folder/in1.txt").getHistoryVersions().length == 1;
+
+        FileListFormat format = FileListFormat.fromName("json", true);
+        try (OutputStream out = Files.newOutputStream(gf.path("streamed.json"))) {
+            format.writeList(streamed, -1, false, out);
+        }
+        try (OutputStream out = Files.newOutputStream(gf.path("parsed.json"))) {
+            format.write(parsed.toJson(-1, false), out);
+        }
+        assert Arrays.equals(Files.readAllBytes(gf.path("streamed.json")), Files.readAllBytes(gf.path("parsed.json")));
+    }
+
+    private byte[] transferData(int size)
+    {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            data[i] = (byte)(i * 31 + i / 1000);
+        }
+        return data;
+    }
+
+    @Test
+    public void testTransferEngine() throws IOException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        byte[] data = transferData(TransferEngine.BUFFER_SIZE * 2 + 12345);
+        Files.write(gf.path(1, "source.bin"), data);
+
+        // file to file by the file system
+        TransferEngine engine = new TransferEngine(1024);
+        assert engine.isChannelTransfer(data.length) && !engine.isChannelTransfer(-1);
+        try (FileChannel in = FileChannel.open(gf.path(1, "source.bin"), StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(gf.path(1, "channel.bin"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            assert engine.transfer(in, out, data.length) == data.length;
+        }
+        assert Arrays.equals(Files.readAllBytes(gf.path(1, "channel.bin")), data);
+
+        // stream to file by the file system, the size less than actual is completed by buffers
+        try (FileChannel out = FileChannel.open(gf.path(1, "from.bin"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            assert engine.transfer(Channels.newChannel(new ByteArrayInputStream(data)), out, data.length - 5000) == data.length;
+        }
+        assert Arrays.equals(Files.readAllBytes(gf.path(1, "from.bin")), data);
+        assert engine.getTransferredBytes() == 2L * data.length;
+
+        // buffered copy of an unknown size and below the threshold
+        TransferEngine buffered = new TransferEngine(Long.MAX_VALUE);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (FileChannel in = FileChannel.open(gf.path(1, "source.bin"), StandardOpenOption.READ)) {
+            assert buffered.transfer(in, Channels.newChannel(stream), -1) == data.length;
+        }
+        assert Arrays.equals(stream.toByteArray(), data);
+        stream.reset();
+        assert buffered.transfer(Channels.newChannel(new ByteArrayInputStream(data, 0, 100)), Channels.newChannel(stream), 100) == 100;
+        assert Arrays.equals(stream.toByteArray(), Arrays.copyOf(data, 100));
+        assert buffered.getTransferredBytes() == data.length + 100;
+    }
+
+    @Test
+    public void testTransferThreshold() throws IOException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        byte[] data = transferData(100000);
+        Files.write(gf.path(1, "large.bin"), data);
+        gf.generateFile(1, "small.txt", "small", gf.getTime(-100));
+
+        // copied by the source device
+        GenerateConfig gc = new GenerateConfig();
+        JsonObject device = new JsonObject();
+        device.put("defaultPath", folder.getRoot().toString());
+        device.put("transferThreshold", "64K");
+        JsonObject target = new JsonObject();
+        target.put("device", device);
+        gc.addTarget(1, target);
+        gc.addTarget(2);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        TransferEngine engine = controller.getTargets()[0].getDevice().getTransferEngine();
+        assert engine.getChannelThreshold() == 64 * 1024;
+        assert new DefaultRunner(controller).run(true);
+
+        assert Arrays.equals(Files.readAllBytes(gf.path(2, "large.bin")), data);
+        assert Files.getLastModifiedTime(gf.path(2, "large.bin")).toMillis() == Files.getLastModifiedTime(gf.path(1, "large.bin")).toMillis();
+        assert gf.read(2, "small.txt").equals("small");
+        assert engine.getTransferredBytes() == data.length; // the small file is copied by the file system
+    }
+
+    private Object readList(Path path) throws Exception
+    {
+        try (InputStream in = Files.newInputStream(path)) {
+            return FileListFormat.readAny(in);
+        }
+    }
+
+    @Test
+    public void testIgnoreLiteralBrackets()
+    {
+        GenerateFiles gf = syncFiltered("ignore", "Photos [2019]");
+        assert Files.exists(gf.path(2, "top.txt"));
+        assert Files.exists(gf.path(2, "a/b/x.txt"));
+        assert !Files.exists(gf.path(2, "Photos [2019]"));
+        assert Files.exists(gf.path(2, "Photos 1/p.jpg")); // not a glob set without a prefix
+    }
+
+    @Test
+    public void testIncludeGlob()
+    {
+        GenerateFiles gf = syncFiltered("include", "glob:a/b/*.txt");
+        assert gf.read(2, "a/b/x.txt").equals("x");
+        assert !Files.exists(gf.path(2, "a/y.jpg"));
+        assert !Files.exists(gf.path(2, "c"));
+        assert !Files.exists(gf.path(2, "top.txt"));
+    }
+
+    @Test
+    public void testIncludeAnyDepthGlob()
+    {
+        GenerateFiles gf = syncFiltered("include", "glob:**/*.txt");
+        assert gf.read(2, "a/b/x.txt").equals("x");
+        assert gf.read(2, "c/z.txt").equals("z");
+        assert gf.read(2, "top.txt").equals("top");
+        assert !Files.exists(gf.path(2, "a/y.jpg"));
+        assert !Files.exists(gf.path(2, "Photos 1/p.jpg"));
+    }
+
+    @Test
+    public void testIgnoreGlob()
+    {
+        GenerateFiles gf = syncFiltered("ignore", "glob:**/*.jpg", "glob:c");
+        assert gf.read(2, "a/b/x.txt").equals("x");
+        assert gf.read(2, "top.txt").equals("top");
+        assert !Files.exists(gf.path(2, "a/y.jpg"));
+        assert !Files.exists(gf.path(2, "c"));
+        assert !Files.exists(gf.path(2, "Photos 1/p.jpg"));
+    }
+
+    @Test
+    public void testRegexFilters()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        generateFilterFiles(gf);
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("include", new JsonArray(Arrays.asList("regex:a/.*", "regex:[^/]*\\.txt")));
+        gc.config().put("ignore", new JsonArray(Arrays.asList("regex:.*\\.jpg")));
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+
+        assert gf.read(2, "a/b/x.txt").equals("x");
+        assert gf.read(2, "top.txt").equals("top");
+        assert !Files.exists(gf.path(2, "a/y.jpg"));
+        assert !Files.exists(gf.path(2, "c/z.txt"));
+        assert !Files.exists(gf.path(2, "Photos 1/p.jpg"));
+        assert Files.exists(gf.path(1, "c/z.txt"));
+    }
+
+    @Test
+    public void testOptionSnapshots()
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+
+        JsonObject local = new JsonObject();
+        local.put("compareSizeLimit", "2K");
+        local.put("compareLevel", "hash");
+        local.put("hashAlgorithm", "crc32");
+        local.put("priority", 5);
+        local.put("readOnly", true);
+        local.put("delete", false);
+        local.put("preferNewer", false);
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1, local);
+        gc.addTarget(2);
+        gc.config().put("compareSizeLimit", "1M");
+        gc.config().put("compareSampleBlocks", 4);
+        gc.config().put("compareSampleSize", "32K");
+        gc.config().put("useCreatedTime", false);
+        gc.config().put("followSymLinks", false);
+        gc.config().put("createRoot", false);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        for (SyncTarget target : controller.getTargets()) {
+            boolean isLocal = target.getRoot().getRootPath().equals(gf.path(1, ""));
+            PathOptions.Snapshot paths = target.getRoot().getOptionsSnapshot();
+            assert paths.getCompareSizeLimit() == (isLocal ? 2048 : 1024 * 1024);
+            assert paths.getCompareLevel() == (isLocal ? FileEntry.COMPARE_LEVEL_HASH : FileEntry.COMPARE_LEVEL_MIXED);
+            assert paths.getHashAlgorithm() == (isLocal ? HashAlgorithm.CRC32 : HashAlgorithm.DEFAULT);
+            assert paths.getCompareSampleBlocks() == 4;
+            assert paths.getCompareSampleSize() == 32 * 1024;
+            assert !paths.useCreatedTime() && paths.useModifiedTime() && paths.useHash();
+            assert !paths.followSymLinks() && !paths.writeToSymLinks(); // depends on followSymLinks
+            assert paths.compareModifiedTime();
+
+            SyncTarget.Options.Snapshot sync = target.getOptionsSnapshot();
+            assert sync.getPriority() == (isLocal ? 5 : 0);
+            assert sync.isReadOnly() == isLocal;
+            assert sync.isRequired() == !isLocal; // depends on readOnly
+            assert sync.allowDelete() == !isLocal && sync.allowDeleteDir() == !isLocal; // deleteDir depends on delete
+            assert sync.preferNewer() == !isLocal;
+            assert !sync.createRoot();
+            assert sync.allowCreate() && sync.allowReplace() && sync.isSource() && sync.isBackup();
+        }
+
+        JsonObject disabled = new JsonObject();
+        disabled.put("compareSizeLimit", false);
+        PathOptions.Snapshot snapshot = new PathOptions(disabled, null).compile();
+        assert snapshot.getCompareSizeLimit() == 0;
+        disabled.put("compareSizeLimit", 1000);
+        assert new PathOptions(disabled, null).compile().getCompareSizeLimit() == 1000;
+        assert snapshot.getCompareSizeLimit() == 0; // not changed by later JSON changes
+    }
+
+    @Test
+    public void testFilterStatesPerDirectory()
+    {
+        Device device = new FileSystemDevice();
+        PathFilter filter = new PathFilter();
+        filter.addPaths(new String[]{"Photos [2019]", "glob:a/*/*.txt", "glob:**/*.jpg", "regex:c/[^/]*\\.log"}, device);
+        PathTrie trie = new PathTrie();
+        String[] paths = {"top.txt", "a", "a/b", "a/b/x.txt", "a/b/x.bin", "a/x.txt", "a/b/c/y.jpg", "Photos [2019]",
+            "Photos [2019]/p.png", "Photos 1", "c", "c/z.log", "c/d", "c/d/z.log"};
+        for (String p : paths) {
+            PathTrie.Node node = trie.intern(Paths.get(p));
+            // state of each path is advanced from the state kept for its parent directory
+            PathFilter.State state = filter.next(filter.getState(node.getParent()), node);
+            assert state.isMatched() == filter.containsPath(Paths.get(p)) : p;
+            assert state.isMatched() == filter.containsPath(node) : p;
+        }
+        assert filter.getState(trie.intern(Paths.get("a/b/x.txt"))).isMatched();
+        assert !filter.getState(trie.intern(Paths.get("a/b/x.bin"))).isMatched();
+        assert filter.getState(trie.intern(Paths.get("c/z.log"))).isMatched();
+        assert !filter.getState(trie.intern(Paths.get("c/d/z.log"))).isMatched();
+        assert filter.getState(trie.intern(Paths.get("Photos [2019]/p.png"))).isMatched();
+        assert !filter.getState(trie.intern(Paths.get("top.txt"))).isMatched();
+        assert filter.mayContainPath(filter.getState(trie.intern(Paths.get("a"))));
+    }
+
+    @Test
+    public void testListFilesWithAttributes() throws IOException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(1, "dir");
+        gf.generateFile(1, "a.txt", "abc", gf.getTime(-100));
+        Files.createSymbolicLink(gf.path(1, "link.txt"), gf.path(1, "a.txt"));
+        Files.createSymbolicLink(gf.path(1, "broken.txt"), gf.path(1, "missing.txt"));
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        Segment root = controller.getDefaultRoot();
+        Device device = root.getDevice();
+
+        Map<Path, BasicFileAttributes> files = device.listFilesWithAttributes(gf.path(1, ""));
+        assert files.size() == 4;
+        assert files.get(gf.path(1, "dir")).isDirectory();
+        assert files.get(gf.path(1, "a.txt")).isRegularFile();
+        assert files.get(gf.path(1, "a.txt")).size() == 3;
+        assert files.get(gf.path(1, "link.txt")).size() == 3; // links are followed
+        assert files.containsKey(gf.path(1, "broken.txt"));
+        assert files.get(gf.path(1, "broken.txt")) == null;
+
+        // properties come from the listing, not from the file
+        FileEntry entry = new FileEntry(root, PathTrie.detached(Paths.get("sync1", "a.txt")), files.get(gf.path(1, "a.txt")));
+        gf.writeFile(1, "a.txt", "changed", gf.getTime(-50));
+        assert entry.exists() && !entry.isDir();
+        assert entry.getProperties().getFileSize() == 3;
+        assert entry.getProperties().getModifiedTime() == files.get(gf.path(1, "a.txt")).lastModifiedTime().toMillis();
+
+        assert new DefaultRunner(controller).run(true);
+        assert gf.read(2, "a.txt").equals("changed");
+        assert Files.isDirectory(gf.path(2, "dir"));
+        assert gf.read(2, "link.txt").equals("changed");
+        assert !Files.exists(gf.path(2, "broken.txt"));
+    }
+
+    private void generateFilterFiles(GenerateFiles gf)
+    {
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(1, "a");
+        gf.generateDir(1, "a/b");
+        gf.generateDir(1, "c");
+        gf.generateDir(1, "Photos [2019]");
+        gf.generateDir(1, "Photos 1");
+        gf.generateFile(1, "top.txt", "top", gf.getTime(-100));
+        gf.generateFile(1, "a/b/x.txt", "x", gf.getTime(-100));
+        gf.generateFile(1, "a/y.jpg", "y", gf.getTime(-100));
+        gf.generateFile(1, "c/z.txt", "z", gf.getTime(-100));
+        gf.generateFile(1, "Photos [2019]/p.jpg", "p", gf.getTime(-100));
+        gf.generateFile(1, "Photos 1/p.jpg", "p", gf.getTime(-100));
+    }
+
+    private GenerateFiles syncFiltered(String option, String... paths)
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        generateFilterFiles(gf);
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put(option, new JsonArray(Arrays.asList(paths)));
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        return gf;
+    }
 }
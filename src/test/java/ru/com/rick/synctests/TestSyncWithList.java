@@ -6,13 +6,51 @@
  */
 package ru.com.rick.synctests;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import org.apache.commons.io.IOUtils;
+import org.json.simple.parser.ParseException;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import ru.com.rick.sync.Controller;
+import ru.com.rick.sync.FileListContainer;
+import ru.com.rick.sync.SyncList;
+import ru.com.rick.sync.fs.FanOutCopy;
 import ru.com.rick.sync.fs.FileEntry;
+import ru.com.rick.sync.fs.FileVersion;
+import ru.com.rick.sync.fs.PathTrie;
+import ru.com.rick.sync.json.JsonArray;
+import ru.com.rick.sync.json.JsonObject;
+import ru.com.rick.sync.list.FileHistory;
+import ru.com.rick.sync.list.FileList;
+import ru.com.rick.sync.list.FileListCompression;
+import ru.com.rick.sync.list.FileListFormat;
+import ru.com.rick.sync.list.FileListTarget;
+import ru.com.rick.sync.list.FileVersionCollection;
+import ru.com.rick.sync.list.GlobalFileList;
+import ru.com.rick.sync.list.IndexedFileList;
+import ru.com.rick.sync.list.IndexedFileListFormat;
 import ru.com.rick.sync.run.DefaultRunner;
 
 /**
@@ -121,4 +159,614 @@ public class TestSyncWithList
         assert gf.read(3, "folder/in2.txt").equals("ccc");
         assert gf.read(gf.currentBackup("backup").resolve("folder/in2.txt")).equals("bbb");
     }
+
+    @Test
+    public void testDetectMoves() throws IOException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        prepareFiles();
+
+        Object fileKey = Files.readAttributes(gf.path(1, "folder/in1.txt"), BasicFileAttributes.class).fileKey();
+        Files.move(gf.path(2, "folder"), gf.path(2, "renamed"));
+        Files.move(gf.path(2, "test.txt"), gf.path(2, "moved.txt"));
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.addTarget(3);
+        gc.config().put("detectMoves", true);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        sleep(2000);
+
+        DefaultRunner runner = new DefaultRunner(controller);
+        assert runner.run(true);
+
+        for (int i = 1; i <= 3; ++i) {
+            assert !Files.exists(gf.path(i, "folder"));
+            assert !Files.exists(gf.path(i, "test.txt"));
+            assert gf.read(i, "renamed/in1.txt").equals("aaa");
+            assert gf.read(i, "renamed/in2.txt").equals("bbb");
+            assert gf.read(i, "moved.txt").equals("source");
+        }
+        if (fileKey != null) {
+            assert fileKey.equals(Files.readAttributes(gf.path(1, "renamed/in1.txt"), BasicFileAttributes.class).fileKey());
+        }
+        assert gf.currentBackup("backup") == null;
+    }
+
+    @Test
+    public void testDetectMovesChecksContents() throws IOException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        prepareFiles();
+
+        long mtime = gf.path(1, "test.txt").toFile().lastModified();
+        Files.delete(gf.path(1, "test.txt"));
+        gf.generateFile(1, "other.txt", "SOURCE", mtime); // same size and modified time, different contents
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.addTarget(3);
+        gc.config().put("detectMoves", true);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        sleep(2000);
+
+        DefaultRunner runner = new DefaultRunner(controller);
+        assert runner.run(true);
+
+        for (int i = 1; i <= 3; ++i) {
+            assert !Files.exists(gf.path(i, "test.txt"));
+            assert gf.read(i, "other.txt").equals("SOURCE");
+        }
+        assert gf.read(gf.currentBackup("backup").resolve("test.txt")).equals("source");
+    }
+
+    @Test
+    public void testFanOutCopy() throws IOException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        prepareFiles();
+
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 3 * 1024 * 1024) {
+            big.append("fan-out copy ").append(big.length()).append(' ');
+        }
+        gf.generateFile(1, "big.txt", big.toString(), gf.getTime(-100));
+        gf.writeFile(1, "test.txt", "changed", gf.getTime());
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.addTarget(3);
+        gc.config().put("fanOutCopy", true);
+        gc.config().put("fanOutQueueSize", 1);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        sleep(2000);
+
+        DefaultRunner runner = new DefaultRunner(controller);
+        assert runner.run(true);
+
+        for (int i = 1; i <= 3; ++i) {
+            assert gf.read(i, "big.txt").equals(big.toString());
+            assert gf.read(i, "test.txt").equals("changed");
+            try (Stream<Path> files = Files.list(gf.path(i, ""))) {
+                assert files.noneMatch(x -> x.toString().endsWith(FanOutCopy.TEMP_SUFFIX));
+            }
+        }
+        assert gf.read(gf.currentBackup("backup").resolve("test.txt")).equals("source");
+    }
+
+    @Test
+    public void testFanOutOrphanIgnored() throws IOException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        prepareFiles();
+
+        String orphan = "folder/.in1.txt" + FanOutCopy.TEMP_SUFFIX; // left by an interrupted fan-out copy
+        gf.generateFile(1, orphan, "partial", gf.getTime(-100));
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.addTarget(3);
+        gc.config().put("fanOutCopy", true);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        sleep(2000);
+
+        DefaultRunner runner = new DefaultRunner(controller);
+        assert runner.run(true);
+
+        assert !Files.exists(gf.path(2, orphan));
+        assert !Files.exists(gf.path(3, orphan));
+        assert gf.read(1, orphan).equals("partial");
+    }
+
+    @Test
+    public void testIndexedFileList() throws IOException, ParseException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        prepareFiles();
+
+        FileListFormat.convert(gf.path("filelist.json"), gf.path("filelist.idx"), FileListFormat.fromName("indexed", true));
+        FileListFormat.convert(gf.path("filelist.idx"), gf.path("filelist2.json"), FileListFormat.fromName("json", true));
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        FileList json = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.json"), true).getList();
+        FileList indexed = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.idx"), true).getList();
+        FileList converted = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist2.json"), true).getList();
+
+        assert indexed instanceof IndexedFileList;
+        assert new HashSet<>(indexed.getPaths()).equals(new HashSet<>(json.getPaths()));
+        assert new HashSet<>(converted.getPaths()).equals(new HashSet<>(json.getPaths()));
+        assert indexed.getPaths().contains("folder/in1.txt");
+        assert indexed.getTime() == json.getTime();
+        for (String path : json.getPaths()) {
+            FileVersion v = json.get(path).getCurrentVersion();
+            assert indexed.get(path).getCurrentVersion().getFileSize() == v.getFileSize();
+            assert indexed.get(path).getCurrentVersion().getModifiedTime() == v.getModifiedTime();
+            assert converted.get(path).getCurrentVersion().getFileSize() == v.getFileSize();
+        }
+        assert indexed.get("folder/in1.txt").getCurrentVersion().getFileSize() == 3;
+        assert !indexed.get("missing.txt").exists();
+
+        // windows smaller than records and paths, values span window boundaries
+        for (int windowSize : new int[] {5, 64}) {
+            IndexedFileList windowed = IndexedFileListFormat.open(controller.getDefaultRoot().getDevice(), gf.path("filelist.idx"), true, 0, windowSize);
+            assert windowed.toTree().equals(((IndexedFileList)indexed).toTree());
+            assert windowed.get("folder/in1.txt").getCurrentVersion().getFileSize() == 3;
+            assert !windowed.get("missing.txt").exists();
+        }
+
+        // a change reads all entries, the data is not changed
+        indexed.set("copy.txt", indexed.get("test.txt"));
+        assert ((IndexedFileList)indexed).isChanged();
+        assert indexed.get("copy.txt").getCurrentVersion().getFileSize() == 6;
+        assert indexed.get("folder/in2.txt").getCurrentVersion().getFileSize() == 3;
+        assert indexed.getPaths().contains("copy.txt");
+        assert indexed.getPaths().size() == json.getPaths().size() + 1;
+        indexed = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.idx"), true).getList();
+        assert !indexed.getPaths().contains("copy.txt");
+    }
+
+    @Test
+    public void testJournaledFileList() throws IOException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(1, "folder");
+        for (int i = 0; i < 20; ++i) {
+            gf.generateFile(1, "folder/in" + i + ".txt", "file" + i, gf.getTime(-1000));
+        }
+
+        JsonObject listConfig = new JsonObject();
+        listConfig.put("path", "filelist.json");
+        listConfig.put("journal", true);
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("list", listConfig);
+
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        sleep(2000);
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true); // all entries get first seen time
+        Path journal = gf.path("filelist.json.journal");
+        byte[] snapshot = Files.readAllBytes(gf.path("filelist.json"));
+        assert !Files.exists(journal);
+
+        sleep(2000);
+        gf.writeFile(2, "folder/in1.txt", "changed", -1);
+        Files.delete(gf.path(1, "folder/in2.txt"));
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        assert gf.read(1, "folder/in1.txt").equals("changed");
+        assert !Files.exists(gf.path(2, "folder/in2.txt"));
+        assert Files.exists(journal);
+        assert Arrays.equals(snapshot, Files.readAllBytes(gf.path("filelist.json")));
+
+        FileListContainer flc = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.json"), true);
+        assert flc.getList().get("folder/in1.txt").getCurrentVersion().getFileSize() == 7;
+        assert !flc.getList().get("folder/in2.txt").exists();
+
+        // torn segment is discarded and overwritten
+        Files.write(journal, new byte[]{0, 0, 1, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+        sleep(2000);
+        gf.writeFile(1, "folder/in3.txt", "changed3", -1);
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        assert gf.read(2, "folder/in3.txt").equals("changed3");
+        assert !Files.exists(gf.path(1, "folder/in2.txt"));
+        assert Arrays.equals(snapshot, Files.readAllBytes(gf.path("filelist.json")));
+
+        flc = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.json"), true);
+        assert flc.getList().get("folder/in1.txt").getCurrentVersion().getFileSize() == 7;
+        assert flc.getList().get("folder/in3.txt").getCurrentVersion().getFileSize() == 8;
+
+        // compaction
+        listConfig.put("journalRatio", 0.0001);
+        sleep(2000);
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        assert !Files.exists(journal);
+        assert !Arrays.equals(snapshot, Files.readAllBytes(gf.path("filelist.json")));
+
+        flc = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.json"), true);
+        assert flc.getList().get("folder/in1.txt").getCurrentVersion().getFileSize() == 7;
+        assert flc.getList().get("folder/in3.txt").getCurrentVersion().getFileSize() == 8;
+        assert !flc.getList().get("folder/in2.txt").exists();
+    }
+
+    @Test
+    public void testCompressedFileList() throws IOException
+    {
+        byte[] data = "{\"files\": {}}".getBytes(StandardCharsets.UTF_8);
+        for (FileListCompression compression : FileListCompression.values()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (OutputStream out = compression.compress(bytes, Deflater.BEST_COMPRESSION)) {
+                out.write(data);
+            }
+            BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            assert FileListCompression.detect(in) == compression;
+            assert Arrays.equals(IOUtils.toByteArray(FileListCompression.decompress(in)), data);
+        }
+        assert FileListCompression.fromPath(Paths.get("filelist.json.gz")) == FileListCompression.GZIP;
+        assert FileListCompression.fromPath(Paths.get("filelist.bin.zz")) == FileListCompression.DEFLATE;
+        assert FileListCompression.fromPath(Paths.get("filelist.json")) == FileListCompression.NONE;
+
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(1, "folder");
+        gf.generateFile(1, "folder/in1.txt", "aaa", gf.getTime(-1000));
+        gf.generateFile(1, "folder/in2.txt", "bbbb", gf.getTime(-1000));
+
+        // compression by extension
+        GenerateConfig gc = new GenerateConfig();
+        gc.addTarget(1);
+        gc.addTarget(2);
+        gc.config().put("list", "filelist.json.gz");
+        Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        byte[] magic = Arrays.copyOf(Files.readAllBytes(gf.path("filelist.json.gz")), 2);
+        assert Arrays.equals(magic, new byte[]{0x1F, (byte)0x8B});
+        FileListContainer flc = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.json.gz"), true);
+        assert flc.getList().get("folder/in1.txt").getCurrentVersion().getFileSize() == 3;
+        assert flc.getList().get("folder/in2.txt").getCurrentVersion().getFileSize() == 4;
+
+        // compressed indexed list is read at once
+        JsonObject listConfig = new JsonObject();
+        listConfig.put("path", "filelist.idx");
+        listConfig.put("format", "indexed");
+        listConfig.put("compression", "deflate");
+        gc.config().put("list", listConfig);
+        controller = new Controller(gc.config(), folder.getRoot().toString());
+        assert new DefaultRunner(controller).run(true);
+        try (BufferedInputStream in = new BufferedInputStream(Files.newInputStream(gf.path("filelist.idx")))) {
+            assert FileListCompression.detect(in) == FileListCompression.DEFLATE;
+        }
+        flc = new FileListContainer(controller.getDefaultRoot(), gf.path("filelist.idx"), true);
+        assert !(flc.getList() instanceof IndexedFileList);
+        assert flc.getList().get("folder/in1.txt").getCurrentVersion().getFileSize() == 3;
+        assert flc.getList().get("folder/in2.txt").getCurrentVersion().getFileSize() == 4;
+        assert !flc.getList().get("folder/in3.txt").exists();
+    }
+
+    @Test
+    public void testSaveAllFileLists() throws IOException, ParseException
+    {
+        GenerateFiles gf = new GenerateFiles(folder);
+        gf.generateDir(1);
+        gf.generateDir(2);
+        gf.generateDir(3);
+        gf.generateDir(4);
+        gf.generateDir(1, "folder");
+        gf.generateFile(1, "test.txt", "source", gf.getTime(-100));
+        gf.generateFile(1, "folder/in1.txt", "aaa", gf.getTime(-1000));
+        gf.generateDir(2, "folder");
+        gf.generateFile(2, "folder/in2.txt", "bbb", gf.getTime(-1000));
+
+        GenerateConfig gc = new GenerateConfig();
+        gc.config().put("saveThreads", 4); // two local lists and the global list are saved in parallel
+        gc.config().put("list", listConfig("filelist.json"));
+        for (int i = 1; i <= 4; ++i) {
+            JsonObject target = new JsonObject();
+            if (i <= 2) {
+                target.put("list", listConfig("local.json"));
+            }
+            gc.addTarget(i, target);
+        }
+
+        for (int round = 0; round < 2; ++round) {
+            Map<Integer, String> expected = new HashMap<>();
+            Controller controller = new Controller(gc.config(), folder.getRoot().toString());
+            assert new DefaultRunner(controller)
+            {
+                @Override
+                protected void runSave(SyncList list)
+                {
+                    // lists generated one by one before the single pass
+                    expected.put(-1, list.generateGlobalFileList().toJson(5, false).toJSONString());
+                    for (int i = 0; i < 2; ++i) {
+                        expected.put(i, list.generateFileList(i).toJson(5, false).toJSONString());
+                    }
+                    super.runSave(list);
+                }
+            }.run(true);
+
+            for (int i = -1; i < 2; ++i) {
+                Path path = i < 0 ? gf.path("filelist.json") : gf.path(i + 1, "local.json");
+                FileList saved;
+                try (InputStream in = Files.newInputStream(path)) {
+                    saved = FileListFormat.readAnyList(in, i < 0, 0);
+                }
+                assert saved.toJson(-1, false).toJSONString().equals(expected.get(i));
+            }
+            assert !Files.exists(gf.path(3, "local.json")) && !Files.exists(gf.path(4, "local.json"));
+
+            if (round == 0) {
+                gf.writeFile(3, "folder/in1.txt", "ccc", gf.getTime(-50));
+                Files.delete(gf.path(1, "test.txt"));
+                sleep(2000);
+            }
+        }
+    }
+
+    private JsonObject listConfig(String path)
+    {
+        JsonObject config = new JsonObject();
+        config.put("path", path);
+        config.put("maxVersions", 5);
+        return config;
+    }
+
+    @Test
+    public void testGlobalFileListManyTargets()
+    {
+        long time = 1600000000L;
+        JsonObject targets = new JsonObject();
+        List<FileListTarget> list = new ArrayList<>();
+        for (int i = 0; i < 70; ++i) {
+            String id = "t" + i;
+            JsonObject target = new JsonObject();
+            target.put("time", time);
+            targets.put(id, target);
+            list.add(new FileListTarget()
+            {
+                @Override
+                public String getTargetId()
+                {
+                    return id;
+                }
+
+                @Override
+                public String getRelativeTargetId()
+                {
+                    return null;
+                }
+
+                @Override
+                public long getUpdatedTime()
+                {
+                    return time * 1000;
+                }
+
+                @Override
+                public boolean isAvailable()
+                {
+                    return true;
+                }
+            });
+        }
+        JsonObject entry = new JsonObject();
+        entry.put("size", 1);
+        entry.put("modified", time);
+        JsonArray variants = new JsonArray();
+        variants.add(variant(2, time, "-1,3,67")); // unknown indexes are skipped
+        variants.add(variant(3, time, "69"));
+        entry.put("variants", variants);
+        JsonObject files = new JsonObject();
+        files.put("a.txt", entry);
+        JsonObject json = new JsonObject();
+        json.put("time", time);
+        json.put("targets", targets);
+        json.put("files", files);
+
+        GlobalFileList global = new GlobalFileList(json, 0);
+        for (int round = 0; round < 2; ++round) {
+            for (int i = 0; i < 70; ++i) {
+                long size = global.get("a.txt", list.get(i)).getCurrentVersion().getFileSize();
+                assert size == (i == 3 || i == 67 ? 2 : (i == 69 ? 3 : 1));
+            }
+            global = new GlobalFileList((Map)global.toJson(-1, true), 0);
+        }
+        JsonObject exported = (JsonObject)((Map)((Map)global.toJson(-1, true)).get("files")).get("a.txt");
+        assert ((List)exported.get("variants")).stream().anyMatch(x -> "3,67".equals(((Map)x).get("targets")));
+    }
+
+    @Test
+    public void testGlobalFileListAddedTarget()
+    {
+        long time = 1600000000L;
+        FileListTarget first = listTarget("t1", "dir1", time);
+        FileListTarget second = listTarget("t2", "dir2", time);
+        FileListTarget sameDir = listTarget("other", "dir2", time);
+        GlobalFileList global = new GlobalFileList(time * 1000);
+        JsonObject entry = new JsonObject();
+        entry.put("size", 5);
+        entry.put("modified", time);
+
+        global.set("a.txt", new FileHistory(entry, time * 1000), first);
+        assert global.get("a.txt", first).getCurrentVersion().getFileSize() == 5;
+        // not in list, resolved as missing
+        assert global.get("a.txt", second) == null;
+        assert global.get("a.txt", sameDir) == null;
+        assert global.getTime(second) == FileVersion.TIME_UNKNOWN;
+
+        // adding a target resets resolved targets
+        entry.put("size", 7);
+        global.add("a.txt", new FileHistory(entry, time * 1000), second);
+        assert global.get("a.txt", second).getCurrentVersion().getFileSize() == 7;
+        assert global.get("a.txt", sameDir).getCurrentVersion().getFileSize() == 7; // by relative id
+        assert global.getTime(second) != FileVersion.TIME_UNKNOWN;
+        assert global.get("a.txt", first).getCurrentVersion().getFileSize() == 5;
+    }
+
+    private FileListTarget listTarget(String id, String relativeId, long time)
+    {
+        return new FileListTarget()
+        {
+            @Override
+            public String getTargetId()
+            {
+                return id;
+            }
+
+            @Override
+            public String getRelativeTargetId()
+            {
+                return relativeId;
+            }
+
+            @Override
+            public long getUpdatedTime()
+            {
+                return time * 1000;
+            }
+
+            @Override
+            public boolean isAvailable()
+            {
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void testVersionIndexMatchesScan()
+    {
+        Random random = new Random(1);
+        long[] mtimes = {FileVersion.TIME_UNKNOWN, 1000000, 1000000 + 500, 1000000 + 999, 1001000, 1001001};
+        String[] hashes = {null, "aa", "bb"};
+        for (int round = 0; round < 20; ++round) {
+            FileVersionCollection<FileVersionCollection.Options> versions = new FileVersionCollection<>();
+            for (int i = 0; i < 30; ++i) {
+                versions.addVersion(randomVersion(random, mtimes, hashes));
+            }
+            FileVersion[] all = versions.getVersions();
+            for (int i = 0; i < 50; ++i) {
+                FileVersion ver = randomVersion(random, mtimes, hashes);
+                for (int flags = 0; flags < 4; ++flags) {
+                    boolean checkTime = (flags & 1) != 0;
+                    boolean checkHash = (flags & 2) != 0;
+                    FileVersion expected = null;
+                    for (FileVersion v : all) {
+                        if (ver.isEqualTo(v, checkTime, checkHash)) {
+                            expected = v;
+                            break;
+                        }
+                    }
+                    assert versions.getVersion(ver, checkTime, checkHash) == expected;
+                }
+                FileVersion expected = null;
+                for (FileVersion v : all) {
+                    if (ver.isSameVersion(v)) {
+                        expected = v;
+                        break;
+                    }
+                }
+                assert versions.getVersion(ver) == expected;
+            }
+        }
+    }
+
+    @Test
+    public void testVersionEviction()
+    {
+        List<Integer> syncTimes = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            syncTimes.add(i);
+        }
+        Collections.shuffle(syncTimes, new Random(1));
+        FileVersionCollection<FileVersionCollection.Options> versions = new FileVersionCollection<>();
+        versions.setLimit(3);
+        for (int i = 0; i < syncTimes.size(); ++i) {
+            // size is the sync time to identify versions
+            versions.addVersion(new TestVersion(syncTimes.get(i) * 1000L, 1000000 + i * 1000, syncTimes.get(i), null, false));
+            FileVersion[] kept = versions.getVersions();
+            List<Integer> added = new ArrayList<>(syncTimes.subList(0, i + 1));
+            Collections.sort(added);
+            List<Integer> newest = added.subList(Math.max(added.size() - 3, 0), added.size());
+            assert kept.length == newest.size();
+            for (int j = 0; j < kept.length; ++j) {
+                assert kept[j].getFileSize() == newest.get(j); // oldest first
+            }
+        }
+        versions.setLimit(1);
+        assert versions.getVersions().length == 1 && versions.getVersions()[0].getFileSize() == 9;
+        assert versions.getSortedVersions()[0].getFileSize() == 9;
+    }
+
+    private FileVersion randomVersion(Random random, long[] mtimes, String[] hashes)
+    {
+        boolean dir = random.nextInt(10) == 0;
+        return new TestVersion(random.nextInt(5) * 1000L, mtimes[random.nextInt(mtimes.length)], random.nextInt(3) - 1,
+                hashes[random.nextInt(hashes.length)], dir);
+    }
+
+    @Test
+    public void testPathTrie()
+    {
+        PathTrie trie = new PathTrie();
+        Path path = Paths.get("dir", "a\\b", "file.txt");
+        PathTrie.Node node = trie.intern(path);
+        assert node == trie.intern(trie.intern(path.getParent()), path);
+        assert node.getDepth() == 3 && node.getName().equals("file.txt");
+        assert node.toPath().equals(path);
+        assert node.toString().equals("dir/a/b/file.txt"); // list keys use unix separators, as before
+        assert node.getParent().getParent().toPath().equals(Paths.get("dir"));
+        assert trie.intern(Paths.get("")).toPath().toString().isEmpty();
+        assert PathTrie.detached(path).toString().equals(node.toString());
+
+        // forms are built once, the string is kept only by directory nodes
+        assert node.toPath() == node.toPath();
+        assert node.getParent().toString() == node.getParent().toString();
+        assert node.toString() != node.toString() && node.toString().equals("dir/a/b/file.txt");
+        PathTrie.Node sibling = trie.intern(node.getParent(), Paths.get("dir", "a\\b", "other.txt"));
+        assert sibling.getParent() == node.getParent() && sibling.toString().equals("dir/a/b/other.txt");
+        assert sibling.toPath().equals(Paths.get("dir", "a\\b", "other.txt"));
+    }
+
+    private JsonObject variant(long size, long time, String targets)
+    {
+        JsonObject version = new JsonObject();
+        version.put("size", size);
+        version.put("modified", time);
+        version.put("targets", targets);
+        return version;
+    }
+
+    private static class TestVersion extends FileVersion
+    {
+        public TestVersion(long syncTime, long modifiedTime, long size, String hash, boolean dir)
+        {
+            time = syncTime;
+            mtime = modifiedTime;
+            fsize = size;
+            setExists(true);
+            setDir(dir);
+            if (hash != null) {
+                setHash(hash);
+            }
+        }
+    }
 }